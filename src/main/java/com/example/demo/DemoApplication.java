@@ -1,5 +1,8 @@
 package com.example.demo;
 
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -7,15 +10,25 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.DependsOn;
 
+import com.example.demo.service.DispatchIntrospection;
 import com.example.demo.service.EventProcessingMediator;
+import com.example.demo.service.ReadModelCache;
+import com.example.demo.service.RebuildService;
+import com.example.demo.service.StandbyCoordinator;
+
+import com.sun.net.httpserver.HttpServer;
 
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.HTTPServer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 
 @SpringBootApplication
 @Configurable
+@DependsOn("indexManager") // indexes are ensured and query plans checked before any stream starts
 public class DemoApplication {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DemoApplication.class);
@@ -26,6 +39,30 @@ public class DemoApplication {
     @Autowired
     private EventProcessingMediator mediator;
 
+    @Autowired
+    private StandbyCoordinator standbyCoordinator;
+
+    @Autowired
+    private RebuildService rebuildService;
+
+    @Autowired
+    private ReadModelCache readModelCache;
+
+    @Autowired
+    private DispatchIntrospection dispatchIntrospection;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Value("${spring.rebuild.from:}") // gamingDate yyyy-MM-dd, set to run a rebuild instead of the listener
+    private String rebuildFrom;
+
+    @Value("${spring.rebuild.to:}") // inclusive, defaults to spring.rebuild.from
+    private String rebuildTo;
+
+    @Value("${spring.changestream.listener.enabled:true}") // false only serves metrics, e.g. for a CDS training run
+    private boolean listenerEnabled;
+
     private HTTPServer httpServer; // Add HTTPServer instance
 
     public DemoApplication() {
@@ -34,13 +71,23 @@ public class DemoApplication {
     @PostConstruct
     public void init() {
         startHttpServer(); // Start the HTTP server for metrics
-        startChangeStreamListener();
+        if (rebuildFrom != null && !rebuildFrom.isEmpty()) {
+            startRebuild();
+        } else if (listenerEnabled) {
+            startChangeStreamListener();
+        } else {
+            LOGGER.info("Change stream listener disabled by spring.changestream.listener.enabled");
+        }
     }
 
     public void startHttpServer() {
         try {
-            // Start the Prometheus HTTP server on the specified port
-            httpServer = new HTTPServer(metricsPort);
+            // Start the Prometheus HTTP server on the specified port, the read model and the
+            // dispatch snapshot share it
+            HttpServer server = HttpServer.create(new InetSocketAddress(metricsPort), 3);
+            readModelCache.register(server);
+            dispatchIntrospection.register(server);
+            httpServer = new HTTPServer(server, CollectorRegistry.defaultRegistry, false);
             LOGGER.info("Prometheus metrics server started on port {}", metricsPort);
         } catch (Exception e) {
             LOGGER.error("Error starting Prometheus HTTP server: {}", e.getMessage());
@@ -49,14 +96,55 @@ public class DemoApplication {
 
     public void startChangeStreamListener() {
         Thread changeStreamThread = new Thread(() -> {
-            // Run the blocking change stream processing logic
-            mediator.changeStreamProcessWithRetry();
+            try {
+                // JIT-compile the hot paths before live events arrive
+                mediator.warmUp();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Warm-up failed, starting cold: {}", e.getMessage());
+            }
+            if (standbyCoordinator.isEnabled()) {
+                // Stay warm in standby and only stream while holding the lease
+                standbyCoordinator.runWithLeadership(mediator::changeStreamProcessWithRetry, mediator::requestStop);
+            } else {
+                // Run the blocking change stream processing logic
+                mediator.changeStreamProcessWithRetry();
+            }
         });
         changeStreamThread.setDaemon(true); // Set the thread as a daemon thread
         changeStreamThread.start(); // Start the thread
         LOGGER.info("Change stream listener started in a daemon thread");
     }
 
+    /**
+     * Offline rebuild mode: recompute userDailyTxn for the configured date range
+     * and exit. The change stream is not opened, so the live instance and its
+     * resume tokens are left alone.
+     */
+    public void startRebuild() {
+        LocalDate from = LocalDate.parse(rebuildFrom);
+        LocalDate to = rebuildTo == null || rebuildTo.isEmpty() ? from : LocalDate.parse(rebuildTo);
+        Thread rebuildThread = new Thread(() -> {
+            int exitCode = 0;
+            try {
+                rebuildService.rebuild(from, to);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                exitCode = 1;
+            } catch (Exception e) {
+                LOGGER.error("Rebuild from {} to {} failed", from, to, e);
+                exitCode = 1;
+            }
+            int code = exitCode;
+            System.exit(SpringApplication.exit(applicationContext, () -> code));
+        });
+        rebuildThread.setName("rebuild");
+        rebuildThread.start();
+        LOGGER.info("Rebuild of userDailyTxn from {} to {} started", from, to);
+    }
+
     @PreDestroy
     public void closeConnection() {
         try {
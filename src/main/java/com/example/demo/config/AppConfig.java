@@ -1,9 +1,19 @@
 package com.example.demo.config;
 
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.retry.annotation.EnableRetry;
 
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+import com.example.demo.service.ChangeEventService;
+import com.example.demo.service.IndexManager;
+import com.example.demo.service.TransactionFilter;
+import com.mongodb.client.MongoCollection;
+
 @Configuration
 @EnableRetry
 public class AppConfig {
@@ -12,4 +22,43 @@ public class AppConfig {
         public double tpsAlphaValue() {
                 return 0.1; // Set alpha value for TPS calculations
         }
+
+        // Adaptive limit on concurrent writes to the business collection, disabled by default
+        @Bean
+        public AdaptiveConcurrencyLimiter writeConcurrencyLimiter(
+                        @Value("${spring.limiter.enabled:false}") boolean enabled,
+                        @Value("${spring.limiter.min:1}") int minLimit,
+                        @Value("${spring.limiter.max:${spring.threadpool.nums:10}}") int maxLimit,
+                        @Value("${spring.limiter.initial:${spring.threadpool.nums:10}}") int initialLimit,
+                        @Value("${spring.limiter.latency.targetms:50}") long targetLatencyMillis,
+                        @Value("${spring.limiter.backoff:0.9}") double backoffRatio) {
+                return new AdaptiveConcurrencyLimiter(enabled, minLimit, maxLimit, initialLimit, targetLatencyMillis,
+                                backoffRatio);
+        }
+
+        // Membership filter choosing the cheap $push for new transactions, disabled by default. The
+        // $push is only safe with the unique (playerID, gamingDate) index, so the filter stays off
+        // unless IndexManager found it
+        @Bean
+        public TransactionFilter transactionFilter(IndexManager indexManager,
+                        @Value("${spring.txnfilter.enabled:false}") boolean enabled,
+                        @Value("${spring.txnfilter.bits:67108864}") long bits,
+                        @Value("${spring.txnfilter.hashes:6}") int hashes,
+                        @Value("${spring.txnfilter.maxfpr:0.02}") double maxFalsePositiveRate) {
+                return new TransactionFilter(enabled && indexManager.hasUniqueDailyIndex(), bits, hashes,
+                                maxFalsePositiveRate);
+        }
+
+        // Default candidate of shadow mode: the current handler, writing to the shadow database with
+        // its own (disabled) limiter and filter and its own MongoClient, so it shares no state or
+        // connections with the primary
+        @Bean
+        @Lazy
+        public ChangeEventService shadowChangeEventService(
+                        @Qualifier("changestreamCollection") MongoCollection<Document> changestreamCollection,
+                        @Qualifier("shadowUserDailyTxnCollection") MongoCollection<Document> shadowUserDailyTxnCollection) {
+                return new ChangeEventService(changestreamCollection, shadowUserDailyTxnCollection,
+                                new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 50, 0.9),
+                                new TransactionFilter(false, 0, 1, 1.0));
+        }
 }
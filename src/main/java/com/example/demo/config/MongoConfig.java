@@ -3,10 +3,18 @@ package com.example.demo.config;
 import java.util.concurrent.TimeUnit;
 
 import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Primary;
 
+import com.example.demo.metrics.ConnectionPoolMetrics;
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.metrics.WriteOperationCounter;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ReadPreference;
@@ -16,9 +24,21 @@ import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.connection.ConnectionPoolSettings;
 
+/**
+ * MongoDB clients and collections. Each workload has its own client, so its
+ * own connection pool, timeouts and write concern: the change stream cursors
+ * (streamMongoClient), the business writes (mongoClient, also used by
+ * everything not assigned otherwise) and the checkpoints with the other
+ * coordination documents (checkpointMongoClient). A burst of slow upserts can
+ * then only exhaust the writes pool, while getMores and checkpoint writes keep
+ * their connections. Shadow mode's candidate writes through a client of its
+ * own (shadowMongoClient) for the same reason.
+ */
 @Configuration
 public class MongoConfig {
 
+        private static final Logger LOGGER = LoggerFactory.getLogger(MongoConfig.class);
+
         @Value("${spring.mongodb.uri}")
         private String mongoUri;
 
@@ -34,34 +54,238 @@ public class MongoConfig {
         @Value("${spring.mongodb.database}")
         private String dbName;
 
-        // Bean configuration for MongoClient
-        @Bean
-        public MongoClient mongoClient() {
+        @Value("${spring.mongodb.lease.collection:leases}")
+        private String leaseCollName;
+
+        @Value("${spring.mongodb.backfill.collection:backfillcheckpoints}")
+        private String backfillCollName;
+
+        @Value("${spring.mongodb.archive.collection:userdailytxnarchive}")
+        private String archiveCollName;
+
+        @Value("${spring.mongodb.windows.collection:playerwindows}")
+        private String windowCollName;
+
+        @Value("${spring.mongodb.windows.snapshot.collection:windowsnapshots}")
+        private String windowSnapshotCollName;
+
+        @Value("${spring.shadow.database:${spring.mongodb.database}_shadow}")
+        private String shadowDbName;
+
+        @Value("${spring.changestream.commitmode:event}") // transactional commits checkpoints with the writes
+        private String commitMode;
+
+        @Value("${spring.mongodb.pool.writes.minsize:64}")
+        private int writesMinSize;
+
+        @Value("${spring.mongodb.pool.writes.maxsize:128}")
+        private int writesMaxSize;
+
+        @Value("${spring.mongodb.pool.writes.maxwaitms:120000}") // Longest wait for a connection, driver default 2 min
+        private long writesMaxWaitMillis;
+
+        @Value("${spring.mongodb.pool.writes.sockettimeoutms:0}") // 0 waits for replies without limit
+        private long writesSocketTimeoutMillis;
+
+        @Value("${spring.mongodb.pool.writes.writeconcern:MAJORITY}") // A WriteConcern constant, e.g. W1
+        private String writesWriteConcern;
+
+        @Value("${spring.mongodb.pool.stream.minsize:1}")
+        private int streamMinSize;
+
+        @Value("${spring.mongodb.pool.stream.maxsize:0}") // 0 sizes the pool for the readers and backfill threads
+        private int streamMaxSize;
+
+        @Value("${spring.mongodb.pool.stream.maxwaitms:5000}")
+        private long streamMaxWaitMillis;
+
+        @Value("${spring.mongodb.pool.stream.sockettimeoutms:0}") // Must exceed spring.changestream.maxawaitms
+        private long streamSocketTimeoutMillis;
+
+        @Value("${spring.multistream.streams:}")
+        private String[] streamNames;
+
+        @Value("${spring.changestream.readers:1}")
+        private int readers;
+
+        @Value("${spring.backfill.enabled:false}")
+        private boolean backfillEnabled;
+
+        @Value("${spring.backfill.threads:0}") // 0 uses the number of cores
+        private int backfillThreads;
+
+        @Value("${spring.mongodb.pool.checkpoint.minsize:2}")
+        private int checkpointMinSize;
+
+        @Value("${spring.mongodb.pool.checkpoint.maxsize:16}") // One checkpoint write per lane at a time
+        private int checkpointMaxSize;
+
+        @Value("${spring.mongodb.pool.checkpoint.maxwaitms:5000}")
+        private long checkpointMaxWaitMillis;
+
+        @Value("${spring.mongodb.pool.checkpoint.sockettimeoutms:0}")
+        private long checkpointSocketTimeoutMillis;
+
+        @Value("${spring.mongodb.pool.checkpoint.writeconcern:MAJORITY}")
+        private String checkpointWriteConcern;
+
+        @Value("${spring.mongodb.pool.shadow.minsize:0}")
+        private int shadowMinSize;
+
+        @Value("${spring.mongodb.pool.shadow.maxsize:16}") // One write per shadow thread at a time
+        private int shadowMaxSize;
+
+        @Value("${spring.mongodb.pool.shadow.maxwaitms:5000}")
+        private long shadowMaxWaitMillis;
+
+        private MongoClient client(String pool, int minSize, int maxSize, long maxWaitMillis, long socketTimeoutMillis,
+                        WriteConcern writeConcern, PrometheusMetricsConfig metricsConfig) {
                 MongoClientSettings clientSettings = MongoClientSettings.builder()
                                 .applyConnectionString(new ConnectionString(mongoUri))
                                 .applyToConnectionPoolSettings((ConnectionPoolSettings.Builder builder) -> builder
-                                                .maxSize(128).minSize(64))
-                                .applyToSocketSettings(builder -> builder.connectTimeout(30, TimeUnit.SECONDS))
+                                                .maxSize(maxSize).minSize(minSize)
+                                                .maxWaitTime(maxWaitMillis, TimeUnit.MILLISECONDS)
+                                                .addConnectionPoolListener(new ConnectionPoolMetrics(pool, metricsConfig)))
+                                .applyToSocketSettings(builder -> builder.connectTimeout(30, TimeUnit.SECONDS)
+                                                .readTimeout((int) socketTimeoutMillis, TimeUnit.MILLISECONDS))
+                                .addCommandListener(new WriteOperationCounter(metricsConfig.mongodbWriteOperations()))
                                 .retryWrites(true).readPreference(ReadPreference.nearest())
-                                .writeConcern(WriteConcern.MAJORITY).applicationName("changeStreamDemo").build();
-
+                                .writeConcern(writeConcern).applicationName("changeStreamDemo-" + pool).build();
+                LOGGER.info("MongoClient pool {}: {}-{} connections, write concern {}", pool, minSize, maxSize,
+                                writeConcern);
                 return MongoClients.create(clientSettings);
         }
 
+        private static WriteConcern writeConcern(String name) {
+                WriteConcern writeConcern = WriteConcern.valueOf(name);
+                if (writeConcern == null) {
+                        throw new IllegalArgumentException("Unknown write concern " + name);
+                }
+                return writeConcern;
+        }
+
+        // Bean configuration for MongoClient: business writes, and every use not assigned to another pool
+        @Bean
+        @Primary
+        public MongoClient mongoClient(PrometheusMetricsConfig metricsConfig) {
+                return client("writes", writesMinSize, writesMaxSize, writesMaxWaitMillis, writesSocketTimeoutMillis,
+                                writeConcern(writesWriteConcern), metricsConfig);
+        }
+
+        /**
+         * Connections the stream pool needs at once: every reader of every stream
+         * holds one for its getMore, which waits up to maxawaitms for events, and
+         * every backfill thread one for its scan.
+         */
+        int streamConnections() {
+                int streams = 0;
+                for (String name : streamNames) {
+                        if (!name.isBlank()) {
+                                streams++;
+                        }
+                }
+                int backfill = !backfillEnabled ? 0
+                                : backfillThreads > 0 ? backfillThreads : Runtime.getRuntime().availableProcessors();
+                return Math.max(1, streams) * Math.max(1, readers) + backfill;
+        }
+
+        // MongoClient of the change stream cursors and backfill scans
+        @Bean
+        public MongoClient streamMongoClient(PrometheusMetricsConfig metricsConfig) {
+                int needed = streamConnections();
+                int maxSize = streamMaxSize > 0 ? streamMaxSize : needed;
+                if (maxSize < needed) {
+                        // a reader waiting for a connection stalls its stream for up to maxwaitms
+                        throw new IllegalArgumentException("spring.mongodb.pool.stream.maxsize=" + maxSize
+                                        + " is below the " + needed
+                                        + " connections the change stream readers and backfill threads use at once");
+                }
+                return client("stream", Math.min(streamMinSize, maxSize), maxSize, streamMaxWaitMillis,
+                                streamSocketTimeoutMillis, WriteConcern.MAJORITY, metricsConfig);
+        }
+
+        // MongoClient of the resume tokens, the standby lease and the backfill checkpoints
+        @Bean
+        public MongoClient checkpointMongoClient(PrometheusMetricsConfig metricsConfig) {
+                return client("checkpoint", checkpointMinSize, checkpointMaxSize, checkpointMaxWaitMillis,
+                                checkpointSocketTimeoutMillis, writeConcern(checkpointWriteConcern), metricsConfig);
+        }
+
+        // MongoClient of the shadow mode's candidate, so it cannot take connections from the business writes;
+        // only created when shadow mode looks the candidate up
+        @Bean
+        @Lazy
+        public MongoClient shadowMongoClient(PrometheusMetricsConfig metricsConfig) {
+                return client("shadow", shadowMinSize, shadowMaxSize, shadowMaxWaitMillis, writesSocketTimeoutMillis,
+                                writeConcern(writesWriteConcern), metricsConfig);
+        }
+
         // Bean configuration for the Resume Token Collection
         @Bean
-        public MongoCollection<Document> resumeTokenCollection(MongoClient mongoClient) {
-                return mongoClient.getDatabase(dbName).getCollection(resumeTokenCollName, Document.class);
+        public MongoCollection<Document> resumeTokenCollection(MongoClient mongoClient,
+                        @Qualifier("checkpointMongoClient") MongoClient checkpointMongoClient) {
+                if ("transactional".equalsIgnoreCase(commitMode)) {
+                        // saved in the writes' transactions, whose sessions belong to the writes client
+                        return mongoClient.getDatabase(dbName).getCollection(resumeTokenCollName, Document.class);
+                }
+                return checkpointMongoClient.getDatabase(dbName).getCollection(resumeTokenCollName, Document.class);
         }
 
-        // Bean configuration for the main collection that DemoApplication watches
+        // The watched collection on the writes client, for aggregations that write like the rebuild's $merge
         @Bean
-        public MongoCollection<Document> changestreamCollection(MongoClient mongoClient) {
+        public MongoCollection<Document> rebuildSourceCollection(MongoClient mongoClient) {
                 return mongoClient.getDatabase(dbName).getCollection(collName, Document.class);
         }
 
+        // Bean configuration for the main collection that DemoApplication watches
+        @Bean
+        public MongoCollection<Document> changestreamCollection(
+                        @Qualifier("streamMongoClient") MongoClient streamMongoClient) {
+                return streamMongoClient.getDatabase(dbName).getCollection(collName, Document.class);
+        }
+
         @Bean
         public MongoCollection<Document> userDailyTxnCollection(MongoClient mongoClient) {
                 return mongoClient.getDatabase(dbName).getCollection(txncollName, Document.class);
         }
+
+        // Bean configuration for the coordination collection holding the standby lease
+        @Bean
+        public MongoCollection<Document> leaseCollection(
+                        @Qualifier("checkpointMongoClient") MongoClient checkpointMongoClient) {
+                return checkpointMongoClient.getDatabase(dbName).getCollection(leaseCollName, Document.class);
+        }
+
+        // Bean configuration for the per-range checkpoints of a running backfill
+        @Bean
+        public MongoCollection<Document> backfillCheckpointCollection(
+                        @Qualifier("checkpointMongoClient") MongoClient checkpointMongoClient) {
+                return checkpointMongoClient.getDatabase(dbName).getCollection(backfillCollName, Document.class);
+        }
+
+        // Bean configuration for the archived (or monthly rolled up) userDailyTxn days
+        @Bean
+        public MongoCollection<Document> userDailyTxnArchiveCollection(MongoClient mongoClient) {
+                return mongoClient.getDatabase(dbName).getCollection(archiveCollName, Document.class);
+        }
+
+        // Bean configuration for the emitted per-player window aggregates
+        @Bean
+        public MongoCollection<Document> playerWindowCollection(MongoClient mongoClient) {
+                return mongoClient.getDatabase(dbName).getCollection(windowCollName, Document.class);
+        }
+
+        // Bean configuration for the snapshots of the lanes' open window state
+        @Bean
+        public MongoCollection<Document> windowSnapshotCollection(MongoClient mongoClient) {
+                return mongoClient.getDatabase(dbName).getCollection(windowSnapshotCollName, Document.class);
+        }
+
+        // Bean configuration for the daily totals written by the shadow mode's candidate handler
+        @Bean
+        @Lazy
+        public MongoCollection<Document> shadowUserDailyTxnCollection(
+                        @Qualifier("shadowMongoClient") MongoClient shadowMongoClient) {
+                return shadowMongoClient.getDatabase(shadowDbName).getCollection(txncollName, Document.class);
+        }
 }
@@ -0,0 +1,16 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("com.example.demo.ChangeStreamRead")
+@Label("Change Stream Read")
+@Description("Reader waiting for and decoding the next change event, including getMore round trips")
+@Threshold("20 ms")
+public class ChangeStreamReadEvent extends PipelineEvent {
+
+        @Label("Operation Type")
+        public String operationType;
+}
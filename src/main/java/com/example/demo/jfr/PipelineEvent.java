@@ -0,0 +1,27 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Fields every pipeline stage event carries, so one slow event can be followed
+ * from the read to its checkpoint. Stack traces are off, the thread and the
+ * fields identify where the time was spent.
+ */
+@Category({ "Change Stream", "Pipeline" })
+@StackTrace(false)
+public abstract class PipelineEvent extends Event {
+
+        @Label("Stream")
+        public String stream;
+
+        @Label("Player ID")
+        public int playerID;
+
+        @Label("Partition")
+        @Description("Lane the event is processed on, -1 if unknown")
+        public int partition = -1;
+}
@@ -0,0 +1,89 @@
+package com.example.demo.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+
+/**
+ * PipelineRecording starts a continuous flight recording from inside the
+ * application: the JDK's "default" settings (GC, locks, I/O, CPU samples) plus
+ * the pipeline events with the configured threshold, kept on disk for maxage
+ * and dumped to a file on shutdown. Without spring.jfr.enabled the events are
+ * only recorded when a recording is started from the command line, e.g. with
+ * the settings of jfr/changestream.jfc.
+ */
+@Component
+public class PipelineRecording {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(PipelineRecording.class);
+        private static final List<Class<? extends Event>> STAGE_EVENTS = List.of(ChangeStreamReadEvent.class,
+                        QueueWaitEvent.class, ProcessChangeEvent.class, UserDailyTxnUpdateEvent.class,
+                        SaveResumeTokenEvent.class);
+        private Recording recording;
+
+        @Value("${spring.jfr.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.jfr.thresholdms:20}") // Stage events shorter than this are not recorded
+        private long thresholdMillis;
+
+        @Value("${spring.jfr.maxagemin:360}") // How long the recording keeps events on disk
+        private long maxAgeMinutes;
+
+        @Value("${spring.jfr.maxsizemb:250}")
+        private long maxSizeMegabytes;
+
+        @Value("${spring.jfr.file:changestream.jfr}") // Written on shutdown
+        private String file;
+
+        @PostConstruct
+        public void start() {
+                if (!enabled) {
+                        return;
+                }
+                try {
+                        recording = new Recording(Configuration.getConfiguration("default"));
+                } catch (IOException | ParseException e) {
+                        LOGGER.error("Cannot load the default JFR settings, recording pipeline events only", e);
+                        recording = new Recording();
+                }
+                recording.setName("changestream-pipeline");
+                recording.setToDisk(true);
+                recording.setMaxAge(Duration.ofMinutes(maxAgeMinutes));
+                recording.setMaxSize(maxSizeMegabytes * 1024 * 1024);
+                for (Class<? extends Event> stage : STAGE_EVENTS) {
+                        recording.enable(stage).withThreshold(Duration.ofMillis(thresholdMillis));
+                }
+                recording.enable(RetryAttemptEvent.class);
+                recording.start();
+                LOGGER.info("Flight recording started, pipeline stages above {} ms are recorded", thresholdMillis);
+        }
+
+        @PreDestroy
+        public void stop() {
+                if (recording == null) {
+                        return;
+                }
+                try {
+                        recording.dump(Path.of(file));
+                        LOGGER.info("Flight recording written to {}", file);
+                } catch (IOException e) {
+                        LOGGER.error("Failed to write flight recording to {}", file, e);
+                } finally {
+                        recording.close();
+                }
+        }
+}
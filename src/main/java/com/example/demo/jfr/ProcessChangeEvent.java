@@ -0,0 +1,20 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("com.example.demo.ProcessChange")
+@Label("Process Change")
+@Description("Handler processChange call; UserDailyTxnUpdate events on the same thread split it into build and write")
+@Threshold("20 ms")
+public class ProcessChangeEvent extends PipelineEvent {
+
+        @Label("Handler")
+        public String handler;
+
+        @Label("Result")
+        @Description("processChange return code, 0 on success")
+        public int result;
+}
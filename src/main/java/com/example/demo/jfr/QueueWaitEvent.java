@@ -0,0 +1,16 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("com.example.demo.QueueWait")
+@Label("Queue Wait")
+@Description("Time an event waited in its lane's queue before processing started")
+@Threshold("20 ms")
+public class QueueWaitEvent extends PipelineEvent {
+
+        @Label("Handler")
+        public String handler;
+}
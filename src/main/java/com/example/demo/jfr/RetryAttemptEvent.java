@@ -0,0 +1,23 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.example.demo.RetryAttempt")
+@Label("Retry Attempt")
+@Description("A handler call failed with a retryable MongoDB error; recorded for every failed attempt")
+public class RetryAttemptEvent extends PipelineEvent {
+
+        @Label("Operation")
+        public String operation;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Exception")
+        public String exception;
+
+        @Label("Message")
+        public String message;
+}
@@ -0,0 +1,16 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("com.example.demo.SaveResumeToken")
+@Label("Save Resume Token")
+@Description("Checkpoint write after an event was processed")
+@Threshold("20 ms")
+public class SaveResumeTokenEvent extends PipelineEvent {
+
+        @Label("Namespace")
+        public String namespace;
+}
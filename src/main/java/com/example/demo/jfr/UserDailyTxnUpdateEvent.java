@@ -0,0 +1,25 @@
+package com.example.demo.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+@Name("com.example.demo.UserDailyTxnUpdate")
+@Label("UserDailyTxn Update")
+@Description("Building the userDailyTxn update pipeline and writing it, including the write limiter wait")
+@Threshold("20 ms")
+public class UserDailyTxnUpdateEvent extends PipelineEvent {
+
+        @Label("Transaction ID")
+        public int transactionID;
+
+        @Label("Build Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        public long buildDuration;
+
+        @Label("Write Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        public long writeDuration;
+}
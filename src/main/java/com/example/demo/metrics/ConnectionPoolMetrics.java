@@ -0,0 +1,50 @@
+package com.example.demo.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * ConnectionPoolMetrics reports how long operations wait for a connection of
+ * one MongoClient's pools and how many connections are checked out. With one
+ * client per workload, a slow write burst shows up as waits of the writes
+ * pool only.
+ */
+public class ConnectionPoolMetrics implements ConnectionPoolListener {
+
+        private final Histogram.Child waitDuration;
+        private final Gauge.Child inUse;
+        private final Counter checkOutFailures;
+        private final String pool;
+
+        public ConnectionPoolMetrics(String pool, PrometheusMetricsConfig metricsConfig) {
+                this.pool = pool;
+                this.waitDuration = metricsConfig.mongodbPoolWaitDuration().labels(pool);
+                this.inUse = metricsConfig.mongodbPoolConnectionsInUse().labels(pool);
+                this.checkOutFailures = metricsConfig.mongodbPoolCheckOutFailures();
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+                waitDuration.observe(event.getElapsedTime(TimeUnit.NANOSECONDS) / 1_000_000_000.0);
+                inUse.inc();
+        }
+
+        @Override
+        public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+                waitDuration.observe(event.getElapsedTime(TimeUnit.NANOSECONDS) / 1_000_000_000.0);
+                checkOutFailures.labels(pool, event.getReason().name().toLowerCase()).inc();
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+                inUse.dec();
+        }
+}
@@ -0,0 +1,246 @@
+package com.example.demo.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.demo.service.ResumeTokenService;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * LagTracker measures how far the pipeline is behind the head of the oplog
+ * and how long the saved resume token will stay in the oplog.
+ *
+ * The head is the cluster time in the readers' post-batch resume tokens. Each
+ * executor lane remembers how many events it still has queued, the cluster
+ * time of the first event it got since it was last drained and of the last
+ * event it finished; the later of the two is about its oldest pending event.
+ * The time behind head is the gap between the head and the oldest pending
+ * event of all lanes, so a lane stuck on its very first event counts too.
+ */
+@Component
+public class LagTracker {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(LagTracker.class);
+        private final PrometheusMetricsConfig metricsConfig;
+        private final MongoClient mongoClient;
+        private final ResumeTokenService resumeTokenService;
+        private final ConcurrentHashMap<String, Long> readerHeads = new ConcurrentHashMap<>();
+        private AtomicLongArray dispatched;
+        private AtomicLongArray completed;
+        private AtomicLongArray lastCompletedSeconds;
+        private AtomicLongArray busySinceSeconds; // first event dispatched to the drained lane
+        private ScheduledExecutorService sampler;
+        private long lastSampleMillis;
+        private long lastBacklog;
+        private double lastTimeBehindHead;
+        private long lastOplogFirstSeconds = -1;
+        private long lastOplogSampleMillis;
+        private boolean oplogEnabled;
+
+        @Value("${spring.threadpool.nums}")
+        private int nums;
+
+        @Value("${spring.lag.sampleintervalms:5000}")
+        private long sampleIntervalMillis;
+
+        @Value("${spring.lag.oplog.enabled:false}") // Needs read access to local.oplog.rs on a replica set
+        private boolean oplogWindowEnabled;
+
+        public LagTracker(PrometheusMetricsConfig metricsConfig, MongoClient mongoClient,
+                        ResumeTokenService resumeTokenService) {
+                this.metricsConfig = metricsConfig;
+                this.mongoClient = mongoClient;
+                this.resumeTokenService = resumeTokenService;
+        }
+
+        @PostConstruct
+        public void init() {
+                dispatched = new AtomicLongArray(nums);
+                completed = new AtomicLongArray(nums);
+                lastCompletedSeconds = new AtomicLongArray(nums);
+                busySinceSeconds = new AtomicLongArray(nums);
+                // no estimate before two oplog samples, NaN does not trigger alerts on low values
+                metricsConfig.minutesUntilTokenLoss().set(Double.NaN);
+                oplogEnabled = oplogWindowEnabled;
+                lastSampleMillis = System.currentTimeMillis();
+                sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("lag-sampler");
+                        return thread;
+                });
+                sampler.scheduleAtFixedRate(this::sample, sampleIntervalMillis, sampleIntervalMillis,
+                                TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Called by a reader after each cursor step with the cursor's current
+         * (post-batch) resume token.
+         */
+        public void onCursorPosition(String reader, BsonDocument postBatchResumeToken) {
+                long seconds = ResumeTokenService.clusterTimeSeconds(postBatchResumeToken);
+                if (seconds > 0) {
+                        readerHeads.put(reader, seconds);
+                }
+        }
+
+        public void onDispatched(int lane, BsonTimestamp clusterTime) {
+                if (dispatched.getAndIncrement(lane) == completed.get(lane) && clusterTime != null) {
+                        busySinceSeconds.set(lane, clusterTime.getTime());
+                }
+        }
+
+        public void onCompleted(int lane, BsonTimestamp clusterTime) {
+                if (clusterTime != null) {
+                        lastCompletedSeconds.set(lane, clusterTime.getTime());
+                        long head = headSeconds();
+                        if (head > 0) {
+                                metricsConfig.eventTimeBehindHead().observe(Math.max(0, head - clusterTime.getTime()));
+                        }
+                }
+                completed.incrementAndGet(lane);
+        }
+
+        /**
+         * Cluster time of the oplog head as far as the readers have seen it, 0
+         * before the first cursor step.
+         */
+        public long headSeconds() {
+                long head = 0;
+                for (Long readerHead : readerHeads.values()) {
+                        head = Math.max(head, readerHead);
+                }
+                return head;
+        }
+
+        /**
+         * Seconds between the oplog head and the oldest event still pending in
+         * a lane; 0 when every lane is drained.
+         */
+        public double timeBehindHead() {
+                long head = headSeconds();
+                if (head == 0) {
+                        return 0;
+                }
+                long behind = 0;
+                for (int i = 0; i < nums; i++) {
+                        if (dispatched.get(i) <= completed.get(i)) {
+                                continue;
+                        }
+                        long oldestPendingSeconds = Math.max(busySinceSeconds.get(i), lastCompletedSeconds.get(i));
+                        if (oldestPendingSeconds > 0) {
+                                behind = Math.max(behind, head - oldestPendingSeconds);
+                        }
+                }
+                return behind;
+        }
+
+        public long backlog() {
+                long backlog = 0;
+                for (int i = 0; i < nums; i++) {
+                        backlog += dispatched.get(i) - completed.get(i);
+                }
+                return backlog;
+        }
+
+        /**
+         * Events dispatched to the lane and not completed yet, including the one
+         * it is handling.
+         */
+        public long backlog(int lane) {
+                return dispatched.get(lane) - completed.get(lane);
+        }
+
+        void sample() {
+                try {
+                        long now = System.currentTimeMillis();
+                        double elapsedSeconds = Math.max(0.001, (now - lastSampleMillis) / 1000.0);
+                        double behind = timeBehindHead();
+                        long backlog = backlog();
+
+                        metricsConfig.timeBehindHead().set(behind);
+                        metricsConfig.backlogEvents().set(backlog);
+                        metricsConfig.backlogGrowthRate().set((backlog - lastBacklog) / elapsedSeconds);
+                        metricsConfig.lagGrowthRate().set((behind - lastTimeBehindHead) / elapsedSeconds);
+
+                        lastSampleMillis = now;
+                        lastBacklog = backlog;
+                        lastTimeBehindHead = behind;
+
+                        if (oplogEnabled) {
+                                sampleOplogWindow(now);
+                        }
+                } catch (Exception e) {
+                        LOGGER.warn("Failed to sample lag metrics: {}", e.getMessage());
+                }
+        }
+
+        /**
+         * Compare the oldest oplog entry with the earliest saved checkpoint. The
+         * oplog's first entry moves forward at the rate old entries are truncated,
+         * so headroom / truncation rate is the time left before the token is lost.
+         */
+        private void sampleOplogWindow(long now) {
+                MongoCollection<Document> oplog = mongoClient.getDatabase("local").getCollection("oplog.rs");
+                Document first;
+                Document last;
+                try {
+                        first = oplog.find().sort(new Document("$natural", 1)).projection(Projections.include("ts"))
+                                        .first();
+                        last = oplog.find().sort(new Document("$natural", -1)).projection(Projections.include("ts"))
+                                        .first();
+                } catch (Exception e) {
+                        // e.g. a sharded cluster or a user without access to the local database
+                        LOGGER.error("Cannot read local.oplog.rs, disabling oplog window estimation: {}", e.getMessage());
+                        oplogEnabled = false;
+                        return;
+                }
+                if (first == null || last == null) {
+                        return;
+                }
+                long firstSeconds = first.get("ts", BsonTimestamp.class).getTime();
+                long lastSeconds = last.get("ts", BsonTimestamp.class).getTime();
+                metricsConfig.oplogWindow().set(lastSeconds - firstSeconds);
+
+                // oplog seconds truncated per wall-clock second, unknown until the first entry moved
+                double truncationRate = 0;
+                if (lastOplogFirstSeconds > 0 && firstSeconds > lastOplogFirstSeconds) {
+                        truncationRate = (firstSeconds - lastOplogFirstSeconds)
+                                        / Math.max(0.001, (now - lastOplogSampleMillis) / 1000.0);
+                }
+                lastOplogFirstSeconds = firstSeconds;
+                lastOplogSampleMillis = now;
+
+                Document checkpoint = resumeTokenService.getEarliestFamilyTokenDocument();
+                if (checkpoint != null && checkpoint.get("date") instanceof BsonTimestamp) {
+                        long tokenSeconds = ((BsonTimestamp) checkpoint.get("date")).getTime();
+                        long headroom = tokenSeconds - firstSeconds;
+                        metricsConfig.resumeTokenHeadroom().set(headroom);
+                        metricsConfig.minutesUntilTokenLoss().set(
+                                        truncationRate > 0 ? Math.max(0, headroom / truncationRate / 60.0) : Double.NaN);
+                }
+        }
+
+        @PreDestroy
+        public void shutdown() {
+                if (sampler != null) {
+                        sampler.shutdownNow();
+                }
+        }
+}
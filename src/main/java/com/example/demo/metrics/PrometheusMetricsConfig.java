@@ -1,10 +1,18 @@
 package com.example.demo.metrics;
 
+import java.util.List;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+import com.example.demo.service.TransactionFilter;
+
+import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.GaugeMetricFamily;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.Summary;
 
@@ -54,4 +62,528 @@ public class PrometheusMetricsConfig {
                                                                                                                        // margin
                                 .register();
         }
+
+        @Bean
+        public Gauge standbyLeaseHeld() {
+                return Gauge.build().name("standby_lease_held")
+                                .help("1 when this instance owns the stream lease, 0 while in standby.").register();
+        }
+
+        @Bean
+        public Gauge standbyTakeoverLatency() {
+                return Gauge.build().name("standby_takeover_latency_milliseconds")
+                                .help("Time between the previous owner's lease expiry and this instance taking over.")
+                                .register();
+        }
+
+        @Bean
+        public Counter standbyTakeovers() {
+                return Counter.build().name("standby_takeovers")
+                                .help("Number of times this instance took over the stream lease.").register();
+        }
+
+        @Bean
+        public Gauge standbyCheckpointLag() {
+                return Gauge.build().name("standby_followed_checkpoint_lag_seconds")
+                                .help("Age of the earliest checkpoint followed while in standby.").register();
+        }
+
+        @Bean
+        public Counter streamEventsHandled() {
+                return Counter.build().name("stream_events_handled")
+                                .help("Total number of events handled per change stream.").labelNames("stream")
+                                .register();
+        }
+
+        @Bean
+        public Histogram streamEventProcessDuration() {
+                return Histogram.build().name("stream_event_process_duration_seconds")
+                                .help("Histogram for tracking event processing duration per change stream.")
+                                .labelNames("stream").buckets(0.0, 0.05, 0.1, 0.2, 0.5, 0.7, 1, 2).register();
+        }
+
+        @Bean
+        public Counter readerEvents() {
+                return Counter.build().name("reader_events")
+                                .help("Total number of events read and routed per change stream reader.")
+                                .labelNames("reader").register();
+        }
+
+        @Bean
+        public Gauge readerLag() {
+                return Gauge.build().name("reader_lag_milliseconds")
+                                .help("Time between an event's cluster time and its read per change stream reader.")
+                                .labelNames("reader").register();
+        }
+
+        @Bean
+        public Counter readerThrottled() {
+                return Counter.build().name("reader_throttled")
+                                .help("Number of times a change stream reader paused because writes were queued on the adaptive limit.")
+                                .labelNames("reader").register();
+        }
+
+        // Read at scrape time so the exported limit is always the current one
+        @Bean
+        public Collector writeLimiterCollector(AdaptiveConcurrencyLimiter writeConcurrencyLimiter) {
+                return new Collector() {
+                        @Override
+                        public List<MetricFamilySamples> collect() {
+                                return List.of(
+                                                new GaugeMetricFamily("write_concurrency_limit",
+                                                                "Current adaptive limit of concurrent business writes.",
+                                                                writeConcurrencyLimiter.getLimit()),
+                                                new GaugeMetricFamily("write_concurrency_in_flight",
+                                                                "Business writes currently running.",
+                                                                writeConcurrencyLimiter.getInFlight()),
+                                                new GaugeMetricFamily("write_rtt_average_milliseconds",
+                                                                "Moving average of business write round trip time.",
+                                                                writeConcurrencyLimiter.getAverageRttMillis()),
+                                                new CounterMetricFamily("write_concurrency_rejections",
+                                                                "Business writes that had to wait for a permit.",
+                                                                writeConcurrencyLimiter.getRejections()),
+                                                new CounterMetricFamily("write_concurrency_failures",
+                                                                "Business writes that failed under the adaptive limit.",
+                                                                writeConcurrencyLimiter.getFailures()));
+                        }
+                }.register();
+        }
+
+        // Read at scrape time like the limiter
+        @Bean
+        public Collector transactionFilterCollector(TransactionFilter transactionFilter) {
+                return new Collector() {
+                        @Override
+                        public List<MetricFamilySamples> collect() {
+                                CounterMetricFamily paths = new CounterMetricFamily("txn_write_path",
+                                                "processChange writes by path: push (definitely new), pipeline (maybe written) or fallback (push found the transaction).",
+                                                List.of("path"));
+                                for (TransactionFilter.Path path : TransactionFilter.Path.values()) {
+                                        paths.addMetric(List.of(path.name().toLowerCase()),
+                                                        transactionFilter.getPathCount(path));
+                                }
+                                return List.of(paths,
+                                                new GaugeMetricFamily("txn_filter_false_positive_rate_estimate",
+                                                                "Estimated false positive rate of the transaction filter.",
+                                                                transactionFilter.estimatedFalsePositiveRate()),
+                                                new CounterMetricFamily("txn_filter_rebuilds",
+                                                                "Times the transaction filter was cleared at its false positive limit.",
+                                                                transactionFilter.getRebuilds()));
+                        }
+                }.register();
+        }
+
+        @Bean
+        public Gauge timeBehindHead() {
+                return Gauge.build().name("time_behind_head_seconds")
+                                .help("Seconds between the change stream head and the oldest lane with queued events.")
+                                .register();
+        }
+
+        @Bean
+        public Histogram eventTimeBehindHead() {
+                return Histogram.build().name("event_time_behind_head_seconds")
+                                .help("Distance to the change stream head when an event finished processing.")
+                                .buckets(0.5, 1, 2, 5, 10, 30, 60, 300, 900, 3600).register();
+        }
+
+        @Bean
+        public Gauge backlogEvents() {
+                return Gauge.build().name("backlog_events")
+                                .help("Events read from the change stream but not yet processed.").register();
+        }
+
+        @Bean
+        public Gauge backlogGrowthRate() {
+                return Gauge.build().name("backlog_growth_events_per_second")
+                                .help("Change of the event backlog per second, positive while falling behind.")
+                                .register();
+        }
+
+        @Bean
+        public Gauge lagGrowthRate() {
+                return Gauge.build().name("lag_growth_seconds_per_second")
+                                .help("Change of the time behind head per second, positive while falling behind.")
+                                .register();
+        }
+
+        @Bean
+        public Gauge oplogWindow() {
+                return Gauge.build().name("oplog_window_seconds")
+                                .help("Time between the first and the last oplog entry.").register();
+        }
+
+        @Bean
+        public Gauge resumeTokenHeadroom() {
+                return Gauge.build().name("resume_token_oplog_headroom_seconds")
+                                .help("Time between the oldest oplog entry and the earliest saved resume token.")
+                                .register();
+        }
+
+        @Bean
+        public Gauge minutesUntilTokenLoss() {
+                return Gauge.build().name("resume_token_minutes_until_loss")
+                                .help("Estimated minutes until the earliest saved resume token falls off the oplog, NaN until "
+                                                + "the oplog's first entry was seen to move.")
+                                .register();
+        }
+
+        @Bean
+        public Gauge backfillProgress() {
+                return Gauge.build().name("backfill_progress_ratio")
+                                .help("Share of the source collection applied by the running backfill, 0 to 1.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Gauge backfillRowsPerSecond() {
+                return Gauge.build().name("backfill_rows_per_second")
+                                .help("Documents applied per second by the running backfill.").labelNames("stream")
+                                .register();
+        }
+
+        @Bean
+        public Counter backfillRowsApplied() {
+                return Counter.build().name("backfill_rows_applied_total")
+                                .help("Documents applied by backfills.").labelNames("stream").register();
+        }
+
+        @Bean
+        public Histogram rebuildChunkDuration() {
+                return Histogram.build().name("rebuild_chunk_duration_seconds")
+                                .help("Duration of one rebuild chunk (one day, one player bucket).")
+                                .buckets(0.1, 0.5, 1, 5, 10, 30, 60, 300).register();
+        }
+
+        @Bean
+        public Counter rebuildTransactions() {
+                return Counter.build().name("rebuild_transactions_total")
+                                .help("Transactions in the day documents written by rebuilds.").register();
+        }
+
+        @Bean
+        public Gauge rebuildTransactionsPerSecond() {
+                return Gauge.build().name("rebuild_transactions_per_second")
+                                .help("Transactions per second written by the running rebuild.").register();
+        }
+
+        @Bean
+        public Gauge rebuildProgress() {
+                return Gauge.build().name("rebuild_progress_ratio")
+                                .help("Share of the running rebuild's chunks that are done, 0 to 1.").register();
+        }
+
+        @Bean
+        public Histogram handlerProcessDuration() {
+                return Histogram.build().name("handler_process_duration_seconds")
+                                .help("Histogram for tracking event processing duration per fan-out handler.")
+                                .labelNames("handler").buckets(0.0, 0.05, 0.1, 0.2, 0.5, 0.7, 1, 2).register();
+        }
+
+        @Bean
+        public Counter handlerFailures() {
+                return Counter.build().name("handler_failures_total")
+                                .help("Events a fan-out handler failed or rejected.").labelNames("handler").register();
+        }
+
+        @Bean
+        public Histogram changeStreamGetMoreLatency() {
+                return Histogram.build().name("changestream_getmore_latency_seconds")
+                                .help("Round trip of change stream getMore commands, including the server's await time.")
+                                .labelNames("stream").buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2).register();
+        }
+
+        @Bean
+        public Histogram changeStreamEventsPerGetMore() {
+                return Histogram.build().name("changestream_events_per_getmore")
+                                .help("Events returned by one change stream getMore.").labelNames("stream")
+                                .buckets(0, 1, 10, 50, 100, 500, 1000, 5000, 10000).register();
+        }
+
+        @Bean
+        public Gauge changeStreamBatchSize() {
+                return Gauge.build().name("changestream_batch_size")
+                                .help("batchSize the change stream cursor is opened with, 0 for the driver default.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter readerIdle() {
+                return Counter.build().name("reader_idle_seconds_total")
+                                .help("Time the change stream reader waited without receiving an event.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Gauge queryPlanCollectionScan() {
+                return Gauge.build().name("query_plan_collscan")
+                                .help("1 if the startup explain of a hot query shape chose a collection scan.")
+                                .labelNames("collection", "query").register();
+        }
+
+        @Bean
+        public Gauge indexAccesses() {
+                return Gauge.build().name("index_accesses")
+                                .help("Operations that used an index since the server started or the index was built ($indexStats).")
+                                .labelNames("collection", "index").register();
+        }
+
+        @Bean
+        public Histogram txnBatchSize() {
+                return Histogram.build().name("txn_batch_size")
+                                .help("Events committed by one transactional batch.").labelNames("stream")
+                                .buckets(1, 5, 10, 25, 50, 100, 250, 500, 1000).register();
+        }
+
+        @Bean
+        public Histogram txnCommitDuration() {
+                return Histogram.build().name("txn_commit_duration_seconds")
+                                .help("Duration of one transactional batch: business writes, checkpoint and commit.")
+                                .labelNames("stream").buckets(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2).register();
+        }
+
+        @Bean
+        public Counter txnReplaySkipped() {
+                return Counter.build().name("txn_replay_skipped_total")
+                                .help("Replayed events skipped because their lane had already committed them.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter txnBatchFailures() {
+                return Counter.build().name("txn_batch_failures_total")
+                                .help("Transactional batches given up on after all attempts.").labelNames("stream")
+                                .register();
+        }
+
+        @Bean
+        public Gauge startupWarmUpDuration() {
+                return Gauge.build().name("startup_warmup_seconds")
+                                .help("Duration of the synthetic warm-up before the change stream was opened.").register();
+        }
+
+        @Bean
+        public Gauge startupTimeToFirstEvent() {
+                return Gauge.build().name("startup_time_to_first_event_seconds")
+                                .help("Time from JVM start until the first live event was processed.").register();
+        }
+
+        @Bean
+        public Gauge startupTimeToSteadyState() {
+                return Gauge.build().name("startup_time_to_steady_state_seconds")
+                                .help("Time from JVM start until the mean processing time stopped changing.").register();
+        }
+
+        @Bean
+        public Counter coalesceEvents() {
+                return Counter.build().name("coalesce_events_total")
+                                .help("Events that entered a coalescing window.").labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter coalesceDropped() {
+                return Counter.build().name("coalesce_dropped_total")
+                                .help("Events dropped because a newer event with the same key arrived in the window.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Gauge coalesceWriteReduction() {
+                return Gauge.build().name("coalesce_write_reduction_ratio")
+                                .help("Share of coalesced events whose write was eliminated, since start.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter archivedDocuments() {
+                return Counter.build().name("archive_documents_total")
+                                .help("userDailyTxn day documents moved out of the hot collection.").labelNames("mode")
+                                .register();
+        }
+
+        @Bean
+        public Histogram archiveBatchDuration() {
+                return Histogram.build().name("archive_batch_duration_seconds")
+                                .help("Duration of one archival batch: archive writes and hot deletes.")
+                                .buckets(0.01, 0.05, 0.1, 0.25, 0.5, 1, 2, 5).register();
+        }
+
+        @Bean
+        public Gauge archiveBacklog() {
+                return Gauge.build().name("archive_backlog_documents")
+                                .help("Day documents older than the horizon still in userDailyTxn.").register();
+        }
+
+        @Bean
+        public Gauge archiveProgress() {
+                return Gauge.build().name("archive_progress_ratio")
+                                .help("Share of the running archival's backlog that is moved, 0 to 1.").register();
+        }
+
+        @Bean
+        public Counter archivePaused() {
+                return Counter.build().name("archive_paused_total")
+                                .help("Archival batches delayed because live writes were queued.").register();
+        }
+
+        @Bean
+        public Counter readModelRequests() {
+                return Counter.build().name("readmodel_requests_total")
+                                .help("Read model lookups by result: hit, miss (loaded from the database) or notfound.")
+                                .labelNames("result").register();
+        }
+
+        @Bean
+        public Histogram readModelRequestDuration() {
+                return Histogram.build().name("readmodel_request_duration_seconds")
+                                .help("Duration of one read model HTTP request.")
+                                .buckets(0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05).register();
+        }
+
+        @Bean
+        public Gauge readModelEntries() {
+                return Gauge.build().name("readmodel_entries").help("Player days held by the read model.").register();
+        }
+
+        @Bean
+        public Gauge readModelBytes() {
+                return Gauge.build().name("readmodel_bytes")
+                                .help("Encoded size of the player days held by the read model.").register();
+        }
+
+        @Bean
+        public Counter readModelEvictions() {
+                return Counter.build().name("readmodel_evictions_total")
+                                .help("Player days evicted from the read model to stay within its size.").register();
+        }
+
+        @Bean
+        public Counter replaySkipped() {
+                return Counter.build().name("replay_skipped_total")
+                                .help("Replayed events dropped by the reader because their lane had already applied them.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter windowEmitted() {
+                return Counter.build().name("window_emitted_total")
+                                .help("Per-player window aggregates written to the window collection.")
+                                .labelNames("stream", "window").register();
+        }
+
+        @Bean
+        public Counter windowLateEvents() {
+                return Counter.build().name("window_late_events_total")
+                                .help("Events dropped from the windows because every window containing them was emitted.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter windowEmitFailures() {
+                return Counter.build().name("window_emit_failures_total")
+                                .help("Failed bulk writes of window aggregates, retried after a backoff.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Counter windowDropped() {
+                return Counter.build().name("window_dropped_total")
+                                .help("Queued window aggregates dropped, oldest first, while writing them kept failing.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Histogram windowSnapshotDuration() {
+                return Histogram.build().name("window_snapshot_duration_seconds")
+                                .help("Duration of writing one lane's window snapshot and its checkpoint.")
+                                .buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5).register();
+        }
+
+        @Bean
+        public Gauge windowStateEntries() {
+                return Gauge.build().name("window_state_entries")
+                                .help("Open player panes held by a lane, as of its last snapshot.")
+                                .labelNames("stream", "lane").register();
+        }
+
+        @Bean
+        public Histogram shadowProcessDuration() {
+                return Histogram.build().name("shadow_process_duration_seconds")
+                                .help("Handler duration of the events run in shadow mode, by role: primary or candidate.")
+                                .labelNames("role")
+                                .buckets(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1).register();
+        }
+
+        @Bean
+        public Counter shadowReturnCodes() {
+                return Counter.build().name("shadow_return_codes_total")
+                                .help("Events handed to the shadow candidate by outcome: same or different return code "
+                                                + "as the primary, error or dropped. The written documents are not compared.")
+                                .labelNames("outcome").register();
+        }
+
+        @Bean
+        public Counter mongodbWriteOperations() {
+                return Counter.build().name("mongodb_write_operations_total")
+                                .help("Insert, update, delete and findAndModify statements sent, per database.")
+                                .labelNames("database").register();
+        }
+
+        @Bean
+        public Histogram mongodbPoolWaitDuration() {
+                return Histogram.build().name("mongodb_pool_wait_seconds")
+                                .help("Time operations waited for a pooled connection, per client pool.")
+                                .labelNames("pool")
+                                .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 30).register();
+        }
+
+        @Bean
+        public Gauge mongodbPoolConnectionsInUse() {
+                return Gauge.build().name("mongodb_pool_connections_in_use")
+                                .help("Connections checked out of the client pool.").labelNames("pool").register();
+        }
+
+        @Bean
+        public Counter mongodbPoolCheckOutFailures() {
+                return Counter.build().name("mongodb_pool_checkout_failures_total")
+                                .help("Connection check-outs that failed, by pool and reason, e.g. timeout.")
+                                .labelNames("pool", "reason").register();
+        }
+
+        @Bean
+        public Summary fairLaneQueueWait() {
+                return Summary.build().name("fair_lane_queue_wait_seconds")
+                                .help("Time events waited in their key's sub-queue, for small keys and for large keys "
+                                                + "(events joining a backlog of their key).")
+                                .labelNames("key_class").quantile(0.5, 0.05).quantile(0.99, 0.001).register();
+        }
+
+        @Bean
+        public Histogram fairLaneKeyBacklog() {
+                return Histogram.build().name("fair_lane_key_backlog")
+                                .help("Queued events of the same key an event joins in its lane.")
+                                .buckets(0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000).register();
+        }
+
+        @Bean
+        public Gauge fairLaneActiveKeys() {
+                return Gauge.build().name("fair_lane_active_keys")
+                                .help("Keys with queued events, per lane.").labelNames("lane").register();
+        }
+
+        @Bean
+        public Counter standbyFencedEvents() {
+                return Counter.build().name("standby_fenced_events")
+                                .help("Events not applied because the stream lease may already belong to another "
+                                                + "instance.")
+                                .labelNames("stream").register();
+        }
+
+        @Bean
+        public Gauge fanoutCheckpointHeld() {
+                return Gauge.build().name("fanout_checkpoint_held")
+                                .help("1 while an event a handler gave up on holds a fan-out stream's checkpoint, until "
+                                                + "the reopened stream handled it.")
+                                .labelNames("stream").register();
+        }
 }
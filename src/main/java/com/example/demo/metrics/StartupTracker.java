@@ -0,0 +1,100 @@
+package com.example.demo.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * StartupTracker reports how long a fresh instance needs, counted from JVM
+ * start, until it handles its first event and until processing times have
+ * settled.
+ *
+ * Steady state is reached when the mean processing time of a window of events
+ * differs from the previous window's mean by less than the tolerance. After
+ * that every call is a single volatile read.
+ */
+@Component
+public class StartupTracker {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(StartupTracker.class);
+        private final PrometheusMetricsConfig metricsConfig;
+        private final long jvmStartMillis;
+        private volatile boolean firstEventSeen;
+        private volatile boolean steady;
+        private long windowEvents;
+        private long windowNanos;
+        private double previousWindowMean = -1;
+
+        @Value("${spring.startup.steadywindow:1000}") // Events per window compared for steady state
+        private int windowSize;
+
+        @Value("${spring.startup.steadytolerance:0.1}") // Largest relative change between windows
+        private double tolerance;
+
+        public StartupTracker(PrometheusMetricsConfig metricsConfig) {
+                this.metricsConfig = metricsConfig;
+                this.jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        }
+
+        private double secondsSinceJvmStart() {
+                return (System.currentTimeMillis() - jvmStartMillis) / 1000.0;
+        }
+
+        public void onWarmUpDone(int events, long elapsedNanos) {
+                double seconds = elapsedNanos / 1_000_000_000.0;
+                metricsConfig.startupWarmUpDuration().set(seconds);
+                LOGGER.info("Warm-up of {} synthetic events took {} s, {} s after JVM start", events,
+                                String.format("%.2f", seconds), String.format("%.1f", secondsSinceJvmStart()));
+        }
+
+        /**
+         * Called after each live event was processed.
+         */
+        public void onEventProcessed(long durationNanos) {
+                if (steady) {
+                        return;
+                }
+                if (!firstEventSeen) {
+                        recordFirstEvent();
+                }
+                synchronized (this) {
+                        if (steady) {
+                                return;
+                        }
+                        windowEvents++;
+                        windowNanos += durationNanos;
+                        if (windowEvents < Math.max(1, windowSize)) {
+                                return;
+                        }
+                        double mean = (double) windowNanos / windowEvents;
+                        windowEvents = 0;
+                        windowNanos = 0;
+                        if (previousWindowMean > 0
+                                        && Math.abs(mean - previousWindowMean) <= tolerance * previousWindowMean) {
+                                steady = true;
+                                double seconds = secondsSinceJvmStart();
+                                metricsConfig.startupTimeToSteadyState().set(seconds);
+                                LOGGER.info("Processing reached steady state {} s after JVM start, mean {} ms per event",
+                                                String.format("%.1f", seconds), String.format("%.3f", mean / 1_000_000.0));
+                        }
+                        previousWindowMean = mean;
+                }
+        }
+
+        private synchronized void recordFirstEvent() {
+                if (firstEventSeen) {
+                        return;
+                }
+                firstEventSeen = true;
+                double seconds = secondsSinceJvmStart();
+                metricsConfig.startupTimeToFirstEvent().set(seconds);
+                LOGGER.info("First event processed {} s after JVM start", String.format("%.1f", seconds));
+        }
+
+        public boolean isSteady() {
+                return steady;
+        }
+}
@@ -0,0 +1,50 @@
+package com.example.demo.metrics;
+
+import java.util.Map;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import io.prometheus.client.Counter;
+
+/**
+ * WriteOperationCounter counts the write statements the client sends, per
+ * database, so the write load of the primary handler and of a shadow
+ * candidate writing to its own database can be compared. A bulk write counts
+ * every statement it carries.
+ */
+public class WriteOperationCounter implements CommandListener {
+
+        // write command -> field holding its statements
+        private static final Map<String, String> STATEMENTS = Map.of("insert", "documents", "update", "updates",
+                        "delete", "deletes", "findAndModify", "");
+
+        private final Counter writeOperations;
+
+        public WriteOperationCounter(Counter writeOperations) {
+                this.writeOperations = writeOperations;
+        }
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+                String field = STATEMENTS.get(event.getCommandName());
+                if (field == null) {
+                        return;
+                }
+                BsonDocument command = event.getCommand();
+                int statements = !field.isEmpty() && command.isArray(field) ? command.getArray(field).size() : 1;
+                writeOperations.labels(event.getDatabaseName()).inc(statements);
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+        }
+}
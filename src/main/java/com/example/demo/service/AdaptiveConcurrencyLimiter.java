@@ -0,0 +1,173 @@
+package com.example.demo.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * AdaptiveConcurrencyLimiter caps how many writes run against MongoDB at the
+ * same time and adapts the cap with AIMD: every fast, successful write grows
+ * the limit by 1/limit (about +1 per round trip), a write that fails or takes
+ * longer than the latency target multiplies it by the backoff ratio. The limit
+ * always stays within [minLimit, maxLimit].
+ */
+public class AdaptiveConcurrencyLimiter {
+
+        private final boolean enabled;
+        private final int minLimit;
+        private final int maxLimit;
+        private final long targetLatencyNanos;
+        private final double backoffRatio;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition permitReleased = lock.newCondition();
+        private final AtomicLong rejections = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private double limit;
+        private int inFlight;
+        private int waiting;
+        private long lastDecreaseNanos;
+        private volatile double averageRttMillis;
+
+        public AdaptiveConcurrencyLimiter(boolean enabled, int minLimit, int maxLimit, int initialLimit,
+                        long targetLatencyMillis, double backoffRatio) {
+                this.enabled = enabled;
+                this.minLimit = Math.max(1, minLimit);
+                this.maxLimit = Math.max(this.minLimit, maxLimit);
+                this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+                this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+                this.backoffRatio = backoffRatio;
+                this.lastDecreaseNanos = System.nanoTime() - this.targetLatencyNanos - 1;
+        }
+
+        /**
+         * Run one write once a permit is free and feed its round trip time and
+         * outcome back into the limit.
+         *
+         * @param write
+         * @return the write's result
+         */
+        public <T> T execute(Supplier<T> write) {
+                if (!enabled) {
+                        return write.get();
+                }
+                acquire();
+                long startNanos = System.nanoTime();
+                boolean failed = true;
+                try {
+                        T result = write.get();
+                        failed = false;
+                        return result;
+                } finally {
+                        release(System.nanoTime() - startNanos, failed);
+                }
+        }
+
+        private void acquire() {
+                lock.lock();
+                try {
+                        if (inFlight >= (int) limit) {
+                                // the write has to wait for a permit
+                                rejections.incrementAndGet();
+                                waiting++;
+                                try {
+                                        while (inFlight >= (int) limit) {
+                                                permitReleased.awaitUninterruptibly();
+                                        }
+                                } finally {
+                                        waiting--;
+                                }
+                        }
+                        inFlight++;
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        private void release(long rttNanos, boolean failed) {
+                lock.lock();
+                try {
+                        inFlight--;
+                        if (failed) {
+                                failures.incrementAndGet();
+                        }
+                        averageRttMillis = 0.9 * averageRttMillis + 0.1 * (rttNanos / 1_000_000.0);
+                        long now = System.nanoTime();
+                        if (failed || rttNanos > targetLatencyNanos) {
+                                // back off at most once per latency window so one slow burst does not
+                                // collapse the limit
+                                if (now - lastDecreaseNanos > targetLatencyNanos) {
+                                        limit = Math.max(minLimit, limit * backoffRatio);
+                                        lastDecreaseNanos = now;
+                                }
+                        } else if (inFlight + 1 >= (int) limit) {
+                                // only grow while the current limit is actually used
+                                limit = Math.min(maxLimit, limit + 1.0 / limit);
+                        }
+                        permitReleased.signalAll();
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        /**
+         * Block the caller (the change stream reader) while writers are queued on
+         * the limit, at most maxWaitMillis.
+         *
+         * @return true if the caller had to wait
+         */
+        public boolean awaitNotSaturated(long maxWaitMillis) throws InterruptedException {
+                if (!enabled) {
+                        return false;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                lock.lock();
+                try {
+                        if (waiting == 0) {
+                                return false;
+                        }
+                        long remaining;
+                        while (waiting > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                                permitReleased.awaitNanos(remaining);
+                        }
+                        return true;
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        public double getLimit() {
+                lock.lock();
+                try {
+                        return limit;
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        public int getInFlight() {
+                lock.lock();
+                try {
+                        return inFlight;
+                } finally {
+                        lock.unlock();
+                }
+        }
+
+        public long getRejections() {
+                return rejections.get();
+        }
+
+        public long getFailures() {
+                return failures.get();
+        }
+
+        public double getAverageRttMillis() {
+                return averageRttMillis;
+        }
+}
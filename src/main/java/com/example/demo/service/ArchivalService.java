@@ -0,0 +1,295 @@
+package com.example.demo.service;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+
+import io.prometheus.client.Histogram;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * ArchivalService keeps userDailyTxn small enough to stay in the database
+ * cache: days older than the horizon are moved out in small, rate limited
+ * batches, so processChange's upserts only touch a recent working set.
+ *
+ * In archive mode a day document is merged as is into the archive collection
+ * (by transactionID, like processChange). In rollup mode it is compacted into
+ * its player's monthly document, which keeps one summary per day and no
+ * transactions. Either way the hot document is deleted only if it was not
+ * modified since it was read, so a concurrent live update is never lost; it
+ * is moved by a later batch instead. A batch interrupted between both steps
+ * is simply repeated.
+ */
+@Service
+public class ArchivalService {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(ArchivalService.class);
+        private final MongoCollection<Document> userDailyTxnCollection;
+        private final MongoCollection<Document> archiveCollection;
+        private final AdaptiveConcurrencyLimiter writeLimiter;
+        private final StandbyCoordinator standbyCoordinator;
+        private final PrometheusMetricsConfig metricsConfig;
+        private ScheduledExecutorService scheduler;
+        private long nextBatchNanos;
+
+        @Value("${spring.archive.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.archive.mode:archive}") // archive or rollup
+        private String mode;
+
+        @Value("${spring.archive.horizondays:90}") // gamingDates older than this many days are moved
+        private int horizonDays;
+
+        @Value("${spring.archive.batchsize:200}") // Day documents per batch
+        private int batchSize;
+
+        @Value("${spring.archive.maxbatchespersecond:2}") // 0 means no throttling
+        private double maxBatchesPerSecond;
+
+        @Value("${spring.archive.maxpausems:1000}") // Longest pause per batch while live writes are queued
+        private long maxPauseMillis;
+
+        @Value("${spring.archive.intervalms:3600000}") // Delay between archival runs
+        private long intervalMillis;
+
+        public ArchivalService(@Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection,
+                        @Qualifier("userDailyTxnArchiveCollection") MongoCollection<Document> archiveCollection,
+                        AdaptiveConcurrencyLimiter writeLimiter, StandbyCoordinator standbyCoordinator,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.userDailyTxnCollection = userDailyTxnCollection;
+                this.archiveCollection = archiveCollection;
+                this.writeLimiter = writeLimiter;
+                this.standbyCoordinator = standbyCoordinator;
+                this.metricsConfig = metricsConfig;
+        }
+
+        @PostConstruct
+        public void init() {
+                if (!enabled) {
+                        return;
+                }
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("archival");
+                        return thread;
+                });
+                scheduler.scheduleWithFixedDelay(this::runSafely, intervalMillis, intervalMillis,
+                                TimeUnit.MILLISECONDS);
+                LOGGER.info("Archival of userDailyTxn days older than {} days enabled, mode {}", horizonDays, mode);
+        }
+
+        private boolean isRollup() {
+                return "rollup".equalsIgnoreCase(mode);
+        }
+
+        private void runSafely() {
+                try {
+                        if (standbyCoordinator.isEnabled() && !standbyCoordinator.isLeader()) {
+                                return; // the active instance archives
+                        }
+                        archive(LocalDate.now(ZoneOffset.UTC).minusDays(horizonDays));
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                } catch (MongoException e) {
+                        LOGGER.warn("Archival run failed, retrying in {} ms: {}", intervalMillis, e.getMessage());
+                }
+        }
+
+        /**
+         * Move every day document with a gamingDate before the cutoff.
+         *
+         * @param cutoff first gamingDate (UTC) that stays in userDailyTxn
+         * @return number of day documents moved
+         */
+        public long archive(LocalDate cutoff) throws InterruptedException {
+                // the gamingDate and archive indexes are declared in IndexManager
+                Bson old = Filters.lt("gamingDate", Date.from(cutoff.atStartOfDay(ZoneOffset.UTC).toInstant()));
+                long backlog = userDailyTxnCollection.countDocuments(old);
+                metricsConfig.archiveBacklog().set(backlog);
+                if (backlog == 0) {
+                        return 0;
+                }
+                LOGGER.info("Archiving {} userDailyTxn documents before {}", backlog, cutoff);
+                long moved = 0;
+                long startNanos = System.nanoTime();
+                nextBatchNanos = startNanos;
+                while (!Thread.currentThread().isInterrupted()) {
+                        throttle();
+                        List<Document> batch = userDailyTxnCollection.find(old).sort(Sorts.ascending("gamingDate"))
+                                        .limit(Math.max(1, batchSize)).into(new ArrayList<>());
+                        if (batch.isEmpty()) {
+                                break;
+                        }
+                        long deleted = archiveBatch(batch);
+                        if (deleted == 0) {
+                                // every document of the batch changed meanwhile, give the stream a moment
+                                TimeUnit.MILLISECONDS.sleep(maxPauseMillis);
+                        }
+                        moved += deleted;
+                        metricsConfig.archiveBacklog().set(Math.max(0, backlog - moved));
+                        metricsConfig.archiveProgress().set(Math.min(1.0, (double) moved / backlog));
+                }
+                LOGGER.info("Archived {} userDailyTxn documents before {} in {} s", moved, cutoff,
+                                String.format("%.1f", (System.nanoTime() - startNanos) / 1_000_000_000.0));
+                return moved;
+        }
+
+        /**
+         * Yield to the live stream while its writes are queued on the adaptive
+         * limit, and keep to maxBatchesPerSecond.
+         */
+        private void throttle() throws InterruptedException {
+                if (writeLimiter.awaitNotSaturated(maxPauseMillis)) {
+                        metricsConfig.archivePaused().inc();
+                }
+                if (maxBatchesPerSecond <= 0) {
+                        return;
+                }
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextBatchNanos);
+                nextBatchNanos = slot + (long) (1_000_000_000L / maxBatchesPerSecond);
+                if (slot > now) {
+                        TimeUnit.NANOSECONDS.sleep(slot - now);
+                }
+        }
+
+        /**
+         * Write the batch to the archive, then delete the hot documents that were
+         * not modified since they were read.
+         *
+         * @return number of hot documents deleted
+         */
+        long archiveBatch(List<Document> batch) {
+                Histogram.Timer timer = metricsConfig.archiveBatchDuration().startTimer();
+                List<UpdateOneModel<Document>> writes = new ArrayList<>(batch.size());
+                List<Bson> unchanged = new ArrayList<>(batch.size());
+                for (Document day : batch) {
+                        writes.add(isRollup() ? rollupModel(day) : archiveModel(day));
+                        // lastModified has millisecond resolution, txns catches an update within the same one
+                        unchanged.add(Filters.and(Filters.eq("_id", day.get("_id")),
+                                        Filters.eq("lastModified", day.get("lastModified")),
+                                        Filters.eq("txns", day.get("txns"))));
+                }
+                archiveCollection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+                long deleted = userDailyTxnCollection.deleteMany(Filters.or(unchanged)).getDeletedCount();
+                timer.observeDuration();
+                metricsConfig.archivedDocuments().labels(isRollup() ? "rollup" : "archive").inc(deleted);
+                return deleted;
+        }
+
+        /**
+         * Merge the day into its archived copy by transactionID, so a day
+         * archived again (a repeated batch, or a late event that recreated the
+         * hot document) keeps every transaction.
+         */
+        public static UpdateOneModel<Document> archiveModel(Document day) {
+                Document filter = new Document("playerID", day.get("playerID")).append("gamingDate",
+                                day.get("gamingDate"));
+                List<Document> txns = day.getList("txns", Document.class, List.of());
+                List<Object> transactionIDs = txns.stream().map(txn -> txn.get("transactionID")).toList();
+                Document kept = new Document("$filter", new Document("input",
+                                new Document("$ifNull", List.of("$txns", List.of())))
+                                .append("cond", new Document("$not", List.of(new Document("$in",
+                                                List.of("$$this.transactionID", new Document("$literal", transactionIDs)))))));
+                Document merge = new Document("$set", new Document("name",
+                                new Document("$ifNull", List.of("$name", day.get("name"))))
+                                .append("txns", new Document("$concatArrays",
+                                                List.of(kept, new Document("$literal", txns))))
+                                .append("archivedAt", "$$NOW"));
+                return new UpdateOneModel<>(filter, List.of(merge, ChangeEventService.dailyTotalsStage()),
+                                new UpdateOptions().upsert(true));
+        }
+
+        /**
+         * Merge the day into its summary within the player's monthly document and
+         * recompute the month's totals. The summary keeps the transactionIDs it
+         * counted, so a day rolled up again (a repeated batch, or a late event
+         * that recreated the hot document) only adds the transactions the summary
+         * does not have yet: their count and sum are added, min and max take the
+         * lower and higher value. Like ChangeEventService.dailyTotalsStage, values
+         * that are not numbers are ignored. A summary rolled up before the
+         * transactionIDs were kept is replaced, as back then.
+         */
+        public static UpdateOneModel<Document> rollupModel(Document day) {
+                Date gamingDate = day.getDate("gamingDate");
+                LocalDate date = gamingDate.toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+                Date month = Date.from(date.withDayOfMonth(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+                Document filter = new Document("playerID", day.get("playerID")).append("month", month);
+                List<Document> txns = day.getList("txns", Document.class, List.of());
+                Document sameDay = new Document("$eq", List.of("$$this.gamingDate", gamingDate));
+                Document otherDays = new Document("$filter", new Document("input",
+                                new Document("$ifNull", List.of("$days", List.of())))
+                                .append("cond", new Document("$not", List.of(sameDay))));
+                Document stored = new Document("$arrayElemAt", List.of(new Document("$filter", new Document("input",
+                                new Document("$ifNull", List.of("$days", List.of()))).append("cond", sameDay)), 0));
+                // the day's stored summary, empty without one or without its transactionIDs
+                Document findDay = new Document("$set", new Document("_day", new Document("$let",
+                                new Document("vars", new Document("day", stored)).append("in", new Document("$cond",
+                                                List.of(new Document("$isArray", List.of("$$day.transactionIDs")), "$$day",
+                                                                new Document()))))));
+                Document seen = new Document("$ifNull", List.of("$_day.transactionIDs", List.of()));
+                Document findNew = new Document("$set", new Document("_new", new Document("$filter",
+                                new Document("input", new Document("$literal", txns)).append("cond",
+                                                new Document("$not", List.of(new Document("$in",
+                                                                List.of("$$this.transactionID", seen))))))));
+                Document findValues = new Document("$set", new Document("_values", new Document("$filter",
+                                new Document("input", "$_new.value")
+                                                .append("cond", new Document("$isNumber", "$$this")))));
+                Document summary = new Document("gamingDate", new Document("$literal", gamingDate))
+                                .append("transactionIDs", new Document("$concatArrays",
+                                                List.of(seen, "$_new.transactionID")))
+                                .append("txnCount", new Document("$add", List.of(
+                                                new Document("$ifNull", List.of("$_day.txnCount", 0)),
+                                                new Document("$size", "$_new"))))
+                                .append("totalValue", new Document("$add", List.of(
+                                                new Document("$ifNull", List.of("$_day.totalValue", 0)),
+                                                new Document("$sum", "$_values"))))
+                                .append("minValue", new Document("$min",
+                                                List.of("$_day.minValue", new Document("$min", "$_values"))))
+                                .append("maxValue", new Document("$max",
+                                                List.of("$_day.maxValue", new Document("$max", "$_values"))));
+                Document mergeDay = new Document("$set", new Document("name",
+                                new Document("$ifNull", List.of("$name", day.get("name"))))
+                                .append("days", new Document("$concatArrays", List.of(otherDays, List.of(summary))))
+                                .append("archivedAt", "$$NOW"));
+                Document totals = new Document("$set", new Document("totalValue", new Document("$sum", "$days.totalValue"))
+                                .append("txnCount", new Document("$sum", "$days.txnCount"))
+                                .append("minValue", new Document("$min", "$days.minValue"))
+                                .append("maxValue", new Document("$max", "$days.maxValue")));
+                Document cleanUp = new Document("$unset", List.of("_day", "_new", "_values"));
+                return new UpdateOneModel<>(filter, List.of(findDay, findNew, findValues, mergeDay, totals, cleanUp),
+                                new UpdateOptions().upsert(true));
+        }
+
+        @PreDestroy
+        public void shutdown() {
+                if (scheduler != null) {
+                        scheduler.shutdownNow();
+                }
+        }
+}
@@ -0,0 +1,262 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+/**
+ * BackfillService applies the existing content of a stream's source collection
+ * when there is no usable resume token, so no transaction is skipped.
+ *
+ * It first records the cluster's operation time, then splits the collection
+ * into partitions by playerID hash, the way parallel readers split the stream,
+ * and scans the partitions in parallel in _id order, feeding every document
+ * through the stream's handler in batches. All documents of a player are
+ * applied by the same thread, so two threads never upsert the same
+ * (playerID, gamingDate) day. Each partition keeps a checkpoint (last applied
+ * _id), so an interrupted backfill continues where it stopped. Afterwards the change stream starts at the recorded operation
+ * time; documents changed during the scan are applied again by the stream,
+ * which the idempotent handler absorbs.
+ */
+@Service
+public class BackfillService {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(BackfillService.class);
+        private final MongoClient mongoClient;
+        private final MongoCollection<Document> changestreamCollection;
+        private final MongoCollection<Document> checkpointCollection;
+        private final PrometheusMetricsConfig metricsConfig;
+
+        @Value("${spring.backfill.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.backfill.partitions:0}") // 0 uses the number of cores
+        private int partitions;
+
+        @Value("${spring.backfill.threads:0}") // 0 uses the number of cores
+        private int threads;
+
+        @Value("${spring.backfill.batchsize:500}")
+        private int batchSize;
+
+        public BackfillService(MongoClient mongoClient,
+                        @Qualifier("changestreamCollection") MongoCollection<Document> changestreamCollection,
+                        @Qualifier("backfillCheckpointCollection") MongoCollection<Document> checkpointCollection,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.mongoClient = mongoClient;
+                this.changestreamCollection = changestreamCollection;
+                this.checkpointCollection = checkpointCollection;
+                this.metricsConfig = metricsConfig;
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        /**
+         * Backfill the stream's source collection, resuming an unfinished run if
+         * there is one.
+         *
+         * @param stream
+         * @return operation time the change stream has to start at
+         */
+        public BsonTimestamp backfill(ChangeStreamContext stream) throws InterruptedException {
+                MongoCollection<Document> source = stream.getCollection() != null ? stream.getCollection()
+                                : changestreamCollection;
+                String runId = stream.getName();
+                Document run = checkpointCollection.find(Filters.eq("_id", runId)).first();
+                if (run != null && "done".equals(run.getString("status"))) {
+                        // finished before any event was checkpointed, the stream continues from the run's start
+                        LOGGER.info("Backfill of stream {} already done, starting change stream at {}", runId,
+                                        run.get("startAtOperationTime"));
+                        return run.get("startAtOperationTime", BsonTimestamp.class);
+                }
+                if (run == null) {
+                        run = startRun(runId, stream, source);
+                } else {
+                        LOGGER.info("Resuming backfill of stream {} started at {}", runId,
+                                        run.get("startAtOperationTime"));
+                }
+                BsonTimestamp startAt = run.get("startAtOperationTime", BsonTimestamp.class);
+
+                List<Document> pending = checkpointCollection
+                                .find(Filters.and(Filters.eq("run", runId), Filters.eq("done", false)))
+                                .into(new ArrayList<>());
+                long total = run.getLong("total");
+                Document appliedSum = checkpointCollection
+                                .aggregate(List.of(Aggregates.match(Filters.eq("run", runId)),
+                                                Aggregates.group(null, Accumulators.sum("applied", "$applied"))))
+                                .first();
+                AtomicLong applied = new AtomicLong(
+                                appliedSum != null ? appliedSum.get("applied", Number.class).longValue() : 0L);
+                long startMillis = System.currentTimeMillis();
+                long appliedAtStart = applied.get();
+
+                int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+                AtomicInteger threadCounter = new AtomicInteger();
+                ExecutorService pool = Executors.newFixedThreadPool(poolSize, runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("backfill-" + threadCounter.getAndIncrement());
+                        return thread;
+                });
+                try {
+                        List<Future<?>> futures = new ArrayList<>();
+                        for (Document partition : pending) {
+                                futures.add(pool.submit(() -> {
+                                        backfillPartition(stream, source, partition, startAt, applied, total,
+                                                        startMillis, appliedAtStart);
+                                        return null;
+                                }));
+                        }
+                        for (Future<?> future : futures) {
+                                future.get();
+                        }
+                } catch (ExecutionException e) {
+                        throw new IllegalStateException("Backfill of stream " + runId + " failed, it resumes on restart",
+                                        e.getCause());
+                } finally {
+                        pool.shutdownNow();
+                }
+
+                checkpointCollection.updateOne(Filters.eq("_id", runId),
+                                Updates.combine(Updates.set("status", "done"), Updates.set("finishedAt", new Date())));
+                LOGGER.info("Backfill of stream {} applied {} documents in {} ms, starting change stream at {}",
+                                runId, applied.get() - appliedAtStart, System.currentTimeMillis() - startMillis, startAt);
+                return startAt;
+        }
+
+        /**
+         * The stream's resume point fell off the oplog (ChangeStreamHistoryLost):
+         * drop any earlier run and backfill from scratch.
+         *
+         * @param stream
+         * @return operation time the change stream has to start at
+         */
+        public BsonTimestamp backfillAfterHistoryLost(ChangeStreamContext stream) throws InterruptedException {
+                checkpointCollection.deleteMany(Filters.or(Filters.eq("_id", stream.getName()),
+                                Filters.eq("run", stream.getName())));
+                return backfill(stream);
+        }
+
+        private Document startRun(String runId, ChangeStreamContext stream, MongoCollection<Document> source) {
+                // take the operation time first: everything after it comes from the change stream
+                BsonTimestamp startAt = currentOperationTime(source);
+                checkpointCollection.deleteMany(Filters.eq("run", runId));
+
+                int bucketCount = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+                // one pass counting the documents of each partition
+                Document bucket = new Document("$mod", List.of(
+                                new Document("$abs", new Document("$ifNull", List.of("$playerID", 0))), bucketCount));
+                List<Document> counts = source
+                                .aggregate(List.of(Aggregates.match(stream.getSourceFilter()),
+                                                Aggregates.group(bucket, Accumulators.sum("count", 1))))
+                                .into(new ArrayList<>());
+                long total = 0;
+                for (Document count : counts) {
+                        int i = count.get("_id", Number.class).intValue();
+                        long documents = count.get("count", Number.class).longValue();
+                        total += documents;
+                        checkpointCollection.insertOne(new Document("_id", runId + "/" + i).append("run", runId)
+                                        .append("bucket", i).append("buckets", bucketCount).append("count", documents)
+                                        .append("applied", 0L).append("done", false));
+                }
+
+                Document run = new Document("_id", runId).append("status", "running")
+                                .append("startAtOperationTime", startAt).append("partitions", counts.size())
+                                .append("total", total).append("startedAt", new Date());
+                checkpointCollection.replaceOne(Filters.eq("_id", runId), run,
+                                new ReplaceOptions().upsert(true));
+                LOGGER.info("Starting backfill of stream {}: {} documents in {} partitions, change stream starts at {}",
+                                runId, total, counts.size(), startAt);
+                return run;
+        }
+
+        private BsonTimestamp currentOperationTime(MongoCollection<Document> source) {
+                try (ClientSession session = mongoClient.startSession()) {
+                        Document reply = mongoClient.getDatabase(source.getNamespace().getDatabaseName())
+                                        .runCommand(session, new Document("hello", 1));
+                        BsonTimestamp operationTime = session.getOperationTime();
+                        return operationTime != null ? operationTime : reply.get("operationTime", BsonTimestamp.class);
+                }
+        }
+
+        private void backfillPartition(ChangeStreamContext stream, MongoCollection<Document> source,
+                        Document partition, BsonTimestamp startAt, AtomicLong applied, long total, long startMillis, long appliedAtStart) {
+                Object lastId = partition.get("lastId");
+                Bson players = ChangeStreamContext.hashBucket("$playerID", partition.getInteger("bucket"),
+                                partition.getInteger("buckets"));
+                Bson filter = lastId != null
+                                ? Filters.and(stream.getSourceFilter(), players, Filters.gt("_id", lastId))
+                                : Filters.and(stream.getSourceFilter(), players);
+
+                List<Document> batch = new ArrayList<>(batchSize);
+                try (MongoCursor<Document> cursor = source.find(filter).sort(Sorts.ascending("_id"))
+                                .batchSize(batchSize).iterator()) {
+                        while (cursor.hasNext()) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                        return;
+                                }
+                                batch.add(cursor.next());
+                                if (batch.size() == batchSize) {
+                                        applyBatch(stream, source, partition, batch, startAt, applied, total,
+                                                        startMillis, appliedAtStart);
+                                        batch.clear();
+                                }
+                        }
+                }
+                if (!batch.isEmpty()) {
+                        applyBatch(stream, source, partition, batch, startAt, applied, total, startMillis, appliedAtStart);
+                }
+                checkpointCollection.updateOne(Filters.eq("_id", partition.getString("_id")),
+                                Updates.set("done", true));
+        }
+
+        private void applyBatch(ChangeStreamContext stream, MongoCollection<Document> source, Document partition,
+                        List<Document> batch, BsonTimestamp startAt, AtomicLong applied, long total, long startMillis,
+                        long appliedAtStart) {
+                for (Document document : batch) {
+                        stream.getHandler().processChange(
+                                        SyntheticChangeEvents.insert(source.getNamespace(), document, startAt));
+                }
+                // the batch is applied, move the partition checkpoint past it
+                checkpointCollection.updateOne(Filters.eq("_id", partition.getString("_id")),
+                                Updates.combine(Updates.set("lastId", batch.get(batch.size() - 1).get("_id")),
+                                                Updates.inc("applied", (long) batch.size())));
+
+                long done = applied.addAndGet(batch.size());
+                double elapsedSeconds = Math.max(0.001, (System.currentTimeMillis() - startMillis) / 1000.0);
+                metricsConfig.backfillRowsApplied().labels(stream.getName()).inc(batch.size());
+                metricsConfig.backfillRowsPerSecond().labels(stream.getName())
+                                .set((done - appliedAtStart) / elapsedSeconds);
+                metricsConfig.backfillProgress().labels(stream.getName())
+                                .set(total > 0 ? Math.min(1.0, (double) done / total) : 1.0);
+        }
+}
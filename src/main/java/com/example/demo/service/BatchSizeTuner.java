@@ -0,0 +1,88 @@
+package com.example.demo.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BatchSizeTuner picks the change stream batchSize from the observed event
+ * rate and document size: a getMore should return about targetMillis worth of
+ * events, but never more than maxBatchBytes. The size only changes when the
+ * target is at least twice or at most half the current one, because applying
+ * it means reopening the cursor.
+ */
+public class BatchSizeTuner {
+
+        private static final long EVALUATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+        private final boolean adaptive;
+        private final int minBatchSize;
+        private final int maxBatchSize;
+        private final long targetMillis;
+        private final long maxBatchBytes;
+        private int batchSize;
+        private long events;
+        private double averageDocumentBytes;
+        private long windowStartNanos;
+
+        /**
+         * @param initialBatchSize 0 keeps the driver default until the first
+         *                         adaptive change
+         * @param adaptive
+         * @param minBatchSize
+         * @param maxBatchSize
+         * @param targetMillis     events a getMore should return, in time
+         * @param maxBatchBytes
+         */
+        public BatchSizeTuner(int initialBatchSize, boolean adaptive, int minBatchSize, int maxBatchSize,
+                        long targetMillis, long maxBatchBytes) {
+                this.adaptive = adaptive;
+                this.minBatchSize = Math.max(1, minBatchSize);
+                this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+                this.targetMillis = targetMillis;
+                this.maxBatchBytes = maxBatchBytes;
+                this.batchSize = initialBatchSize;
+                this.windowStartNanos = System.nanoTime();
+        }
+
+        public int getBatchSize() {
+                return batchSize;
+        }
+
+        public void onEvent() {
+                events++;
+        }
+
+        public void onDocumentSize(int bytes) {
+                averageDocumentBytes = averageDocumentBytes == 0 ? bytes : 0.9 * averageDocumentBytes + 0.1 * bytes;
+        }
+
+        /**
+         * Re-evaluate the batch size once per interval.
+         *
+         * @return true if the batch size changed and the cursor should be reopened
+         */
+        public boolean evaluate(long nowNanos) {
+                long elapsedNanos = nowNanos - windowStartNanos;
+                if (!adaptive || elapsedNanos < EVALUATE_INTERVAL_NANOS) {
+                        return false;
+                }
+                double eventsPerSecond = events / (elapsedNanos / 1_000_000_000.0);
+                events = 0;
+                windowStartNanos = nowNanos;
+
+                int target = targetBatchSize(eventsPerSecond);
+                int current = batchSize > 0 ? batchSize : minBatchSize;
+                if (batchSize > 0 && target < 2 * current && 2 * target > current) {
+                        return false;
+                }
+                batchSize = target;
+                return true;
+        }
+
+        int targetBatchSize(double eventsPerSecond) {
+                long target = (long) Math.ceil(eventsPerSecond * targetMillis / 1000.0);
+                long limit = maxBatchSize;
+                if (averageDocumentBytes > 0) {
+                        limit = Math.min(limit, (long) (maxBatchBytes / averageDocumentBytes));
+                }
+                return (int) Math.max(minBatchSize, Math.min(limit, target));
+        }
+}
@@ -1,20 +1,32 @@
 package com.example.demo.service;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
+import com.example.demo.jfr.UserDailyTxnUpdateEvent;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
 /**
@@ -24,16 +36,41 @@ import com.mongodb.client.model.changestream.ChangeStreamDocument;
 public class ChangeEventService implements ChangeEventServiceInterface {
 
         private static final Logger LOGGER = LoggerFactory.getLogger(ChangeEventService.class);
+        private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
         private final MongoCollection<Document> changestreamCollection;
         private final MongoCollection<Document> userDailyTxnCollection;
+        private final AdaptiveConcurrencyLimiter writeLimiter;
+        private final TransactionFilter transactionFilter;
         public static final int ERROR_INVALID_DOCUMENT = -1; // Error code for invalid documents
         public static final int ERROR_BUSINESS_LOGIC = -2; // Error code for invalid documents
 
         public ChangeEventService(
                         @Qualifier("changestreamCollection") MongoCollection<Document> changestreamCollection,
-                        @Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection) {
+                        @Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection,
+                        AdaptiveConcurrencyLimiter writeLimiter, TransactionFilter transactionFilter) {
                 this.changestreamCollection = changestreamCollection;
                 this.userDailyTxnCollection = userDailyTxnCollection;
+                this.writeLimiter = writeLimiter;
+                this.transactionFilter = transactionFilter;
+        }
+
+        /**
+         * Update pipeline stage deriving the daily totals from the document's txns
+         * array. It runs after txns was changed in the same update, so a replaced
+         * transaction is counted once with its new value and replaying an event
+         * yields the same totals.
+         *
+         * @return
+         */
+        public static Document dailyTotalsStage() {
+                Document txns = new Document("$ifNull", List.of("$txns", List.of()));
+                return new Document("$set", new Document()
+                                .append("totalValue", new Document("$sum", "$txns.value"))
+                                .append("txnCount", new Document("$size", txns))
+                                .append("minValue", new Document("$min", "$txns.value"))
+                                .append("maxValue", new Document("$max", "$txns.value"))
+                                .append("firstTxnDate", new Document("$min", "$txns.date"))
+                                .append("lastTxnDate", new Document("$max", "$txns.date")));
         }
 
         @Override
@@ -44,6 +81,13 @@ public class ChangeEventService implements ChangeEventServiceInterface {
                                 : changestreamCollection.watch();
         }
 
+        @Override
+        public ChangeStreamIterable<Document> changeStreamIterator(BsonDocument resumeToken, List<Bson> pipeline) {
+                return resumeToken != null
+                                ? changestreamCollection.watch(pipeline).resumeAfter(resumeToken)
+                                : changestreamCollection.watch(pipeline);
+        }
+
         /**
          * Use the event's playerID and gameDate to find document in userDailyTnx
          * collection
@@ -82,6 +126,11 @@ public class ChangeEventService implements ChangeEventServiceInterface {
 
                 LOGGER.info("process event data: {} ", gamingDate);
 
+                // A definitely new transaction needs neither the lookup nor the separate totals update
+                if (pushIfNew(fullDocument)) {
+                        return 0;
+                }
+
                 // Construct the transaction object
                 Document newTransaction = new Document("transactionID", transactionID)
                                 .append("value", value)
@@ -91,17 +140,23 @@ public class ChangeEventService implements ChangeEventServiceInterface {
                 Document filter = new Document("playerID", playerID)
                                 .append("gamingDate", gamingDate);
                 // Check if the document exists
-                Document existingDoc = userDailyTxnCollection.find(filter).first();
+                Document existingDoc = writeLimiter.execute(() -> userDailyTxnCollection.find(filter).first());
 
                 if (existingDoc == null) {
-                        // Document doesn't exist, insert a new one with the new transaction
+                        // Document doesn't exist, insert a new one with the new transaction and its totals
                         Document newUserDoc = new Document("playerID", playerID)
                                         .append("gamingDate", gamingDate)
                                         .append("name", name)
                                         .append("txns", List.of(newTransaction))
-                                        .append("lastModified", new Date());
-
-                        userDailyTxnCollection.insertOne(newUserDoc);
+                                        .append("lastModified", new Date())
+                                        .append("totalValue", value)
+                                        .append("txnCount", 1)
+                                        .append("minValue", value)
+                                        .append("maxValue", value)
+                                        .append("firstTxnDate", date)
+                                        .append("lastTxnDate", date);
+
+                        writeLimiter.execute(() -> userDailyTxnCollection.insertOne(newUserDoc));
                         LOGGER.info("Inserted new document for playerID: {} and gamingDate: {}", playerID,
                                         gamingDate);
                 } else {
@@ -109,32 +164,30 @@ public class ChangeEventService implements ChangeEventServiceInterface {
                         boolean transactionExists = existingDoc.getList("txns", Document.class).stream()
                                         .anyMatch(txn -> txn.getInteger("transactionID") == transactionID);
 
+                        Document txns = new Document("$ifNull", List.of("$txns", List.of()));
+                        Document updatedTxns;
                         if (transactionExists) {
-                                // Update only the existing transaction within the txns array
-                                Document updateTransaction = new Document("$set",
-                                                new Document("txns.$[elem]", newTransaction));
-                                UpdateOptions updateOptions = new UpdateOptions().arrayFilters(
-                                                List.of(new Document("elem.transactionID", transactionID)));
-
-                                // Update the transaction element inside the array
-                                userDailyTxnCollection.updateOne(filter, updateTransaction, updateOptions);
-                                LOGGER.info("Updated existing transaction for playerID: {} and transactionID: {}",
-                                                playerID, transactionID);
-
-                                // Update the lastModified field separately without array filters
-                                Document updateLastModified = new Document("$set",
-                                                new Document("lastModified", new Date()));
-                                userDailyTxnCollection.updateOne(filter, updateLastModified);
+                                // Replace only the existing transaction within the txns array
+                                Document sameTransaction = new Document("$eq",
+                                                List.of("$$txn.transactionID", transactionID));
+                                updatedTxns = new Document("$map", new Document("input", txns).append("as", "txn")
+                                                .append("in", new Document("$cond",
+                                                                List.of(sameTransaction, newTransaction, "$$txn"))));
                         } else {
-                                // Append the new transaction to the txns array and update lastModified
-                                Document update = new Document("$push", new Document("txns", newTransaction))
-                                                .append("$set", new Document("lastModified", new Date()));
-
-                                userDailyTxnCollection.updateOne(filter, update);
-                                LOGGER.info("Appended new transaction for playerID: {} and transactionID: {}",
-                                                playerID, transactionID);
+                                // Append the new transaction to the txns array
+                                updatedTxns = new Document("$concatArrays", List.of(txns, List.of(newTransaction)));
                         }
+                        // txns, lastModified and the daily totals in one update
+                        List<Document> update = List.of(
+                                        new Document("$set", new Document("txns", updatedTxns)
+                                                        .append("lastModified", new Date())),
+                                        dailyTotalsStage());
+                        writeLimiter.execute(() -> userDailyTxnCollection.updateOne(filter, update));
+                        LOGGER.info("{} transaction for playerID: {} and transactionID: {}",
+                                        transactionExists ? "Updated existing" : "Appended new", playerID,
+                                        transactionID);
                 }
+                transactionFilter.add(playerID, gamingDay(date), transactionID);
 
                 return 0;
         }
@@ -149,7 +202,124 @@ public class ChangeEventService implements ChangeEventServiceInterface {
          */
         @Override
         public int processChange(ChangeStreamDocument<Document> event) {
+                UserDailyTxnUpdateEvent update = new UserDailyTxnUpdateEvent();
+                update.begin();
+                long startNanos = System.nanoTime();
+                Document fullDocument = event.getFullDocument();
+                UpdateOneModel<Document> model = updateModel(fullDocument);
+                if (model == null) {
+                        return ERROR_INVALID_DOCUMENT; // Return error code for missing fields
+                }
+                int playerID = fullDocument.getInteger("playerID");
+                int transactionID = fullDocument.getInteger("transactionID");
+
+                // Perform the update operation with upsert true, a definitely new transaction is
+                // simply appended
+                long builtNanos = System.nanoTime();
+                if (!pushIfNew(fullDocument)) {
+                        writeLimiter.execute(() -> userDailyTxnCollection.updateOne(model.getFilter(),
+                                        model.getUpdatePipeline(), model.getOptions()));
+                        transactionFilter.add(playerID, gamingDay(fullDocument.getDate("date")), transactionID);
+                }
+                update.end();
+                if (update.shouldCommit()) {
+                        update.playerID = playerID;
+                        update.transactionID = transactionID;
+                        update.buildDuration = builtNanos - startNanos;
+                        update.writeDuration = System.nanoTime() - builtNanos;
+                        update.commit();
+                }
+
+                LOGGER.info("Processed update for playerID: {} and transactionID: {}", playerID, transactionID);
+                return 0;
+        }
+
+        /**
+         * processChange replaces the transaction within its player's day, so only
+         * the latest version counts. The day is part of the key: a version moved
+         * to another day still has its own write.
+         */
+        @Override
+        public Object coalesceKey(ChangeStreamDocument<Document> event) {
                 Document fullDocument = event.getFullDocument();
+                if (fullDocument == null || !fullDocument.containsKey("playerID")
+                                || !fullDocument.containsKey("transactionID") || !fullDocument.containsKey("date")) {
+                        return null;
+                }
+                long day = Math.floorDiv(fullDocument.getDate("date").getTime(), TimeUnit.DAYS.toMillis(1));
+                return List.of(fullDocument.getInteger("playerID"), fullDocument.getInteger("transactionID"), day);
+        }
+
+        private static long gamingDay(Date date) {
+                return Math.floorDiv(date.getTime(), TimeUnit.DAYS.toMillis(1));
+        }
+
+        /**
+         * Append the transaction with a plain $push upsert, maintaining the daily
+         * totals incrementally, if the transaction filter says it is new to its
+         * day. The filter can be wrong after a restart, so the update only
+         * matches a day without the transactionID: for a day that has it, the
+         * upsert collides with the unique (playerID, gamingDate) index and the
+         * caller takes the replace path. The filter is only enabled once that
+         * index was found (see AppConfig.transactionFilter). A day written
+         * before the stored totals existed has no txnCount to $inc, so it
+         * collides the same way and the pipeline computes its totals.
+         *
+         * @return true if the transaction was appended
+         */
+        private boolean pushIfNew(Document fullDocument) {
+                int playerID = fullDocument.getInteger("playerID");
+                int transactionID = fullDocument.getInteger("transactionID");
+                long day = gamingDay(fullDocument.getDate("date"));
+                if (transactionFilter.mightContain(playerID, day, transactionID)) {
+                        transactionFilter.record(TransactionFilter.Path.PIPELINE);
+                        return false;
+                }
+                double value = fullDocument.getDouble("value");
+                Date date = fullDocument.getDate("date");
+                Document newTransaction = new Document("transactionID", transactionID)
+                                .append("value", value)
+                                .append("date", date);
+                // midnight UTC, like the gamingDate of updateModel
+                Document filter = new Document("playerID", playerID)
+                                .append("gamingDate", new Date(day * TimeUnit.DAYS.toMillis(1)))
+                                .append("txns.transactionID", new Document("$ne", transactionID))
+                                .append("txnCount", new Document("$exists", true));
+                Document push = new Document("$push", new Document("txns", newTransaction))
+                                .append("$inc", new Document("totalValue", value).append("txnCount", 1))
+                                .append("$min", new Document("minValue", value).append("firstTxnDate", date))
+                                .append("$max", new Document("maxValue", value).append("lastTxnDate", date))
+                                .append("$set", new Document("lastModified", new Date()))
+                                .append("$setOnInsert", new Document("name", fullDocument.getString("name")));
+                // the collision is the expected answer, not a failed write the limit should back off from
+                boolean pushed = writeLimiter.execute(() -> {
+                        try {
+                                userDailyTxnCollection.updateOne(filter, push, new UpdateOptions().upsert(true));
+                                return true;
+                        } catch (MongoWriteException e) {
+                                if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                                        throw e;
+                                }
+                                return false;
+                        }
+                });
+                if (!pushed) {
+                        // the day already has this transaction
+                        transactionFilter.record(TransactionFilter.Path.FALLBACK);
+                        return false;
+                }
+                transactionFilter.record(TransactionFilter.Path.PUSH);
+                transactionFilter.add(playerID, day, transactionID);
+                return true;
+        }
+
+        /**
+         * Build the single upsert of processChange for one source document.
+         *
+         * @param fullDocument
+         * @return the update, or null if the document misses a required field
+         */
+        private UpdateOneModel<Document> updateModel(Document fullDocument) {
                 // Validate necessary fields from the event
                 if (!fullDocument.containsKey("playerID") ||
                                 !fullDocument.containsKey("transactionID") ||
@@ -157,7 +327,7 @@ public class ChangeEventService implements ChangeEventServiceInterface {
                                 !fullDocument.containsKey("name") ||
                                 !fullDocument.containsKey("date")) {
                         LOGGER.error("Invalid document: Missing required fields, doc {}", fullDocument);
-                        return ERROR_INVALID_DOCUMENT; // Return error code for missing fields
+                        return null;
                 }
 
                 // Extract necessary fields from the event
@@ -223,15 +393,52 @@ public class ChangeEventService implements ChangeEventServiceInterface {
                                 .append("txns", letOperation)
                                 .append("lastModified", new Date()));
 
-                // Define the update pipeline
-                List<Document> updatePipeline = List.of(setOperation);
+                // Define the update pipeline, the totals stage sees the updated txns array
+                List<Document> updatePipeline = List.of(setOperation, dailyTotalsStage());
 
-                // Perform the update operation with upsert true
-                UpdateOptions options = new UpdateOptions().upsert(true);
-                userDailyTxnCollection.updateOne(filter, updatePipeline, options);
+                // Upsert so the first transaction of the day creates the document
+                return new UpdateOneModel<>(filter, updatePipeline, new UpdateOptions().upsert(true));
+        }
 
-                LOGGER.info("Processed update for playerID: {} and transactionID: {}", playerID, transactionID);
-                return 0;
+        /**
+         * Build the upsert and encode it like the driver would, then drop it.
+         */
+        @Override
+        public void warmUp(ChangeStreamDocument<Document> event) {
+                UpdateOneModel<Document> model = updateModel(event.getFullDocument());
+                if (model != null) {
+                        new RawBsonDocument(new Document("q", model.getFilter())
+                                        .append("u", model.getUpdatePipeline()).append("upsert", true), DOCUMENT_CODEC);
+                }
+        }
+
+        /**
+         * Apply a micro-batch in the caller's transaction with one ordered bulk
+         * write, so the batch costs one round trip and later events of a player
+         * see the earlier ones.
+         *
+         * @param session
+         * @param events
+         * @return 0, or ERROR_INVALID_DOCUMENT if some events were skipped
+         */
+        @Override
+        public int processChanges(ClientSession session, List<ChangeStreamDocument<Document>> events) {
+                List<WriteModel<Document>> updates = new ArrayList<>(events.size());
+                int invalid = 0;
+                for (ChangeStreamDocument<Document> event : events) {
+                        UpdateOneModel<Document> model = updateModel(event.getFullDocument());
+                        if (model == null) {
+                                invalid++;
+                        } else {
+                                updates.add(model);
+                        }
+                }
+                if (!updates.isEmpty()) {
+                        writeLimiter.execute(() -> userDailyTxnCollection.bulkWrite(session, updates,
+                                        new BulkWriteOptions().ordered(true)));
+                }
+                LOGGER.info("Processed batch of {} events, {} invalid", events.size(), invalid);
+                return invalid == 0 ? 0 : ERROR_INVALID_DOCUMENT;
         }
 
 }
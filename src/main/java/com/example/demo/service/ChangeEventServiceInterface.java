@@ -1,9 +1,14 @@
 // ChangeEventServiceInterface.java
 package com.example.demo.service;
 
+import java.util.List;
+
 import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+
 import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
 /**
@@ -20,6 +25,42 @@ public interface ChangeEventServiceInterface {
          */
         ChangeStreamIterable<Document> changeStreamIterator(BsonDocument resumeToken);
 
+        /**
+         * Return one change stream iterator filtered by the given aggregation
+         * stages, e.g. the $match of one parallel reader. Every handler must
+         * apply the pipeline, readers > 1 depends on it.
+         * 
+         * @param resumeToken
+         * @param pipeline
+         * @return
+         */
+        ChangeStreamIterable<Document> changeStreamIterator(BsonDocument resumeToken, List<Bson> pipeline);
+
+        /**
+         * Ordering key of the event: events with the same key are handled by the
+         * same thread, in stream order. Handlers fed by the same stream may order
+         * by different keys, e.g. per player or per game.
+         * 
+         * @param event
+         * @return
+         */
+        default int partitionKey(ChangeStreamDocument<Document> event) {
+                return event.getFullDocument().getInteger("playerID");
+        }
+
+        /**
+         * Key of the record the event overwrites: of several events with the same
+         * key in one coalescing window only the latest is handled. Handlers whose
+         * events do not simply overwrite each other keep the default, null, and
+         * no event is dropped.
+         * 
+         * @param event
+         * @return
+         */
+        default Object coalesceKey(ChangeStreamDocument<Document> event) {
+                return null;
+        }
+
         /**
          * Customized business logic for handling one MongoDB change stream event
          * 
@@ -27,4 +68,25 @@ public interface ChangeEventServiceInterface {
          * @return
          */
         int processChange(ChangeStreamDocument<Document> event);
-}
\ No newline at end of file
+
+        /**
+         * Handle a micro-batch of events inside the caller's transaction: every
+         * write must use the given session, so the batch commits or aborts
+         * together with the checkpoint saved after it. Events are in stream order.
+         * 
+         * @param session
+         * @param events
+         * @return 0, or an error code if some events were invalid and skipped
+         */
+        int processChanges(ClientSession session, List<ChangeStreamDocument<Document>> events);
+
+        /**
+         * Run the CPU side of processChange for a synthetic event without writing
+         * anything, so the JIT compiles the hot path before live traffic arrives.
+         * 
+         * @param event
+         */
+        default void warmUp(ChangeStreamDocument<Document> event) {
+                partitionKey(event);
+        }
+}
@@ -0,0 +1,227 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+
+/**
+ * ChangeStreamContext describes one watched change stream: which collection
+ * it reads, which handler applies its events and where its resume tokens are
+ * kept. Several contexts share the same executors and MongoClient.
+ */
+public class ChangeStreamContext {
+
+        static final String READER_NAMESPACE_PATTERN = "reader-\\d+-\\d+";
+
+        private final String name;
+        private final ChangeEventServiceInterface handler;
+        private final ResumeTokenService resumeTokenService;
+        private final MongoCollection<Document> collection; // null lets the handler open the stream
+        private final List<Bson> pipeline;
+        private final Bson sourceFilter; // same split as pipeline, for queries on the source collection
+        private final int maxInFlight;
+        private final Semaphore inFlight; // null means unbounded
+        private final Map<String, ChangeEventServiceInterface> handlers; // fan-out handlers by name, empty for one
+        private final CheckpointWatermark watermark; // null unless the stream fans out
+
+        public ChangeStreamContext(String name, ChangeEventServiceInterface handler,
+                        ResumeTokenService resumeTokenService) {
+                this(name, handler, resumeTokenService, null, 0);
+        }
+
+        /**
+         * @param name               stream name, used as metrics label
+         * @param handler
+         * @param resumeTokenService
+         * @param collection         collection to watch, or null to use
+         *                           handler.changeStreamIterator
+         * @param maxInFlight        max events queued or running for this stream
+         *                           across all executors, 0 for unbounded
+         */
+        public ChangeStreamContext(String name, ChangeEventServiceInterface handler,
+                        ResumeTokenService resumeTokenService, MongoCollection<Document> collection,
+                        int maxInFlight) {
+                this(name, handler, resumeTokenService, collection, maxInFlight, List.of(), new Document(), Map.of());
+        }
+
+        private ChangeStreamContext(String name, ChangeEventServiceInterface handler,
+                        ResumeTokenService resumeTokenService, MongoCollection<Document> collection,
+                        int maxInFlight, List<Bson> pipeline, Bson sourceFilter,
+                        Map<String, ChangeEventServiceInterface> handlers) {
+                this.name = name;
+                this.handler = handler;
+                this.resumeTokenService = resumeTokenService;
+                this.collection = collection;
+                this.pipeline = pipeline;
+                this.sourceFilter = sourceFilter;
+                this.maxInFlight = maxInFlight;
+                this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+                this.handlers = handlers;
+                this.watermark = handlers.size() > 1 ? new CheckpointWatermark(resumeTokenService, "fanout") : null;
+        }
+
+        /**
+         * This stream with its events handed to several handlers. The first handler
+         * stays the primary one (opens the stream, backfills). The checkpoint only
+         * advances past an event once every handler finished it and is kept in the
+         * fanout sub-namespace, so per-thread checkpoints of the single-handler
+         * mode cannot hold it back.
+         *
+         * @param fanOutHandlers handlers by name, in order
+         * @return
+         */
+        public ChangeStreamContext withHandlers(Map<String, ChangeEventServiceInterface> fanOutHandlers) {
+                if (fanOutHandlers.size() < 2) {
+                        return this;
+                }
+                String base = resumeTokenService.getNamespace();
+                String namespace = (base == null ? "" : base + "/") + "fanout";
+                Map<String, ChangeEventServiceInterface> ordered = Collections
+                                .unmodifiableMap(new LinkedHashMap<>(fanOutHandlers));
+                return new ChangeStreamContext(name, ordered.values().iterator().next(),
+                                resumeTokenService.forNamespace(namespace), collection, maxInFlight, pipeline,
+                                sourceFilter, ordered);
+        }
+
+        /**
+         * One of several parallel readers of this stream. The reader only receives
+         * events whose playerID falls into its hash bucket, filtered on the server,
+         * and keeps its own resume tokens.
+         *
+         * @param reader  bucket handled by the reader, 0..readers-1
+         * @param readers number of parallel readers
+         * @return
+         */
+        public ChangeStreamContext forReader(int reader, int readers) {
+                String base = resumeTokenService.getNamespace();
+                String namespace = (base == null ? "" : base + "/") + readerNamespace(reader, readers);
+                // events without a playerID (e.g. deletes) all go to reader 0
+                Bson match = Aggregates.match(hashBucket("$fullDocument.playerID", reader, readers));
+                return new ChangeStreamContext(name + "-" + reader, handler, resumeTokenService.forNamespace(namespace),
+                                collection, maxInFlight, List.of(match), hashBucket("$playerID", reader, readers),
+                                handlers);
+        }
+
+        static String readerNamespace(int reader, int readers) {
+                return "reader-" + readers + "-" + reader;
+        }
+
+        /**
+         * Delete the checkpoints of reader splits this stream no longer reads
+         * with: for one reader those of every split, for several the stream's
+         * own and those of other reader counts. Only done once every namespace
+         * in use has a checkpoint of its own, until then the new readers still
+         * resume from the old ones.
+         *
+         * @param readers number of parallel readers in use
+         * @return the namespaces deleted, null standing for the stream's own
+         *         when it has no namespace
+         */
+        public List<String> dropStaleReaderCheckpoints(int readers) {
+                List<String> active = new ArrayList<>();
+                if (readers > 1) {
+                        for (int reader = 0; reader < readers; reader++) {
+                                ResumeTokenService split = forReader(reader, readers).getResumeTokenService();
+                                if (!split.hasOwnCheckpoint()) {
+                                        return List.of();
+                                }
+                                active.add(split.getNamespace());
+                        }
+                } else if (!resumeTokenService.hasOwnCheckpoint()) {
+                        return List.of();
+                }
+                List<String> dropped = new ArrayList<>();
+                for (String namespace : resumeTokenService.getChildNamespaces(READER_NAMESPACE_PATTERN)) {
+                        if (!active.contains(namespace)) {
+                                resumeTokenService.deleteNamespace(namespace);
+                                dropped.add(namespace);
+                        }
+                }
+                if (readers > 1 && resumeTokenService.deleteNamespace(resumeTokenService.getNamespace()) > 0) {
+                        dropped.add(resumeTokenService.getNamespace());
+                }
+                return dropped;
+        }
+
+        /**
+         * Filter matching abs(playerID) mod readers == reader, a missing playerID
+         * counts as 0.
+         */
+        static Bson hashBucket(String playerIDPath, int reader, int readers) {
+                Document playerID = new Document("$abs", new Document("$ifNull", List.of(playerIDPath, 0)));
+                return Filters.expr(new Document("$eq",
+                                List.of(new Document("$mod", List.of(playerID, readers)), reader)));
+        }
+
+        public String getName() {
+                return name;
+        }
+
+        public ChangeEventServiceInterface getHandler() {
+                return handler;
+        }
+
+        /**
+         * Fan-out handlers by name, empty when the stream has only its handler.
+         */
+        public Map<String, ChangeEventServiceInterface> getHandlers() {
+                return handlers;
+        }
+
+        public boolean isFanOut() {
+                return watermark != null;
+        }
+
+        /**
+         * Checkpoint tracker of a fan-out stream, null otherwise.
+         */
+        public CheckpointWatermark getWatermark() {
+                return watermark;
+        }
+
+        public ResumeTokenService getResumeTokenService() {
+                return resumeTokenService;
+        }
+
+        public MongoCollection<Document> getCollection() {
+                return collection;
+        }
+
+        public List<Bson> getPipeline() {
+                return pipeline;
+        }
+
+        /**
+         * Filter selecting the source documents this stream is responsible for,
+         * empty unless the stream is one of several parallel readers.
+         */
+        public Bson getSourceFilter() {
+                return sourceFilter;
+        }
+
+        /**
+         * Block the stream's reader while it already has maxInFlight events in the
+         * shared executors, so one busy stream cannot fill every queue.
+         */
+        public void acquireSlot() throws InterruptedException {
+                if (inFlight != null) {
+                        inFlight.acquire();
+                }
+        }
+
+        public void releaseSlot() {
+                if (inFlight != null) {
+                        inFlight.release();
+                }
+        }
+}
@@ -0,0 +1,208 @@
+package com.example.demo.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * ChangeStreamReader wraps a stream's cursor: it measures every getMore
+ * (latency, events returned), reopens the cursor when the BatchSizeTuner picks
+ * a new batchSize and, with prefetching enabled, reads the cursor on its own
+ * thread into a bounded queue, so the next getMore is already in flight while
+ * the caller dispatches the current batch.
+ *
+ * Only one thread touches the cursor: the fetch thread when prefetching,
+ * otherwise the caller.
+ */
+public class ChangeStreamReader implements AutoCloseable {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamReader.class);
+        private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+        private static final int SIZE_SAMPLE_EVERY = 64;
+        private static final long CLOSE_GRACE_MILLIS = 5000;
+
+        /**
+         * Opens the stream's cursor with the given batchSize (0 for the driver
+         * default), resuming after the given token, or at the stream's initial
+         * position when the token is null.
+         */
+        public interface CursorOpener {
+                MongoChangeStreamCursor<ChangeStreamDocument<Document>> open(BsonDocument resumeAfter, int batchSize);
+        }
+
+        private final String name;
+        private final CursorOpener opener;
+        private final BatchSizeTuner tuner;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final BlockingQueue<ChangeStreamDocument<Document>> queue; // null without prefetching
+        private final long pollMillis;
+        private final Thread fetchThread;
+        private MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+        private long fetched;
+        private volatile BsonDocument postBatchResumeToken;
+        private volatile RuntimeException failure;
+        private volatile boolean closed;
+
+        /**
+         * @param name              stream name, used as metrics label
+         * @param opener
+         * @param tuner
+         * @param prefetchCapacity  events buffered ahead of the caller, 0 reads the
+         *                          cursor on the caller's thread
+         * @param pollMillis        longest wait for a prefetched event, like
+         *                          maxAwaitTime
+         * @param metricsConfig
+         */
+        public ChangeStreamReader(String name, CursorOpener opener, BatchSizeTuner tuner, int prefetchCapacity,
+                        long pollMillis, PrometheusMetricsConfig metricsConfig) {
+                this.name = name;
+                this.opener = opener;
+                this.tuner = tuner;
+                this.pollMillis = pollMillis;
+                this.metricsConfig = metricsConfig;
+                this.cursor = opener.open(null, tuner.getBatchSize());
+                this.postBatchResumeToken = cursor.getResumeToken();
+                metricsConfig.changeStreamBatchSize().labels(name).set(tuner.getBatchSize());
+                if (prefetchCapacity > 0) {
+                        queue = new ArrayBlockingQueue<>(prefetchCapacity);
+                        fetchThread = new Thread(this::prefetch);
+                        fetchThread.setDaemon(true);
+                        fetchThread.setName("prefetch-" + name);
+                        fetchThread.start();
+                } else {
+                        queue = null;
+                        fetchThread = null;
+                }
+        }
+
+        /**
+         * Next event, or null if none arrived within the await time.
+         */
+        public ChangeStreamDocument<Document> next() throws InterruptedException {
+                long startNanos = System.nanoTime();
+                ChangeStreamDocument<Document> event;
+                if (queue == null) {
+                        event = fetch();
+                } else {
+                        event = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+                        if (event == null && failure != null) {
+                                throw failure;
+                        }
+                }
+                if (event == null) {
+                        metricsConfig.readerIdle().labels(name)
+                                        .inc((System.nanoTime() - startNanos) / 1_000_000_000.0);
+                }
+                return event;
+        }
+
+        /**
+         * Post-batch resume token of the cursor: how far the stream was read, also
+         * while idle.
+         */
+        public BsonDocument getResumeToken() {
+                return postBatchResumeToken;
+        }
+
+        private void prefetch() {
+                try {
+                        while (!closed) {
+                                ChangeStreamDocument<Document> event = fetch();
+                                // a full queue stops the fetching, which is the reader's backpressure
+                                while (event != null && !closed
+                                                && !queue.offer(event, pollMillis, TimeUnit.MILLISECONDS)) {
+                                }
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                        if (!closed) {
+                                failure = e;
+                        }
+                } finally {
+                        closeCursor();
+                }
+        }
+
+        private ChangeStreamDocument<Document> fetch() {
+                // an empty local batch means this tryNext sends a getMore
+                boolean getMore = cursor.available() == 0;
+                long startNanos = System.nanoTime();
+                ChangeStreamDocument<Document> event = cursor.tryNext();
+                long now = System.nanoTime();
+                postBatchResumeToken = cursor.getResumeToken();
+                if (getMore) {
+                        metricsConfig.changeStreamGetMoreLatency().labels(name)
+                                        .observe((now - startNanos) / 1_000_000_000.0);
+                        metricsConfig.changeStreamEventsPerGetMore().labels(name)
+                                        .observe(event == null ? 0 : 1 + cursor.available());
+                }
+                if (event != null) {
+                        tuner.onEvent();
+                        if (fetched++ % SIZE_SAMPLE_EVERY == 0 && event.getFullDocument() != null) {
+                                tuner.onDocumentSize(new RawBsonDocument(event.getFullDocument(), DOCUMENT_CODEC)
+                                                .getByteBuffer().remaining());
+                        }
+                }
+                if (cursor.available() == 0 && tuner.evaluate(now)) {
+                        reopen();
+                }
+                return event;
+        }
+
+        /**
+         * Apply a new batchSize. Only called between batches, so the post-batch
+         * token is exactly after the last event handed out.
+         */
+        private void reopen() {
+                BsonDocument resumeAfter = cursor.getResumeToken();
+                if (resumeAfter == null) {
+                        return;
+                }
+                cursor.close();
+                cursor = opener.open(resumeAfter, tuner.getBatchSize());
+                metricsConfig.changeStreamBatchSize().labels(name).set(tuner.getBatchSize());
+                LOGGER.info("Reopened change stream {} with batchSize {}", name, tuner.getBatchSize());
+        }
+
+        private void closeCursor() {
+                try {
+                        cursor.close();
+                } catch (RuntimeException e) {
+                        LOGGER.warn("Failed to close change stream {}: {}", name, e.getMessage());
+                }
+        }
+
+        /**
+         * Stop prefetching and close the cursor. Events still in the queue are
+         * dropped; they are after the last checkpoint and read again on resume.
+         */
+        @Override
+        public void close() {
+                closed = true;
+                if (fetchThread == null) {
+                        closeCursor();
+                        return;
+                }
+                try {
+                        // the fetch thread notices within one await period and closes the cursor itself
+                        fetchThread.join(pollMillis + CLOSE_GRACE_MILLIS);
+                        if (fetchThread.isAlive()) {
+                                fetchThread.interrupt();
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+}
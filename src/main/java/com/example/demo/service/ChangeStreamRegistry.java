@@ -0,0 +1,139 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * ChangeStreamRegistry builds the streams declared for multi-stream mode:
+ *
+ * <pre>
+ * spring.multistream.streams=orders,payments
+ * spring.multistream.orders.collection=orders
+ * spring.multistream.orders.handler=orderEventService
+ * spring.multistream.orders.resumetoken.namespace=orders
+ * spring.multistream.orders.handlers=orderEventService,orderSummaryService
+ * </pre>
+ *
+ * With several handlers (or spring.changestream.handlers for the default
+ * stream) every event is decoded once and handed to each handler.
+ *
+ * All streams share the application's MongoClient, resume token collection
+ * and executors. When no stream is declared the registry stays empty and the
+ * mediator watches the single configured collection as before.
+ */
+@Service
+public class ChangeStreamRegistry {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamRegistry.class);
+        private static final String PREFIX = "spring.multistream.";
+        private final Environment environment;
+        private final ApplicationContext applicationContext;
+        private final MongoClient mongoClient;
+        private final MongoCollection<Document> resumeTokenCollection;
+        private List<ChangeStreamContext> streams = Collections.emptyList();
+
+        @Value("${spring.multistream.streams:}")
+        private String[] streamNames;
+
+        @Value("${spring.changestream.handlers:}") // Fan-out handler beans of the default stream
+        private String[] defaultHandlerNames;
+
+        @Value("${spring.multistream.maxinflight:1000}") // Per-stream cap on queued events
+        private int maxInFlight;
+
+        @Value("${spring.mongodb.database}")
+        private String dbName;
+
+        public ChangeStreamRegistry(Environment environment, ApplicationContext applicationContext,
+                        @Qualifier("streamMongoClient") MongoClient mongoClient,
+                        @Qualifier("resumeTokenCollection") MongoCollection<Document> resumeTokenCollection) {
+                this.environment = environment;
+                this.applicationContext = applicationContext;
+                this.mongoClient = mongoClient;
+                this.resumeTokenCollection = resumeTokenCollection;
+        }
+
+        @PostConstruct
+        public void init() {
+                List<ChangeStreamContext> declared = new ArrayList<>();
+                for (String rawName : streamNames) {
+                        String name = rawName.trim();
+                        if (name.isEmpty()) {
+                                continue;
+                        }
+                        String collName = environment.getRequiredProperty(PREFIX + name + ".collection");
+                        String handlerName = environment.getProperty(PREFIX + name + ".handler", "changeEventService");
+                        String namespace = environment.getProperty(PREFIX + name + ".resumetoken.namespace", name);
+
+                        ChangeEventServiceInterface handler = applicationContext.getBean(handlerName,
+                                        ChangeEventServiceInterface.class);
+                        MongoCollection<Document> collection = mongoClient.getDatabase(dbName).getCollection(collName,
+                                        Document.class);
+                        ChangeStreamContext stream = new ChangeStreamContext(name, handler,
+                                        new ResumeTokenService(resumeTokenCollection, namespace), collection,
+                                        maxInFlight);
+                        String[] handlerNames = environment.getProperty(PREFIX + name + ".handlers", String[].class,
+                                        new String[0]);
+                        declared.add(withHandlers(stream, handlerNames));
+                        LOGGER.info("Registered stream {} on collection {} with handler {} and token namespace {}",
+                                        name, collName, handlerName, namespace);
+                }
+                streams = Collections.unmodifiableList(declared);
+        }
+
+        /**
+         * The default stream with the fan-out handlers of
+         * spring.changestream.handlers, if any.
+         */
+        public ChangeStreamContext withDefaultHandlers(ChangeStreamContext defaultStream) {
+                return withHandlers(defaultStream, defaultHandlerNames);
+        }
+
+        private ChangeStreamContext withHandlers(ChangeStreamContext stream, String[] handlerNames) {
+                Map<String, ChangeEventServiceInterface> handlers = new LinkedHashMap<>();
+                for (String rawName : handlerNames) {
+                        String handlerName = rawName.trim();
+                        if (!handlerName.isEmpty()) {
+                                handlers.put(handlerName,
+                                                applicationContext.getBean(handlerName, ChangeEventServiceInterface.class));
+                        }
+                }
+                if (handlers.size() > 1) {
+                        LOGGER.info("Stream {} fans out to handlers {}", stream.getName(), handlers.keySet());
+                }
+                return stream.withHandlers(handlers);
+        }
+
+        /**
+         * Cap on the events a stream has queued or running, for the default
+         * stream as well.
+         */
+        public int getMaxInFlight() {
+                return maxInFlight;
+        }
+
+        public boolean isEmpty() {
+                return streams.isEmpty();
+        }
+
+        public List<ChangeStreamContext> getStreams() {
+                return streams;
+        }
+}
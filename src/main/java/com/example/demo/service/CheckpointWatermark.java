@@ -0,0 +1,168 @@
+package com.example.demo.service;
+
+import java.util.ArrayDeque;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+/**
+ * CheckpointWatermark tracks events that are handled out of order, e.g. by
+ * several fan-out handlers, and saves the resume token of the newest event
+ * before which every event is completely handled. Events are registered in
+ * stream order; an event counts as handled once all of its parts completed.
+ *
+ * A failed part holds the watermark: nothing from the failed event on is
+ * saved until reset, so a restart replays the event instead of skipping it.
+ */
+public class CheckpointWatermark {
+
+        private final ResumeTokenService resumeTokenService;
+        private final String owner;
+        private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+        private final Object saveLock = new Object();
+        private long nextSequence;
+        private long savedSequence = -1;
+        private boolean held; // an event failed, nothing after it is tracked until reset
+
+        /**
+         * @param resumeTokenService where the watermark is saved
+         * @param owner              checkpoint owner, stored as threadName
+         */
+        public CheckpointWatermark(ResumeTokenService resumeTokenService, String owner) {
+                this.resumeTokenService = resumeTokenService;
+                this.owner = owner;
+        }
+
+        /**
+         * Register the next event read from the stream.
+         *
+         * @param resumeToken null for events that must not move the checkpoint
+         * @param clusterTime
+         * @param parts       number of completions needed, e.g. one per handler
+         * @return
+         */
+        public synchronized Entry register(BsonDocument resumeToken, BsonTimestamp clusterTime, int parts) {
+                Entry entry = new Entry(nextSequence++, resumeToken, clusterTime, parts);
+                if (!held) {
+                        pending.addLast(entry);
+                }
+                return entry;
+        }
+
+        /**
+         * Complete one part of the entry and save the new watermark if it moved.
+         *
+         * @return true if this was the entry's last part
+         */
+        public boolean complete(Entry entry) {
+                return finish(entry, false);
+        }
+
+        /**
+         * Finish one part of the entry without applying it: the watermark may
+         * still move up to the entry, never past it.
+         *
+         * @return true if this was the entry's last part
+         */
+        public boolean fail(Entry entry) {
+                return finish(entry, true);
+        }
+
+        private boolean finish(Entry entry, boolean failed) {
+                Entry watermark = null;
+                synchronized (this) {
+                        entry.failed |= failed;
+                        if (--entry.remaining > 0) {
+                                return false;
+                        }
+                        while (!pending.isEmpty() && pending.peekFirst().remaining == 0) {
+                                if (pending.peekFirst().failed) {
+                                        held = true;
+                                        pending.clear();
+                                        break;
+                                }
+                                Entry done = pending.pollFirst();
+                                if (done.resumeToken != null) {
+                                        watermark = done;
+                                }
+                        }
+                }
+                if (watermark != null) {
+                        save(watermark);
+                }
+                return true;
+        }
+
+        private void save(Entry watermark) {
+                // saves can finish out of order, never let an older one overwrite a newer one
+                synchronized (saveLock) {
+                        if (watermark.sequence <= savedSequence) {
+                                return;
+                        }
+                        resumeTokenService.saveResumeToken(watermark.clusterTime, watermark.resumeToken, owner);
+                        savedSequence = watermark.sequence;
+                }
+        }
+
+        /**
+         * Save the given position while nothing is pending and no failed event
+         * holds the watermark, e.g. for a lane that gets no events. The position
+         * must lie after every event registered so far.
+         *
+         * @return true if the position was saved
+         */
+        public boolean advanceIdle(BsonDocument resumeToken, BsonTimestamp clusterTime) {
+                synchronized (saveLock) {
+                        long sequence;
+                        synchronized (this) {
+                                if (!pending.isEmpty() || held) {
+                                        return false;
+                                }
+                                sequence = nextSequence - 1;
+                        }
+                        resumeTokenService.saveResumeToken(clusterTime, resumeToken, owner);
+                        // a save of an earlier entry still on its way must not move the checkpoint back
+                        savedSequence = Math.max(savedSequence, sequence);
+                        return true;
+                }
+        }
+
+        /**
+         * Events registered but not yet completely handled.
+         */
+        public synchronized int pendingCount() {
+                return pending.size();
+        }
+
+        /**
+         * @return true while a failed event holds the watermark
+         */
+        public synchronized boolean isHeld() {
+                return held;
+        }
+
+        /**
+         * Forget the tracked events, e.g. when the stream reopens from its saved
+         * checkpoint. Entries registered before keep counting but are not
+         * tracked.
+         */
+        public synchronized void reset() {
+                pending.clear();
+                held = false;
+        }
+
+        public static final class Entry {
+                private final long sequence;
+                private final BsonDocument resumeToken;
+                private final BsonTimestamp clusterTime;
+                private int remaining; // guarded by the watermark
+                private boolean failed; // guarded by the watermark
+
+                private Entry(long sequence, BsonDocument resumeToken, BsonTimestamp clusterTime, int parts) {
+                        this.sequence = sequence;
+                        this.resumeToken = resumeToken;
+                        this.clusterTime = clusterTime;
+                        this.remaining = parts;
+                }
+        }
+}
@@ -0,0 +1,147 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * CoalescingBuffer holds a lane's events for a short window and hands on only
+ * the latest event per coalesce key (see
+ * ChangeEventServiceInterface.coalesceKey), so a transaction rewritten several
+ * times within the window is written once.
+ *
+ * A window's survivors are ordered by their position in the stream, so the
+ * last survivor is always the newest event of the window: checkpointing after
+ * it moves the lane's resume position past the dropped events as well. Events
+ * without a key are never dropped.
+ */
+public class CoalescingBuffer {
+
+        /**
+         * Called with the survivors of one lane's window, in stream order, while
+         * the lane is locked: hand them on without blocking.
+         */
+        public interface FlushHandler {
+                void onFlush(int lane, List<ChangeStreamDocument<Document>> survivors, int received);
+        }
+
+        private static final class Lane {
+                private Map<Object, ChangeStreamDocument<Document>> pending = new LinkedHashMap<>();
+                private int received;
+                private boolean scheduled;
+        }
+
+        private final String name;
+        private final long windowMillis;
+        private final ChangeEventServiceInterface handler;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final FlushHandler flushHandler;
+        private final Lane[] lanes;
+        private final ScheduledExecutorService timer;
+        private final AtomicLong receivedTotal = new AtomicLong();
+        private final AtomicLong droppedTotal = new AtomicLong();
+        private volatile boolean running = true;
+
+        /**
+         * @param name          stream name, thread name and metrics label
+         * @param lanes
+         * @param windowMillis  how long a lane's first event waits for newer
+         *                      versions
+         * @param handler       provides the coalesce key
+         * @param metricsConfig
+         * @param flushHandler
+         */
+        public CoalescingBuffer(String name, int lanes, long windowMillis, ChangeEventServiceInterface handler,
+                        PrometheusMetricsConfig metricsConfig, FlushHandler flushHandler) {
+                this.name = name;
+                this.windowMillis = windowMillis;
+                this.handler = handler;
+                this.metricsConfig = metricsConfig;
+                this.flushHandler = flushHandler;
+                this.lanes = new Lane[lanes];
+                for (int i = 0; i < lanes; i++) {
+                        this.lanes[i] = new Lane();
+                }
+                this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("coalesce-" + name);
+                        return thread;
+                });
+        }
+
+        /**
+         * Add an event to its lane's window, replacing an older event with the
+         * same key. The first event of a window schedules its flush; after
+         * shutdown the event is handed on at once.
+         */
+        public void offer(ChangeStreamDocument<Document> event, int laneIndex) {
+                Object key = handler.coalesceKey(event);
+                if (key == null) {
+                        key = new Object(); // unique, never replaced
+                }
+                Lane lane = lanes[laneIndex];
+                boolean replaced;
+                synchronized (lane) {
+                        // remove first, so the key moves to the newest position
+                        replaced = lane.pending.remove(key) != null;
+                        lane.pending.put(key, event);
+                        lane.received++;
+                        if (!running) {
+                                flush(laneIndex);
+                        } else if (!lane.scheduled) {
+                                lane.scheduled = true;
+                                timer.schedule(() -> flush(laneIndex), windowMillis, TimeUnit.MILLISECONDS);
+                        }
+                }
+                metricsConfig.coalesceEvents().labels(name).inc();
+                long received = receivedTotal.incrementAndGet();
+                long dropped = replaced ? droppedTotal.incrementAndGet() : droppedTotal.get();
+                if (replaced) {
+                        metricsConfig.coalesceDropped().labels(name).inc();
+                }
+                metricsConfig.coalesceWriteReduction().labels(name).set((double) dropped / received);
+        }
+
+        /**
+         * Hand on the lane's current window.
+         */
+        public void flush(int laneIndex) {
+                Lane lane = lanes[laneIndex];
+                synchronized (lane) {
+                        lane.scheduled = false;
+                        if (lane.pending.isEmpty()) {
+                                return;
+                        }
+                        List<ChangeStreamDocument<Document>> survivors = new ArrayList<>(lane.pending.values());
+                        int received = lane.received;
+                        lane.pending = new LinkedHashMap<>();
+                        lane.received = 0;
+                        // under the lock, so windows of a lane are handed on in order
+                        flushHandler.onFlush(laneIndex, survivors, received);
+                }
+        }
+
+        /**
+         * Hand on every lane's pending window and stop the timer. A lane's flush
+         * takes its lock, so an offer that still saw the buffer running has
+         * scheduled on the live timer before it stops.
+         */
+        public void shutdown() {
+                running = false;
+                for (int i = 0; i < lanes.length; i++) {
+                        flush(i);
+                }
+                timer.shutdownNow();
+        }
+}
@@ -0,0 +1,329 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.LagTracker;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * DispatchIntrospection serves a snapshot of the dispatch and checkpoint state
+ * as JSON (GET /admin/dispatch) on the Prometheus port, to find the stuck lane
+ * and player when lag spikes: per lane the pending events, the event being
+ * handled and its age; the hottest ordering keys per stream; the events
+ * waiting for another attempt; and every lane checkpoint with its distance to
+ * the oplog head.
+ *
+ * The workers are never stopped or locked for a snapshot. Lanes publish their
+ * in-flight event with a single write to their slot, pending counts come from
+ * the LagTracker's counters and hot keys are counted on the reader threads;
+ * the snapshot reads all of them as they are, so its parts may be a few
+ * events apart.
+ */
+@Service
+public class DispatchIntrospection {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(DispatchIntrospection.class);
+        static final String CONTEXT = "/admin/dispatch";
+        private final LagTracker lagTracker;
+        // lane group (stream or fan-out handler) -> event each lane is handling
+        private final Map<String, AtomicReferenceArray<InFlight>> inFlight = new ConcurrentHashMap<>();
+        private final Map<String, HotKeys> hotKeys = new ConcurrentHashMap<>();
+        private final Map<String, TransactionalLaneCommitter> committers = new ConcurrentHashMap<>();
+        private volatile List<ChangeStreamContext> streams = List.of();
+        private volatile KeyFairLanes fairLanes;
+
+        @Value("${spring.admin.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.threadpool.nums}")
+        private int nums;
+
+        @Value("${spring.admin.hotkeys:10}") // Hottest ordering keys listed per stream
+        private int topKeys;
+
+        @Value("${spring.admin.hotkeys.windowms:60000}") // Keys are counted per window of this length
+        private long hotKeyWindowMillis;
+
+        private record InFlight(ChangeStreamDocument<Document> event, int key, String thread, long startMillis) {
+        }
+
+        public DispatchIntrospection(LagTracker lagTracker) {
+                this.lagTracker = lagTracker;
+        }
+
+        @PostConstruct
+        public void init() {
+                if (enabled) {
+                        LOGGER.info("Dispatch state served at {}", CONTEXT);
+                }
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        /**
+         * Serve the snapshot on the given server, before it is started.
+         */
+        public void register(HttpServer server) {
+                if (!enabled) {
+                        return;
+                }
+                server.createContext(CONTEXT, this::handle);
+        }
+
+        /**
+         * The streams whose lane checkpoints are listed.
+         */
+        public void watchStreams(List<ChangeStreamContext> streams) {
+                this.streams = List.copyOf(streams);
+        }
+
+        /**
+         * List the lanes' batches waiting for another attempt.
+         */
+        public void watchCommitter(String stream, TransactionalLaneCommitter committer) {
+                committers.put(stream, committer);
+        }
+
+        /**
+         * List the largest per-key backlogs of the lanes.
+         */
+        public void watchFairLanes(KeyFairLanes fairLanes) {
+                this.fairLanes = fairLanes;
+        }
+
+        /**
+         * Count the event's ordering key. Called on the stream's reader thread.
+         */
+        public void onDispatched(String stream, int key) {
+                if (!enabled) {
+                        return;
+                }
+                hotKeys.computeIfAbsent(stream, name -> new HotKeys(Math.max(1, topKeys) * 8, hotKeyWindowMillis))
+                                .add(key, System.currentTimeMillis());
+        }
+
+        /**
+         * The lane started handling the event.
+         *
+         * @param group the stream, or the handler for fan-out lanes
+         */
+        public void onStarted(String group, int lane, int key, ChangeStreamDocument<Document> event) {
+                if (!enabled) {
+                        return;
+                }
+                inFlight.computeIfAbsent(group, name -> new AtomicReferenceArray<>(nums)).set(lane,
+                                new InFlight(event, key, Thread.currentThread().getName(), System.currentTimeMillis()));
+        }
+
+        public void onFinished(String group, int lane) {
+                if (!enabled) {
+                        return;
+                }
+                AtomicReferenceArray<InFlight> lanes = inFlight.get(group);
+                if (lanes != null) {
+                        lanes.set(lane, null);
+                }
+        }
+
+        /**
+         * Snapshot of the lanes, hot keys, retry backlog and checkpoints. Reads
+         * the lane checkpoints from the database, nothing else blocks.
+         */
+        public Document snapshot() {
+                long now = System.currentTimeMillis();
+                Document snapshot = new Document("time", new Date(now));
+
+                List<Document> lanes = new ArrayList<>();
+                long oldestAgeMillis = 0;
+                long retryBacklog = 0;
+                for (int lane = 0; lane < nums; lane++) {
+                        long pending = lagTracker.backlog(lane);
+                        List<Document> handling = new ArrayList<>();
+                        for (Map.Entry<String, AtomicReferenceArray<InFlight>> group : inFlight.entrySet()) {
+                                InFlight current = group.getValue().get(lane);
+                                if (current == null) {
+                                        continue;
+                                }
+                                Document event = describe(current, now).append("group", group.getKey());
+                                oldestAgeMillis = Math.max(oldestAgeMillis, event.get("eventAgeMillis", 0L));
+                                handling.add(event);
+                        }
+                        int retrying = 0;
+                        for (TransactionalLaneCommitter committer : committers.values()) {
+                                retrying += committer.retrying(lane);
+                        }
+                        retryBacklog += retrying;
+                        Document laneState = new Document("lane", lane).append("pending", pending)
+                                        .append("queued", Math.max(0, pending - handling.size()))
+                                        .append("retrying", retrying).append("inFlight", handling);
+                        KeyFairLanes keyLanes = fairLanes;
+                        if (keyLanes != null) {
+                                laneState.append("keyBacklog", keyLanes.largestBacklogs(lane, topKeys));
+                        }
+                        lanes.add(laneState);
+                }
+                snapshot.append("oldestPendingAgeMillis", oldestAgeMillis).append("retryBacklog", retryBacklog)
+                                .append("lanes", lanes);
+
+                Document keys = new Document();
+                for (Map.Entry<String, HotKeys> stream : hotKeys.entrySet()) {
+                        keys.append(stream.getKey(), stream.getValue().top(topKeys));
+                }
+                snapshot.append("hotKeys", keys);
+                snapshot.append("checkpoints", checkpoints());
+                return snapshot;
+        }
+
+        private static Document describe(InFlight current, long now) {
+                ChangeStreamDocument<Document> event = current.event();
+                Document described = new Document("key", current.key()).append("thread", current.thread())
+                                .append("runningMillis", now - current.startMillis())
+                                .append("operationType", String.valueOf(event.getOperationType()));
+                if (event.getClusterTime() != null) {
+                        described.append("eventAgeMillis", now - event.getClusterTime().getTime() * 1000L);
+                }
+                if (event.getDocumentKey() != null) {
+                        described.append("documentKey", event.getDocumentKey().toJson());
+                }
+                return described;
+        }
+
+        private Document checkpoints() {
+                long head = lagTracker.headSeconds();
+                Document checkpoints = new Document();
+                for (ChangeStreamContext stream : streams) {
+                        List<Document> positions = new ArrayList<>();
+                        try {
+                                for (Document token : stream.getResumeTokenService().getTokenDocuments()) {
+                                        Document position = new Document("threadID", token.getString("threadID"));
+                                        if (token.get("date") instanceof BsonTimestamp clusterTime) {
+                                                position.append("clusterTime", new Date(clusterTime.getTime() * 1000L));
+                                                if (head > 0) {
+                                                        position.append("behindHeadSeconds",
+                                                                        Math.max(0, head - clusterTime.getTime()));
+                                                }
+                                        }
+                                        Document resumeToken = token.get("resumeToken", Document.class);
+                                        if (resumeToken != null) {
+                                                position.append("resumeToken", resumeToken.getString("_data"));
+                                        }
+                                        positions.add(position);
+                                }
+                        } catch (MongoException e) {
+                                LOGGER.warn("Cannot read checkpoints of stream {}: {}", stream.getName(), e.getMessage());
+                                positions.add(new Document("error", e.getMessage()));
+                        }
+                        checkpoints.append(stream.getName(), positions);
+                }
+                return checkpoints;
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+                try {
+                        if (!"GET".equals(exchange.getRequestMethod())) {
+                                respond(exchange, 405, "{\"error\":\"GET only\"}");
+                                return;
+                        }
+                        respond(exchange, 200, snapshot().toJson());
+                } catch (RuntimeException e) {
+                        LOGGER.warn("Dispatch snapshot failed: {}", e.getMessage());
+                        respond(exchange, 500, "{\"error\":\"snapshot failed\"}");
+                } finally {
+                        exchange.close();
+                }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                }
+        }
+
+        /**
+         * Frequent keys of the current window (Misra-Gries): at most capacity
+         * counters, a key without one decrements all of them, so every key seen
+         * more than 1/(capacity+1) of the time is kept and counts are lower
+         * bounds. Amortized O(1) per key; the previous window is kept for the
+         * snapshot.
+         */
+        static final class HotKeys {
+
+                private final int capacity;
+                private final long windowMillis;
+                private Map<Integer, long[]> counts = new HashMap<>();
+                private Map<Integer, long[]> previous = Map.of();
+                private long windowStart;
+                private long seen;
+                private long previousSeen;
+
+                HotKeys(int capacity, long windowMillis) {
+                        this.capacity = capacity;
+                        this.windowMillis = windowMillis;
+                }
+
+                synchronized void add(int key, long now) {
+                        if (now - windowStart >= windowMillis) {
+                                previous = counts;
+                                previousSeen = seen;
+                                counts = new HashMap<>();
+                                seen = 0;
+                                windowStart = now;
+                        }
+                        seen++;
+                        long[] count = counts.get(key);
+                        if (count != null) {
+                                count[0]++;
+                        } else if (counts.size() < capacity) {
+                                counts.put(key, new long[] { 1 });
+                        } else {
+                                for (Iterator<long[]> it = counts.values().iterator(); it.hasNext();) {
+                                        if (--it.next()[0] == 0) {
+                                                it.remove();
+                                        }
+                                }
+                        }
+                }
+
+                /**
+                 * The top keys of the current window, or of the previous one while
+                 * the current one has seen fewer events.
+                 */
+                synchronized List<Document> top(int n) {
+                        Map<Integer, long[]> window = seen >= previousSeen ? counts : previous;
+                        List<Map.Entry<Integer, long[]>> entries = new ArrayList<>(window.entrySet());
+                        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+                        List<Document> top = new ArrayList<>();
+                        for (Map.Entry<Integer, long[]> entry : entries.subList(0, Math.min(n, entries.size()))) {
+                                top.add(new Document("key", entry.getKey()).append("count", entry.getValue()[0]));
+                        }
+                        return top;
+                }
+        }
+}
@@ -2,33 +2,56 @@
 package com.example.demo.service;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.retry.annotation.Backoff;
-import org.springframework.retry.annotation.Retryable;
 import org.springframework.stereotype.Service;
 
+import com.example.demo.jfr.ChangeStreamReadEvent;
+import com.example.demo.jfr.PipelineEvent;
+import com.example.demo.jfr.ProcessChangeEvent;
+import com.example.demo.jfr.QueueWaitEvent;
+import com.example.demo.jfr.RetryAttemptEvent;
+import com.example.demo.jfr.SaveResumeTokenEvent;
+import com.example.demo.metrics.LagTracker;
 import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.metrics.StartupTracker;
 import com.example.demo.metrics.TpsCalculator;
 import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
 import com.mongodb.MongoSocketReadException;
 import com.mongodb.MongoSocketWriteException;
 import com.mongodb.MongoTimeoutException;
 import com.mongodb.MongoWriteConcernException;
 import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 import com.mongodb.client.model.changestream.FullDocument;
 
@@ -44,16 +67,118 @@ import jakarta.annotation.PostConstruct;
 public class EventProcessingMediator {
 
         private static final Logger LOGGER = LoggerFactory.getLogger(EventProcessingMediator.class);
+        private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+        private static final long DEFAULT_MAX_AWAIT_MILLIS = 1000; // driver default for change streams
         private final ChangeEventServiceInterface changeEventService;
         private final ResumeTokenService resumeTokenService;
+        private final ChangeStreamRegistry streamRegistry;
+        private final ChangeStreamContext defaultStream;
+        private final AdaptiveConcurrencyLimiter writeLimiter;
+        private final LagTracker lagTracker;
+        private final BackfillService backfillService;
         private final TpsCalculator tpsCalculator; // TPS calculator instance
+        private final StartupTracker startupTracker;
+        private final ReadModelCache readModelCache;
+        private final WindowedAggregation windowedAggregation;
+        private final ShadowRunner shadowRunner;
+        private final DispatchIntrospection introspection;
+        private final StandbyCoordinator standbyCoordinator;
         private final PrometheusMetricsConfig metricsConfig; //
         private ExecutorService[] executors;
+        private final Map<String, ExecutorService[]> handlerExecutors = new ConcurrentHashMap<>();
+        private final Map<String, EventRingBuffer<ChangeStreamDocument<Document>>> rings = new ConcurrentHashMap<>();
+        private final Map<String, TransactionalLaneCommitter> committers = new ConcurrentHashMap<>();
+        private final Map<String, CoalescingBuffer> coalescers = new ConcurrentHashMap<>();
+        private final Map<String, CheckpointWatermark[]> laneWatermarks = new ConcurrentHashMap<>();
+        private final Map<String, AtomicLongArray> laneBacklogs = new ConcurrentHashMap<>(); // per stream and lane
+        private KeyFairLanes fairLanes;
+        private final MongoClient mongoClient;
         private final AtomicInteger threadCounter = new AtomicInteger();
+        private volatile boolean stopRequested;
+        private List<ChangeStreamContext> declaredStreams; // before the split into parallel readers
+        private List<ChangeStreamContext> streams;
 
         @Value("${spring.threadpool.nums}")
         private int nums;
 
+        @Value("${spring.changestream.readers:1}") // Parallel readers per stream, split by playerID hash
+        private int readers;
+
+        @Value("${spring.limiter.reader.maxpausems:100}") // Longest reader pause while writes are queued
+        private long readerMaxPauseMillis;
+
+        @Value("${spring.changestream.batchsize:0}") // 0 keeps the driver default
+        private int batchSize;
+
+        @Value("${spring.changestream.batchsize.adaptive:false}") // Tune batchSize to event rate and size
+        private boolean adaptiveBatchSize;
+
+        @Value("${spring.changestream.batchsize.min:100}")
+        private int minBatchSize;
+
+        @Value("${spring.changestream.batchsize.max:10000}")
+        private int maxBatchSize;
+
+        @Value("${spring.changestream.batchsize.targetms:100}") // Events one getMore should return, in time
+        private long batchTargetMillis;
+
+        @Value("${spring.changestream.batchsize.maxbytes:8388608}")
+        private long maxBatchBytes;
+
+        @Value("${spring.changestream.maxawaitms:0}") // 0 keeps the driver default (1s), lower for idle latency
+        private long maxAwaitMillis;
+
+        @Value("${spring.changestream.prefetch:0}") // Events read ahead on a separate thread, 0 disables
+        private int prefetchCapacity;
+
+        @Value("${spring.dispatch.engine:executor}") // executor or ringbuffer
+        private String dispatchEngine;
+
+        @Value("${spring.dispatch.ringbuffer.size:1024}") // Slots per stream, rounded up to a power of two
+        private int ringSize;
+
+        @Value("${spring.dispatch.ringbuffer.wait:park}") // busy-spin, yield or park
+        private String ringWaitStrategy;
+
+        @Value("${spring.dispatch.scheduling:fifo}") // fifo, roundrobin or drr over per-key sub-queues of a lane
+        private String scheduling;
+
+        @Value("${spring.dispatch.fair.quantum:1}") // Events a key may run per roundrobin turn
+        private long fairQuantum;
+
+        @Value("${spring.dispatch.fair.quantumus:2000}") // Handler time a key may use per drr turn
+        private long fairQuantumMicros;
+
+        @Value("${spring.dispatch.fair.largebacklog:10}") // Backlog from which a key counts as large in the metrics
+        private int fairLargeBacklog;
+
+        @Value("${spring.changestream.commitmode:event}") // event or transactional
+        private String commitMode;
+
+        @Value("${spring.changestream.txn.batchsize:100}") // Most events per transaction and lane
+        private int txnBatchSize;
+
+        @Value("${spring.changestream.txn.maxwaitms:5}") // Longest wait for a transaction batch to fill up
+        private long txnMaxWaitMillis;
+
+        @Value("${spring.changestream.coalesce.windowms:0}") // Latest event per key wins within the window, 0 disables
+        private long coalesceWindowMillis;
+
+        @Value("${spring.changestream.highwatermark.enabled:true}") // Skip replayed events a lane already applied
+        private boolean skipApplied;
+
+        @Value("${spring.changestream.idlelane.advancems:1000}") // Idle lanes move their checkpoint up to the reader, 0 disables
+        private long idleAdvanceMillis;
+
+        @Value("${spring.mongodb.retry.maxattempts:5}")
+        private int retryMaxAttempts;
+
+        @Value("${spring.mongodb.retry.initialdelayms:1000}")
+        private long retryDelayMillis;
+
+        @Value("${spring.warmup.events:10000}") // Synthetic events run before the stream opens, 0 disables
+        private int warmUpEvents;
+
         @Value("${spring.lifecycle.timeout-per-shutdown-phase:30s}") // Configurable shutdown timeout duration
         private String shutdownTimeoutString;
 
@@ -61,12 +186,30 @@ public class EventProcessingMediator {
 
         @Autowired
         public EventProcessingMediator(@Qualifier("changeEventService") ChangeEventServiceInterface changeEventService,
-                        ResumeTokenService resumeTokenService,
-                        PrometheusMetricsConfig metricsConfig, TpsCalculator tpsCalculator) {
+                        ResumeTokenService resumeTokenService, ChangeStreamRegistry streamRegistry,
+                        AdaptiveConcurrencyLimiter writeLimiter, LagTracker lagTracker, BackfillService backfillService,
+                        PrometheusMetricsConfig metricsConfig, TpsCalculator tpsCalculator, MongoClient mongoClient,
+                        StartupTracker startupTracker, ReadModelCache readModelCache,
+                        WindowedAggregation windowedAggregation, ShadowRunner shadowRunner,
+                        DispatchIntrospection introspection, StandbyCoordinator standbyCoordinator) {
                 this.changeEventService = changeEventService;
                 this.resumeTokenService = resumeTokenService;
+                this.streamRegistry = streamRegistry;
+                this.writeLimiter = writeLimiter;
+                this.lagTracker = lagTracker;
+                this.backfillService = backfillService;
+                // capped like the declared streams, also bounds a fan-out stream's pending checkpoints
+                this.defaultStream = new ChangeStreamContext("default", changeEventService, resumeTokenService, null,
+                                streamRegistry.getMaxInFlight());
                 this.metricsConfig = metricsConfig; // Inject metrics configuration
                 this.tpsCalculator = tpsCalculator; // In
+                this.mongoClient = mongoClient;
+                this.startupTracker = startupTracker;
+                this.readModelCache = readModelCache;
+                this.windowedAggregation = windowedAggregation;
+                this.shadowRunner = shadowRunner;
+                this.introspection = introspection;
+                this.standbyCoordinator = standbyCoordinator;
         }
 
         @PostConstruct
@@ -77,6 +220,45 @@ public class EventProcessingMediator {
                 metricsConfig.eventProcessDuration();
                 metricsConfig.tpsPerThread();
                 metricsConfig.p99ProcessingTime();
+                metricsConfig.streamEventsHandled();
+                metricsConfig.streamEventProcessDuration();
+                metricsConfig.readerEvents();
+                metricsConfig.readerLag();
+                metricsConfig.readerThrottled();
+                metricsConfig.handlerProcessDuration();
+                metricsConfig.handlerFailures();
+                metricsConfig.changeStreamGetMoreLatency();
+                metricsConfig.changeStreamEventsPerGetMore();
+                metricsConfig.changeStreamBatchSize();
+                metricsConfig.readerIdle();
+                metricsConfig.txnBatchSize();
+                metricsConfig.txnCommitDuration();
+                metricsConfig.txnReplaySkipped();
+                metricsConfig.txnBatchFailures();
+                metricsConfig.coalesceEvents();
+                metricsConfig.coalesceDropped();
+                metricsConfig.coalesceWriteReduction();
+                metricsConfig.replaySkipped();
+                metricsConfig.windowEmitted();
+                metricsConfig.windowLateEvents();
+                metricsConfig.windowEmitFailures();
+                metricsConfig.windowDropped();
+                metricsConfig.windowSnapshotDuration();
+                metricsConfig.windowStateEntries();
+                metricsConfig.shadowProcessDuration();
+                metricsConfig.shadowReturnCodes();
+                metricsConfig.fairLaneQueueWait();
+                metricsConfig.fairLaneKeyBacklog();
+                metricsConfig.fairLaneActiveKeys();
+                metricsConfig.standbyFencedEvents();
+                metricsConfig.fanoutCheckpointHeld();
+
+                if (windowedAggregation.isEnabled() && coalesceWindowMillis > 0) {
+                        // a window would miss every transaction whose insert was merged into a later update
+                        throw new IllegalStateException("Windowed aggregation counts inserts, which coalescing merges "
+                                        + "into updates: set spring.changestream.coalesce.windowms=0 or "
+                                        + "spring.windows.enabled=false");
+                }
 
                 // Parse the shutdown timeout string to seconds
                 this.shutdownTimeout = Duration.parse("PT" + shutdownTimeoutString.replaceAll("[^0-9]", "") + "S")
@@ -93,6 +275,33 @@ public class EventProcessingMediator {
                 for (int i = 0; i < nums; i++) {
                         executors[i] = Executors.newSingleThreadExecutor(daemonThreadFactory);
                 }
+
+                List<ChangeStreamContext> declared = streamRegistry.isEmpty()
+                                ? List.of(streamRegistry.withDefaultHandlers(defaultStream))
+                                : streamRegistry.getStreams();
+                declaredStreams = List.copyOf(declared);
+                if (readers > 1) {
+                        List<ChangeStreamContext> split = new ArrayList<>();
+                        for (ChangeStreamContext stream : declared) {
+                                for (int reader = 0; reader < readers; reader++) {
+                                        split.add(stream.forReader(reader, readers));
+                                }
+                        }
+                        declared = split;
+                }
+                streams = List.copyOf(declared);
+                introspection.watchStreams(streams);
+                if (!"fifo".equalsIgnoreCase(scheduling)) {
+                        startFairLanes();
+                }
+                if (isTransactional()) {
+                        for (ChangeStreamContext stream : streams) {
+                                if (stream.isFanOut()) {
+                                        LOGGER.warn("Stream {} fans out to several handlers, its events are not "
+                                                        + "committed transactionally", stream.getName());
+                                }
+                        }
+                }
         }
 
         public ChangeStreamIterable<Document> changeStreamIterator(BsonDocument resumeToken) {
@@ -100,19 +309,66 @@ public class EventProcessingMediator {
         }
 
         /**
-         * Use Spring @Retryable to auto retry network relate exceptions in MongoDB
-         * The NoPrimaryException in MongoDB Driver client is handled by native dirver
-         * already.
+         * Open the stream on the context's collection, or let its handler open it
+         * when no collection is declared.
+         */
+        ChangeStreamIterable<Document> changeStreamIterator(ChangeStreamContext stream, BsonDocument resumeToken) {
+                MongoCollection<Document> collection = stream.getCollection();
+                List<Bson> pipeline = stream.getPipeline();
+                if (collection == null) {
+                        return pipeline.isEmpty() ? stream.getHandler().changeStreamIterator(resumeToken)
+                                        : stream.getHandler().changeStreamIterator(resumeToken, pipeline);
+                }
+                return resumeToken != null ? collection.watch(pipeline).resumeAfter(resumeToken)
+                                : collection.watch(pipeline);
+        }
+
+        /**
+         * All streams handled by this instance: the declared multi-stream contexts,
+         * or the single default stream, each split into its parallel readers.
+         */
+        public List<ChangeStreamContext> getStreams() {
+                return streams;
+        }
+
+        /**
+         * Handle one event of the default stream. Network related exceptions in
+         * MongoDB are retried around the handler call (see processChangeWithRetry);
+         * the lanes call this instance directly, so a @Retryable proxy would never
+         * see these calls. The NoPrimaryException in MongoDB Driver client is
+         * handled by native dirver already.
          * 
          * @param event
          */
-
-        @Retryable(value = { MongoTimeoutException.class, MongoSocketReadException.class,
-                        MongoSocketWriteException.class, MongoCommandException.class,
-                        MongoWriteConcernException.class }, maxAttemptsExpression = "${spring.mongodb.retry.maxattempts}", backoff = @Backoff(delayExpression = "${spring.mongodb.retry.initialdelayms}"))
         public void processEvent(ChangeStreamDocument<Document> event) {
+                processEvent(event, defaultStream);
+        }
+
+        public void processEvent(ChangeStreamDocument<Document> event, ChangeStreamContext stream) {
+                processEvent(event, stream, true);
+        }
+
+        /**
+         * @param checkpoint false while later events of the same coalescing
+         *                   window are still to be handled
+         */
+        public void processEvent(ChangeStreamDocument<Document> event, ChangeStreamContext stream, boolean checkpoint) {
+                int key = stream.getHandler().partitionKey(event);
+                int lane = Math.floorMod(key, nums);
+                introspection.onStarted(stream.getName(), lane, key, event);
+                try {
+                        processEvent(event, stream, checkpoint, lane);
+                } finally {
+                        introspection.onFinished(stream.getName(), lane);
+                }
+        }
+
+        private void processEvent(ChangeStreamDocument<Document> event, ChangeStreamContext stream, boolean checkpoint,
+                        int lane) {
+                checkLease(event, stream);
                 String currentThreadName = Thread.currentThread().getName();
                 long startTimeMillis = System.currentTimeMillis();
+                long startNanos = System.nanoTime();
                 LOGGER.info("Thread " + currentThreadName + "  is correctly processing change: {}" + event);
 
                 long eventMillis;
@@ -130,17 +386,50 @@ public class EventProcessingMediator {
                 // Record event lag for the current thread
                 metricsConfig.eventLagPerThread().labels(currentThreadName).set(eventLag);
                 metricsConfig.totalEventsHandled().inc();
+                metricsConfig.streamEventsHandled().labels(stream.getName()).inc();
 
-                // Call ChangeEventService to process the change event
-                int ret = changeEventService.processChange(event);
+                // Call the stream's handler to process the change event
+                ProcessChangeEvent processed = new ProcessChangeEvent();
+                processed.begin();
+                long handlerStartNanos = System.nanoTime();
+                int ret = processChangeWithRetry(event, stream, stream.getHandler().getClass().getSimpleName(),
+                                stream.getHandler());
+                long handlerNanos = System.nanoTime() - handlerStartNanos;
+                processed.end();
+                if (processed.shouldCommit()) {
+                        describe(processed, event, stream);
+                        processed.handler = stream.getHandler().getClass().getSimpleName();
+                        processed.result = ret;
+                        processed.commit();
+                }
                 if (ret == 0) {
                         metricsConfig.totalEventsHandledSuccessfully().inc();
+                        if (stream.getHandler() == changeEventService) {
+                                readModelCache.onWritten(event);
+                        }
+                }
+
+                if (ret == 0 && windowedAggregation.isEnabled()) {
+                        windowedAggregation.onEvent(stream, lane, event);
+                }
+                if (shadowRunner.isEnabled() && stream.getHandler() == changeEventService) {
+                        shadowRunner.offer(event, lane, ret, handlerNanos);
                 }
 
                 // Save the resume token after processing
                 BsonDocument resumeToken = event.getResumeToken();
-                if (resumeToken != null) {
-                        resumeTokenService.saveResumeToken(event.getClusterTime(), resumeToken, currentThreadName);
+                if (resumeToken != null && checkpoint) {
+                        SaveResumeTokenEvent saved = new SaveResumeTokenEvent();
+                        saved.begin();
+                        // under the lane's stable name it is the lane's high-water mark
+                        stream.getResumeTokenService().saveResumeToken(event.getClusterTime(), resumeToken,
+                                        skipApplied ? LaneHighWaterMarks.laneName(lane) : currentThreadName);
+                        saved.end();
+                        if (saved.shouldCommit()) {
+                                describe(saved, event, stream);
+                                saved.namespace = stream.getResumeTokenService().getNamespace();
+                                saved.commit();
+                        }
                 }
 
                 double tps = tpsCalculator.calculateTps(currentThreadName);
@@ -152,6 +441,21 @@ public class EventProcessingMediator {
 
                 metricsConfig.eventProcessDuration().observe(durationSeconds);
                 metricsConfig.p99ProcessingTime().observe(durationMillis);
+                metricsConfig.streamEventProcessDuration().labels(stream.getName()).observe(durationSeconds);
+                startupTracker.onEventProcessed(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Refuse to write once the stream lease may have passed to another
+         * instance; the event stays unapplied and uncheckpointed, the new owner
+         * replays it.
+         */
+        private void checkLease(ChangeStreamDocument<Document> event, ChangeStreamContext stream) {
+                if (!standbyCoordinator.holdsLease()) {
+                        metricsConfig.standbyFencedEvents().labels(stream.getName()).inc();
+                        throw new IllegalStateException("Stream lease of " + stream.getName()
+                                        + " is not held, not applying event " + event.getResumeToken());
+                }
         }
 
         public BsonDocument getLatestResumeToken() {
@@ -159,9 +463,53 @@ public class EventProcessingMediator {
                 return resumeTokenService.getResumeToken();
         }
 
+        /**
+         * Ask the change stream loop to close its cursor and return, e.g. after the
+         * stream lease moved to another instance. Queued events are still handled.
+         */
+        public void requestStop() {
+                stopRequested = true;
+        }
+
         public void shutdown() {
                 LOGGER.info("Shutdown requested, closing change stream...");
-                for (ExecutorService executor : executors) {
+                requestStop();
+                // hand the pending windows to the lanes before these shut down
+                for (CoalescingBuffer coalescer : coalescers.values()) {
+                        coalescer.shutdown();
+                }
+                if (fairLanes != null) {
+                        try {
+                                if (!fairLanes.shutdown(shutdownTimeout, TimeUnit.SECONDS)) {
+                                        LOGGER.error("Fair lanes did not terminate gracefully.");
+                                }
+                        } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+                List<ExecutorService> all = new ArrayList<>(List.of(executors));
+                for (ExecutorService[] lanes : handlerExecutors.values()) {
+                        all.addAll(List.of(lanes));
+                }
+                for (TransactionalLaneCommitter committer : committers.values()) {
+                        try {
+                                if (!committer.shutdown(shutdownTimeout, TimeUnit.SECONDS)) {
+                                        LOGGER.error("Transactional lanes did not terminate gracefully.");
+                                }
+                        } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+                for (EventRingBuffer<ChangeStreamDocument<Document>> ring : rings.values()) {
+                        try {
+                                if (!ring.shutdown(shutdownTimeout, TimeUnit.SECONDS)) {
+                                        LOGGER.error("Ring buffer consumers did not terminate gracefully.");
+                                }
+                        } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+                for (ExecutorService executor : all) {
                         if (executor != null) {
                                 executor.shutdown();
                                 try {
@@ -180,36 +528,935 @@ public class EventProcessingMediator {
         }
 
         /**
-         * MongoNotPrimaryException is not need to handle manually
+         * Push synthetic events through decoding, the lanes and every stream's
+         * handler (warmUp, which writes nothing) so class loading and JIT
+         * compilation happen before the stream is opened, not on live events.
+         * With the ring buffer engine a throwaway ring is run as well.
+         */
+        public void warmUp() throws InterruptedException {
+                if (warmUpEvents <= 0) {
+                        return;
+                }
+                long startNanos = System.nanoTime();
+                List<ChangeEventServiceInterface> handlers = new ArrayList<>();
+                for (ChangeStreamContext stream : getStreams()) {
+                        for (ChangeEventServiceInterface handler : stream.getHandlers().values()) {
+                                if (!handlers.contains(handler)) {
+                                        handlers.add(handler);
+                                }
+                        }
+                }
+                MongoNamespace namespace = new MongoNamespace("warmup", "warmup");
+                int seconds = (int) (System.currentTimeMillis() / 1000);
+                CountDownLatch done = new CountDownLatch(warmUpEvents * handlers.size());
+                EventRingBuffer<ChangeStreamDocument<Document>> ring = null;
+                if (isRingBufferEngine()) {
+                        ring = new EventRingBuffer<ChangeStreamDocument<Document>>("warmup", ringSize, nums,
+                                        EventRingBuffer.WaitStrategy.fromString(ringWaitStrategy), (event, lane) -> {
+                                                try {
+                                                        handlers.get(0).warmUp(event);
+                                                } catch (RuntimeException e) {
+                                                        LOGGER.debug("Warm-up event failed: {}", e.getMessage());
+                                                } finally {
+                                                        done.countDown();
+                                                }
+                                        }).start();
+                }
+                for (int i = 0; i < warmUpEvents; i++) {
+                        Document transaction = new Document("_id", new ObjectId()).append("playerID", i % 1000)
+                                        .append("transactionID", i).append("value", (double) (i % 100))
+                                        .append("name", "warmup").append("date", new Date());
+                        // decoded by the same codec as the driver's change events
+                        ChangeStreamDocument<Document> event = SyntheticChangeEvents.insert(namespace, transaction,
+                                        new BsonTimestamp(seconds, i));
+                        for (int h = 0; h < handlers.size(); h++) {
+                                ChangeEventServiceInterface handler = handlers.get(h);
+                                int lane = Math.floorMod(handler.partitionKey(event), nums);
+                                if (ring != null && h == 0) {
+                                        ring.publish(event, lane);
+                                        continue;
+                                }
+                                CompletableFuture.runAsync(() -> handler.warmUp(event), executors[lane])
+                                                .whenComplete((result, ex) -> done.countDown());
+                        }
+                }
+                if (!done.await(shutdownTimeout, TimeUnit.SECONDS)) {
+                        LOGGER.warn("Warm-up did not finish within {} s", shutdownTimeout);
+                }
+                if (ring != null) {
+                        ring.shutdown(shutdownTimeout, TimeUnit.SECONDS);
+                }
+                startupTracker.onWarmUpDone(warmUpEvents, System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Watch every stream until requestStop is called. A single stream is read on
+         * the calling thread, several streams get one reader thread each.
          */
         public void changeStreamProcessWithRetry() {
-                BsonDocument resumeToken = getLatestResumeToken();
-                ChangeStreamIterable<Document> changeStream = changeStreamIterator(resumeToken)
+                stopRequested = false;
+                dropStaleReaderCheckpoints();
+                List<ChangeStreamContext> streams = getStreams();
+                if (streams.size() == 1) {
+                        changeStreamProcessWithRetry(streams.get(0));
+                        return;
+                }
+
+                List<Thread> readers = new ArrayList<>();
+                for (ChangeStreamContext stream : streams) {
+                        Thread reader = new Thread(() -> {
+                                try {
+                                        changeStreamProcessWithRetry(stream);
+                                } catch (Exception e) {
+                                        LOGGER.error("Change stream {} stopped with exception", stream.getName(), e);
+                                }
+                        });
+                        reader.setDaemon(true);
+                        reader.setName("reader-" + stream.getName());
+                        reader.start();
+                        readers.add(reader);
+                }
+                for (Thread reader : readers) {
+                        try {
+                                reader.join();
+                        } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                                return;
+                        }
+                }
+        }
+
+        /**
+         * Checkpoints of an earlier number of readers would keep pinning the
+         * resume position, see ChangeStreamContext.dropStaleReaderCheckpoints.
+         */
+        private void dropStaleReaderCheckpoints() {
+                for (ChangeStreamContext stream : declaredStreams) {
+                        try {
+                                List<String> dropped = stream.dropStaleReaderCheckpoints(readers);
+                                if (!dropped.isEmpty()) {
+                                        LOGGER.info("Stream {} reads with {} readers, dropped checkpoints of namespaces {}",
+                                                        stream.getName(), readers, dropped);
+                                }
+                        } catch (RuntimeException e) {
+                                LOGGER.warn("Cannot drop stale reader checkpoints of stream {}: {}", stream.getName(),
+                                                e.getMessage());
+                        }
+                }
+        }
+
+        /**
+         * MongoNotPrimaryException is not need to handle manually. Without a resume
+         * token, or when the token is no longer in the oplog, the stream's source
+         * collection is backfilled first (if enabled) and the stream starts at the
+         * backfill's operation time.
+         */
+        public void changeStreamProcessWithRetry(ChangeStreamContext stream) {
+                BsonDocument resumeToken = stream.getResumeTokenService().getResumeToken();
+                BsonTimestamp startAt = null;
+                try {
+                        if (resumeToken == null && backfillService.isEnabled()) {
+                                startAt = backfillService.backfill(stream);
+                        }
+                        while (true) {
+                                try {
+                                        watch(stream, resumeToken, startAt);
+                                        if (!reopenHalted(stream)) {
+                                                return;
+                                        }
+                                        resumeToken = stream.getResumeTokenService().getResumeToken();
+                                        startAt = null;
+                                } catch (MongoCommandException e) {
+                                        if (e.getErrorCode() != CHANGE_STREAM_HISTORY_LOST || !backfillService.isEnabled()
+                                                        || stopRequested) {
+                                                throw e;
+                                        }
+                                        LOGGER.warn("Resume point of stream {} is no longer in the oplog, backfilling",
+                                                        stream.getName());
+                                        resumeToken = null;
+                                        startAt = backfillService.backfillAfterHistoryLost(stream);
+                                }
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * Open the stream's cursor. A reopen (new batchSize) resumes after the
+         * reader's post-batch token, the first open starts at the checkpoint or
+         * the backfill's operation time.
+         */
+        private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openCursor(ChangeStreamContext stream,
+                        BsonDocument resumeToken, BsonTimestamp startAt, int batchSize) {
+                ChangeStreamIterable<Document> changeStream = changeStreamIterator(stream, resumeToken)
                         .fullDocument(FullDocument.UPDATE_LOOKUP);
+                if (startAt != null && resumeToken == null) {
+                        changeStream = changeStream.startAtOperationTime(startAt);
+                }
+                if (batchSize > 0) {
+                        changeStream = changeStream.batchSize(batchSize);
+                }
+                if (maxAwaitMillis > 0) {
+                        changeStream = changeStream.maxAwaitTime(maxAwaitMillis, TimeUnit.MILLISECONDS);
+                }
+                return changeStream.cursor();
+        }
+
+        private void watch(ChangeStreamContext stream, BsonDocument resumeToken, BsonTimestamp startAt) {
+                BatchSizeTuner tuner = new BatchSizeTuner(batchSize, adaptiveBatchSize, minBatchSize, maxBatchSize,
+                                batchTargetMillis, maxBatchBytes);
+                ChangeStreamReader.CursorOpener opener = (resumeAfter, size) -> resumeAfter != null
+                                ? openCursor(stream, resumeAfter, null, size)
+                                : openCursor(stream, resumeToken, startAt, size);
+                long pollMillis = maxAwaitMillis > 0 ? maxAwaitMillis : DEFAULT_MAX_AWAIT_MILLIS;
+                // lanes checkpoint under their own names to skip replayed events, fair lanes always do
+                LaneHighWaterMarks marks = hasLaneCheckpoints(stream) && (skipApplied || fairLanes != null)
+                                ? new LaneHighWaterMarks(stream.getName(), nums, stream.getHandler(),
+                                                stream.getResumeTokenService(), metricsConfig)
+                                : null;
+                if (marks != null && skipApplied) {
+                        marks.load();
+                }
+                boolean windows = hasLaneCheckpoints(stream) && windowedAggregation.isEnabled();
+                // out-of-order checkpoints restart from what is saved, like the reader
+                if (stream.isFanOut()) {
+                        stream.getWatermark().reset();
+                }
+                CheckpointWatermark[] watermarks = laneWatermarks.get(stream.getName());
+                if (watermarks != null) {
+                        for (CheckpointWatermark watermark : watermarks) {
+                                watermark.reset();
+                        }
+                }
+                if (windows) {
+                        // replay what the lanes' window snapshots do not contain yet
+                        BsonDocument[] snapshots = windowedAggregation.restore(stream, nums);
+                        for (int i = 0; marks != null && i < nums; i++) {
+                                marks.lowerTo(i, snapshots[i]);
+                        }
+                }
+
+                // the reader returns at least once per await period, so a stop request is
+                // noticed without waiting for the next event
+                try (ChangeStreamReader reader = new ChangeStreamReader(stream.getName(), opener, tuner,
+                                prefetchCapacity, pollMillis, metricsConfig)) {
+                        TransactionalLaneCommitter committer = null;
+                        if (isTransactional(stream)) {
+                                committer = committerFor(stream);
+                                committer.seed(reader.getResumeToken());
+                                introspection.watchCommitter(stream.getName(), committer);
+                        } else if (marks != null) {
+                                marks.seed(reader.getResumeToken());
+                        }
+                        boolean advanceIdle = idleAdvanceMillis > 0 && (committer != null || marks != null || windows);
+                        // lanes checkpoint under their thread names, nothing moves the lane schemes' checkpoints
+                        List<String> unused = committer == null && marks == null && hasLaneCheckpoints(stream)
+                                        ? threadModeUnusedPrefixes()
+                                        : List.of();
+                        // nothing moves the window lanes' checkpoints of a stream watched without windows
+                        boolean windowsUnused = !windows && !stream.isFanOut();
+                        if (windowsUnused && (committer != null || marks != null) && dropWindowLanes(stream)) {
+                                windowsUnused = false; // the seeded lanes cover the start position
+                        }
+                        ChangeStreamDocument<Document> delivered = null; // last event handed to the lanes
+                        ChangeStreamDocument<Document> advanced = null;
+                        long nextAdvanceNanos = System.nanoTime();
+                        while (!stopRequested && (committer == null || !committer.isHalted()) && !isHeld(stream)) {
+                                ChangeStreamReadEvent read = new ChangeStreamReadEvent();
+                                read.begin();
+                                ChangeStreamDocument<Document> event = reader.next();
+                                read.end();
+                                // post-batch token, tells how far the oplog head is even while idle
+                                lagTracker.onCursorPosition(stream.getName(), reader.getResumeToken());
+                                if (event != null) {
+                                        if (read.shouldCommit()) {
+                                                describe(read, event, stream);
+                                                read.operationType = String.valueOf(event.getOperationType());
+                                                read.commit();
+                                        }
+                                        recordRead(event, stream);
+                                        if (event.getResumeToken() != null) {
+                                                delivered = event;
+                                        }
+                                        if (skipApplied && marks != null && marks.isApplied(event)) {
+                                                continue; // replayed, its lane applied it before the restart
+                                        }
+                                        // slow down while writers are already waiting on the adaptive limit
+                                        if (writeLimiter.awaitNotSaturated(readerMaxPauseMillis)) {
+                                                metricsConfig.readerThrottled().labels(stream.getName()).inc();
+                                        }
+                                        dispatch(event, stream);
+                                }
+                                if ((!unused.isEmpty() || windowsUnused) && delivered != null && isDrained(stream)) {
+                                        if (!unused.isEmpty() && dropUnusedCheckpoints(stream, unused)) {
+                                                unused = List.of();
+                                        }
+                                        if (windowsUnused && dropWindowLanes(stream)) {
+                                                windowsUnused = false;
+                                        }
+                                }
+                                if (advanceIdle && delivered != advanced && System.nanoTime() - nextAdvanceNanos >= 0) {
+                                        advanceIdleLanes(stream, committer, marks, windows, delivered);
+                                        advanced = delivered;
+                                        nextAdvanceNanos = System.nanoTime() + idleAdvanceMillis * 1_000_000L;
+                                }
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                }
+                LOGGER.info("Change stream {} closed", stream.getName());
+        }
+
+        /**
+         * A lane that gets no events keeps the checkpoint it was seeded with, or
+         * the one of its last event, and holds the stream's resume position back
+         * to it. Lanes with nothing pending move their checkpoint to the last
+         * event the reader handed out instead: every earlier event of such a lane
+         * is done. That is the transactional lane's, the event lane's (through
+         * the lane's watermark with fair lanes) and the window lane's checkpoint.
+         * Runs on the reader thread, so no event is dispatched meanwhile.
+         */
+        private void advanceIdleLanes(ChangeStreamContext stream, TransactionalLaneCommitter committer,
+                        LaneHighWaterMarks marks, boolean windows, ChangeStreamDocument<Document> delivered) {
+                if (!standbyCoordinator.holdsLease()) {
+                        return;
+                }
+                AtomicLongArray backlog = laneBacklog(stream);
+                BsonTimestamp clusterTime = delivered.getClusterTime();
+                BsonDocument token = delivered.getResumeToken();
+                try {
+                        for (int i = 0; i < nums; i++) {
+                                if (backlog.get(i) != 0) {
+                                        continue;
+                                }
+                                if (committer != null) {
+                                        committer.advanceIdle(i, clusterTime, token);
+                                } else if (marks != null && !marks.isReplaying()) {
+                                        if (fairLanes != null) {
+                                                laneWatermarks(stream)[i].advanceIdle(token, clusterTime);
+                                        } else {
+                                                marks.advanceIdle(i, clusterTime, token);
+                                        }
+                                }
+                                if (windows) {
+                                        windowedAggregation.advanceIdle(stream, i, clusterTime, token);
+                                }
+                        }
+                } catch (MongoException e) {
+                        LOGGER.warn("Cannot move idle lane checkpoints of stream {}: {}", stream.getName(),
+                                        e.getMessage());
+                }
+        }
 
+        /**
+         * Checkpoint schemes a stream whose lanes checkpoint under their thread
+         * names does not use: the lanes' stable names of the high-water marks
+         * and of the transactional mode, and the other dispatch engine's threads.
+         */
+        private List<String> threadModeUnusedPrefixes() {
+                return List.of(LaneHighWaterMarks.LANE_PREFIX, TransactionalLaneCommitter.LANE_PREFIX,
+                                isRingBufferEngine() ? LaneHighWaterMarks.EXECUTOR_THREAD_PREFIX
+                                                : LaneHighWaterMarks.RING_THREAD_PREFIX);
+        }
+
+        /**
+         * True if every event dispatched to the stream's lanes is done, and so
+         * checkpointed under the thread that ran it.
+         */
+        private boolean isDrained(ChangeStreamContext stream) {
+                AtomicLongArray backlog = laneBacklog(stream);
+                for (int i = 0; i < nums; i++) {
+                        if (backlog.get(i) != 0) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Drop checkpoints of schemes the stream no longer uses, e.g. lane-i after
+         * turning spring.changestream.highwatermark.enabled off: nothing moves
+         * them, and the stream resumes from its earliest checkpoint. The thread
+         * names are not known before the threads ran, so unlike the seeded lanes
+         * they only replace those checkpoints once they cover every event the
+         * reader handed out, i.e. the first time the lanes drained.
+         *
+         * @return true if done, false to try again later
+         */
+        private boolean dropUnusedCheckpoints(ChangeStreamContext stream, List<String> prefixes) {
+                if (!standbyCoordinator.holdsLease()) {
+                        return false;
+                }
+                try {
+                        List<String> dropped = LaneHighWaterMarks.dropCheckpoints(stream.getResumeTokenService(),
+                                        prefixes);
+                        if (!dropped.isEmpty()) {
+                                LOGGER.info("Stream {} checkpoints under thread names, dropped checkpoints {}",
+                                                stream.getName(), dropped);
+                        }
+                        return true;
+                } catch (MongoException e) {
+                        LOGGER.warn("Cannot drop unused checkpoints of stream {}: {}", stream.getName(),
+                                        e.getMessage());
+                        return false;
+                }
+        }
+
+        /**
+         * Drop the window lanes' checkpoints and snapshots of a stream watched
+         * without windows, see WindowedAggregation.dropLanes. Like the checkpoints
+         * of dropUnusedCheckpoints, only once other checkpoints cover the
+         * stream's position.
+         *
+         * @return true if done, false to try again later
+         */
+        private boolean dropWindowLanes(ChangeStreamContext stream) {
+                if (!standbyCoordinator.holdsLease()) {
+                        return false;
+                }
+                try {
+                        List<String> dropped = windowedAggregation.dropLanes(stream);
+                        if (!dropped.isEmpty()) {
+                                LOGGER.info("Stream {} is watched without windows, dropped checkpoints {} and their "
+                                                + "snapshots", stream.getName(), dropped);
+                        }
+                        return true;
+                } catch (MongoException e) {
+                        LOGGER.warn("Cannot drop window checkpoints of stream {}: {}", stream.getName(),
+                                        e.getMessage());
+                        return false;
+                }
+        }
+
+        /**
+         * @return true if a failed handler call holds the fan-out stream's
+         *         checkpoint, see CheckpointWatermark
+         */
+        private boolean isHeld(ChangeStreamContext stream) {
+                return stream.isFanOut() && stream.getWatermark().isHeld();
+        }
+
+        /**
+         * A transactional lane that gave up on a batch halts, see
+         * TransactionalLaneCommitter. Let the other lanes commit what they have
+         * queued, then drop the stream's lanes, so the next watch starts new ones
+         * from the saved checkpoints and replays the batch. A fan-out stream whose
+         * checkpoint an event a handler gave up on holds is reopened the same way;
+         * its handlers' lanes stay, they run the replay after what they have
+         * queued.
+         *
+         * @return true if the stream is to be watched again
+         */
+        private boolean reopenHalted(ChangeStreamContext stream) throws InterruptedException {
+                if (isHeld(stream)) {
+                        metricsConfig.fanoutCheckpointHeld().labels(stream.getName()).set(1);
+                        if (stopRequested) {
+                                return false;
+                        }
+                        LOGGER.error("A handler of stream {} gave up on an event, reopening the stream from its "
+                                        + "checkpoint to replay it", stream.getName());
+                        TimeUnit.MILLISECONDS.sleep(retryDelayMillis);
+                        return true;
+                }
+                TransactionalLaneCommitter committer = committers.get(stream.getName());
+                if (stopRequested || committer == null || !committer.isHalted()) {
+                        return false;
+                }
+                if (!committer.shutdown(shutdownTimeout, TimeUnit.SECONDS)) {
+                        LOGGER.error("Transactional lanes of stream {} did not stop, not reopening it", stream.getName());
+                        return false;
+                }
+                committers.remove(stream.getName(), committer);
+                LOGGER.warn("Reopening stream {} from its checkpoints to replay the batch a halted lane gave up on",
+                                stream.getName());
+                TimeUnit.MILLISECONDS.sleep(retryDelayMillis);
+                return true;
+        }
+
+        /**
+         * Events dispatched to the stream's lane and not completed yet. Unlike
+         * LagTracker's backlog it is per stream, lanes are shared by the streams.
+         */
+        private AtomicLongArray laneBacklog(ChangeStreamContext stream) {
+                return laneBacklogs.computeIfAbsent(stream.getName(), name -> new AtomicLongArray(nums));
+        }
+
+        private void onDispatched(ChangeStreamContext stream, int lane, ChangeStreamDocument<Document> event) {
+                laneBacklog(stream).incrementAndGet(lane);
+                lagTracker.onDispatched(lane, event.getClusterTime());
+        }
+
+        private void onCompleted(ChangeStreamContext stream, int lane, BsonTimestamp clusterTime) {
+                lagTracker.onCompleted(lane, clusterTime);
+                laneBacklog(stream).decrementAndGet(lane);
+        }
+
+        private void recordRead(ChangeStreamDocument<Document> event, ChangeStreamContext stream) {
+                metricsConfig.readerEvents().labels(stream.getName()).inc();
+                if (event.getClusterTime() != null) {
+                        metricsConfig.readerLag().labels(stream.getName())
+                                        .set(System.currentTimeMillis() - event.getClusterTime().getTime() * 1000L);
+                }
+        }
+
+        private void dispatch(ChangeStreamDocument<Document> event, ChangeStreamContext stream)
+                        throws InterruptedException {
                 // special logic, make sure the same playerID event will be handled in the same
                 // thread for ever.
-                changeStream.forEach(event -> {
-                        LOGGER.info("Received event, starting handling {}", event);
+                LOGGER.info("Received event, starting handling {}", event);
+                try {
+                        int partitionKey = stream.getHandler().partitionKey(event);
+                        // Determine which executor to use based on the handler's ordering key (playerID)
+                        int executorIndex = Math.floorMod(partitionKey, nums);
+                        introspection.onDispatched(stream.getName(), partitionKey);
+                        if (stream.isFanOut()) {
+                                dispatchFanOut(event, stream, executorIndex);
+                                return;
+                        }
+
+                        LOGGER.info("evnet {}, partition key {}, executor index {}", event, partitionKey, executorIndex);
+                        if (isTransactional(stream)) {
+                                // the lane commits the event with its batch and releases the slot then
+                                stream.acquireSlot();
+                                onDispatched(stream, executorIndex, event);
+                                committerFor(stream).submit(event, executorIndex);
+                                return;
+                        }
+                        if (isRingBufferEngine()) {
+                                // the ring's capacity bounds the stream's queued events
+                                onDispatched(stream, executorIndex, event);
+                                ringFor(stream).publish(event, executorIndex);
+                                return;
+                        }
+                        if (coalesceWindowMillis > 0) {
+                                // the window's survivors free the slots of all its events
+                                stream.acquireSlot();
+                                onDispatched(stream, executorIndex, event);
+                                coalescerFor(stream).offer(event, executorIndex);
+                                return;
+                        }
+                        if (fairLanes != null) {
+                                // the lane's watermark saves the checkpoint once every earlier event of the lane is done
+                                stream.acquireSlot();
+                                onDispatched(stream, executorIndex, event);
+                                CheckpointWatermark.Entry entry = laneWatermarks(stream)[executorIndex]
+                                                .register(event.getResumeToken(), event.getClusterTime(), 1);
+                                fairLanes.submit(executorIndex, partitionKey,
+                                                () -> runFair(event, stream, executorIndex, entry));
+                                return;
+                        }
+                        // Wait for a free slot so this stream cannot crowd out the others
+                        stream.acquireSlot();
+                        onDispatched(stream, executorIndex, event);
+                        QueueWaitEvent queued = new QueueWaitEvent();
+                        queued.begin();
+                        // Submit the task to the corresponding executor
+                        CompletableFuture.runAsync(() -> {
+                                recordQueueWait(queued, event, stream, stream.getName(), executorIndex);
+                                processEvent(event, stream);
+                        }, executors[executorIndex])
+                                        .whenComplete((result, ex) -> {
+                                                stream.releaseSlot();
+                                                onCompleted(stream, executorIndex, event.getClusterTime());
+                                        })
+                                        .exceptionally(ex -> {
+                                                // Log the exception that occurred inside processEvent
+                                                LOGGER.error("Exception occurred while processing event: {}",
+                                                                event, ex);
+                                                return null; // return null since exceptionally requires a
+                                                             // return value
+                                        });
+                } catch (InterruptedException ie) {
+                        throw ie;
+                } catch (Exception e) {
+                        LOGGER.error("Non-retryable exception occurred while processing event: {}", event, e);
+                }
+        }
+
+        private boolean isTransactional() {
+                return "transactional".equalsIgnoreCase(commitMode);
+        }
+
+        private boolean isTransactional(ChangeStreamContext stream) {
+                return isTransactional() && !stream.isFanOut();
+        }
+
+        /**
+         * Streams whose events are checkpointed by processEvent, per lane; the
+         * transactional and fan-out modes keep their own checkpoints.
+         */
+        private boolean hasLaneCheckpoints(ChangeStreamContext stream) {
+                return !isTransactional(stream) && !stream.isFanOut();
+        }
+
+        /**
+         * Transactional lanes of the stream, created and started on first use.
+         * A batch's events count as handled, and free their in-flight slots, once
+         * the batch's transaction is over.
+         */
+        private TransactionalLaneCommitter committerFor(ChangeStreamContext stream) {
+                return committers.computeIfAbsent(stream.getName(),
+                                name -> new TransactionalLaneCommitter(name, nums, stream.getHandler(),
+                                                stream.getResumeTokenService(), mongoClient, txnBatchSize, txnMaxWaitMillis,
+                                                retryMaxAttempts, retryDelayMillis, standbyCoordinator::holdsLease,
+                                                metricsConfig, batchListener(stream)).start());
+        }
+
+        private TransactionalLaneCommitter.BatchListener batchListener(ChangeStreamContext stream) {
+                return new TransactionalLaneCommitter.BatchListener() {
+                        @Override
+                        public void onBatchStarted(int lane, List<ChangeStreamDocument<Document>> pending) {
+                                // the lane is stuck on the batch's head as long as the transaction is not over
+                                ChangeStreamDocument<Document> head = pending.get(0);
+                                introspection.onStarted(stream.getName(), lane, stream.getHandler().partitionKey(head),
+                                                head);
+                        }
+
+                        @Override
+                        public void onBatchDone(int lane, List<ChangeStreamDocument<Document>> batch) {
+                                introspection.onFinished(stream.getName(), lane);
+                                for (ChangeStreamDocument<Document> event : batch) {
+                                        if (stream.getHandler() == changeEventService) {
+                                                // the batch may have been given up on
+                                                readModelCache.invalidate(event);
+                                        }
+                                        metricsConfig.totalEventsHandled().inc();
+                                        metricsConfig.streamEventsHandled().labels(stream.getName()).inc();
+                                        stream.releaseSlot();
+                                        onCompleted(stream, lane, event.getClusterTime());
+                                }
+                        }
+                };
+        }
+
+        /**
+         * Coalescing stage of the stream, created on its first event. Used with
+         * the executor engine in event commit mode; fan-out streams are not
+         * coalesced. Survivors run on the lane's executor, only the last of a
+         * window saves the checkpoint.
+         */
+        private CoalescingBuffer coalescerFor(ChangeStreamContext stream) {
+                return coalescers.computeIfAbsent(stream.getName(),
+                                name -> new CoalescingBuffer(name, nums, coalesceWindowMillis, stream.getHandler(),
+                                                metricsConfig,
+                                                (lane, survivors, received) -> runCoalesced(stream, lane, survivors, received)));
+        }
+
+        private void runCoalesced(ChangeStreamContext stream, int lane, List<ChangeStreamDocument<Document>> survivors,
+                        int received) {
+                ChangeStreamDocument<Document> last = survivors.get(survivors.size() - 1);
+                CompletableFuture.runAsync(() -> {
+                        for (ChangeStreamDocument<Document> event : survivors) {
+                                try {
+                                        processEvent(event, stream, event == last);
+                                } catch (RuntimeException e) {
+                                        LOGGER.error("Exception occurred while processing event: {}", event, e);
+                                }
+                        }
+                }, executors[lane]).whenComplete((result, ex) -> {
+                        for (int i = 0; i < received; i++) {
+                                stream.releaseSlot();
+                                onCompleted(stream, lane, last.getClusterTime());
+                        }
+                });
+        }
+
+        /**
+         * Serve each lane's players from their own sub-queues in turn instead of
+         * one FIFO. Used with the executor engine in event commit mode; other
+         * modes keep their lanes.
+         */
+        private void startFairLanes() {
+                if (isRingBufferEngine() || isTransactional() || coalesceWindowMillis > 0) {
+                        LOGGER.warn("Scheduling {} needs the executor engine in event commit mode without "
+                                        + "coalescing, lanes stay FIFO", scheduling);
+                        return;
+                }
+                if (windowedAggregation.isEnabled()) {
+                        // window snapshots assume a lane applies its events in stream order
+                        LOGGER.warn("Scheduling {} does not work with windowed aggregation, lanes stay FIFO", scheduling);
+                        return;
+                }
+                KeyFairLanes.Policy policy = KeyFairLanes.Policy.fromString(scheduling);
+                long quantum = policy == KeyFairLanes.Policy.DEFICIT ? TimeUnit.MICROSECONDS.toNanos(fairQuantumMicros)
+                                : fairQuantum;
+                fairLanes = new KeyFairLanes("fair-lane", nums, policy, quantum, fairLargeBacklog, metricsConfig).start();
+                introspection.watchFairLanes(fairLanes);
+                LOGGER.info("Lanes serve their keys by {} with quantum {}", policy, quantum);
+        }
+
+        /**
+         * Checkpoints of the stream's lanes when lanes run their events out of
+         * stream order: a lane's checkpoint only passes events that are done.
+         */
+        private CheckpointWatermark[] laneWatermarks(ChangeStreamContext stream) {
+                return laneWatermarks.computeIfAbsent(stream.getName(), name -> {
+                        CheckpointWatermark[] watermarks = new CheckpointWatermark[nums];
+                        for (int i = 0; i < nums; i++) {
+                                watermarks[i] = new CheckpointWatermark(stream.getResumeTokenService(),
+                                                LaneHighWaterMarks.laneName(i));
+                        }
+                        return watermarks;
+                });
+        }
+
+        private void runFair(ChangeStreamDocument<Document> event, ChangeStreamContext stream, int lane,
+                        CheckpointWatermark.Entry entry) {
+                try {
+                        processEvent(event, stream, false);
+                } catch (RuntimeException e) {
+                        LOGGER.error("Exception occurred while processing event: {}", event, e);
+                } finally {
+                        if (standbyCoordinator.holdsLease()) {
+                                laneWatermarks(stream)[lane].complete(entry);
+                        } else {
+                                // the checkpoint stays where the new lease owner starts
+                                laneWatermarks(stream)[lane].fail(entry);
+                        }
+                        stream.releaseSlot();
+                        onCompleted(stream, lane, event.getClusterTime());
+                }
+        }
+
+        private boolean isRingBufferEngine() {
+                return "ringbuffer".equalsIgnoreCase(dispatchEngine);
+        }
+
+        /**
+         * Ring buffer of the stream, created on its first event. Its producer is
+         * the stream's reader thread and it has one consumer per lane.
+         */
+        private EventRingBuffer<ChangeStreamDocument<Document>> ringFor(ChangeStreamContext stream) {
+                return rings.computeIfAbsent(stream.getName(),
+                                name -> new EventRingBuffer<ChangeStreamDocument<Document>>("ring-" + name, ringSize, nums,
+                                                EventRingBuffer.WaitStrategy.fromString(ringWaitStrategy),
+                                                (event, lane) -> {
+                                                        try {
+                                                                processEvent(event, stream);
+                                                        } finally {
+                                                                onCompleted(stream, lane, event.getClusterTime());
+                                                        }
+                                                }).start());
+        }
+
+        /**
+         * Hand the decoded event to every handler of the stream. Each handler has
+         * its own lanes and ordering key, so a slow or failing handler does not
+         * hold back the others; the stream's checkpoint only moves past the event
+         * once all handlers are done with it. A handler that still fails after
+         * its retries holds the checkpoint before the event, so a restart replays
+         * it.
+         */
+        private void dispatchFanOut(ChangeStreamDocument<Document> event, ChangeStreamContext stream, int lagLane)
+                        throws InterruptedException {
+                Map<String, ChangeEventServiceInterface> handlers = stream.getHandlers();
+                stream.acquireSlot();
+                CheckpointWatermark.Entry entry = stream.getWatermark().register(event.getResumeToken(),
+                                event.getClusterTime(), handlers.size());
+                lagTracker.onDispatched(lagLane, event.getClusterTime());
+                metricsConfig.totalEventsHandled().inc();
+                metricsConfig.streamEventsHandled().labels(stream.getName()).inc();
+                AtomicBoolean succeeded = new AtomicBoolean(true);
+                AtomicLong slowestNanos = new AtomicLong(); // the event's processing time is its slowest handler's
+
+                for (Map.Entry<String, ChangeEventServiceInterface> handlerEntry : handlers.entrySet()) {
+                        String handlerName = handlerEntry.getKey();
+                        ChangeEventServiceInterface handler = handlerEntry.getValue();
+                        CompletableFuture<Integer> handled;
                         try {
-                                Document fullDocument = event.getFullDocument();
-                                int playerID = fullDocument.getInteger("playerID");
-                                // Determine which executor to use based on playerID
-                                int executorIndex = playerID % nums;
-
-                                LOGGER.info("evnet {}, playerID {}, executor index {}", event, playerID, executorIndex);
-                                // Submit the task to the corresponding executor
-                                CompletableFuture.runAsync(() -> processEvent(event), executors[executorIndex])
-                                                .exceptionally(ex -> {
-                                                        // Log the exception that occurred inside processEvent
-                                                        LOGGER.error("Exception occurred while processing event: {}",
-                                                                        event, ex);
-                                                        return null; // return null since exceptionally requires a
-                                                                     // return value
-                                                });
+                                int laneIndex = Math.floorMod(handler.partitionKey(event), nums);
+                                ExecutorService lane = handlerLanes(handlerName)[laneIndex];
+                                QueueWaitEvent queued = new QueueWaitEvent();
+                                queued.begin();
+                                handled = CompletableFuture.supplyAsync(() -> {
+                                        recordQueueWait(queued, event, stream, handlerName, laneIndex);
+                                        long startNanos = System.nanoTime();
+                                        try {
+                                                return processHandler(event, stream, handlerName, handler, laneIndex);
+                                        } finally {
+                                                slowestNanos.accumulateAndGet(System.nanoTime() - startNanos, Math::max);
+                                        }
+                                }, lane);
                         } catch (Exception e) {
-                                LOGGER.error("Non-retryable exception occurred while processing event: {}", event, e);
+                                handled = CompletableFuture.failedFuture(e);
+                        }
+                        handled.whenComplete((ret, ex) -> {
+                                if (ex != null) {
+                                        metricsConfig.handlerFailures().labels(handlerName).inc();
+                                        LOGGER.error("Handler {} failed on event: {}", handlerName, event, ex);
+                                }
+                                if (ex != null || ret != 0) {
+                                        succeeded.set(false);
+                                }
+                                boolean last;
+                                if (ex == null && standbyCoordinator.holdsLease()) {
+                                        last = stream.getWatermark().complete(entry);
+                                } else {
+                                        // not applied, or the new lease owner starts here: the checkpoint stays before it
+                                        last = stream.getWatermark().fail(entry);
+                                }
+                                if (last) {
+                                        onFanOutDone(event, stream, lagLane, succeeded.get(), slowestNanos.get());
+                                }
+                        });
+                }
+        }
+
+        private void onFanOutDone(ChangeStreamDocument<Document> event, ChangeStreamContext stream, int lagLane,
+                        boolean succeeded, long processNanos) {
+                if (succeeded) {
+                        metricsConfig.totalEventsHandledSuccessfully().inc();
+                        if (!isHeld(stream)) {
+                                metricsConfig.fanoutCheckpointHeld().labels(stream.getName()).set(0);
+                        }
+                }
+                double durationSeconds = processNanos / 1_000_000_000.0;
+                metricsConfig.eventProcessDuration().observe(durationSeconds);
+                metricsConfig.p99ProcessingTime().observe(TimeUnit.NANOSECONDS.toMillis(processNanos));
+                metricsConfig.streamEventProcessDuration().labels(stream.getName()).observe(durationSeconds);
+                stream.releaseSlot();
+                lagTracker.onCompleted(lagLane, event.getClusterTime());
+        }
+
+        private int processHandler(ChangeStreamDocument<Document> event, ChangeStreamContext stream,
+                        String handlerName, ChangeEventServiceInterface handler, int partition) {
+                if (introspection.isEnabled()) {
+                        introspection.onStarted(handlerName, partition, handler.partitionKey(event), event);
+                }
+                try {
+                        return handleEvent(event, stream, handlerName, handler, partition);
+                } finally {
+                        introspection.onFinished(handlerName, partition);
+                }
+        }
+
+        private int handleEvent(ChangeStreamDocument<Document> event, ChangeStreamContext stream,
+                        String handlerName, ChangeEventServiceInterface handler, int partition) {
+                String currentThreadName = Thread.currentThread().getName();
+                long startNanos = System.nanoTime();
+                tpsCalculator.recordEvent(currentThreadName);
+                if (event.getClusterTime() != null) {
+                        metricsConfig.eventLagPerThread().labels(currentThreadName)
+                                        .set(System.currentTimeMillis() - event.getClusterTime().getTime() * 1000L);
+                }
+                ProcessChangeEvent processed = new ProcessChangeEvent();
+                processed.begin();
+                int ret = processChangeWithRetry(event, stream, handlerName, handler);
+                processed.end();
+                if (processed.shouldCommit()) {
+                        describe(processed, event, stream);
+                        processed.partition = partition;
+                        processed.handler = handlerName;
+                        processed.result = ret;
+                        processed.commit();
+                }
+                metricsConfig.handlerProcessDuration().labels(handlerName)
+                                .observe((System.nanoTime() - startNanos) / 1_000_000_000.0);
+                metricsConfig.tpsPerThread().labels(currentThreadName)
+                                .set(tpsCalculator.calculateTps(currentThreadName));
+                startupTracker.onEventProcessed(System.nanoTime() - startNanos);
+                if (ret != 0) {
+                        metricsConfig.handlerFailures().labels(handlerName).inc();
+                } else if (handler == changeEventService) {
+                        readModelCache.onWritten(event);
+                }
+                if (shadowRunner.isEnabled() && handler == changeEventService) {
+                        shadowRunner.offer(event, partition, ret, System.nanoTime() - startNanos);
+                }
+                return ret;
+        }
+
+        /**
+         * Apply the event with the handler, retrying the network and command
+         * errors the driver does not retry itself, up to
+         * spring.mongodb.retry.maxattempts attempts spring.mongodb.retry.initialdelayms
+         * apart, on the calling lane. Every failed attempt is recorded as a
+         * RetryAttempt event. The lease is checked before every attempt.
+         */
+        private int processChangeWithRetry(ChangeStreamDocument<Document> event, ChangeStreamContext stream,
+                        String handlerName, ChangeEventServiceInterface handler) {
+                for (int attempt = 1;; attempt++) {
+                        checkLease(event, stream);
+                        try {
+                                return handler.processChange(event);
+                        } catch (MongoException e) {
+                                if (!isRetryable(e)) {
+                                        throw e;
+                                }
+                                RetryAttemptEvent retry = new RetryAttemptEvent();
+                                if (retry.shouldCommit()) {
+                                        describe(retry, event, stream);
+                                        retry.operation = "processChange " + handlerName;
+                                        retry.attempt = attempt;
+                                        retry.exception = e.getClass().getName();
+                                        retry.message = e.getMessage();
+                                        retry.commit();
+                                }
+                                if (attempt >= retryMaxAttempts) {
+                                        throw e;
+                                }
+                                LOGGER.warn("Handler {} failed on event {} (attempt {}/{}): {}", handlerName,
+                                                event.getResumeToken(), attempt, retryMaxAttempts, e.getMessage());
+                                try {
+                                        TimeUnit.MILLISECONDS.sleep(retryDelayMillis);
+                                } catch (InterruptedException ie) {
+                                        Thread.currentThread().interrupt();
+                                        throw e;
+                                }
+                        }
+                }
+        }
+
+        private static boolean isRetryable(MongoException e) {
+                return e instanceof MongoTimeoutException || e instanceof MongoSocketReadException
+                                || e instanceof MongoSocketWriteException || e instanceof MongoCommandException
+                                || e instanceof MongoWriteConcernException;
+        }
+
+        private void recordQueueWait(QueueWaitEvent queued, ChangeStreamDocument<Document> event,
+                        ChangeStreamContext stream, String handlerName, int partition) {
+                queued.end();
+                if (queued.shouldCommit()) {
+                        describe(queued, event, stream);
+                        queued.partition = partition;
+                        queued.handler = handlerName;
+                        queued.commit();
+                }
+        }
+
+        /**
+         * Fill the fields every pipeline event carries. Only called for events
+         * that will be committed, so disabled or fast stages cost no lookups.
+         */
+        private void describe(PipelineEvent pipelineEvent, ChangeStreamDocument<Document> event,
+                        ChangeStreamContext stream) {
+                pipelineEvent.stream = stream.getName();
+                Document fullDocument = event.getFullDocument();
+                try {
+                        if (fullDocument != null && fullDocument.getInteger("playerID") != null) {
+                                pipelineEvent.playerID = fullDocument.getInteger("playerID");
+                        }
+                        pipelineEvent.partition = Math.floorMod(stream.getHandler().partitionKey(event), nums);
+                } catch (RuntimeException e) {
+                        // no valid playerID or ordering key, keep the defaults
+                }
+        }
+
+        private ExecutorService[] handlerLanes(String handlerName) {
+                return handlerExecutors.computeIfAbsent(handlerName, name -> {
+                        AtomicInteger laneCounter = new AtomicInteger();
+                        ThreadFactory factory = runnable -> {
+                                Thread thread = new Thread(runnable);
+                                thread.setDaemon(true);
+                                thread.setName(name + "-" + laneCounter.getAndIncrement());
+                                return thread;
+                        };
+                        ExecutorService[] lanes = new ExecutorService[nums];
+                        for (int i = 0; i < nums; i++) {
+                                lanes[i] = Executors.newSingleThreadExecutor(factory);
                         }
+                        return lanes;
                 });
         }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+package com.example.demo.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EventRingBuffer hands events from one producer (a change stream reader) to
+ * a fixed set of lane consumers without locks or per-event allocation.
+ *
+ * Slots are preallocated and reused. The producer fills the next slot and
+ * publishes its sequence; every consumer walks all published sequences, runs
+ * the slots of its own lane and then publishes how far it got. The producer
+ * only reuses a slot once every consumer has passed it, so the ring size
+ * bounds how far the fastest lane can run ahead of the slowest one.
+ *
+ * @param <T> event type
+ */
+public class EventRingBuffer<T> {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(EventRingBuffer.class);
+        // consumer sequences are spread over separate cache lines
+        private static final int PAD = 16;
+        private static final int MAX_ATTEMPT = 1_000;
+
+        /**
+         * Called on a lane's consumer thread for each event of that lane, in
+         * publish order.
+         */
+        public interface EventHandler<T> {
+                void onEvent(T event, int lane);
+        }
+
+        /**
+         * What an idle thread does while it waits for the other side.
+         */
+        public enum WaitStrategy {
+                BUSY_SPIN, // lowest latency, needs a free core for every ring thread
+                YIELD, // spins briefly, then yields the core
+                PARK; // spins and yields briefly, then parks for PARK_NANOS
+
+                private static final int SPIN_TRIES = 100;
+                private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+                public static WaitStrategy fromString(String value) {
+                        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+                }
+
+                void idle(int attempt) {
+                        if (this == BUSY_SPIN || attempt < SPIN_TRIES) {
+                                Thread.onSpinWait();
+                        } else if (this == YIELD || attempt < 2 * SPIN_TRIES) {
+                                Thread.yield();
+                        } else {
+                                LockSupport.parkNanos(PARK_NANOS);
+                        }
+                }
+        }
+
+        private static final class Slot<T> {
+                private T event;
+                private int lane;
+        }
+
+        private final String name;
+        private final Slot<T>[] slots;
+        private final int mask;
+        private final int lanes;
+        private final WaitStrategy waitStrategy;
+        private final EventHandler<T> handler;
+        private final AtomicLong cursor = new AtomicLong(-1); // last published sequence
+        private final AtomicLongArray consumerSequences; // last sequence each lane has passed
+        private final Thread[] consumers;
+        private long nextSequence; // producer only
+        private long cachedMinConsumerSequence = -1; // producer only
+        private volatile boolean running = true;
+
+        /**
+         * @param name         thread name prefix
+         * @param size         number of slots, rounded up to a power of two
+         * @param lanes        number of consumer threads
+         * @param waitStrategy
+         * @param handler
+         */
+        @SuppressWarnings("unchecked")
+        public EventRingBuffer(String name, int size, int lanes, WaitStrategy waitStrategy, EventHandler<T> handler) {
+                int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+                this.name = name;
+                this.slots = new Slot[capacity];
+                for (int i = 0; i < capacity; i++) {
+                        slots[i] = new Slot<>();
+                }
+                this.mask = capacity - 1;
+                this.lanes = lanes;
+                this.waitStrategy = waitStrategy;
+                this.handler = handler;
+                this.consumerSequences = new AtomicLongArray(lanes * PAD);
+                for (int i = 0; i < lanes; i++) {
+                        consumerSequences.set(i * PAD, -1);
+                }
+                this.consumers = new Thread[lanes];
+                for (int i = 0; i < lanes; i++) {
+                        int lane = i;
+                        consumers[i] = new Thread(() -> consume(lane));
+                        consumers[i].setDaemon(true);
+                        consumers[i].setName(name + "-" + i);
+                }
+        }
+
+        public EventRingBuffer<T> start() {
+                for (Thread consumer : consumers) {
+                        consumer.start();
+                }
+                return this;
+        }
+
+        /**
+         * Publish one event for the given lane. Must always be called from the same
+         * thread. Waits while the ring is full.
+         */
+        public void publish(T event, int lane) throws InterruptedException {
+                long sequence = nextSequence;
+                long wrapPoint = sequence - slots.length;
+                int attempt = 0;
+                while (cachedMinConsumerSequence < wrapPoint) {
+                        cachedMinConsumerSequence = minConsumerSequence();
+                        if (cachedMinConsumerSequence >= wrapPoint) {
+                                break;
+                        }
+                        if (Thread.interrupted()) {
+                                throw new InterruptedException();
+                        }
+                        waitStrategy.idle(attempt);
+                        attempt = Math.min(attempt + 1, MAX_ATTEMPT);
+                }
+                Slot<T> slot = slots[(int) (sequence & mask)];
+                slot.event = event;
+                slot.lane = lane;
+                // release store: the slot's fields are visible to any consumer that reads the cursor
+                cursor.setRelease(sequence);
+                nextSequence = sequence + 1;
+        }
+
+        private long minConsumerSequence() {
+                long min = Long.MAX_VALUE;
+                for (int i = 0; i < lanes; i++) {
+                        min = Math.min(min, consumerSequences.getAcquire(i * PAD));
+                }
+                return min;
+        }
+
+        private void consume(int lane) {
+                long next = 0;
+                int attempt = 0;
+                while (true) {
+                        long available = cursor.getAcquire();
+                        if (available < next) {
+                                if (!running) {
+                                        return;
+                                }
+                                waitStrategy.idle(attempt);
+                                attempt = Math.min(attempt + 1, MAX_ATTEMPT);
+                                continue;
+                        }
+                        attempt = 0;
+                        for (long sequence = next; sequence <= available; sequence++) {
+                                Slot<T> slot = slots[(int) (sequence & mask)];
+                                if (slot.lane == lane) {
+                                        T event = slot.event;
+                                        slot.event = null; // do not keep the event reachable until the slot is reused
+                                        try {
+                                                handler.onEvent(event, lane);
+                                        } catch (Exception e) {
+                                                LOGGER.error("Ring {} lane {} failed on event: {}", name, lane, event, e);
+                                        }
+                                }
+                        }
+                        consumerSequences.setRelease(lane * PAD, available);
+                        next = available + 1;
+                }
+        }
+
+        /**
+         * Events published but not yet passed by the slowest lane.
+         */
+        public long backlog() {
+                return cursor.getAcquire() - minConsumerSequence();
+        }
+
+        public int capacity() {
+                return slots.length;
+        }
+
+        /**
+         * Let the consumers drain what was published and stop them.
+         *
+         * @return true if every consumer stopped within the timeout
+         */
+        public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+                running = false;
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                for (Thread consumer : consumers) {
+                        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remainingMillis > 0) {
+                                consumer.join(remainingMillis);
+                        }
+                        if (consumer.isAlive()) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+}
@@ -0,0 +1,340 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * IndexManager declares the indexes the hot queries rely on, creates the
+ * missing ones at startup, then explains every hot query shape and refuses to
+ * start (or only logs, depending on spring.indexes.guard) when one of them
+ * would scan a whole collection. Index usage ($indexStats) is exported
+ * periodically.
+ */
+@Service
+public class IndexManager {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
+        private final MongoClient mongoClient;
+        private final MongoCollection<Document> resumeTokenCollection;
+        private final MongoCollection<Document> userDailyTxnCollection;
+        private final MongoCollection<Document> backfillCheckpointCollection;
+        private final MongoCollection<Document> archiveCollection;
+        private final PrometheusMetricsConfig metricsConfig;
+        private ScheduledExecutorService statsSampler;
+        private volatile boolean dailyIndexUnique;
+
+        @Value("${spring.indexes.create:true}") // false only verifies the declared indexes
+        private boolean createIndexes;
+
+        @Value("${spring.indexes.guard:warn}") // warn, fail or off
+        private String guard;
+
+        @Value("${spring.indexes.statsintervalms:60000}") // 0 disables $indexStats sampling
+        private long statsIntervalMillis;
+
+        @Value("${spring.archive.enabled:false}") // the archival run's indexes are only declared when it runs
+        private boolean archiveEnabled;
+
+        @Value("${spring.archive.mode:archive}") // archive or rollup
+        private String archiveMode;
+
+        /**
+         * One required index.
+         */
+        static final class IndexSpec {
+                private final MongoCollection<Document> collection;
+                private final Bson keys;
+                private final IndexOptions options;
+
+                IndexSpec(MongoCollection<Document> collection, Bson keys, IndexOptions options) {
+                        this.collection = collection;
+                        this.keys = keys;
+                        this.options = options;
+                }
+        }
+
+        /**
+         * One hot query shape and how to explain it.
+         */
+        static final class QueryShape {
+                private final String name;
+                private final MongoCollection<Document> collection;
+                private final Supplier<Document> explain;
+
+                QueryShape(String name, MongoCollection<Document> collection, Supplier<Document> explain) {
+                        this.name = name;
+                        this.collection = collection;
+                        this.explain = explain;
+                }
+        }
+
+        public IndexManager(MongoClient mongoClient,
+                        @Qualifier("resumeTokenCollection") MongoCollection<Document> resumeTokenCollection,
+                        @Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection,
+                        @Qualifier("backfillCheckpointCollection") MongoCollection<Document> backfillCheckpointCollection,
+                        @Qualifier("userDailyTxnArchiveCollection") MongoCollection<Document> archiveCollection,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.mongoClient = mongoClient;
+                this.resumeTokenCollection = resumeTokenCollection;
+                this.userDailyTxnCollection = userDailyTxnCollection;
+                this.backfillCheckpointCollection = backfillCheckpointCollection;
+                this.archiveCollection = archiveCollection;
+                this.metricsConfig = metricsConfig;
+        }
+
+        @PostConstruct
+        public void init() {
+                if ("off".equalsIgnoreCase(guard) && !createIndexes) {
+                        dailyIndexUnique = confirmDailyIndex();
+                        return;
+                }
+                List<String> problems = new ArrayList<>(ensureIndexes());
+                dailyIndexUnique = confirmDailyIndex();
+                if (!"off".equalsIgnoreCase(guard)) {
+                        problems.addAll(checkQueryPlans());
+                }
+                if (!problems.isEmpty()) {
+                        if ("fail".equalsIgnoreCase(guard)) {
+                                throw new IllegalStateException("Refusing to start: " + String.join("; ", problems));
+                        }
+                        LOGGER.error("Index check failed: {}", String.join("; ", problems));
+                }
+                if (statsIntervalMillis > 0) {
+                        statsSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                                Thread thread = new Thread(runnable);
+                                thread.setDaemon(true);
+                                thread.setName("index-stats");
+                                return thread;
+                        });
+                        statsSampler.scheduleAtFixedRate(this::sampleIndexStats, 0, statsIntervalMillis,
+                                        TimeUnit.MILLISECONDS);
+                }
+        }
+
+        /**
+         * @return true if userDailyTxn was seen with its unique (playerID,
+         *         gamingDate) index at startup, whatever the guard; the guarded
+         *         $push of ChangeEventService relies on it
+         */
+        public boolean hasUniqueDailyIndex() {
+                return dailyIndexUnique;
+        }
+
+        private boolean confirmDailyIndex() {
+                Document keys = new Document("playerID", 1).append("gamingDate", 1);
+                try {
+                        for (Document index : userDailyTxnCollection.listIndexes().into(new ArrayList<>())) {
+                                if (keys.equals(index.get("key", Document.class))
+                                                && Boolean.TRUE.equals(index.getBoolean("unique"))) {
+                                        return true;
+                                }
+                        }
+                } catch (MongoException e) {
+                        LOGGER.warn("Cannot list the indexes of {}: {}",
+                                        userDailyTxnCollection.getNamespace().getCollectionName(), e.getMessage());
+                        return false;
+                }
+                LOGGER.warn("No unique (playerID, gamingDate) index on {}, new transactions take the update pipeline",
+                                userDailyTxnCollection.getNamespace().getCollectionName());
+                return false;
+        }
+
+        List<IndexSpec> requiredIndexes() {
+                // background is ignored since MongoDB 4.2 (builds only lock briefly), it keeps
+                // older servers from blocking the collection during the build
+                List<IndexSpec> indexes = new ArrayList<>(List.of(
+                                // saveResumeToken: upsert by threadID, or namespace + threadID
+                                new IndexSpec(resumeTokenCollection, Indexes.ascending("threadID", "namespace"),
+                                                new IndexOptions().background(true)),
+                                // getResumeToken: earliest date within a namespace (family)
+                                new IndexSpec(resumeTokenCollection, Indexes.ascending("namespace", "date"),
+                                                new IndexOptions().background(true)),
+                                // getResumeToken for the default namespace: earliest date overall
+                                new IndexSpec(resumeTokenCollection, Indexes.ascending("date"),
+                                                new IndexOptions().background(true)),
+                                // processChange upsert and the rebuild's $merge
+                                new IndexSpec(userDailyTxnCollection, Indexes.ascending("playerID", "gamingDate"),
+                                                new IndexOptions().unique(true).background(true)),
+                                // backfill: open ranges of a run
+                                new IndexSpec(backfillCheckpointCollection, Indexes.ascending("run", "done"),
+                                                new IndexOptions().background(true))));
+                if (archiveEnabled) {
+                        boolean rollup = "rollup".equalsIgnoreCase(archiveMode);
+                        // archival: the days before the cutoff, oldest first
+                        indexes.add(new IndexSpec(userDailyTxnCollection, Indexes.ascending("gamingDate"),
+                                        new IndexOptions().background(true)));
+                        // archival upserts: one archived day, or one rolled up month, per player
+                        indexes.add(new IndexSpec(archiveCollection,
+                                        Indexes.ascending("playerID", rollup ? "month" : "gamingDate"),
+                                        new IndexOptions().unique(true).background(true)));
+                }
+                return indexes;
+        }
+
+        List<QueryShape> hotQueries() {
+                Bson threadFilter = Filters.eq("threadID", "lane-0");
+                Bson namespacedThreadFilter = Filters.and(Filters.eq("namespace", "default"),
+                                Filters.eq("threadID", "lane-0"));
+                Document dailyFilter = new Document("playerID", 0).append("gamingDate", new Date(0));
+                return List.of(
+                                new QueryShape("saveResumeToken", resumeTokenCollection,
+                                                () -> explainUpdate(resumeTokenCollection, threadFilter)),
+                                new QueryShape("saveResumeToken(namespace)", resumeTokenCollection,
+                                                () -> explainUpdate(resumeTokenCollection, namespacedThreadFilter)),
+                                new QueryShape("getResumeToken", resumeTokenCollection,
+                                                () -> resumeTokenCollection.find().sort(Indexes.ascending("date"))
+                                                                .limit(1).explain(ExplainVerbosity.QUERY_PLANNER)),
+                                new QueryShape("getResumeToken(namespace)", resumeTokenCollection,
+                                                () -> resumeTokenCollection.find(Filters.eq("namespace", "default"))
+                                                                .sort(Indexes.ascending("date")).limit(1)
+                                                                .explain(ExplainVerbosity.QUERY_PLANNER)),
+                                new QueryShape("processChange", userDailyTxnCollection,
+                                                () -> explainUpdate(userDailyTxnCollection, dailyFilter)));
+        }
+
+        private List<String> ensureIndexes() {
+                List<String> problems = new ArrayList<>();
+                for (IndexSpec spec : requiredIndexes()) {
+                        String collection = spec.collection.getNamespace().getCollectionName();
+                        try {
+                                if (createIndexes) {
+                                        // a no-op when an identical index exists
+                                        String name = spec.collection.createIndex(spec.keys, spec.options);
+                                        LOGGER.info("Index {} on {} is in place", name, collection);
+                                } else if (!hasIndex(spec)) {
+                                        problems.add("missing index " + spec.keys + " on " + collection);
+                                }
+                        } catch (MongoException e) {
+                                // e.g. duplicates prevent the unique index, or an index with other options exists
+                                problems.add("cannot create index " + spec.keys + " on " + collection + ": "
+                                                + e.getMessage());
+                        }
+                }
+                return problems;
+        }
+
+        private boolean hasIndex(IndexSpec spec) {
+                Document keys = Document.parse(spec.keys.toBsonDocument().toJson());
+                for (Document index : spec.collection.listIndexes()) {
+                        if (keys.equals(index.get("key", Document.class))) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        private List<String> checkQueryPlans() {
+                List<String> problems = new ArrayList<>();
+                for (QueryShape shape : hotQueries()) {
+                        String collection = shape.collection.getNamespace().getCollectionName();
+                        boolean collectionScan;
+                        try {
+                                collectionScan = containsStage(shape.explain.get(), "COLLSCAN");
+                        } catch (MongoException e) {
+                                LOGGER.warn("Cannot explain {} on {}: {}", shape.name, collection, e.getMessage());
+                                continue;
+                        }
+                        metricsConfig.queryPlanCollectionScan().labels(collection, shape.name).set(collectionScan ? 1 : 0);
+                        if (collectionScan) {
+                                problems.add(shape.name + " scans the whole " + collection + " collection");
+                        } else {
+                                LOGGER.info("Query {} on {} uses an index", shape.name, collection);
+                        }
+                }
+                return problems;
+        }
+
+        private Document explainUpdate(MongoCollection<Document> collection, Bson filter) {
+                Document update = new Document("q", filter.toBsonDocument())
+                                .append("u", new Document("$set", new Document("lastModified", new Date())))
+                                .append("upsert", true);
+                Document command = new Document("explain", new Document("update",
+                                collection.getNamespace().getCollectionName()).append("updates", List.of(update)))
+                                .append("verbosity", "queryPlanner");
+                return mongoClient.getDatabase(collection.getNamespace().getDatabaseName()).runCommand(command);
+        }
+
+        /**
+         * Search the winning plan of an explain output for a stage, through every
+         * nesting (sharded plans, SBE query plans, inputStage/inputStages).
+         * Rejected plans, also those of each shard, are never run and not
+         * searched.
+         */
+        public static boolean containsStage(Document explain, String stage) {
+                Document queryPlanner = explain.get("queryPlanner", Document.class);
+                Object winningPlan = queryPlanner != null ? queryPlanner.get("winningPlan") : null;
+                return winningPlan != null && planContains(winningPlan, stage);
+        }
+
+        private static boolean planContains(Object plan, String stage) {
+                if (plan instanceof Document document) {
+                        if (stage.equals(document.get("stage"))) {
+                                return true;
+                        }
+                        for (Map.Entry<String, Object> field : document.entrySet()) {
+                                if (!"rejectedPlans".equals(field.getKey()) && planContains(field.getValue(), stage)) {
+                                        return true;
+                                }
+                        }
+                } else if (plan instanceof List<?> list) {
+                        for (Object value : list) {
+                                if (planContains(value, stage)) {
+                                        return true;
+                                }
+                        }
+                }
+                return false;
+        }
+
+        void sampleIndexStats() {
+                for (MongoCollection<Document> collection : List.of(resumeTokenCollection, userDailyTxnCollection,
+                                backfillCheckpointCollection)) {
+                        String name = collection.getNamespace().getCollectionName();
+                        try {
+                                for (Document stats : collection.aggregate(List.of(new Document("$indexStats",
+                                                new Document())))) {
+                                        Document accesses = stats.get("accesses", Document.class);
+                                        if (accesses != null) {
+                                                metricsConfig.indexAccesses().labels(name, stats.getString("name"))
+                                                                .set(accesses.get("ops", Number.class).doubleValue());
+                                        }
+                                }
+                        } catch (MongoException e) {
+                                LOGGER.warn("Failed to read $indexStats of {}: {}", name, e.getMessage());
+                        }
+                }
+        }
+
+        @PreDestroy
+        public void shutdown() {
+                if (statsSampler != null) {
+                        statsSampler.shutdownNow();
+                }
+        }
+}
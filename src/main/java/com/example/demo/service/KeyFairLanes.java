@@ -0,0 +1,262 @@
+package com.example.demo.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+
+/**
+ * KeyFairLanes replaces the lanes' single FIFO with one sub-queue per ordering
+ * key (playerID). Each lane's thread serves the keys with queued events in
+ * turn, so a whale player's backlog only delays its own events, not every
+ * player that hashes to the same lane. A key's events still run one after the
+ * other in the order they were submitted.
+ *
+ * ROUND_ROBIN gives every key up to quantum events per turn. DEFICIT (deficit
+ * round robin) gives every key quantum nanoseconds of handler time per turn
+ * and charges each event its measured duration, so a key whose events are
+ * slow gets fewer of them per turn; an overdrawn key sits out turns until its
+ * deficit is paid back.
+ */
+public class KeyFairLanes {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(KeyFairLanes.class);
+
+        public enum Policy {
+                ROUND_ROBIN, // quantum is events per turn
+                DEFICIT; // quantum is handler nanoseconds per turn
+
+                public static Policy fromString(String value) {
+                        String normalized = value.trim().toUpperCase().replace('-', '_');
+                        return "DRR".equals(normalized) ? DEFICIT
+                                        : "ROUNDROBIN".equals(normalized) ? ROUND_ROBIN : valueOf(normalized);
+                }
+        }
+
+        private record Task(Runnable runnable, long enqueuedNanos, boolean large) {
+        }
+
+        private static final class KeyQueue {
+                private final int key;
+                private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+                private long deficit; // what the key may still spend in its current turn
+
+                private KeyQueue(int key) {
+                        this.key = key;
+                }
+        }
+
+        private static final class Lane {
+                private final ReentrantLock lock = new ReentrantLock();
+                private final Condition notEmpty = lock.newCondition();
+                private final Map<Integer, KeyQueue> queues = new HashMap<>(); // keys with queued events
+                private final ArrayDeque<KeyQueue> turns = new ArrayDeque<>(); // the same keys, head is served
+                private final Gauge.Child activeKeys; // set under the lock, so the last write is the current count
+
+                private Lane(Gauge.Child activeKeys) {
+                        this.activeKeys = activeKeys;
+                }
+        }
+
+        private final String name;
+        private final Policy policy;
+        private final long quantum;
+        private final int largeBacklog;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final LongSupplier nanoClock;
+        private final Summary.Child smallKeyWait;
+        private final Summary.Child largeKeyWait;
+        private final Lane[] lanes;
+        private final Thread[] workers;
+        private volatile boolean running = true;
+
+        /**
+         * @param name          thread name prefix
+         * @param lanes
+         * @param policy
+         * @param quantum       events (ROUND_ROBIN) or nanoseconds (DEFICIT) a
+         *                      key may use per turn
+         * @param largeBacklog  an event joining at least this many queued events
+         *                      of its key is counted as a large key's event
+         * @param metricsConfig
+         */
+        public KeyFairLanes(String name, int lanes, Policy policy, long quantum, int largeBacklog,
+                        PrometheusMetricsConfig metricsConfig) {
+                this(name, lanes, policy, quantum, largeBacklog, metricsConfig, System::nanoTime);
+        }
+
+        /**
+         * @param nanoClock time source of the queue waits and of the handler time
+         *                  DEFICIT charges, System.nanoTime outside of tests
+         */
+        public KeyFairLanes(String name, int lanes, Policy policy, long quantum, int largeBacklog,
+                        PrometheusMetricsConfig metricsConfig, LongSupplier nanoClock) {
+                this.name = name;
+                this.policy = policy;
+                this.quantum = Math.max(1, quantum);
+                this.largeBacklog = largeBacklog;
+                this.metricsConfig = metricsConfig;
+                this.nanoClock = nanoClock;
+                this.smallKeyWait = metricsConfig.fairLaneQueueWait().labels("small");
+                this.largeKeyWait = metricsConfig.fairLaneQueueWait().labels("large");
+                this.lanes = new Lane[lanes];
+                this.workers = new Thread[lanes];
+                for (int i = 0; i < lanes; i++) {
+                        int lane = i;
+                        this.lanes[i] = new Lane(metricsConfig.fairLaneActiveKeys().labels(String.valueOf(i)));
+                        workers[i] = new Thread(() -> serve(lane));
+                        workers[i].setDaemon(true);
+                        workers[i].setName(name + "-" + i);
+                }
+        }
+
+        public KeyFairLanes start() {
+                for (Thread worker : workers) {
+                        worker.start();
+                }
+                return this;
+        }
+
+        /**
+         * Queue the task behind the earlier tasks of its key. Never blocks on the
+         * lane's thread for longer than a queue operation.
+         */
+        public void submit(int laneIndex, int key, Runnable task) {
+                Lane lane = lanes[laneIndex];
+                int backlog;
+                lane.lock.lock();
+                try {
+                        KeyQueue queue = lane.queues.get(key);
+                        if (queue == null) {
+                                queue = new KeyQueue(key);
+                                lane.queues.put(key, queue);
+                                lane.turns.addLast(queue);
+                        }
+                        backlog = queue.tasks.size();
+                        queue.tasks.addLast(new Task(task, nanoClock.getAsLong(), backlog >= largeBacklog));
+                        lane.activeKeys.set(lane.queues.size());
+                        lane.notEmpty.signal();
+                } finally {
+                        lane.lock.unlock();
+                }
+                metricsConfig.fairLaneKeyBacklog().observe(backlog);
+        }
+
+        private void serve(int laneIndex) {
+                Lane lane = lanes[laneIndex];
+                try {
+                        while (true) {
+                                KeyQueue queue;
+                                Task task;
+                                lane.lock.lock();
+                                try {
+                                        while (lane.turns.isEmpty()) {
+                                                if (!running) {
+                                                        return;
+                                                }
+                                                lane.notEmpty.await(100, TimeUnit.MILLISECONDS);
+                                        }
+                                        queue = lane.turns.peekFirst();
+                                        while (queue.deficit <= 0) {
+                                                // the head key starts a new turn, an overdrawn key sits it out
+                                                queue.deficit += quantum;
+                                                if (queue.deficit <= 0) {
+                                                        lane.turns.addLast(lane.turns.pollFirst());
+                                                        queue = lane.turns.peekFirst();
+                                                }
+                                        }
+                                        task = queue.tasks.pollFirst();
+                                } finally {
+                                        lane.lock.unlock();
+                                }
+
+                                long startNanos = nanoClock.getAsLong();
+                                (task.large() ? largeKeyWait : smallKeyWait)
+                                                .observe((startNanos - task.enqueuedNanos()) / 1_000_000_000.0);
+                                try {
+                                        task.runnable().run();
+                                } catch (RuntimeException e) {
+                                        LOGGER.error("Lane {}-{} failed on a task of key {}", name, laneIndex, queue.key, e);
+                                }
+                                long cost = policy == Policy.DEFICIT ? nanoClock.getAsLong() - startNanos : 1;
+
+                                lane.lock.lock();
+                                try {
+                                        queue.deficit -= cost;
+                                        if (queue.tasks.isEmpty()) {
+                                                // an idle key starts over, it cannot save up a turn
+                                                lane.turns.pollFirst();
+                                                lane.queues.remove(queue.key);
+                                        } else if (queue.deficit <= 0) {
+                                                lane.turns.addLast(lane.turns.pollFirst());
+                                        }
+                                        lane.activeKeys.set(lane.queues.size());
+                                } finally {
+                                        lane.lock.unlock();
+                                }
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * The keys of the lane with the most queued events, largest first.
+         */
+        public List<Document> largestBacklogs(int laneIndex, int n) {
+                Lane lane = lanes[laneIndex];
+                List<int[]> backlogs = new ArrayList<>();
+                lane.lock.lock();
+                try {
+                        for (KeyQueue queue : lane.queues.values()) {
+                                backlogs.add(new int[] { queue.key, queue.tasks.size() });
+                        }
+                } finally {
+                        lane.lock.unlock();
+                }
+                backlogs.sort((a, b) -> Integer.compare(b[1], a[1]));
+                List<Document> largest = new ArrayList<>();
+                for (int[] backlog : backlogs.subList(0, Math.min(n, backlogs.size()))) {
+                        largest.add(new Document("key", backlog[0]).append("queued", backlog[1]));
+                }
+                return largest;
+        }
+
+        public int lanes() {
+                return lanes.length;
+        }
+
+        /**
+         * Let the lanes run what is queued and stop their threads.
+         *
+         * @return true if every lane stopped within the timeout
+         */
+        public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+                running = false;
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                for (Thread worker : workers) {
+                        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remainingMillis > 0) {
+                                worker.join(remainingMillis);
+                        }
+                        if (worker.isAlive()) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+}
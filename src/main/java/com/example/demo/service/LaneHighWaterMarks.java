@@ -0,0 +1,203 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * LaneHighWaterMarks lets a stream in event commit mode skip what its lanes
+ * already applied. Every lane checkpoints under a stable name ("lane-i"), so
+ * its checkpoint is the high-water mark of the events it applied. The stream
+ * resumes from the earliest lane checkpoint; while replaying, the reader drops
+ * each event at or before its own lane's mark instead of queueing and writing
+ * it again.
+ *
+ * Only the reader thread calls isApplied. Once an event lies after every mark
+ * the replay is over and each further call is a single null check.
+ */
+public class LaneHighWaterMarks {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(LaneHighWaterMarks.class);
+        static final String LANE_PREFIX = "lane-";
+        static final String EXECUTOR_THREAD_PREFIX = "Thread-";
+        static final String RING_THREAD_PREFIX = "ring-";
+        // checkpoints named after the executor or ring buffer thread that saved them
+        static final List<String> THREAD_PREFIXES = List.of(EXECUTOR_THREAD_PREFIX, RING_THREAD_PREFIX);
+
+        private final String name;
+        private final ChangeEventServiceInterface handler;
+        private final ResumeTokenService tokenService;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final BsonDocument[] marks;
+        private BsonDocument highest; // latest mark, null once the replay is over
+        private long skipped;
+
+        /**
+         * @param name          stream name and metrics label
+         * @param lanes
+         * @param handler       provides the partition key
+         * @param tokenService  the stream's token store
+         * @param metricsConfig
+         */
+        public LaneHighWaterMarks(String name, int lanes, ChangeEventServiceInterface handler,
+                        ResumeTokenService tokenService, PrometheusMetricsConfig metricsConfig) {
+                this.name = name;
+                this.handler = handler;
+                this.tokenService = tokenService;
+                this.metricsConfig = metricsConfig;
+                this.marks = new BsonDocument[lanes];
+        }
+
+        public static String laneName(int lane) {
+                return LANE_PREFIX + lane;
+        }
+
+        /**
+         * Load the lanes' marks. When the number of lanes changed since they were
+         * written, players moved to other lanes, so nothing is skipped and the
+         * checkpoints of removed lanes are dropped; see
+         * TransactionalLaneCommitter.start. Call before opening the cursor.
+         */
+        public LaneHighWaterMarks load() {
+                Set<String> expected = new HashSet<>();
+                for (int i = 0; i < marks.length; i++) {
+                        expected.add(laneName(i));
+                }
+                Set<String> existing = new HashSet<>(tokenService.getThreadIDs(LANE_PREFIX));
+                if (!existing.isEmpty() && !existing.equals(expected)) {
+                        LOGGER.warn("Stream {} had lanes {}, now {}: replaying without skipping", name, existing,
+                                        expected);
+                        for (String threadID : existing) {
+                                if (!expected.contains(threadID)) {
+                                        tokenService.deleteThreadResumeToken(threadID);
+                                }
+                        }
+                        return this;
+                }
+                for (int i = 0; i < marks.length; i++) {
+                        marks[i] = tokenService.getThreadResumeToken(laneName(i));
+                        if (marks[i] != null && (highest == null || ResumeTokenService.compare(marks[i], highest) > 0)) {
+                                highest = marks[i];
+                        }
+                }
+                return this;
+        }
+
+        /**
+         * Keep the lane's replay from the token on, e.g. for window state that
+         * was snapshotted before the lane's last checkpoint.
+         */
+        public void lowerTo(int lane, BsonDocument token) {
+                if (token != null && marks[lane] != null && ResumeTokenService.compare(token, marks[lane]) < 0) {
+                        marks[lane] = token;
+                }
+        }
+
+        /**
+         * Pin lanes without a checkpoint to the position the stream starts from,
+         * then drop the checkpoints written under thread names or by
+         * transactional lanes, which the seeded lanes replace: left behind, they
+         * would hold the resume position back for good. Call after opening the
+         * cursor, before its first event; lanes that get no events are moved on
+         * by advanceIdle.
+         */
+        public void seed(BsonDocument startToken) {
+                long seconds = ResumeTokenService.clusterTimeSeconds(startToken);
+                if (seconds < 0) {
+                        LOGGER.warn("Cannot seed lane checkpoints of stream {} from token {}", name, startToken);
+                        return;
+                }
+                for (int i = 0; i < marks.length; i++) {
+                        tokenService.seedResumeToken(new BsonTimestamp((int) seconds, 0), startToken, laneName(i));
+                }
+                List<String> prefixes = new ArrayList<>(THREAD_PREFIXES);
+                prefixes.add(TransactionalLaneCommitter.LANE_PREFIX);
+                List<String> replaced = dropCheckpoints(tokenService, prefixes);
+                if (!replaced.isEmpty()) {
+                        LOGGER.info("Stream {} replaced checkpoints {} by lane checkpoints", name, replaced);
+                }
+        }
+
+        /**
+         * Delete the namespace's checkpoints of a scheme no longer in use, e.g.
+         * after switching spring.changestream.commitmode. The stream resumes from
+         * its earliest checkpoint, which such a checkpoint would stay.
+         *
+         * @param prefixes threadID prefixes of the unused schemes
+         * @return threadIDs of the deleted checkpoints
+         */
+        static List<String> dropCheckpoints(ResumeTokenService tokenService, List<String> prefixes) {
+                List<String> dropped = new ArrayList<>();
+                for (String prefix : prefixes) {
+                        for (String threadID : tokenService.getThreadIDs(prefix)) {
+                                tokenService.deleteThreadResumeToken(threadID);
+                                dropped.add(threadID);
+                        }
+                }
+                return dropped;
+        }
+
+        /**
+         * Move the checkpoint of a lane with nothing queued or in flight to the
+         * reader's position, so a lane without events does not hold the stream's
+         * resume position back. Not while replaying: the reader may hand out
+         * events before the lane's mark, which would move it back. Called on the
+         * reader thread, which is the only one dispatching events.
+         *
+         * @param token resume token of the last event the reader handed out
+         * @return true if the checkpoint was saved
+         */
+        public boolean advanceIdle(int lane, BsonTimestamp clusterTime, BsonDocument token) {
+                if (isReplaying()) {
+                        return false;
+                }
+                tokenService.saveResumeToken(clusterTime, token, laneName(lane));
+                return true;
+        }
+
+        /**
+         * @return true if the event's lane already applied it, so it can be
+         *         dropped
+         */
+        public boolean isApplied(ChangeStreamDocument<Document> event) {
+                if (highest == null) {
+                        return false;
+                }
+                BsonDocument token = event.getResumeToken();
+                if (token == null) {
+                        return false;
+                }
+                if (ResumeTokenService.compare(token, highest) > 0) {
+                        LOGGER.info("Stream {} passed its lanes' high-water marks, {} replayed events skipped", name,
+                                        skipped);
+                        highest = null;
+                        return false;
+                }
+                int lane;
+                try {
+                        lane = Math.floorMod(handler.partitionKey(event), marks.length);
+                } catch (RuntimeException e) {
+                        return false; // no ordering key, dispatch reports it
+                }
+                if (marks[lane] == null || ResumeTokenService.compare(token, marks[lane]) > 0) {
+                        return false;
+                }
+                skipped++;
+                metricsConfig.replaySkipped().labels(name).inc();
+                return true;
+        }
+
+        public boolean isReplaying() {
+                return highest != null;
+        }
+}
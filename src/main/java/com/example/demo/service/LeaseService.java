@@ -0,0 +1,111 @@
+package com.example.demo.service;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * LeaseService stores one lease document per stream in a coordination
+ * collection. Only the owner of an unexpired lease may process the change
+ * stream, every other instance stays in standby until the lease expires.
+ *
+ * Expiry is set and compared with the server's clock ($$NOW), so instances
+ * whose clocks disagree still agree on when a lease expired.
+ */
+@Service
+public class LeaseService {
+        private static final Logger LOGGER = LoggerFactory.getLogger(LeaseService.class);
+        private final MongoCollection<Document> leaseCollection;
+
+        public LeaseService(@Qualifier("leaseCollection") MongoCollection<Document> leaseCollection) {
+                this.leaseCollection = leaseCollection;
+        }
+
+        /**
+         * Try to take (or extend) the lease. The lease is granted when nobody holds
+         * it, when it has expired or when we already own it.
+         *
+         * @param leaseName
+         * @param owner
+         * @param ttlMillis
+         * @return the lease document as it was before acquisition (empty when the
+         *         lease was created), or null when another owner still holds it
+         */
+        public Document tryAcquire(String leaseName, String owner, long ttlMillis) {
+                Bson filter = Filters.and(Filters.eq("_id", leaseName),
+                                Filters.or(Filters.eq("owner", owner), Filters.expr(lessThanNow("$expiresAt"))));
+                List<Document> update = List.of(new Document("$set",
+                                new Document("owner", new Document("$literal", owner))
+                                                .append("expiresAt", expiresIn(ttlMillis)).append("renewedAt", "$$NOW")));
+                try {
+                        Document previous = leaseCollection.findOneAndUpdate(filter, update,
+                                        new FindOneAndUpdateOptions().upsert(true)
+                                                        .returnDocument(ReturnDocument.BEFORE));
+                        return previous != null ? previous : new Document();
+                } catch (MongoCommandException e) {
+                        // the upsert collides with the _id of a lease somebody else still holds
+                        if (ErrorCategory.fromErrorCode(e.getErrorCode()) == ErrorCategory.DUPLICATE_KEY) {
+                                return null;
+                        }
+                        throw e;
+                } catch (MongoWriteException e) {
+                        if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                                return null;
+                        }
+                        throw e;
+                }
+        }
+
+        /**
+         * Extend a lease we own.
+         *
+         * @return true if the lease is still ours
+         */
+        public boolean renew(String leaseName, String owner, long ttlMillis) {
+                UpdateResult result = leaseCollection.updateOne(
+                                Filters.and(Filters.eq("_id", leaseName), Filters.eq("owner", owner)),
+                                List.of(new Document("$set",
+                                                new Document("expiresAt", expiresIn(ttlMillis)).append("renewedAt", "$$NOW"))));
+                return result.getMatchedCount() == 1;
+        }
+
+        /**
+         * Expire a lease we own right away so a standby can take over without
+         * waiting for the TTL.
+         */
+        public void release(String leaseName, String owner) {
+                try {
+                        leaseCollection.updateOne(
+                                        Filters.and(Filters.eq("_id", leaseName), Filters.eq("owner", owner)),
+                                        List.of(new Document("$set", new Document("expiresAt", "$$NOW"))));
+                } catch (Exception e) {
+                        LOGGER.warn("Failed to release lease {}: {}", leaseName, e.getMessage());
+                }
+        }
+
+        private static Document expiresIn(long ttlMillis) {
+                return new Document("$add", List.of("$$NOW", ttlMillis));
+        }
+
+        private static Document lessThanNow(String field) {
+                return new Document("$lt", List.of(field, "$$NOW"));
+        }
+
+        public Document getLease(String leaseName) {
+                return leaseCollection.find(Filters.eq("_id", leaseName)).first();
+        }
+}
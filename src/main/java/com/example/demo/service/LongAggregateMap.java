@@ -0,0 +1,186 @@
+package com.example.demo.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LongAggregateMap maps a long key to a running count, sum and max, in
+ * parallel primitive arrays with open addressing (linear probing), so adding
+ * a value neither boxes nor allocates. Not thread safe: a map belongs to one
+ * lane.
+ */
+public class LongAggregateMap {
+
+        private static final long EMPTY = Long.MIN_VALUE; // reserved, never a key
+        private static final float LOAD_FACTOR = 0.6f;
+
+        public interface Visitor {
+                void visit(long key, long count, double sum, double max);
+        }
+
+        public interface KeyPredicate {
+                boolean test(long key);
+        }
+
+        private long[] keys;
+        private long[] counts;
+        private double[] sums;
+        private double[] maxes;
+        private int size;
+        private int resizeAt;
+
+        public LongAggregateMap() {
+                this(64);
+        }
+
+        public LongAggregateMap(int expected) {
+                allocate(Integer.highestOneBit(Math.max(16, (int) (expected / LOAD_FACTOR)) - 1) << 1);
+        }
+
+        private void allocate(int capacity) {
+                keys = new long[capacity];
+                Arrays.fill(keys, EMPTY);
+                counts = new long[capacity];
+                sums = new double[capacity];
+                maxes = new double[capacity];
+                resizeAt = (int) (capacity * LOAD_FACTOR);
+        }
+
+        private static int hash(long key) {
+                key ^= key >>> 33;
+                key *= 0xff51afd7ed558ccdL;
+                return (int) (key ^ (key >>> 33));
+        }
+
+        private int slot(long key) {
+                int mask = keys.length - 1;
+                int i = hash(key) & mask;
+                while (keys[i] != EMPTY && keys[i] != key) {
+                        i = (i + 1) & mask;
+                }
+                return i;
+        }
+
+        /**
+         * Count one value under the key.
+         */
+        public void add(long key, double value) {
+                merge(key, 1, value, value);
+        }
+
+        /**
+         * Combine a partial aggregate into the key's aggregate.
+         */
+        public void merge(long key, long count, double sum, double max) {
+                if (key == EMPTY) {
+                        throw new IllegalArgumentException("Reserved key " + key);
+                }
+                int i = slot(key);
+                if (keys[i] == EMPTY) {
+                        keys[i] = key;
+                        counts[i] = count;
+                        sums[i] = sum;
+                        maxes[i] = max;
+                        if (++size > resizeAt) {
+                                rehash();
+                        }
+                        return;
+                }
+                counts[i] += count;
+                sums[i] += sum;
+                maxes[i] = Math.max(maxes[i], max);
+        }
+
+        public long count(long key) {
+                int i = slot(key);
+                return keys[i] == EMPTY ? 0 : counts[i];
+        }
+
+        public double sum(long key) {
+                int i = slot(key);
+                return keys[i] == EMPTY ? 0 : sums[i];
+        }
+
+        public void forEach(Visitor visitor) {
+                for (int i = 0; i < keys.length; i++) {
+                        if (keys[i] != EMPTY) {
+                                visitor.visit(keys[i], counts[i], sums[i], maxes[i]);
+                        }
+                }
+        }
+
+        /**
+         * Remove every key the predicate accepts.
+         *
+         * @return number of keys removed
+         */
+        public int removeIf(KeyPredicate predicate) {
+                int removed = 0;
+                for (int i = 0; i < keys.length; i++) {
+                        if (keys[i] != EMPTY && predicate.test(keys[i])) {
+                                keys[i] = EMPTY;
+                                removed++;
+                        }
+                }
+                if (removed > 0) {
+                        size -= removed;
+                        // probe chains may have gaps now, re-insert what is left
+                        rehash(keys.length);
+                }
+                return removed;
+        }
+
+        public int size() {
+                return size;
+        }
+
+        public boolean isEmpty() {
+                return size == 0;
+        }
+
+        public void clear() {
+                Arrays.fill(keys, EMPTY);
+                size = 0;
+        }
+
+        private void rehash() {
+                rehash(keys.length << 1);
+        }
+
+        private void rehash(int capacity) {
+                long[] oldKeys = keys;
+                long[] oldCounts = counts;
+                double[] oldSums = sums;
+                double[] oldMaxes = maxes;
+                allocate(capacity);
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                        if (oldKeys[i] != EMPTY) {
+                                merge(oldKeys[i], oldCounts[i], oldSums[i], oldMaxes[i]);
+                        }
+                }
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+                out.writeInt(size);
+                for (int i = 0; i < keys.length; i++) {
+                        if (keys[i] != EMPTY) {
+                                out.writeLong(keys[i]);
+                                out.writeLong(counts[i]);
+                                out.writeDouble(sums[i]);
+                                out.writeDouble(maxes[i]);
+                        }
+                }
+        }
+
+        public static LongAggregateMap readFrom(DataInputStream in) throws IOException {
+                int entries = in.readInt();
+                LongAggregateMap map = new LongAggregateMap(entries);
+                for (int i = 0; i < entries; i++) {
+                        map.merge(in.readLong(), in.readLong(), in.readDouble(), in.readDouble());
+                }
+                return map;
+        }
+}
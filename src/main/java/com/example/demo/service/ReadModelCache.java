@@ -0,0 +1,367 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.prometheus.client.Histogram;
+
+/**
+ * ReadModelCache keeps recently read userDailyTxn day documents in memory and
+ * serves them over HTTP (GET /players/{playerID}/daily?date=yyyy-MM-dd, the
+ * date defaults to today UTC) on the Prometheus port.
+ *
+ * Entries are loaded from MongoDB on a miss and then kept current by the
+ * mediator: after each successful processChange the cached day gets the same
+ * transaction replacement and totals as the update pipeline applies on the
+ * server. Entries are stored encoded, bounded by their total size with LRU
+ * eviction, and reloaded from the database after the TTL, which also bounds
+ * any drift from the server's copy. Misses are read from the primary, so a
+ * load never caches a day older than the lane's last write.
+ *
+ * The cache is split into stripes by key, each with its own lock, LRU order
+ * and share of maxbytes, so lanes writing different players and the HTTP
+ * readers do not wait for each other.
+ */
+@Service
+public class ReadModelCache {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(ReadModelCache.class);
+        private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+        private static final int STRIPES = 256;
+        static final String CONTEXT = "/players/";
+        private final MongoCollection<Document> userDailyTxnCollection;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        // writes per key stripe, a load only caches what no write raced with
+        private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+        private final AtomicLong totalEntries = new AtomicLong();
+        private final AtomicLong totalBytes = new AtomicLong();
+
+        @Value("${spring.readmodel.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.readmodel.maxbytes:67108864}") // Encoded size of all cached days
+        private long maxBytes;
+
+        @Value("${spring.readmodel.ttlms:300000}") // Reload from the database after this long
+        private long ttlMillis;
+
+        record Key(int playerID, Date gamingDate) {
+        }
+
+        private static final class Entry {
+                private RawBsonDocument document;
+                private final long expiresAtNanos;
+
+                Entry(RawBsonDocument document, long expiresAtNanos) {
+                        this.document = document;
+                        this.expiresAtNanos = expiresAtNanos;
+                }
+        }
+
+        /**
+         * One stripe's entries, guarded by the stripe.
+         */
+        private static final class Stripe {
+                private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+                private long bytes;
+        }
+
+        public ReadModelCache(@Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection,
+                        PrometheusMetricsConfig metricsConfig) {
+                // the collection's default is nearest, a secondary may not have the lanes' writes yet
+                this.userDailyTxnCollection = userDailyTxnCollection.withReadPreference(ReadPreference.primary());
+                this.metricsConfig = metricsConfig;
+                for (int i = 0; i < STRIPES; i++) {
+                        stripes[i] = new Stripe();
+                }
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        static Date gamingDate(Date date) {
+                return new Date(Math.floorDiv(date.getTime(), TimeUnit.DAYS.toMillis(1)) * TimeUnit.DAYS.toMillis(1));
+        }
+
+        private static int stripe(Key key) {
+                return Math.floorMod(key.hashCode(), STRIPES);
+        }
+
+        /**
+         * The player's day document, from memory or else from the database.
+         *
+         * @return null if the player has no transactions that day
+         */
+        public BsonDocument get(int playerID, Date gamingDate) {
+                Key key = new Key(playerID, gamingDate);
+                Stripe stripe = stripes[stripe(key)];
+                synchronized (stripe) {
+                        Entry entry = stripe.entries.get(key);
+                        if (entry != null && entry.expiresAtNanos - System.nanoTime() > 0) {
+                                metricsConfig.readModelRequests().labels("hit").inc();
+                                return entry.document;
+                        }
+                }
+                long writesBefore = writes.get(stripe(key));
+                Document loaded = userDailyTxnCollection
+                                .find(new Document("playerID", playerID).append("gamingDate", gamingDate)).first();
+                metricsConfig.readModelRequests().labels(loaded == null ? "notfound" : "miss").inc();
+                if (loaded == null) {
+                        return null;
+                }
+                RawBsonDocument raw = new RawBsonDocument(loaded, DOCUMENT_CODEC);
+                synchronized (stripe) {
+                        if (writes.get(stripe(key)) == writesBefore) {
+                                put(stripe, key,
+                                                new Entry(raw, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+                        }
+                }
+                return raw;
+        }
+
+        /**
+         * Apply a successfully written transaction to the cached day, if that day
+         * is cached. Called on the player's lane, so events of a player arrive in
+         * stream order.
+         */
+        public void onWritten(ChangeStreamDocument<Document> event) {
+                if (!enabled) {
+                        return;
+                }
+                Document transaction = event.getFullDocument();
+                if (transaction == null || !transaction.containsKey("playerID") || !transaction.containsKey("date")) {
+                        return;
+                }
+                Key key = new Key(transaction.getInteger("playerID"), gamingDate(transaction.getDate("date")));
+                writes.incrementAndGet(stripe(key));
+                Stripe stripe = stripes[stripe(key)];
+                synchronized (stripe) {
+                        Entry entry = stripe.entries.get(key);
+                        if (entry == null) {
+                                return;
+                        }
+                        Document day = DOCUMENT_CODEC.decode(entry.document.asBsonReader(),
+                                        DecoderContext.builder().build());
+                        applyTransaction(day, transaction);
+                        resize(stripe, -entry.document.getByteBuffer().remaining(), 0);
+                        entry.document = new RawBsonDocument(day, DOCUMENT_CODEC);
+                        resize(stripe, entry.document.getByteBuffer().remaining(), 0);
+                        evict(stripe);
+                }
+        }
+
+        /**
+         * Drop the cached day of the event's transaction, when the outcome of the
+         * write is not known.
+         */
+        public void invalidate(ChangeStreamDocument<Document> event) {
+                if (!enabled) {
+                        return;
+                }
+                Document transaction = event.getFullDocument();
+                if (transaction == null || !transaction.containsKey("playerID") || !transaction.containsKey("date")) {
+                        return;
+                }
+                Key key = new Key(transaction.getInteger("playerID"), gamingDate(transaction.getDate("date")));
+                writes.incrementAndGet(stripe(key));
+                Stripe stripe = stripes[stripe(key)];
+                synchronized (stripe) {
+                        Entry entry = stripe.entries.remove(key);
+                        if (entry != null) {
+                                resize(stripe, -entry.document.getByteBuffer().remaining(), -1);
+                                updateSize();
+                        }
+                }
+        }
+
+        /**
+         * Replace the transaction with the same transactionID or append it, then
+         * recompute the totals, like ChangeEventService's update pipeline.
+         */
+        public static void applyTransaction(Document day, Document transaction) {
+                Object transactionID = transaction.get("transactionID");
+                Document newTransaction = new Document("transactionID", transactionID)
+                                .append("value", transaction.get("value"))
+                                .append("date", transaction.get("date"));
+                List<Document> txns = new ArrayList<>(day.getList("txns", Document.class, List.of()));
+                boolean replaced = false;
+                for (int i = 0; i < txns.size(); i++) {
+                        if (Objects.equals(txns.get(i).get("transactionID"), transactionID)) {
+                                txns.set(i, newTransaction);
+                                replaced = true;
+                        }
+                }
+                if (!replaced) {
+                        txns.add(newTransaction);
+                }
+                if (day.get("name") == null) {
+                        day.put("name", transaction.get("name"));
+                }
+                day.put("txns", txns);
+                day.put("lastModified", new Date());
+
+                double total = 0;
+                Double min = null;
+                Double max = null;
+                Date first = null;
+                Date last = null;
+                for (Document txn : txns) {
+                        // like $sum/$min/$max of the pipeline, values that are not numbers are ignored
+                        if (txn.get("value") instanceof Number number) {
+                                double value = number.doubleValue();
+                                total += value;
+                                min = min == null ? value : Math.min(min, value);
+                                max = max == null ? value : Math.max(max, value);
+                        }
+                        if (txn.get("date") instanceof Date date) {
+                                first = first == null || date.before(first) ? date : first;
+                                last = last == null || date.after(last) ? date : last;
+                        }
+                }
+                day.put("totalValue", total);
+                day.put("txnCount", txns.size());
+                day.put("minValue", min);
+                day.put("maxValue", max);
+                day.put("firstTxnDate", first);
+                day.put("lastTxnDate", last);
+        }
+
+        private void put(Stripe stripe, Key key, Entry entry) {
+                Entry previous = stripe.entries.put(key, entry);
+                if (previous != null) {
+                        resize(stripe, -previous.document.getByteBuffer().remaining(), -1);
+                }
+                resize(stripe, entry.document.getByteBuffer().remaining(), 1);
+                evict(stripe);
+        }
+
+        /**
+         * Drop the stripe's least recently used days beyond its share of
+         * maxbytes. Called holding the stripe.
+         */
+        private void evict(Stripe stripe) {
+                long maxStripeBytes = Math.max(1, maxBytes / STRIPES);
+                Iterator<Map.Entry<Key, Entry>> eldest = stripe.entries.entrySet().iterator();
+                while (stripe.bytes > maxStripeBytes && eldest.hasNext()) {
+                        resize(stripe, -eldest.next().getValue().document.getByteBuffer().remaining(), -1);
+                        eldest.remove();
+                        metricsConfig.readModelEvictions().inc();
+                }
+                updateSize();
+        }
+
+        private void resize(Stripe stripe, long deltaBytes, int deltaEntries) {
+                stripe.bytes += deltaBytes;
+                totalBytes.addAndGet(deltaBytes);
+                totalEntries.addAndGet(deltaEntries);
+        }
+
+        private void updateSize() {
+                metricsConfig.readModelEntries().set(totalEntries.get());
+                metricsConfig.readModelBytes().set(totalBytes.get());
+        }
+
+        /**
+         * Serve the read model on the given server, before it is started.
+         */
+        public void register(HttpServer server) {
+                if (!enabled) {
+                        return;
+                }
+                server.createContext(CONTEXT, this::handle);
+                LOGGER.info("Read model served at {}{{playerID}}/daily", CONTEXT);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+                Histogram.Timer timer = metricsConfig.readModelRequestDuration().startTimer();
+                try {
+                        if (!"GET".equals(exchange.getRequestMethod())) {
+                                respond(exchange, 405, "{\"error\":\"GET only\"}");
+                                return;
+                        }
+                        String[] path = exchange.getRequestURI().getPath().substring(CONTEXT.length()).split("/");
+                        if (path.length != 2 || !"daily".equals(path[1])) {
+                                respond(exchange, 404, "{\"error\":\"expected /players/{playerID}/daily\"}");
+                                return;
+                        }
+                        int playerID;
+                        LocalDate day;
+                        try {
+                                playerID = Integer.parseInt(path[0]);
+                                String date = queryParameter(exchange.getRequestURI().getRawQuery(), "date");
+                                day = date != null ? LocalDate.parse(date) : LocalDate.now(ZoneOffset.UTC);
+                        } catch (NumberFormatException | DateTimeParseException e) {
+                                respond(exchange, 400, "{\"error\":\"invalid playerID or date\"}");
+                                return;
+                        }
+                        BsonDocument document = get(playerID, Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant()));
+                        if (document == null) {
+                                respond(exchange, 404, "{\"error\":\"no transactions\"}");
+                        } else {
+                                respond(exchange, 200, document.toJson());
+                        }
+                } catch (MongoException e) {
+                        LOGGER.warn("Read model lookup failed: {}", e.getMessage());
+                        respond(exchange, 503, "{\"error\":\"database unavailable\"}");
+                } finally {
+                        timer.observeDuration();
+                        exchange.close();
+                }
+        }
+
+        private static String queryParameter(String query, String name) {
+                if (query == null) {
+                        return null;
+                }
+                for (String parameter : query.split("&")) {
+                        if (parameter.startsWith(name + "=")) {
+                                return parameter.substring(name.length() + 1);
+                        }
+                }
+                return null;
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(bytes);
+                }
+        }
+}
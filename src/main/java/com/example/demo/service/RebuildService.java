@@ -0,0 +1,274 @@
+package com.example.demo.service;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import io.prometheus.client.Histogram;
+
+/**
+ * RebuildService recomputes userDailyTxn documents for a gamingDate range
+ * straight from the source collection, without replaying events through
+ * processChange.
+ *
+ * The range is split into chunks of one day and one playerID hash bucket.
+ * Each chunk is a single server-side aggregation: the chunk's transactions
+ * are grouped by playerID/day into the same document shape processChange
+ * builds and written with $merge on (playerID, gamingDate). An existing day
+ * is merged by transactionID, keeping the later version of each transaction,
+ * so transactions the live stream wrote meanwhile are not lost. Chunks run
+ * on a small pool and are rate limited so the rebuild does not starve the
+ * live workload. The aggregations write, so they run on the writes client,
+ * not on the stream pool the readers need. Resume tokens are never read or
+ * written.
+ */
+@Service
+public class RebuildService {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(RebuildService.class);
+        private final MongoCollection<Document> sourceCollection;
+        private final MongoCollection<Document> userDailyTxnCollection;
+        private final PrometheusMetricsConfig metricsConfig;
+        private long nextChunkNanos;
+
+        @Value("${spring.rebuild.threads:4}")
+        private int threads;
+
+        @Value("${spring.rebuild.playerbuckets:4}") // Player chunks per day
+        private int playerBuckets;
+
+        @Value("${spring.rebuild.maxchunkspersecond:0}") // 0 means no throttling
+        private double maxChunksPerSecond;
+
+        public RebuildService(@Qualifier("rebuildSourceCollection") MongoCollection<Document> sourceCollection,
+                        @Qualifier("userDailyTxnCollection") MongoCollection<Document> userDailyTxnCollection,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.sourceCollection = sourceCollection;
+                this.userDailyTxnCollection = userDailyTxnCollection;
+                this.metricsConfig = metricsConfig;
+        }
+
+        /**
+         * Rebuild every userDailyTxn document with a gamingDate in [from, to].
+         *
+         * @param from first gamingDate (UTC)
+         * @param to   last gamingDate (UTC), inclusive
+         * @return number of transactions in the rebuilt day documents
+         */
+        public long rebuild(LocalDate from, LocalDate to) throws InterruptedException {
+                // $merge on (playerID, gamingDate) needs a unique index on exactly these fields
+                userDailyTxnCollection.createIndex(Indexes.ascending("playerID", "gamingDate"),
+                                new IndexOptions().unique(true));
+
+                int buckets = Math.max(1, playerBuckets);
+                List<Chunk> chunks = new ArrayList<>();
+                for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                        for (int bucket = 0; bucket < buckets; bucket++) {
+                                chunks.add(new Chunk(day, bucket, buckets));
+                        }
+                }
+                LOGGER.info("Rebuilding userDailyTxn from {} to {} in {} chunks on {} threads", from, to,
+                                chunks.size(), threads);
+
+                AtomicLong transactions = new AtomicLong();
+                AtomicInteger finished = new AtomicInteger();
+                AtomicInteger threadCounter = new AtomicInteger();
+                long startNanos = System.nanoTime();
+                nextChunkNanos = startNanos;
+                ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("rebuild-" + threadCounter.getAndIncrement());
+                        return thread;
+                });
+                try {
+                        List<Future<?>> futures = new ArrayList<>();
+                        for (Chunk chunk : chunks) {
+                                futures.add(pool.submit(() -> {
+                                        throttle();
+                                        long count = rebuildChunk(chunk);
+                                        long total = transactions.addAndGet(count);
+                                        double elapsedSeconds = Math.max(0.001,
+                                                        (System.nanoTime() - startNanos) / 1_000_000_000.0);
+                                        metricsConfig.rebuildTransactionsPerSecond().set(total / elapsedSeconds);
+                                        metricsConfig.rebuildProgress()
+                                                        .set((double) finished.incrementAndGet() / chunks.size());
+                                        return null;
+                                }));
+                        }
+                        for (Future<?> future : futures) {
+                                future.get();
+                        }
+                } catch (ExecutionException e) {
+                        throw new IllegalStateException("Rebuild from " + from + " to " + to + " failed", e.getCause());
+                } finally {
+                        pool.shutdownNow();
+                }
+
+                double elapsedSeconds = Math.max(0.001, (System.nanoTime() - startNanos) / 1_000_000_000.0);
+                LOGGER.info("Rebuilt userDailyTxn from {} to {}: {} transactions in {} s ({} txn/s)", from, to,
+                                transactions.get(), String.format("%.1f", elapsedSeconds),
+                                String.format("%.0f", transactions.get() / elapsedSeconds));
+                return transactions.get();
+        }
+
+        private void throttle() throws InterruptedException {
+                if (maxChunksPerSecond <= 0) {
+                        return;
+                }
+                long waitNanos;
+                synchronized (this) {
+                        long now = System.nanoTime();
+                        long slot = Math.max(now, nextChunkNanos);
+                        nextChunkNanos = slot + (long) (1_000_000_000L / maxChunksPerSecond);
+                        waitNanos = slot - now;
+                }
+                if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+        }
+
+        private long rebuildChunk(Chunk chunk) {
+                Histogram.Timer timer = metricsConfig.rebuildChunkDuration().startTimer();
+                long startNanos = System.nanoTime();
+                sourceCollection.aggregate(pipeline(chunk.filter())).toCollection();
+                // count on the merged days (gamingDate index) rather than scanning the source again
+                Document txnCount = new Document("$size", new Document("$ifNull", List.of("$txns", List.of())));
+                Document merged = userDailyTxnCollection.aggregate(List.of(new Document("$match", chunk.dayFilter()),
+                                new Document("$group", new Document("_id", null)
+                                                .append("transactions", new Document("$sum", txnCount)))))
+                                .first();
+                long count = merged != null ? merged.get("transactions", Number.class).longValue() : 0L;
+                timer.observeDuration();
+                metricsConfig.rebuildTransactions().inc(count);
+                LOGGER.info("Rebuilt chunk {} bucket {}/{}: {} transactions in {} ms", chunk.day, chunk.bucket,
+                                chunk.buckets, count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                return count;
+        }
+
+        /**
+         * Same document shape as ChangeEventService.processChange: one transaction
+         * per transactionID (the latest by date), txns ordered by date, the name of
+         * the day's first transaction and the daily totals.
+         */
+        List<Document> pipeline(Bson filter) {
+                Document gamingDate = new Document("$dateTrunc",
+                                new Document("date", "$date").append("unit", "day").append("timezone", "UTC"));
+                return List.of(
+                                new Document("$match", filter),
+                                new Document("$sort", new Document("date", 1).append("_id", 1)),
+                                new Document("$group", new Document("_id", new Document("playerID", "$playerID")
+                                                .append("gamingDate", gamingDate).append("transactionID", "$transactionID"))
+                                                .append("name", new Document("$first", "$name"))
+                                                .append("value", new Document("$last", "$value"))
+                                                .append("date", new Document("$last", "$date"))),
+                                new Document("$sort", new Document("date", 1)),
+                                new Document("$group", new Document("_id", new Document("playerID", "$_id.playerID")
+                                                .append("gamingDate", "$_id.gamingDate"))
+                                                .append("name", new Document("$first", "$name"))
+                                                .append("txns", new Document("$push",
+                                                                new Document("transactionID", "$_id.transactionID")
+                                                                                .append("value", "$value")
+                                                                                .append("date", "$date")))),
+                                new Document("$project", new Document("_id", 0)
+                                                .append("playerID", "$_id.playerID")
+                                                .append("gamingDate", "$_id.gamingDate")
+                                                .append("name", 1)
+                                                .append("txns", 1)
+                                                .append("lastModified", "$$NOW")),
+                                ChangeEventService.dailyTotalsStage(),
+                                new Document("$merge", new Document("into", userDailyTxnCollection.getNamespace()
+                                                .getCollectionName())
+                                                .append("on", List.of("playerID", "gamingDate"))
+                                                .append("whenMatched", List.of(mergeTxnsStage(),
+                                                                ChangeEventService.dailyTotalsStage()))
+                                                .append("whenNotMatched", "insert")));
+        }
+
+        /**
+         * Merge the rebuilt day ($$new) into the stored one by transactionID. A
+         * transaction in both keeps the version with the later date, one only
+         * the live stream wrote is kept after the rebuilt ones.
+         */
+        static Document mergeTxnsStage() {
+                Document stored = new Document("$ifNull", List.of("$txns", List.of()));
+                Document sameId = new Document("$eq", List.of("$$t.transactionID", "$$n.transactionID"));
+                Document storedVersion = new Document("$first", new Document("$filter",
+                                new Document("input", stored).append("as", "t").append("cond", sameId)));
+                Document later = new Document("$cond",
+                                List.of(new Document("$gt", List.of("$$o.date", "$$n.date")), "$$o", "$$n"));
+                Document rebuilt = new Document("$map", new Document("input", "$$new.txns").append("as", "n")
+                                .append("in", new Document("$let",
+                                                new Document("vars", new Document("o", storedVersion)).append("in", later))));
+                Document notRebuilt = new Document("$not", List.of(
+                                new Document("$in", List.of("$$t.transactionID", "$$new.txns.transactionID"))));
+                Document liveOnly = new Document("$filter",
+                                new Document("input", stored).append("as", "t").append("cond", notRebuilt));
+                return new Document("$set", new Document()
+                                .append("txns", new Document("$concatArrays", List.of(rebuilt, liveOnly)))
+                                .append("name", "$$new.name")
+                                .append("lastModified", "$$NOW"));
+        }
+
+        /**
+         * One gamingDate and one playerID hash bucket.
+         */
+        static final class Chunk {
+                private final LocalDate day;
+                private final int bucket;
+                private final int buckets;
+
+                Chunk(LocalDate day, int bucket, int buckets) {
+                        this.day = day;
+                        this.bucket = bucket;
+                        this.buckets = buckets;
+                }
+
+                /**
+                 * The chunk's transactions in the source collection.
+                 */
+                Bson filter() {
+                        Date start = Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+                        Date end = Date.from(day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+                        return players(Filters.and(Filters.gte("date", start), Filters.lt("date", end)));
+                }
+
+                /**
+                 * The chunk's day documents in userDailyTxn.
+                 */
+                Bson dayFilter() {
+                        Date gamingDate = Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+                        return players(Filters.eq("gamingDate", gamingDate));
+                }
+
+                private Bson players(Bson filter) {
+                        if (buckets == 1) {
+                                return filter;
+                        }
+                        return Filters.and(filter, ChangeStreamContext.hashBucket("$playerID", bucket, buckets));
+                }
+        }
+}
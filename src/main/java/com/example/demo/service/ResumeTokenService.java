@@ -1,14 +1,22 @@
 package com.example.demo.service;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import org.bson.BsonDocument;
+import org.bson.BsonString;
 import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.UpdateOptions;
@@ -22,22 +30,175 @@ import com.mongodb.client.model.UpdateOptions;
 public class ResumeTokenService {
         private final Logger LOGGER = LoggerFactory.getLogger(ResumeTokenService.class);
         private final MongoCollection<Document> resumeTokenCollection;
+        private final String namespace; // null for the single-stream layout
+        private final ResumeTokenService parent; // fallback when this namespace has no checkpoint yet
 
+        @Autowired
         public ResumeTokenService(@Qualifier("resumeTokenCollection") MongoCollection<Document> resumeTokenCollection) {
+                this(resumeTokenCollection, null);
+        }
+
+        /**
+         * Token store scoped to one stream, so several streams can share the same
+         * resume token collection.
+         *
+         * @param resumeTokenCollection
+         * @param namespace
+         */
+        public ResumeTokenService(MongoCollection<Document> resumeTokenCollection, String namespace) {
+                this(resumeTokenCollection, namespace, null);
+        }
+
+        private ResumeTokenService(MongoCollection<Document> resumeTokenCollection, String namespace,
+                        ResumeTokenService parent) {
                 this.resumeTokenCollection = resumeTokenCollection;
+                this.namespace = namespace;
+                this.parent = parent;
+        }
+
+        /**
+         * Token store for a sub-stream of this one, e.g. one of several parallel
+         * readers. Until the sub-stream saved its own checkpoint it resumes from the
+         * earliest checkpoint of this namespace and all of its sub-namespaces, so
+         * changing the number of readers never skips events.
+         *
+         * @param childNamespace
+         * @return
+         */
+        public ResumeTokenService forNamespace(String childNamespace) {
+                return new ResumeTokenService(resumeTokenCollection, childNamespace, this);
+        }
+
+        public String getNamespace() {
+                return namespace;
         }
 
         public void saveResumeToken(BsonTimestamp bsonTimestamp, BsonDocument resumeToken, String threadName) {
-                Document mongoDocument = new Document().append("threadName", threadName)
-                                .append("resumeToken", resumeToken).append("date", bsonTimestamp)
-                                .append("appName", "demoChangeStream");
+                Document mongoDocument = tokenDocument(bsonTimestamp, resumeToken, threadName);
 
                 // suggested to also check the "date" or change the resume logic
 
                 // Use upsert to ensure each thread only updates its own record
-                resumeTokenCollection.updateOne(Filters.eq("threadID", threadName),
+                resumeTokenCollection.updateOne(threadFilter(threadName),
+                                new Document("$set", mongoDocument), new UpdateOptions().upsert(true));
+
+        }
+
+        /**
+         * Save the checkpoint inside the session's transaction, so it commits
+         * together with the business writes of the same batch.
+         */
+        public void saveResumeToken(ClientSession session, BsonTimestamp bsonTimestamp, BsonDocument resumeToken,
+                        String threadName) {
+                resumeTokenCollection.updateOne(session, threadFilter(threadName),
+                                new Document("$set", tokenDocument(bsonTimestamp, resumeToken, threadName)),
+                                new UpdateOptions().upsert(true));
+        }
+
+        /**
+         * Save the checkpoint together with fields describing state that was
+         * persisted up to it, e.g. a snapshot of window aggregates.
+         */
+        public void saveResumeToken(BsonTimestamp bsonTimestamp, BsonDocument resumeToken, String threadName,
+                        Document attachment) {
+                Document mongoDocument = tokenDocument(bsonTimestamp, resumeToken, threadName);
+                mongoDocument.putAll(attachment);
+                resumeTokenCollection.updateOne(threadFilter(threadName),
                                 new Document("$set", mongoDocument), new UpdateOptions().upsert(true));
+        }
 
+        /**
+         * Save the checkpoint only if the thread has none yet, e.g. to pin a new
+         * lane to the position its stream starts from.
+         */
+        public void seedResumeToken(BsonTimestamp bsonTimestamp, BsonDocument resumeToken, String threadName) {
+                resumeTokenCollection.updateOne(threadFilter(threadName),
+                                new Document("$setOnInsert", tokenDocument(bsonTimestamp, resumeToken, threadName)),
+                                new UpdateOptions().upsert(true));
+        }
+
+        /**
+         * Checkpoint of one thread of this namespace, or null if it has none.
+         */
+        public BsonDocument getThreadResumeToken(String threadName) {
+                Document tokenDoc = resumeTokenCollection.find(threadFilter(threadName)).first();
+                Document resumeTokenDoc = tokenDoc == null ? null : tokenDoc.get("resumeToken", Document.class);
+                if (resumeTokenDoc == null || resumeTokenDoc.getString("_data") == null) {
+                        return null;
+                }
+                return new BsonDocument("_data", new BsonString(resumeTokenDoc.getString("_data")));
+        }
+
+        /**
+         * Raw checkpoint document of one thread of this namespace, or null.
+         */
+        public Document getThreadTokenDocument(String threadName) {
+                return resumeTokenCollection.find(threadFilter(threadName)).first();
+        }
+
+        /**
+         * threadIDs of this namespace's checkpoints that start with the prefix.
+         */
+        public List<String> getThreadIDs(String prefix) {
+                Bson byPrefix = Filters.regex("threadID", "^" + Pattern.quote(prefix));
+                Bson filter = namespace == null ? byPrefix : Filters.and(Filters.eq("namespace", namespace), byPrefix);
+                List<String> threadIDs = new ArrayList<>();
+                for (Document tokenDoc : resumeTokenCollection.find(filter).projection(new Document("threadID", 1))) {
+                        threadIDs.add(tokenDoc.getString("threadID"));
+                }
+                return threadIDs;
+        }
+
+        /**
+         * Checkpoints of every thread of this namespace.
+         */
+        public List<Document> getTokenDocuments() {
+                Bson filter = namespace == null ? new Document() : Filters.eq("namespace", namespace);
+                return resumeTokenCollection.find(filter).into(new ArrayList<>());
+        }
+
+        public void deleteThreadResumeToken(String threadName) {
+                resumeTokenCollection.deleteOne(threadFilter(threadName));
+        }
+
+        /**
+         * @return true if this namespace has a checkpoint of its own, not counting
+         *         nested namespaces
+         */
+        public boolean hasOwnCheckpoint() {
+                return resumeTokenCollection.find(Filters.eq("namespace", namespace)).first() != null;
+        }
+
+        /**
+         * Namespaces nested directly below this one whose name matches the
+         * pattern, e.g. the checkpoints of parallel readers ("reader-\d+-\d+").
+         */
+        public List<String> getChildNamespaces(String pattern) {
+                String base = namespace == null ? "" : namespace + "/";
+                return resumeTokenCollection.distinct("namespace",
+                                Filters.regex("namespace", "^" + Pattern.quote(base) + pattern + "$"), String.class)
+                                .into(new ArrayList<>());
+        }
+
+        /**
+         * Delete every checkpoint of the given namespace; null deletes the
+         * checkpoints saved without a namespace.
+         *
+         * @return number of checkpoints deleted
+         */
+        public long deleteNamespace(String namespaceToDelete) {
+                return resumeTokenCollection.deleteMany(Filters.eq("namespace", namespaceToDelete)).getDeletedCount();
+        }
+
+        private Document tokenDocument(BsonTimestamp bsonTimestamp, BsonDocument resumeToken, String threadName) {
+                return new Document().append("threadName", threadName)
+                                .append("resumeToken", resumeToken).append("date", bsonTimestamp)
+                                .append("appName", "demoChangeStream");
+        }
+
+        private Bson threadFilter(String threadName) {
+                return namespace == null ? Filters.eq("threadID", threadName)
+                                : Filters.and(Filters.eq("namespace", namespace), Filters.eq("threadID", threadName));
         }
 
         public BsonDocument getResumeToken() {
@@ -46,7 +207,15 @@ public class ResumeTokenService {
                 // Note: the previous already handled event will reprocessed after resuming, 
                 //       must work with idempotent event handling     
 
-                Document latestTokenDoc = resumeTokenCollection.find().sort(new Document("date", 1)).first();
+                Document latestTokenDoc = getEarliestTokenDocument();
+                if (latestTokenDoc == null && parent != null) {
+                        LOGGER.info("No checkpoint in namespace {} yet, using the earliest one of namespace {}",
+                                        namespace, parent.getNamespace());
+                        latestTokenDoc = parent.getEarliestFamilyTokenDocument();
+                } else if (latestTokenDoc == null && namespace != null) {
+                        // e.g. back to one reader, the splits' checkpoints are all there is
+                        latestTokenDoc = getEarliestFamilyTokenDocument();
+                }
                 LOGGER.info("The latest resume token document: {}", latestTokenDoc);
 
                 if (latestTokenDoc != null) {
@@ -72,4 +241,59 @@ public class ResumeTokenService {
                 return null;
         }
 
+        /**
+         * Return the raw checkpoint document with the earliest date, the one a
+         * resuming listener starts from.
+         *
+         * @return
+         */
+        public Document getEarliestTokenDocument() {
+                FindIterable<Document> checkpoints = namespace == null ? resumeTokenCollection.find()
+                                : resumeTokenCollection.find(Filters.eq("namespace", namespace));
+                return checkpoints.sort(new Document("date", 1)).first();
+        }
+
+        /**
+         * Earliest checkpoint of this namespace and every namespace nested below it
+         * ("ns/..."); the whole collection for the default namespace.
+         *
+         * @return
+         */
+        public Document getEarliestFamilyTokenDocument() {
+                FindIterable<Document> checkpoints = namespace == null ? resumeTokenCollection.find()
+                                : resumeTokenCollection.find(Filters.or(Filters.eq("namespace", namespace),
+                                                Filters.regex("namespace", "^" + Pattern.quote(namespace + "/"))));
+                return checkpoints.sort(new Document("date", 1)).first();
+        }
+
+        /**
+         * Cluster time (seconds) encoded at the start of a resume token's _data.
+         * Tokens begin with the KeyString type byte 0x82 followed by the 8-byte
+         * timestamp (seconds, increment), so no server round trip is needed.
+         *
+         * @param resumeToken
+         * @return seconds, or -1 if the token has an unknown layout
+         */
+        public static long clusterTimeSeconds(BsonDocument resumeToken) {
+                if (resumeToken == null || !resumeToken.isString("_data")) {
+                        return -1;
+                }
+                String data = resumeToken.getString("_data").getValue();
+                if (data.length() < 18 || !data.regionMatches(true, 0, "82", 0, 2)) {
+                        return -1;
+                }
+                return Long.parseLong(data.substring(2, 10), 16);
+        }
+
+        /**
+         * Order of two resume tokens of the same stream. The _data of a token is
+         * the hex encoding of an order-preserving KeyString, so comparing the
+         * strings compares the stream positions.
+         *
+         * @return negative, zero or positive like Comparator.compare
+         */
+        public static int compare(BsonDocument resumeToken, BsonDocument other) {
+                return resumeToken.getString("_data").getValue()
+                                .compareToIgnoreCase(other.getString("_data").getValue());
+        }
 }
@@ -0,0 +1,171 @@
+package com.example.demo.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * ShadowRunner benchmarks a candidate handler against live traffic: after the
+ * primary handler processed an event, a copy of it is handed to the candidate
+ * (spring.shadow.handler, e.g. the default shadowChangeEventService writing to
+ * the shadow database through its own client) and both durations and return
+ * codes are reported side by side. Only the return codes are compared, not
+ * the documents the two handlers wrote.
+ *
+ * The candidate has its own threads and bounded queues. Handing an event over
+ * never blocks the primary lane: when the candidate falls behind, events are
+ * dropped from the shadow run and counted. Events of one primary lane go to
+ * the same shadow thread, so the candidate sees each player's events in
+ * order, except for the dropped ones.
+ */
+@Service
+public class ShadowRunner {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(ShadowRunner.class);
+        private final ApplicationContext applicationContext;
+        private final PrometheusMetricsConfig metricsConfig;
+        private ChangeEventServiceInterface candidate;
+        private ThreadPoolExecutor[] threads;
+
+        @Value("${spring.shadow.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.shadow.handler:shadowChangeEventService}") // Bean name of the candidate handler
+        private String handlerName;
+
+        @Value("${spring.shadow.threads:2}") // Threads running the candidate, apart from the lanes
+        private int threadCount;
+
+        @Value("${spring.shadow.queuesize:10000}") // Events queued for the candidate, more are dropped
+        private int queueSize;
+
+        public enum Outcome {
+                SAME, // same return code as the primary
+                DIFFERENT, // different return code
+                ERROR, // the candidate threw
+                DROPPED; // the candidate's queue was full
+
+                String label() {
+                        return name().toLowerCase();
+                }
+        }
+
+        public ShadowRunner(ApplicationContext applicationContext, PrometheusMetricsConfig metricsConfig) {
+                this.applicationContext = applicationContext;
+                this.metricsConfig = metricsConfig;
+        }
+
+        @PostConstruct
+        public void init() {
+                if (!enabled) {
+                        return;
+                }
+                candidate = applicationContext.getBean(handlerName, ChangeEventServiceInterface.class);
+                threads = new ThreadPoolExecutor[Math.max(1, threadCount)];
+                for (int i = 0; i < threads.length; i++) {
+                        String name = "shadow-" + i;
+                        threads[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<>(Math.max(1, queueSize / threads.length)), runnable -> {
+                                                Thread thread = new Thread(runnable);
+                                                thread.setDaemon(true);
+                                                thread.setName(name);
+                                                thread.setPriority(Thread.MIN_PRIORITY);
+                                                return thread;
+                                        }, (runnable, executor) -> record(Outcome.DROPPED));
+                }
+                LOGGER.info("Shadow mode enabled, candidate handler {} on {} threads", handlerName, threads.length);
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        /**
+         * Queue the event for the candidate. Called on the primary lane after the
+         * primary handler returned; never blocks.
+         *
+         * @param event         not modified afterwards, it is copied on the
+         *                      shadow thread
+         * @param lane          the primary's lane, keeps a player's events in
+         *                      order
+         * @param primaryResult
+         * @param primaryNanos  time the primary handler took
+         */
+        public void offer(ChangeStreamDocument<Document> event, int lane, int primaryResult, long primaryNanos) {
+                if (!enabled) {
+                        return;
+                }
+                threads[Math.floorMod(lane, threads.length)].execute(() -> run(event, primaryResult, primaryNanos));
+        }
+
+        private void run(ChangeStreamDocument<Document> event, int primaryResult, long primaryNanos) {
+                int result;
+                long startNanos = System.nanoTime();
+                try {
+                        // the candidate must not see or make changes to the primary's document
+                        result = candidate.processChange(SyntheticChangeEvents.copy(event));
+                } catch (RuntimeException e) {
+                        record(Outcome.ERROR);
+                        LOGGER.debug("Candidate {} failed on event {}", handlerName, event, e);
+                        return;
+                }
+                long candidateNanos = System.nanoTime() - startNanos;
+                metricsConfig.shadowProcessDuration().labels("primary").observe(primaryNanos / 1_000_000_000.0);
+                metricsConfig.shadowProcessDuration().labels("candidate").observe(candidateNanos / 1_000_000_000.0);
+                if (result == primaryResult) {
+                        record(Outcome.SAME);
+                } else {
+                        record(Outcome.DIFFERENT);
+                        LOGGER.debug("Candidate {} returned {}, primary {}, for event {}", handlerName, result,
+                                        primaryResult, event);
+                }
+        }
+
+        private void record(Outcome outcome) {
+                metricsConfig.shadowReturnCodes().labels(outcome.label()).inc();
+        }
+
+        /**
+         * Run what is queued for the candidate, then stop its threads.
+         *
+         * @return true if every thread stopped within the timeout
+         */
+        public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+                if (threads == null) {
+                        return true;
+                }
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                for (ThreadPoolExecutor thread : threads) {
+                        thread.shutdown();
+                }
+                for (ThreadPoolExecutor thread : threads) {
+                        if (!thread.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        @PreDestroy
+        public void shutdown() {
+                if (threads == null) {
+                        return;
+                }
+                for (ThreadPoolExecutor thread : threads) {
+                        thread.shutdownNow();
+                }
+        }
+}
@@ -0,0 +1,242 @@
+package com.example.demo.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * StandbyCoordinator lets a second, fully started instance wait next to the
+ * active one. The standby keeps its Spring context, connection pool and JIT
+ * warm by following the active instance's checkpoints, and polls the stream
+ * lease so it can open the change stream as soon as the lease expires.
+ *
+ * The leader fences its own writes: it only counts on the lease until ttl,
+ * minus a margin, has passed on its monotonic clock since it sent the last
+ * successful acquire or renew. The server started the lease's ttl later than
+ * that, so the leader stops writing before a standby can take over, whatever
+ * the two hosts' wall clocks say.
+ */
+@Service
+public class StandbyCoordinator {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(StandbyCoordinator.class);
+        private final LeaseService leaseService;
+        private final ResumeTokenService resumeTokenService;
+        private final PrometheusMetricsConfig metricsConfig;
+        private ScheduledExecutorService renewer;
+        private volatile boolean leader;
+        private volatile boolean shuttingDown;
+        private volatile long leaseDeadlineNanos; // monotonic, when the leader stops counting on its lease
+
+        @Value("${spring.standby.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.standby.lease.name:${spring.mongodb.collection}}")
+        private String leaseName;
+
+        @Value("${spring.standby.lease.ttlms:3000}")
+        private long leaseTtlMillis;
+
+        @Value("${spring.standby.lease.renewms:1000}")
+        private long renewIntervalMillis;
+
+        @Value("${spring.standby.lease.marginms:500}") // Writes stop this long before the lease could expire
+        private long leaseMarginMillis;
+
+        @Value("${spring.standby.pollms:100}") // How often a standby checks the lease
+        private long pollIntervalMillis;
+
+        @Value("${spring.standby.followms:1000}") // How often a standby reads the active checkpoints
+        private long followIntervalMillis;
+
+        @Value("${spring.standby.instanceid:}")
+        private String instanceId;
+
+        public StandbyCoordinator(LeaseService leaseService, ResumeTokenService resumeTokenService,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.leaseService = leaseService;
+                this.resumeTokenService = resumeTokenService;
+                this.metricsConfig = metricsConfig;
+        }
+
+        @PostConstruct
+        public void init() {
+                if (instanceId == null || instanceId.isBlank()) {
+                        // pid@hostname, unique enough to tell two pods apart
+                        instanceId = ManagementFactory.getRuntimeMXBean().getName();
+                }
+                renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("lease-renewer");
+                        return thread;
+                });
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        public boolean isLeader() {
+                return leader;
+        }
+
+        /**
+         * @return true if this instance may write: standby is disabled, or it
+         *         leads and its lease cannot have expired yet
+         */
+        public boolean holdsLease() {
+                return !enabled || (leader && System.nanoTime() - leaseDeadlineNanos < 0);
+        }
+
+        /**
+         * Run the stream task whenever this instance owns the lease. Blocks the
+         * calling thread until shutdown.
+         *
+         * @param streamTask       blocking change stream loop
+         * @param onLeadershipLost callback that must make streamTask return
+         */
+        public void runWithLeadership(Runnable streamTask, Runnable onLeadershipLost) {
+                while (!shuttingDown) {
+                        if (!awaitLeadership()) {
+                                return;
+                        }
+                        ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(() -> renewLease(onLeadershipLost),
+                                        renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+                        try {
+                                streamTask.run();
+                        } catch (Exception e) {
+                                LOGGER.error("Change stream stopped with exception, re-checking lease {}", leaseName, e);
+                                pause();
+                        } finally {
+                                renewal.cancel(false);
+                        }
+                }
+        }
+
+        /**
+         * Poll the lease until we own it, following the active instance's
+         * checkpoints in the meantime.
+         *
+         * @return false if interrupted or shutting down
+         */
+        boolean awaitLeadership() {
+                long lastFollowMillis = 0;
+                while (!shuttingDown) {
+                        try {
+                                long sentNanos = System.nanoTime();
+                                Document previous = leaseService.tryAcquire(leaseName, instanceId, leaseTtlMillis);
+                                if (previous != null) {
+                                        onAcquired(previous, sentNanos);
+                                        return true;
+                                }
+                                long now = System.currentTimeMillis();
+                                if (now - lastFollowMillis >= followIntervalMillis) {
+                                        followCheckpoint();
+                                        lastFollowMillis = now;
+                                }
+                        } catch (Exception e) {
+                                LOGGER.warn("Failed to check stream lease {}: {}", leaseName, e.getMessage());
+                        }
+                        if (!pause()) {
+                                return false;
+                        }
+                }
+                return false;
+        }
+
+        private void onAcquired(Document previous, long sentNanos) {
+                extendDeadline(sentNanos);
+                leader = true;
+                metricsConfig.standbyLeaseHeld().set(1);
+
+                Date previousExpiry = previous.getDate("expiresAt");
+                String previousOwner = previous.getString("owner");
+                if (previousExpiry != null && !instanceId.equals(previousOwner)) {
+                        // server expiry against the local clock, only as exact as the clocks agree
+                        long latencyMillis = Math.max(0, System.currentTimeMillis() - previousExpiry.getTime());
+                        metricsConfig.standbyTakeoverLatency().set(latencyMillis);
+                        metricsConfig.standbyTakeovers().inc();
+                        LOGGER.info("Took over stream lease {} from {} {} ms after it expired", leaseName,
+                                        previousOwner, latencyMillis);
+                } else {
+                        LOGGER.info("Acquired stream lease {} as {}", leaseName, instanceId);
+                }
+        }
+
+        private void renewLease(Runnable onLeadershipLost) {
+                if (!leader) {
+                        return;
+                }
+                try {
+                        long sentNanos = System.nanoTime();
+                        if (leaseService.renew(leaseName, instanceId, leaseTtlMillis)) {
+                                extendDeadline(sentNanos);
+                                return;
+                        }
+                        LOGGER.warn("Stream lease {} is owned by another instance, stepping down", leaseName);
+                } catch (Exception e) {
+                        if (holdsLease()) {
+                                // still inside our lease, try again on the next tick
+                                LOGGER.warn("Failed to renew stream lease {}: {}", leaseName, e.getMessage());
+                                return;
+                        }
+                        LOGGER.error("Stream lease {} expired before it could be renewed, stepping down", leaseName, e);
+                }
+                leader = false;
+                metricsConfig.standbyLeaseHeld().set(0);
+                onLeadershipLost.run();
+        }
+
+        private void extendDeadline(long sentNanos) {
+                long validMillis = Math.max(0, leaseTtlMillis - leaseMarginMillis);
+                leaseDeadlineNanos = sentNanos + TimeUnit.MILLISECONDS.toNanos(validMillis);
+        }
+
+        private void followCheckpoint() {
+                Document checkpoint = resumeTokenService.getEarliestTokenDocument();
+                if (checkpoint != null && checkpoint.get("date") instanceof BsonTimestamp) {
+                        BsonTimestamp clusterTime = (BsonTimestamp) checkpoint.get("date");
+                        long lagSeconds = System.currentTimeMillis() / 1000 - clusterTime.getTime();
+                        metricsConfig.standbyCheckpointLag().set(lagSeconds);
+                }
+        }
+
+        private boolean pause() {
+                try {
+                        Thread.sleep(pollIntervalMillis);
+                        return true;
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                }
+        }
+
+        @PreDestroy
+        public void shutdown() {
+                shuttingDown = true;
+                if (renewer != null) {
+                        renewer.shutdownNow();
+                }
+                if (leader) {
+                        // hand over right away instead of letting the standby wait for the TTL
+                        leaseService.release(leaseName, instanceId);
+                        leader = false;
+                }
+        }
+}
@@ -0,0 +1,67 @@
+package com.example.demo.service;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * SyntheticChangeEvents builds ChangeStreamDocument instances for documents
+ * that did not come from a change stream (backfill, warm-up), by decoding the
+ * same raw event layout the server sends. Synthetic events carry no resume
+ * token, so processing them never moves a checkpoint.
+ */
+public final class SyntheticChangeEvents {
+
+        private static final CodecRegistry REGISTRY = MongoClientSettings.getDefaultCodecRegistry();
+        private static final Codec<ChangeStreamDocument<Document>> CODEC = ChangeStreamDocument
+                        .createCodec(Document.class, REGISTRY);
+
+        private SyntheticChangeEvents() {
+        }
+
+        /**
+         * An insert event for the given document.
+         *
+         * @param namespace   source collection
+         * @param fullDocument
+         * @param clusterTime
+         * @return
+         */
+        public static ChangeStreamDocument<Document> insert(MongoNamespace namespace, Document fullDocument,
+                        BsonTimestamp clusterTime) {
+                BsonDocument full = fullDocument.toBsonDocument(BsonDocument.class, REGISTRY);
+                BsonDocument raw = new BsonDocument("operationType", new BsonString("insert"))
+                                .append("clusterTime", clusterTime)
+                                .append("ns", new BsonDocument("db", new BsonString(namespace.getDatabaseName()))
+                                                .append("coll", new BsonString(namespace.getCollectionName())))
+                                .append("fullDocument", full);
+                if (full.containsKey("_id")) {
+                        raw.append("documentKey", new BsonDocument("_id", full.get("_id")));
+                }
+                return CODEC.decode(new BsonDocumentReader(raw), DecoderContext.builder().build());
+        }
+
+        /**
+         * A deep copy of the event, e.g. for a handler that must not see changes
+         * another handler makes to the same full document.
+         *
+         * @param event
+         * @return
+         */
+        public static ChangeStreamDocument<Document> copy(ChangeStreamDocument<Document> event) {
+                BsonDocument raw = new BsonDocument();
+                CODEC.encode(new BsonDocumentWriter(raw), event, EncoderContext.builder().build());
+                return CODEC.decode(new BsonDocumentReader(raw), DecoderContext.builder().build());
+        }
+}
@@ -0,0 +1,149 @@
+package com.example.demo.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TransactionFilter remembers which transactions were written to which
+ * player's day, as a blocked Bloom filter: the (playerID, gamingDate) pair
+ * picks one 512-bit block (a cache line), the transactionID sets a few bits
+ * within it. A lookup answers "definitely new" or "maybe written", so
+ * ChangeEventService can append a new transaction with a plain $push and keep
+ * the replace pipeline for possible duplicates.
+ *
+ * The filter starts empty and learns from the writes. A "definitely new"
+ * answer can be wrong after a restart or a rebuild, so the $push is guarded
+ * and falls back to the pipeline (see ChangeEventService). When the estimated
+ * false positive rate exceeds its limit, the filter is cleared and refilled
+ * by the following writes.
+ */
+public class TransactionFilter {
+
+        private static final int BLOCK_BITS = 512;
+        private static final int BLOCK_WORDS = BLOCK_BITS / Long.SIZE;
+
+        public enum Path {
+                PUSH, // definitely new, plain $push
+                PIPELINE, // maybe written, replace pipeline
+                FALLBACK // $push found the transaction after all, replace pipeline
+        }
+
+        private final boolean enabled;
+        private final int blocks;
+        private final int hashes;
+        private final double maxFalsePositiveRate;
+        private volatile AtomicLongArray words;
+        private final AtomicLong bitsSet = new AtomicLong();
+        private final AtomicLong rebuilds = new AtomicLong();
+        private final AtomicLong[] paths = new AtomicLong[Path.values().length];
+
+        /**
+         * @param enabled
+         * @param bits                 filter size, rounded down to whole blocks
+         * @param hashes               bits set per transaction
+         * @param maxFalsePositiveRate estimated rate at which the filter is
+         *                             cleared
+         */
+        public TransactionFilter(boolean enabled, long bits, int hashes, double maxFalsePositiveRate) {
+                this.enabled = enabled;
+                this.blocks = (int) Math.max(1, Math.min(bits / BLOCK_BITS, Integer.MAX_VALUE / BLOCK_WORDS));
+                this.hashes = Math.max(1, hashes);
+                this.maxFalsePositiveRate = maxFalsePositiveRate;
+                this.words = new AtomicLongArray(enabled ? blocks * BLOCK_WORDS : 0);
+                for (int i = 0; i < paths.length; i++) {
+                        paths[i] = new AtomicLong();
+                }
+        }
+
+        public boolean isEnabled() {
+                return enabled;
+        }
+
+        // 64-bit finalizer of MurmurHash3
+        private static long mix(long h) {
+                h ^= h >>> 33;
+                h *= 0xff51afd7ed558ccdL;
+                h ^= h >>> 33;
+                h *= 0xc4ceb9fe1a85ec53L;
+                return h ^ (h >>> 33);
+        }
+
+        private int blockBase(int playerID, long gamingDay) {
+                long h = mix(((long) playerID << 32) ^ gamingDay);
+                return (int) Math.floorMod(h, (long) blocks) * BLOCK_WORDS;
+        }
+
+        /**
+         * @return false only if the transaction was definitely not added since
+         *         the last rebuild
+         */
+        public boolean mightContain(int playerID, long gamingDay, int transactionID) {
+                if (!enabled) {
+                        return true;
+                }
+                AtomicLongArray current = words;
+                int base = blockBase(playerID, gamingDay);
+                long h = mix(transactionID * 0x9e3779b97f4a7c15L + playerID);
+                int h1 = (int) h;
+                int h2 = (int) (h >>> 32) | 1;
+                for (int i = 0; i < hashes; i++) {
+                        int bit = Math.floorMod(h1 + i * h2, BLOCK_BITS);
+                        if ((current.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        public void add(int playerID, long gamingDay, int transactionID) {
+                if (!enabled) {
+                        return;
+                }
+                AtomicLongArray current = words;
+                int base = blockBase(playerID, gamingDay);
+                long h = mix(transactionID * 0x9e3779b97f4a7c15L + playerID);
+                int h1 = (int) h;
+                int h2 = (int) (h >>> 32) | 1;
+                for (int i = 0; i < hashes; i++) {
+                        int bit = Math.floorMod(h1 + i * h2, BLOCK_BITS);
+                        long mask = 1L << bit;
+                        if ((current.getAndAccumulate(base + (bit >>> 6), mask, (a, b) -> a | b) & mask) == 0) {
+                                bitsSet.incrementAndGet();
+                        }
+                }
+                if (estimatedFalsePositiveRate() > maxFalsePositiveRate) {
+                        rebuild(current);
+                }
+        }
+
+        private synchronized void rebuild(AtomicLongArray full) {
+                if (words != full) {
+                        return; // another lane already cleared it
+                }
+                words = new AtomicLongArray(blocks * BLOCK_WORDS);
+                bitsSet.set(0);
+                rebuilds.incrementAndGet();
+        }
+
+        /**
+         * Rate for a uniformly filled filter, (bits set / bits)^hashes.
+         */
+        public double estimatedFalsePositiveRate() {
+                if (!enabled) {
+                        return 1.0;
+                }
+                return Math.pow((double) bitsSet.get() / ((long) blocks * BLOCK_BITS), hashes);
+        }
+
+        public void record(Path path) {
+                paths[path.ordinal()].incrementAndGet();
+        }
+
+        public long getPathCount(Path path) {
+                return paths[path.ordinal()].get();
+        }
+
+        public long getRebuilds() {
+                return rebuilds.get();
+        }
+}
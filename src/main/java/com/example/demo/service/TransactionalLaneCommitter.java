@@ -0,0 +1,365 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Histogram;
+
+/**
+ * TransactionalLaneCommitter applies a stream's events exactly once: every
+ * lane collects a micro-batch of its events and writes it, together with the
+ * lane's checkpoint, in one multi-document transaction. The batch's business
+ * writes and its resume token commit or abort together, so the cost of the
+ * majority commit is shared by the batch.
+ *
+ * Lanes have stable checkpoint names ("txn-lane-i"). The stream resumes from
+ * the earliest lane checkpoint, and each lane skips the replayed events at or
+ * before its own checkpoint, so committed work is never applied twice.
+ *
+ * A lane that gives up on a batch halts: its checkpoint stays before the
+ * batch and it drops its later events, so nothing after the batch is
+ * committed on the lane. The owner reopens the stream with new lanes once it
+ * sees isHalted, which replays the batch.
+ */
+public class TransactionalLaneCommitter {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(TransactionalLaneCommitter.class);
+        static final String LANE_PREFIX = "txn-lane-";
+        private static final long POLL_MILLIS = 100;
+        private static final TransactionOptions TRANSACTION_OPTIONS = TransactionOptions.builder()
+                        .readConcern(ReadConcern.MAJORITY).writeConcern(WriteConcern.MAJORITY).build();
+
+        /**
+         * Called on the lane's thread once a batch is committed, skipped or given
+         * up on.
+         */
+        public interface BatchListener {
+                void onBatchDone(int lane, List<ChangeStreamDocument<Document>> batch);
+
+                /**
+                 * Called on the lane's thread before the first attempt to commit the
+                 * batch's events that were not applied yet.
+                 */
+                default void onBatchStarted(int lane, List<ChangeStreamDocument<Document>> pending) {
+                }
+        }
+
+        private final String name;
+        private final ChangeEventServiceInterface handler;
+        private final ResumeTokenService tokenService;
+        private final MongoClient mongoClient;
+        private final int batchSize;
+        private final long maxWaitNanos;
+        private final int maxAttempts;
+        private final long retryDelayMillis;
+        private final BooleanSupplier leaseHeld;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final BatchListener listener;
+        private final List<BlockingQueue<ChangeStreamDocument<Document>>> queues = new ArrayList<>();
+        private final BsonDocument[] committed; // per lane, only touched by the lane's thread after start
+        private final AtomicIntegerArray retrying; // per lane, events of a failed batch waiting for another attempt
+        private final AtomicIntegerArray halted; // per lane, 1 once a batch was given up on
+        private final Thread[] workers;
+        private volatile boolean running = true;
+
+        /**
+         * @param name             stream name, thread name prefix and metrics label
+         * @param lanes
+         * @param handler
+         * @param tokenService     the stream's token store
+         * @param mongoClient
+         * @param batchSize        most events per transaction
+         * @param maxWaitMillis    longest wait for a batch to fill up
+         * @param maxAttempts      attempts per batch, after withTransaction's own
+         *                         retries of transient errors
+         * @param retryDelayMillis
+         * @param leaseHeld        false once the stream lease may belong to
+         *                         another instance, no batch commits then
+         * @param metricsConfig
+         * @param listener
+         */
+        public TransactionalLaneCommitter(String name, int lanes, ChangeEventServiceInterface handler,
+                        ResumeTokenService tokenService, MongoClient mongoClient, int batchSize, long maxWaitMillis,
+                        int maxAttempts, long retryDelayMillis, BooleanSupplier leaseHeld,
+                        PrometheusMetricsConfig metricsConfig, BatchListener listener) {
+                this.name = name;
+                this.handler = handler;
+                this.tokenService = tokenService;
+                this.mongoClient = mongoClient;
+                this.batchSize = Math.max(1, batchSize);
+                this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                this.maxAttempts = Math.max(1, maxAttempts);
+                this.retryDelayMillis = retryDelayMillis;
+                this.leaseHeld = leaseHeld;
+                this.metricsConfig = metricsConfig;
+                this.listener = listener;
+                this.committed = new BsonDocument[lanes];
+                this.retrying = new AtomicIntegerArray(lanes);
+                this.halted = new AtomicIntegerArray(lanes);
+                this.workers = new Thread[lanes];
+                for (int i = 0; i < lanes; i++) {
+                        // a few batches of headroom, the stream's in-flight limit bounds the rest
+                        queues.add(new ArrayBlockingQueue<>(4 * this.batchSize));
+                        int lane = i;
+                        workers[i] = new Thread(() -> run(lane));
+                        workers[i].setDaemon(true);
+                        workers[i].setName(name + "-" + LANE_PREFIX + i);
+                }
+        }
+
+        static String laneName(int lane) {
+                return LANE_PREFIX + lane;
+        }
+
+        /**
+         * Load the lanes' checkpoints and start the lane threads. When the number
+         * of lanes changed since the checkpoints were written, players moved to
+         * other lanes, so no lane may skip anything: the whole replay from the
+         * earliest checkpoint is applied again, relying on the handler being
+         * idempotent, and the checkpoints of removed lanes are dropped.
+         */
+        public TransactionalLaneCommitter start() {
+                int lanes = workers.length;
+                Set<String> expected = new HashSet<>();
+                for (int i = 0; i < lanes; i++) {
+                        expected.add(laneName(i));
+                }
+                Set<String> existing = new HashSet<>(tokenService.getThreadIDs(LANE_PREFIX));
+                if (existing.isEmpty() || existing.equals(expected)) {
+                        for (int i = 0; i < lanes; i++) {
+                                committed[i] = tokenService.getThreadResumeToken(laneName(i));
+                        }
+                } else {
+                        LOGGER.warn("Stream {} had lanes {}, now {}: replaying without skipping", name, existing,
+                                        expected);
+                        for (String threadID : existing) {
+                                if (!expected.contains(threadID)) {
+                                        tokenService.deleteThreadResumeToken(threadID);
+                                }
+                        }
+                }
+                for (Thread worker : workers) {
+                        worker.start();
+                }
+                return this;
+        }
+
+        /**
+         * Pin lanes without a checkpoint to the position the stream starts from,
+         * so the earliest checkpoint never lies after an event such a lane has
+         * not committed yet, then drop the checkpoints of event commit mode,
+         * which would hold the resume position back for good. Call after opening
+         * the cursor, before its first event; lanes that get no events are moved
+         * on by advanceIdle.
+         */
+        public void seed(BsonDocument startToken) {
+                long seconds = ResumeTokenService.clusterTimeSeconds(startToken);
+                if (seconds < 0) {
+                        LOGGER.warn("Cannot seed lane checkpoints of stream {} from token {}", name, startToken);
+                        return;
+                }
+                for (int i = 0; i < workers.length; i++) {
+                        tokenService.seedResumeToken(new BsonTimestamp((int) seconds, 0), startToken, laneName(i));
+                }
+                List<String> prefixes = new ArrayList<>(LaneHighWaterMarks.THREAD_PREFIXES);
+                prefixes.add(LaneHighWaterMarks.LANE_PREFIX);
+                List<String> replaced = LaneHighWaterMarks.dropCheckpoints(tokenService, prefixes);
+                if (!replaced.isEmpty()) {
+                        LOGGER.info("Stream {} replaced checkpoints {} by transactional lane checkpoints", name,
+                                        replaced);
+                }
+        }
+
+        /**
+         * Move the checkpoint of a lane with nothing queued or in flight to the
+         * reader's position, so a lane without events does not hold the stream's
+         * resume position back. A halted lane keeps its checkpoint. Called on the
+         * reader thread, which is the only one submitting events.
+         *
+         * @param token resume token of the last event the reader handed out
+         */
+        public void advanceIdle(int lane, BsonTimestamp clusterTime, BsonDocument token) {
+                if (halted.get(lane) != 0 || !leaseHeld.getAsBoolean()) {
+                        return;
+                }
+                tokenService.saveResumeToken(clusterTime, token, laneName(lane));
+        }
+
+        /**
+         * @return true once a lane gave up on a batch; the stream must be
+         *         reopened with new lanes to replay it
+         */
+        public boolean isHalted() {
+                for (int i = 0; i < halted.length(); i++) {
+                        if (halted.get(i) != 0) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * Queue an event for its lane. Blocks while the lane is a few batches
+         * behind.
+         */
+        public void submit(ChangeStreamDocument<Document> event, int lane) throws InterruptedException {
+                queues.get(lane).put(event);
+        }
+
+        private void run(int lane) {
+                BlockingQueue<ChangeStreamDocument<Document>> queue = queues.get(lane);
+                List<ChangeStreamDocument<Document>> batch = new ArrayList<>(batchSize);
+                try {
+                        while (true) {
+                                ChangeStreamDocument<Document> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                                if (first == null) {
+                                        if (!running) {
+                                                return;
+                                        }
+                                        continue;
+                                }
+                                batch.add(first);
+                                long deadline = System.nanoTime() + maxWaitNanos;
+                                while (batch.size() < batchSize) {
+                                        queue.drainTo(batch, batchSize - batch.size());
+                                        long remaining = deadline - System.nanoTime();
+                                        if (batch.size() >= batchSize || remaining <= 0) {
+                                                break;
+                                        }
+                                        ChangeStreamDocument<Document> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                                        if (next == null) {
+                                                break;
+                                        }
+                                        batch.add(next);
+                                }
+                                try {
+                                        commit(lane, batch);
+                                } finally {
+                                        retrying.set(lane, 0);
+                                        listener.onBatchDone(lane, batch);
+                                        batch.clear();
+                                }
+                        }
+                } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        private void commit(int lane, List<ChangeStreamDocument<Document>> batch) throws InterruptedException {
+                if (halted.get(lane) != 0) {
+                        // replayed after the reopen, committing them would move the checkpoint past the failed batch
+                        LOGGER.debug("Dropping {} events on halted {} lane {}", batch.size(), name, lane);
+                        return;
+                }
+                List<ChangeStreamDocument<Document>> pending = new ArrayList<>(batch.size());
+                ChangeStreamDocument<Document> last = null; // newest event that carries a resume token
+                for (ChangeStreamDocument<Document> event : batch) {
+                        BsonDocument token = event.getResumeToken();
+                        if (token != null && committed[lane] != null
+                                        && ResumeTokenService.compare(token, committed[lane]) <= 0) {
+                                // replayed after a restart, already part of a committed batch
+                                metricsConfig.txnReplaySkipped().labels(name).inc();
+                                continue;
+                        }
+                        pending.add(event);
+                        if (token != null) {
+                                last = event;
+                        }
+                }
+                if (pending.isEmpty()) {
+                        return;
+                }
+                listener.onBatchStarted(lane, pending);
+                ChangeStreamDocument<Document> checkpoint = last;
+                for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                        Histogram.Timer timer = metricsConfig.txnCommitDuration().labels(name).startTimer();
+                        try (ClientSession session = mongoClient.startSession()) {
+                                int ret = session.withTransaction(() -> {
+                                        if (!leaseHeld.getAsBoolean()) {
+                                                throw new IllegalStateException("Stream lease of " + name + " is not held");
+                                        }
+                                        int result = handler.processChanges(session, pending);
+                                        if (checkpoint != null) {
+                                                tokenService.saveResumeToken(session, checkpoint.getClusterTime(),
+                                                                checkpoint.getResumeToken(), laneName(lane));
+                                        }
+                                        return result;
+                                }, TRANSACTION_OPTIONS);
+                                timer.observeDuration();
+                                metricsConfig.txnBatchSize().labels(name).observe(pending.size());
+                                if (ret == 0) {
+                                        metricsConfig.totalEventsHandledSuccessfully().inc(pending.size());
+                                }
+                                if (checkpoint != null) {
+                                        committed[lane] = checkpoint.getResumeToken();
+                                }
+                                return;
+                        } catch (MongoException e) {
+                                LOGGER.warn("Batch of {} events on {} lane {} failed (attempt {}/{}): {}", pending.size(),
+                                                name, lane, attempt, maxAttempts, e.getMessage());
+                                if (attempt < maxAttempts) {
+                                        retrying.set(lane, pending.size());
+                                        TimeUnit.MILLISECONDS.sleep(retryDelayMillis * attempt);
+                                }
+                        } catch (RuntimeException e) {
+                                // not a database error, another attempt would fail the same way
+                                LOGGER.error("Batch of {} events on {} lane {} failed", pending.size(), name, lane, e);
+                                break;
+                        }
+                }
+                metricsConfig.txnBatchFailures().labels(name).inc();
+                halted.set(lane, 1);
+                LOGGER.error("Giving up on a batch of {} events on {} lane {}, halting the lane until the stream is "
+                                + "reopened, first event: {}", pending.size(), name, lane, pending.get(0));
+        }
+
+        /**
+         * @return events of the lane's batch waiting for another attempt, 0 while
+         *         it is not retrying
+         */
+        public int retrying(int lane) {
+                return retrying.get(lane);
+        }
+
+        /**
+         * Commit what is queued and stop the lane threads.
+         *
+         * @return true if every lane stopped within the timeout
+         */
+        public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+                running = false;
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                for (Thread worker : workers) {
+                        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remainingMillis > 0) {
+                                worker.join(remainingMillis);
+                        }
+                        if (worker.isAlive()) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+}
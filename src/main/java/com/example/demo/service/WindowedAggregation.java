@@ -0,0 +1,549 @@
+package com.example.demo.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import io.prometheus.client.Histogram;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * WindowedAggregation keeps rolling per-player aggregates (count, sum and max
+ * of the transaction value) over event-time windows, inside the mediator's
+ * lanes. Each window is declared as name:sizeMs[:slideMs]; without a slide it
+ * is tumbling. Only inserted transactions are counted, by their "date".
+ *
+ * A lane keeps one LongAggregateMap per window, keyed by playerID and pane (a
+ * slide-sized slice of time). A window is emitted to the target collection,
+ * one upsert per player in unordered batches, once the lane's watermark (its
+ * newest event time minus the allowed lateness) passes the window's end;
+ * events older than every window still open are counted as late and dropped.
+ * The writes run on the lane's thread; while they fail the lane retries after
+ * a growing backoff and keeps at most maxpending upserts, dropping the oldest.
+ * Coalescing would turn inserts into updates, so the mediator refuses it
+ * together with windows.
+ * A lane's windows only advance with that lane's events.
+ *
+ * Every snapshotms a lane writes its open panes to the snapshot collection
+ * and a checkpoint ("window-lane-i") pointing at them. That checkpoint holds
+ * the stream's resume position back to the snapshot, and after a restart the
+ * lane restores its panes and skips the replayed events the snapshot already
+ * contains. A lane without events is snapshotted at the reader's position
+ * instead, see advanceIdle. Re-emitted windows overwrite their earlier copies.
+ */
+@Service
+public class WindowedAggregation {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(WindowedAggregation.class);
+        static final String LANE_PREFIX = "window-lane-";
+        private static final int FORMAT = 1;
+        private static final int CHUNK_BYTES = 8 * 1024 * 1024; // well below the 16 MB document limit
+        private final MongoCollection<Document> windowCollection;
+        private final MongoCollection<Document> snapshotCollection;
+        private final PrometheusMetricsConfig metricsConfig;
+        private final Map<String, Lane[]> streams = new ConcurrentHashMap<>();
+        private List<WindowSpec> windowSpecs = List.of();
+
+        @Value("${spring.windows.enabled:false}")
+        private boolean enabled;
+
+        @Value("${spring.windows.specs:value1h:3600000:300000,txns5m:300000}") // name:sizeMs[:slideMs], ...
+        private String[] specs;
+
+        @Value("${spring.windows.latenessms:60000}") // How long a window waits for out-of-order events
+        private long latenessMillis;
+
+        @Value("${spring.windows.batchsize:500}") // Window upserts per bulk write
+        private int batchSize;
+
+        @Value("${spring.windows.snapshotms:10000}") // Interval between snapshots of a lane's open windows
+        private long snapshotMillis;
+
+        @Value("${spring.windows.maxpending:100000}") // Most window upserts a lane queues while writes fail
+        private int maxPending;
+
+        @Value("${spring.windows.retryms:1000}") // First wait after a failed write, doubled up to a minute
+        private long retryMillis;
+
+        public record WindowSpec(String name, long sizeMillis, long slideMillis) {
+
+                /**
+                 * @param spec name:sizeMs[:slideMs]; the size must be a multiple of
+                 *             the slide, the slide at least a second
+                 */
+                public static WindowSpec parse(String spec) {
+                        String[] parts = spec.trim().split(":");
+                        if (parts.length < 2 || parts.length > 3) {
+                                throw new IllegalArgumentException("Expected name:sizeMs[:slideMs], got " + spec);
+                        }
+                        long size = Long.parseLong(parts[1]);
+                        long slide = parts.length == 3 ? Long.parseLong(parts[2]) : size;
+                        if (slide < 1000 || size < slide || size % slide != 0) {
+                                throw new IllegalArgumentException("Window " + spec
+                                                + " needs a slide of at least 1000 ms that divides its size");
+                        }
+                        return new WindowSpec(parts[0], size, slide);
+                }
+        }
+
+        private static final class SpecState {
+                private final WindowSpec spec;
+                private LongAggregateMap panes = new LongAggregateMap();
+                private long nextEnd; // end of the next window to emit, 0 before the first event
+
+                SpecState(WindowSpec spec) {
+                        this.spec = spec;
+                }
+        }
+
+        /**
+         * One lane's windows, only touched by the lane's thread.
+         */
+        private static final class Lane {
+                private final SpecState[] specs;
+                private final LongAggregateMap players = new LongAggregateMap(); // scratch for one window
+                private final List<UpdateOneModel<Document>> pending = new ArrayList<>();
+                private long maxEventMillis = Long.MIN_VALUE;
+                private BsonDocument appliedToken; // restored snapshot's position, null once passed
+                private BsonDocument lastToken;
+                private BsonTimestamp lastClusterTime;
+                private long lastSnapshotNanos = System.nanoTime();
+                private long snapshotSeq;
+                private long nextFlushNanos = System.nanoTime();
+                private long flushBackoffMillis; // 0 while writes succeed
+
+                Lane(List<WindowSpec> windowSpecs) {
+                        specs = new SpecState[windowSpecs.size()];
+                        for (int i = 0; i < specs.length; i++) {
+                                specs[i] = new SpecState(windowSpecs.get(i));
+                        }
+                }
+        }
+
+        public WindowedAggregation(@Qualifier("playerWindowCollection") MongoCollection<Document> windowCollection,
+                        @Qualifier("windowSnapshotCollection") MongoCollection<Document> snapshotCollection,
+                        PrometheusMetricsConfig metricsConfig) {
+                this.windowCollection = windowCollection;
+                this.snapshotCollection = snapshotCollection;
+                this.metricsConfig = metricsConfig;
+        }
+
+        @PostConstruct
+        public void init() {
+                List<WindowSpec> parsed = new ArrayList<>();
+                for (String spec : specs) {
+                        if (!spec.isBlank()) {
+                                parsed.add(WindowSpec.parse(spec));
+                        }
+                }
+                windowSpecs = List.copyOf(parsed);
+                if (enabled) {
+                        LOGGER.info("Windowed aggregation enabled: {}, allowed lateness {} ms", windowSpecs,
+                                        latenessMillis);
+                }
+        }
+
+        public boolean isEnabled() {
+                return enabled && !windowSpecs.isEmpty();
+        }
+
+        static String laneName(int lane) {
+                return LANE_PREFIX + lane;
+        }
+
+        private static long key(int playerID, long pane) {
+                return ((long) playerID << 32) | (pane & 0xffffffffL);
+        }
+
+        private static long pane(long key) {
+                return key & 0xffffffffL;
+        }
+
+        /**
+         * Restore the stream's lanes from their snapshots, or start them empty.
+         * When the number of lanes changed, players moved to other lanes, so the
+         * snapshots are dropped and the windows start over. Call before opening
+         * the cursor.
+         *
+         * @return per lane the position its snapshot contains, or null
+         */
+        public BsonDocument[] restore(ChangeStreamContext stream, int lanes) {
+                ResumeTokenService tokens = stream.getResumeTokenService();
+                // no-ops when the indexes exist
+                windowCollection.createIndex(Indexes.ascending("playerID", "window", "end"),
+                                new IndexOptions().unique(true).background(true));
+                snapshotCollection.createIndex(Indexes.ascending("namespace", "threadID", "seq", "chunk"),
+                                new IndexOptions().background(true));
+
+                Set<String> expected = new HashSet<>();
+                for (int i = 0; i < lanes; i++) {
+                        expected.add(laneName(i));
+                }
+                Set<String> existing = new HashSet<>(tokens.getThreadIDs(LANE_PREFIX));
+                boolean reuse = existing.isEmpty() || existing.equals(expected);
+                if (!reuse) {
+                        LOGGER.warn("Stream {} had window lanes {}, now {}: windows start over", stream.getName(),
+                                        existing, expected);
+                        for (String threadID : existing) {
+                                tokens.deleteThreadResumeToken(threadID);
+                                snapshotCollection.deleteMany(chunksOf(tokens, threadID));
+                        }
+                }
+                Lane[] state = new Lane[lanes];
+                BsonDocument[] restored = new BsonDocument[lanes];
+                for (int i = 0; i < lanes; i++) {
+                        state[i] = new Lane(windowSpecs);
+                        Document pointer = reuse ? tokens.getThreadTokenDocument(laneName(i)) : null;
+                        if (pointer == null) {
+                                continue;
+                        }
+                        try {
+                                restoreLane(state[i], tokens, laneName(i), pointer);
+                                restored[i] = state[i].appliedToken;
+                        } catch (IOException | RuntimeException e) {
+                                LOGGER.warn("Cannot restore windows of stream {} lane {}, starting over: {}",
+                                                stream.getName(), i, e.getMessage());
+                                state[i] = new Lane(windowSpecs);
+                        }
+                }
+                streams.put(stream.getName(), state);
+                return restored;
+        }
+
+        /**
+         * Drop the stream's window checkpoints and their snapshots, for a stream
+         * watched without windows, e.g. after spring.windows.enabled was turned
+         * off: nothing moves those checkpoints any more, and the stream resumes
+         * from its earliest checkpoint. Windows turned on again start over.
+         *
+         * @return threadIDs of the dropped checkpoints
+         */
+        public List<String> dropLanes(ChangeStreamContext stream) {
+                ResumeTokenService tokens = stream.getResumeTokenService();
+                List<String> dropped = tokens.getThreadIDs(LANE_PREFIX);
+                for (String threadID : dropped) {
+                        tokens.deleteThreadResumeToken(threadID);
+                        snapshotCollection.deleteMany(chunksOf(tokens, threadID));
+                }
+                streams.remove(stream.getName());
+                return dropped;
+        }
+
+        private Bson chunksOf(ResumeTokenService tokens, String threadID) {
+                return Filters.and(Filters.eq("namespace", tokens.getNamespace()), Filters.eq("threadID", threadID));
+        }
+
+        private void restoreLane(Lane lane, ResumeTokenService tokens, String threadID, Document pointer)
+                        throws IOException {
+                long seq = pointer.get("windowSeq", Number.class).longValue();
+                int chunks = pointer.get("windowChunks", Number.class).intValue();
+                // chunks of a snapshot that was written but never committed by its checkpoint
+                snapshotCollection.deleteMany(Filters.and(chunksOf(tokens, threadID), Filters.ne("seq", seq)));
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                int found = 0;
+                for (Document chunk : snapshotCollection.find(Filters.and(chunksOf(tokens, threadID),
+                                Filters.eq("seq", seq))).sort(Sorts.ascending("chunk"))) {
+                        bytes.write(chunk.get("data", Binary.class).getData());
+                        found++;
+                }
+                if (found != chunks) {
+                        throw new IOException("snapshot " + seq + " has " + found + " of " + chunks + " chunks");
+                }
+                decode(lane, bytes.toByteArray());
+                Document token = pointer.get("resumeToken", Document.class);
+                lane.appliedToken = new BsonDocument("_data", new BsonString(token.getString("_data")));
+                lane.snapshotSeq = seq;
+        }
+
+        /**
+         * Count the event in the lane's windows and emit the windows its lane's
+         * watermark passed. Called on the lane's thread after the event was
+         * handled.
+         */
+        public void onEvent(ChangeStreamContext stream, int laneIndex, ChangeStreamDocument<Document> event) {
+                Lane[] lanes = streams.get(stream.getName());
+                if (lanes == null) {
+                        return; // not restored, the stream is not watched
+                }
+                Lane lane = lanes[laneIndex];
+                BsonDocument token = event.getResumeToken();
+                if (lane.appliedToken != null && token != null) {
+                        if (ResumeTokenService.compare(token, lane.appliedToken) <= 0) {
+                                return; // replayed, already part of the restored snapshot
+                        }
+                        lane.appliedToken = null;
+                }
+                if (event.getOperationType() == OperationType.INSERT) {
+                        aggregate(stream.getName(), lane, event.getFullDocument());
+                }
+                if (token != null) {
+                        lane.lastToken = token;
+                        lane.lastClusterTime = event.getClusterTime();
+                }
+                emit(stream.getName(), lane);
+                flush(stream.getName(), lane);
+                if (lane.pending.isEmpty() && lane.lastToken != null
+                                && System.nanoTime() - lane.lastSnapshotNanos >= TimeUnit.MILLISECONDS.toNanos(snapshotMillis)) {
+                        snapshot(stream, laneIndex, lane);
+                }
+        }
+
+        /**
+         * Snapshot a lane that has nothing queued at the reader's position, so
+         * its checkpoint does not hold the stream's resume position back to its
+         * last event. Called on the reader thread once every event dispatched to
+         * the lane is done; the lane's thread does not touch it until the reader
+         * dispatches the next one. Rate limited like the lane's own snapshots,
+         * and skipped while window upserts are still queued.
+         *
+         * @param token resume token of the last event the reader handed out
+         */
+        public void advanceIdle(ChangeStreamContext stream, int laneIndex, BsonTimestamp clusterTime,
+                        BsonDocument token) {
+                Lane[] lanes = streams.get(stream.getName());
+                if (lanes == null || token == null) {
+                        return;
+                }
+                Lane lane = lanes[laneIndex];
+                if (lane.lastToken == null && lane.snapshotSeq == 0) {
+                        return; // no checkpoint yet, nothing to move
+                }
+                if (!lane.pending.isEmpty()
+                                || System.nanoTime() - lane.lastSnapshotNanos < TimeUnit.MILLISECONDS.toNanos(snapshotMillis)) {
+                        return;
+                }
+                // during a replay the reader may hand out events the lane's snapshot already contains
+                BsonDocument position = lane.lastToken != null ? lane.lastToken : lane.appliedToken;
+                if (position != null && ResumeTokenService.compare(token, position) <= 0) {
+                        return;
+                }
+                lane.appliedToken = null;
+                lane.lastToken = token;
+                lane.lastClusterTime = clusterTime;
+                snapshot(stream, laneIndex, lane);
+        }
+
+        private void aggregate(String streamName, Lane lane, Document transaction) {
+                if (transaction == null || !(transaction.get("playerID") instanceof Integer playerID)
+                                || !(transaction.get("date") instanceof Date date)
+                                || !(transaction.get("value") instanceof Number value)) {
+                        return;
+                }
+                long eventMillis = date.getTime();
+                lane.maxEventMillis = Math.max(lane.maxEventMillis, eventMillis);
+                for (SpecState state : lane.specs) {
+                        long slide = state.spec.slideMillis();
+                        long pane = Math.floorDiv(eventMillis, slide);
+                        if (state.nextEnd == 0) {
+                                // the first window to emit is the first one still open at this watermark
+                                state.nextEnd = (Math.floorDiv(eventMillis - latenessMillis, slide) + 1) * slide;
+                        } else if (pane * slide + state.spec.sizeMillis() <= state.nextEnd - slide) {
+                                // every window containing the event is already emitted
+                                metricsConfig.windowLateEvents().labels(streamName).inc();
+                                continue;
+                        }
+                        state.panes.add(key(playerID, pane), value.doubleValue());
+                }
+        }
+
+        private void emit(String streamName, Lane lane) {
+                if (lane.maxEventMillis == Long.MIN_VALUE) {
+                        return;
+                }
+                long watermark = lane.maxEventMillis - latenessMillis;
+                for (SpecState state : lane.specs) {
+                        long slide = state.spec.slideMillis();
+                        while (state.nextEnd != 0 && state.nextEnd <= watermark) {
+                                long minPane = emitWindow(streamName, lane, state, state.nextEnd);
+                                if (minPane == Long.MAX_VALUE) {
+                                        // nothing open, continue with the first window after the watermark
+                                        state.nextEnd = (Math.floorDiv(watermark, slide) + 1) * slide;
+                                        break;
+                                }
+                                // skip the empty windows before the oldest open pane
+                                state.nextEnd = Math.max(state.nextEnd + slide, (minPane + 1) * slide);
+                        }
+                }
+        }
+
+        /**
+         * Queue one upsert per player for the window ending at end, then drop the
+         * panes no later window contains.
+         *
+         * @return the oldest pane left, Long.MAX_VALUE if none
+         */
+        private long emitWindow(String streamName, Lane lane, SpecState state, long end) {
+                WindowSpec spec = state.spec;
+                long start = end - spec.sizeMillis();
+                long firstPane = start / spec.slideMillis();
+                long lastPane = end / spec.slideMillis() - 1;
+                LongAggregateMap players = lane.players;
+                players.clear();
+                state.panes.forEach((key, count, sum, max) -> {
+                        long pane = pane(key);
+                        if (pane >= firstPane && pane <= lastPane) {
+                                players.merge(key >> 32, count, sum, max);
+                        }
+                });
+                Date startDate = new Date(start);
+                Date endDate = new Date(end);
+                players.forEach((playerID, count, sum, max) -> lane.pending.add(new UpdateOneModel<>(
+                                new Document("playerID", (int) playerID).append("window", spec.name()).append("end", endDate),
+                                new Document("$set", new Document("start", startDate).append("count", count)
+                                                .append("sum", sum).append("max", max)),
+                                new UpdateOptions().upsert(true))));
+                metricsConfig.windowEmitted().labels(streamName, spec.name()).inc(players.size());
+
+                // the last window containing a pane ends at the pane's start plus the size
+                state.panes.removeIf(key -> pane(key) * spec.slideMillis() + spec.sizeMillis() <= end);
+                long[] minPane = { Long.MAX_VALUE };
+                state.panes.forEach((key, count, sum, max) -> minPane[0] = Math.min(minPane[0], pane(key)));
+                return minPane[0];
+        }
+
+        /**
+         * Write the queued window upserts in batches. On failure the rest stays
+         * queued, no snapshot is taken meanwhile and the lane does not try again
+         * before the backoff passed, so its events are not held up by a write
+         * that keeps failing. Beyond maxpending the oldest upserts are dropped.
+         */
+        private void flush(String streamName, Lane lane) {
+                List<UpdateOneModel<Document>> pending = lane.pending;
+                if (pending.size() > maxPending) {
+                        int dropped = pending.size() - maxPending;
+                        pending.subList(0, dropped).clear();
+                        metricsConfig.windowDropped().labels(streamName).inc(dropped);
+                }
+                if (pending.isEmpty() || System.nanoTime() - lane.nextFlushNanos < 0) {
+                        return;
+                }
+                try {
+                        while (!pending.isEmpty()) {
+                                List<UpdateOneModel<Document>> batch = pending.subList(0,
+                                                Math.min(pending.size(), Math.max(1, batchSize)));
+                                windowCollection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+                                batch.clear();
+                        }
+                        lane.flushBackoffMillis = 0;
+                } catch (MongoException e) {
+                        lane.flushBackoffMillis = Math.min(60_000L, Math.max(retryMillis, lane.flushBackoffMillis * 2));
+                        lane.nextFlushNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.flushBackoffMillis);
+                        metricsConfig.windowEmitFailures().labels(streamName).inc();
+                        LOGGER.warn("Writing {} windows of stream {} failed, retrying in {} ms: {}", pending.size(),
+                                        streamName, lane.flushBackoffMillis, e.getMessage());
+                }
+        }
+
+        /**
+         * Write the lane's open panes, then commit them with the checkpoint that
+         * points at them, then drop the previous snapshot.
+         */
+        private void snapshot(ChangeStreamContext stream, int laneIndex, Lane lane) {
+                ResumeTokenService tokens = stream.getResumeTokenService();
+                String threadID = laneName(laneIndex);
+                long seq = ++lane.snapshotSeq;
+                Histogram.Timer timer = metricsConfig.windowSnapshotDuration().startTimer();
+                try {
+                        byte[] bytes = encode(lane);
+                        List<Document> chunks = new ArrayList<>();
+                        for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES) {
+                                chunks.add(new Document("namespace", tokens.getNamespace()).append("threadID", threadID)
+                                                .append("seq", seq).append("chunk", chunks.size())
+                                                .append("data", new Binary(Arrays.copyOfRange(bytes, offset,
+                                                                Math.min(bytes.length, offset + CHUNK_BYTES)))));
+                        }
+                        snapshotCollection.insertMany(chunks);
+                        tokens.saveResumeToken(lane.lastClusterTime, lane.lastToken, threadID,
+                                        new Document("windowSeq", seq).append("windowChunks", chunks.size()));
+                        snapshotCollection.deleteMany(Filters.and(chunksOf(tokens, threadID), Filters.lt("seq", seq)));
+                        int entries = 0;
+                        for (SpecState state : lane.specs) {
+                                entries += state.panes.size();
+                        }
+                        metricsConfig.windowStateEntries().labels(stream.getName(), String.valueOf(laneIndex))
+                                        .set(entries);
+                } catch (IOException | MongoException e) {
+                        LOGGER.warn("Snapshot of windows of stream {} lane {} failed: {}", stream.getName(), laneIndex,
+                                        e.getMessage());
+                } finally {
+                        timer.observeDuration();
+                        lane.lastSnapshotNanos = System.nanoTime();
+                }
+        }
+
+        private static byte[] encode(Lane lane) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(FORMAT);
+                out.writeLong(lane.maxEventMillis);
+                out.writeInt(lane.specs.length);
+                for (SpecState state : lane.specs) {
+                        out.writeUTF(state.spec.name());
+                        out.writeLong(state.spec.sizeMillis());
+                        out.writeLong(state.spec.slideMillis());
+                        out.writeLong(state.nextEnd);
+                        state.panes.writeTo(out);
+                }
+                out.flush();
+                return bytes.toByteArray();
+        }
+
+        /**
+         * Windows whose declaration changed since the snapshot start empty.
+         */
+        private static void decode(Lane lane, byte[] bytes) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                if (in.readInt() != FORMAT) {
+                        throw new IOException("unknown snapshot format");
+                }
+                lane.maxEventMillis = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                        WindowSpec spec = new WindowSpec(in.readUTF(), in.readLong(), in.readLong());
+                        long nextEnd = in.readLong();
+                        LongAggregateMap panes = LongAggregateMap.readFrom(in);
+                        for (SpecState state : lane.specs) {
+                                if (state.spec.equals(spec)) {
+                                        state.nextEnd = nextEnd;
+                                        state.panes = panes;
+                                }
+                        }
+                }
+        }
+}
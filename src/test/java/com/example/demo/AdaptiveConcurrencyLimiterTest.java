@@ -0,0 +1,67 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+
+class AdaptiveConcurrencyLimiterTest {
+
+        @Test
+        void testLimitGrowsOnFastWrites() {
+                // Limit 1 is always fully used by a single writer, so every fast write grows it
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 1, 8, 1, 1000, 0.5);
+
+                for (int i = 0; i < 20; i++) {
+                        limiter.execute(() -> "ok");
+                }
+
+                assertTrue(limiter.getLimit() > 1.0);
+                assertTrue(limiter.getLimit() <= 8.0);
+                assertEquals(0, limiter.getInFlight());
+        }
+
+        @Test
+        void testLimitShrinksOnFailure() {
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 2, 16, 16, 1000, 0.5);
+
+                assertThrows(IllegalStateException.class, () -> limiter.execute(() -> {
+                        throw new IllegalStateException("write failed");
+                }));
+
+                assertEquals(8.0, limiter.getLimit(), 0.001);
+                assertEquals(1, limiter.getFailures());
+                assertEquals(0, limiter.getInFlight());
+        }
+
+        @Test
+        void testLimitNeverDropsBelowMinimum() throws InterruptedException {
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 2, 16, 4, 0, 0.1);
+
+                for (int i = 0; i < 5; i++) {
+                        limiter.execute(() -> {
+                                try {
+                                        Thread.sleep(2);
+                                } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                }
+                                return null;
+                        });
+                }
+
+                assertEquals(2.0, limiter.getLimit(), 0.001);
+        }
+
+        @Test
+        void testDisabledLimiterIsPassThrough() throws InterruptedException {
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 1, 0.5);
+
+                assertEquals("ok", limiter.execute(() -> "ok"));
+                assertFalse(limiter.awaitNotSaturated(10));
+                assertEquals(0, limiter.getRejections());
+        }
+}
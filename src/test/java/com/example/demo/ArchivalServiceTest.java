@@ -0,0 +1,180 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+import com.example.demo.service.ArchivalService;
+import com.example.demo.service.StandbyCoordinator;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.result.DeleteResult;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+public class ArchivalServiceTest {
+
+        @Mock
+        private MongoCollection<Document> userDailyTxnCollection;
+
+        @Mock
+        private MongoCollection<Document> archiveCollection;
+
+        @Mock
+        private AdaptiveConcurrencyLimiter writeLimiter;
+
+        @Mock
+        private StandbyCoordinator standbyCoordinator;
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private FindIterable<Document> findIterable;
+
+        private ArchivalService archivalService;
+
+        private static Date day(int year, int month, int dayOfMonth) {
+                return Date.from(LocalDate.of(year, month, dayOfMonth).atStartOfDay(ZoneOffset.UTC).toInstant());
+        }
+
+        private static Document dailyDoc(int playerID, Date gamingDate) {
+                return new Document("_id", playerID).append("playerID", playerID).append("gamingDate", gamingDate)
+                                .append("name", "p" + playerID).append("lastModified", new Date())
+                                .append("txns", List.of(new Document("transactionID", 1).append("value", 5.0)))
+                                .append("txnCount", 1).append("totalValue", 5.0).append("minValue", 5.0)
+                                .append("maxValue", 5.0);
+        }
+
+        @BeforeEach
+        @SuppressWarnings("unchecked")
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                Histogram histogram = mock(Histogram.class);
+                when(histogram.startTimer()).thenReturn(mock(Histogram.Timer.class));
+                when(metricsConfig.archiveBatchDuration()).thenReturn(histogram);
+                Counter counter = mock(Counter.class);
+                when(counter.labels(any(String.class))).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.archivedDocuments()).thenReturn(counter);
+                when(metricsConfig.archivePaused()).thenReturn(mock(Counter.class));
+                when(metricsConfig.archiveBacklog()).thenReturn(mock(Gauge.class));
+                when(metricsConfig.archiveProgress()).thenReturn(mock(Gauge.class));
+                when(userDailyTxnCollection.find(any(Bson.class))).thenReturn(findIterable);
+                when(findIterable.sort(any())).thenReturn(findIterable);
+                when(findIterable.limit(anyInt())).thenReturn(findIterable);
+
+                archivalService = new ArchivalService(userDailyTxnCollection, archiveCollection, writeLimiter,
+                                standbyCoordinator, metricsConfig);
+                ReflectionTestUtils.setField(archivalService, "batchSize", 2);
+                ReflectionTestUtils.setField(archivalService, "maxBatchesPerSecond", 0.0);
+                ReflectionTestUtils.setField(archivalService, "mode", "archive");
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void testArchiveMovesBatchesUntilNothingIsLeft() throws InterruptedException {
+                // Arrange: one batch of two old days, then nothing
+                List<Document> batch = List.of(dailyDoc(1, day(2024, 1, 5)), dailyDoc(2, day(2024, 1, 6)));
+                when(userDailyTxnCollection.countDocuments(any(Bson.class))).thenReturn(2L);
+                when(findIterable.into(any())).thenAnswer(invocation -> {
+                        Collection<Document> target = invocation.getArgument(0);
+                        target.addAll(batch);
+                        return target;
+                }).thenAnswer(invocation -> invocation.getArgument(0));
+                when(userDailyTxnCollection.deleteMany(any(Bson.class))).thenReturn(DeleteResult.acknowledged(2));
+
+                // Act
+                long moved = archivalService.archive(LocalDate.of(2024, 6, 1));
+
+                // Assert: written to the archive before the hot documents are deleted
+                assertEquals(2L, moved);
+                verify(archiveCollection, times(1)).bulkWrite(anyList(), any(BulkWriteOptions.class));
+                verify(userDailyTxnCollection, times(1)).deleteMany(any(Bson.class));
+                verify(writeLimiter, times(2)).awaitNotSaturated(anyLong());
+        }
+
+        @Test
+        public void testArchiveDoesNothingWithoutOldDays() throws InterruptedException {
+                // Arrange
+                when(userDailyTxnCollection.countDocuments(any(Bson.class))).thenReturn(0L);
+
+                // Act
+                long moved = archivalService.archive(LocalDate.of(2024, 6, 1));
+
+                // Assert
+                assertEquals(0L, moved);
+                verify(userDailyTxnCollection, never()).find(any(Bson.class));
+        }
+
+        @Test
+        public void testRollupTargetsThePlayersMonth() {
+                // Act
+                UpdateOneModel<Document> model = ArchivalService.rollupModel(dailyDoc(7, day(2024, 2, 29)));
+
+                // Assert
+                assertEquals(new Document("playerID", 7).append("month", day(2024, 2, 1)), model.getFilter());
+                assertEquals(6, model.getUpdatePipeline().size());
+        }
+
+        @Test
+        public void testRollupOnlyAddsTransactionsTheStoredSummaryLacks() {
+                // Arrange: a late event recreated a day that is already rolled up
+                Document day = new Document("_id", 8).append("playerID", 8).append("gamingDate", day(2024, 3, 2))
+                                .append("txns", List.of(new Document("transactionID", 1).append("value", 5.0),
+                                                new Document("transactionID", 3).append("value", 2.5)));
+
+                // Act
+                UpdateOneModel<Document> model = ArchivalService.rollupModel(day);
+
+                // Assert: the day's transactions are matched against the summary's transactionIDs
+                List<? extends Bson> pipeline = model.getUpdatePipeline();
+                Document newTxns = ((Document) pipeline.get(1)).get("$set", Document.class).get("_new", Document.class)
+                                .get("$filter", Document.class);
+                assertEquals(day.getList("txns", Document.class),
+                                newTxns.get("input", Document.class).get("$literal"));
+                Document notSeen = (Document) newTxns.get("cond", Document.class).getList("$not", Object.class).get(0);
+                assertEquals(new Document("$ifNull", List.of("$_day.transactionIDs", List.of())),
+                                notSeen.getList("$in", Object.class).get(1));
+                // ... and only those are added to the stored count, sum, min and max
+                Document mergeDay = ((Document) pipeline.get(3)).get("$set", Document.class);
+                List<?> days = mergeDay.get("days", Document.class).getList("$concatArrays", Object.class);
+                Document summary = (Document) ((List<?>) days.get(1)).get(0);
+                assertEquals(new Document("$add", List.of(new Document("$ifNull", List.of("$_day.txnCount", 0)),
+                                new Document("$size", "$_new"))), summary.get("txnCount"));
+                assertEquals(new Document("$add", List.of(new Document("$ifNull", List.of("$_day.totalValue", 0)),
+                                new Document("$sum", "$_values"))), summary.get("totalValue"));
+                assertEquals(new Document("$min", List.of("$_day.minValue", new Document("$min", "$_values"))),
+                                summary.get("minValue"));
+                assertEquals(new Document("$concatArrays", List.of(new Document("$ifNull",
+                                List.of("$_day.transactionIDs", List.of())), "$_new.transactionID")),
+                                summary.get("transactionIDs"));
+                assertEquals(new Document("$unset", List.of("_day", "_new", "_values")), pipeline.get(5));
+        }
+}
@@ -0,0 +1,238 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.BackfillService;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ChangeStreamContext;
+import com.example.demo.service.ResumeTokenService;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+public class BackfillServiceTest {
+
+        private static final BsonTimestamp START_AT = new BsonTimestamp(1_700_000_000, 1);
+
+        @Mock
+        private MongoClient mongoClient;
+
+        @Mock
+        private MongoCollection<Document> sourceCollection;
+
+        @Mock
+        private MongoCollection<Document> checkpointCollection;
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private ChangeEventServiceInterface handler;
+
+        @Mock
+        private FindIterable<Document> checkpoints;
+
+        @Mock
+        private FindIterable<Document> sourceDocuments;
+
+        @Mock
+        private AggregateIterable<Document> appliedSum;
+
+        @Mock
+        private AggregateIterable<Document> bucketCounts;
+
+        private ChangeStreamContext stream;
+
+        private BackfillService backfillService;
+
+        private static Document partition(int bucket, Object lastId) {
+                return new Document("_id", "default/" + bucket).append("run", "default").append("bucket", bucket)
+                                .append("buckets", 2).append("count", 10L).append("applied", 0L).append("done", false)
+                                .append("lastId", lastId);
+        }
+
+        private static BsonDocument render(Bson filter) {
+                return filter.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        }
+
+        private static <T> void returnAll(FindIterable<T> iterable, List<T> documents) {
+                when(iterable.into(any())).thenAnswer(invocation -> {
+                        Collection<T> target = invocation.getArgument(0);
+                        target.addAll(documents);
+                        return target;
+                });
+        }
+
+        @SuppressWarnings("unchecked")
+        private void scan(List<Document> documents) {
+                Iterator<Document> remaining = documents.iterator();
+                MongoCursor<Document> cursor = mock(MongoCursor.class);
+                when(cursor.hasNext()).thenAnswer(invocation -> remaining.hasNext());
+                when(cursor.next()).thenAnswer(invocation -> remaining.next());
+                when(sourceDocuments.iterator()).thenReturn(cursor);
+        }
+
+        @BeforeEach
+        @SuppressWarnings("unchecked")
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                stream = new ChangeStreamContext("default", handler, mock(ResumeTokenService.class), sourceCollection,
+                                0);
+                when(sourceCollection.getNamespace()).thenReturn(new MongoNamespace("demo", "txns"));
+                when(sourceCollection.find(any(Bson.class))).thenReturn(sourceDocuments);
+                when(sourceDocuments.sort(any())).thenReturn(sourceDocuments);
+                when(sourceDocuments.batchSize(anyInt())).thenReturn(sourceDocuments);
+                scan(List.of());
+                when(sourceCollection.aggregate(anyList())).thenReturn(bucketCounts);
+                when(bucketCounts.into(any())).thenAnswer(invocation -> invocation.getArgument(0));
+                when(checkpointCollection.find(any(Bson.class))).thenReturn(checkpoints);
+                when(checkpointCollection.aggregate(anyList())).thenReturn(appliedSum);
+                returnAll(checkpoints, List.of());
+
+                ClientSession session = mock(ClientSession.class);
+                when(session.getOperationTime()).thenReturn(START_AT);
+                when(mongoClient.startSession()).thenReturn(session);
+                when(mongoClient.getDatabase(anyString())).thenReturn(mock(MongoDatabase.class));
+
+                Counter counter = mock(Counter.class);
+                when(counter.labels(anyString())).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.backfillRowsApplied()).thenReturn(counter);
+                Gauge gauge = mock(Gauge.class);
+                when(gauge.labels(anyString())).thenReturn(mock(Gauge.Child.class));
+                when(metricsConfig.backfillRowsPerSecond()).thenReturn(gauge);
+                when(metricsConfig.backfillProgress()).thenReturn(gauge);
+
+                backfillService = new BackfillService(mongoClient, mock(MongoCollection.class), checkpointCollection,
+                                metricsConfig);
+                ReflectionTestUtils.setField(backfillService, "partitions", 2);
+                ReflectionTestUtils.setField(backfillService, "threads", 1);
+                ReflectionTestUtils.setField(backfillService, "batchSize", 2);
+        }
+
+        @Test
+        public void testNewRunCreatesOnePartitionPerBucket() throws InterruptedException {
+                // Arrange: no earlier run, the source has documents in both buckets
+                when(bucketCounts.into(any())).thenAnswer(invocation -> {
+                        Collection<Document> target = invocation.getArgument(0);
+                        target.add(new Document("_id", 0).append("count", 3));
+                        target.add(new Document("_id", 1).append("count", 4));
+                        return target;
+                });
+
+                // Act
+                BsonTimestamp startAt = backfillService.backfill(stream);
+
+                // Assert: the stream starts where the run took the operation time
+                assertEquals(START_AT, startAt);
+                ArgumentCaptor<Document> partitions = ArgumentCaptor.forClass(Document.class);
+                verify(checkpointCollection, times(2)).insertOne(partitions.capture());
+                assertEquals("default/0", partitions.getAllValues().get(0).get("_id"));
+                assertEquals(4L, partitions.getAllValues().get(1).get("count"));
+                ArgumentCaptor<Document> run = ArgumentCaptor.forClass(Document.class);
+                verify(checkpointCollection).replaceOne(any(Bson.class), run.capture(), any(ReplaceOptions.class));
+                assertEquals(7L, run.getValue().get("total"));
+                assertEquals(START_AT, run.getValue().get("startAtOperationTime"));
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void testUnfinishedPartitionResumesAfterItsLastId() throws InterruptedException {
+                // Arrange: a running run whose partition applied up to _id 41
+                when(checkpoints.first()).thenReturn(new Document("_id", "default").append("status", "running")
+                                .append("startAtOperationTime", START_AT).append("total", 10L));
+                returnAll(checkpoints, List.of(partition(1, 41)));
+                when(appliedSum.first()).thenReturn(new Document("applied", 5L));
+                scan(List.of(new Document("_id", 43).append("playerID", 1),
+                                new Document("_id", 45).append("playerID", 3),
+                                new Document("_id", 47).append("playerID", 5)));
+
+                // Act
+                BsonTimestamp startAt = backfillService.backfill(stream);
+
+                // Assert: only documents after the checkpoint are scanned, each batch moves it on
+                assertEquals(START_AT, startAt);
+                ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+                verify(sourceCollection).find(filter.capture());
+                assertTrue(render(filter.getValue()).toJson().contains("{\"_id\": {\"$gt\": 41}}"));
+                verify(handler, times(3)).processChange(any(ChangeStreamDocument.class));
+                ArgumentCaptor<Bson> updates = ArgumentCaptor.forClass(Bson.class);
+                verify(checkpointCollection, times(4)).updateOne(any(Bson.class), updates.capture());
+                assertEquals(45, render(updates.getAllValues().get(0)).getDocument("$set").getInt32("lastId").getValue());
+                assertEquals(47, render(updates.getAllValues().get(1)).getDocument("$set").getInt32("lastId").getValue());
+                verify(sourceCollection, never()).aggregate(anyList());
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void testDoneRunOnlyReturnsItsStartTime() throws InterruptedException {
+                // Arrange
+                when(checkpoints.first()).thenReturn(new Document("_id", "default").append("status", "done")
+                                .append("startAtOperationTime", START_AT));
+
+                // Act
+                BsonTimestamp startAt = backfillService.backfill(stream);
+
+                // Assert
+                assertEquals(START_AT, startAt);
+                verify(sourceCollection, never()).find(any(Bson.class));
+                verify(handler, never()).processChange(any(ChangeStreamDocument.class));
+                verify(checkpointCollection, never()).updateOne(any(Bson.class), any(Bson.class));
+                verify(mongoClient, never()).startSession();
+        }
+
+        @Test
+        public void testHistoryLostDropsTheEarlierRunAndStartsOver() throws InterruptedException {
+                // Arrange: the earlier run is done, but its start fell off the oplog
+                when(checkpoints.first()).thenReturn(null);
+
+                // Act
+                BsonTimestamp startAt = backfillService.backfillAfterHistoryLost(stream);
+
+                // Assert: the run and its partitions are deleted before a new run takes a new start time
+                ArgumentCaptor<Bson> deleted = ArgumentCaptor.forClass(Bson.class);
+                verify(checkpointCollection, times(2)).deleteMany(deleted.capture());
+                String dropped = render(deleted.getAllValues().get(0)).toJson();
+                assertTrue(dropped.contains("{\"_id\": \"default\"}"));
+                assertTrue(dropped.contains("{\"run\": \"default\"}"));
+                verify(mongoClient).startSession();
+                verify(checkpointCollection).replaceOne(any(Bson.class), any(Document.class), any(ReplaceOptions.class));
+                assertEquals(START_AT, startAt);
+        }
+}
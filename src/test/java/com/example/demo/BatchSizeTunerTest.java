@@ -0,0 +1,74 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.BatchSizeTuner;
+
+class BatchSizeTunerTest {
+
+        private static void events(BatchSizeTuner tuner, int count) {
+                for (int i = 0; i < count; i++) {
+                        tuner.onEvent();
+                }
+        }
+
+        @Test
+        void testBatchSizeFollowsEventRate() {
+                // Arrange: 100ms worth of events per getMore, 20,000 events/s
+                BatchSizeTuner tuner = new BatchSizeTuner(0, true, 100, 10_000, 100, 8 * 1024 * 1024);
+                long start = System.nanoTime();
+                events(tuner, 200_000);
+
+                // Act
+                boolean changed = tuner.evaluate(start + TimeUnit.SECONDS.toNanos(10));
+
+                // Assert
+                assertTrue(changed);
+                assertEquals(2000, tuner.getBatchSize());
+        }
+
+        @Test
+        void testBatchSizeCappedByDocumentSize() {
+                // Arrange: 1 MB documents, at most 8 MB per getMore
+                BatchSizeTuner tuner = new BatchSizeTuner(0, true, 1, 10_000, 100, 8 * 1024 * 1024);
+                tuner.onDocumentSize(1024 * 1024);
+                long start = System.nanoTime();
+                events(tuner, 200_000);
+
+                // Act
+                tuner.evaluate(start + TimeUnit.SECONDS.toNanos(10));
+
+                // Assert
+                assertEquals(8, tuner.getBatchSize());
+        }
+
+        @Test
+        void testSmallChangesDoNotReopen() {
+                // Arrange
+                BatchSizeTuner tuner = new BatchSizeTuner(1500, true, 100, 10_000, 100, 8 * 1024 * 1024);
+                long start = System.nanoTime();
+                events(tuner, 200_000);
+
+                // Act: target 2000 is less than twice the current size
+                boolean changed = tuner.evaluate(start + TimeUnit.SECONDS.toNanos(10));
+
+                // Assert
+                assertFalse(changed);
+                assertEquals(1500, tuner.getBatchSize());
+        }
+
+        @Test
+        void testFixedBatchSizeWhenNotAdaptive() {
+                BatchSizeTuner tuner = new BatchSizeTuner(500, false, 100, 10_000, 100, 8 * 1024 * 1024);
+                events(tuner, 200_000);
+
+                assertFalse(tuner.evaluate(System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+                assertEquals(500, tuner.getBatchSize());
+        }
+}
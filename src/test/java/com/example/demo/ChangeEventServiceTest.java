@@ -9,6 +9,7 @@ import java.util.List;
 
 import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -18,6 +19,7 @@ import com.example.demo.service.ChangeEventService;
 import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
 @SpringBootTest
@@ -149,4 +151,26 @@ class ChangeEventServiceTest {
                                                                                  // exception
         }
 
+        @Test
+        void testProcessChangeMaintainsDailyTotalsInSameUpdate() {
+                // Arrange
+                Document fullDocument = new Document("playerID", 123456789)
+                                .append("transactionID", 102)
+                                .append("name", "ben")
+                                .append("value", 70.0)
+                                .append("date", new Date());
+
+                ChangeStreamDocument<Document> changeStreamDocument = mock(ChangeStreamDocument.class);
+                when(changeStreamDocument.getFullDocument()).thenReturn(fullDocument);
+
+                // Act
+                changeEventService.processChange(changeStreamDocument);
+
+                // Assert: txns is set first, then the totals are derived from it, all in one update
+                verify(userDailyTxnCollection, times(1)).updateOne(any(Document.class),
+                                argThat((List<? extends Bson> pipeline) -> pipeline.size() == 2
+                                                && ((Document) pipeline.get(1)).get("$set", Document.class)
+                                                                .containsKey("totalValue")),
+                                any(UpdateOptions.class));
+        }
 }
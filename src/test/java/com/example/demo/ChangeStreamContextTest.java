@@ -0,0 +1,120 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.ChangeEventService;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ChangeStreamContext;
+import com.example.demo.service.ResumeTokenService;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+
+class ChangeStreamContextTest {
+
+        @Test
+        void testForReaderAddsHashMatchAndNamespace() {
+                // Arrange
+                MongoCollection<Document> tokens = mock(MongoCollection.class);
+                ChangeStreamContext stream = new ChangeStreamContext("orders", mock(ChangeEventService.class),
+                                new ResumeTokenService(tokens, "orders"));
+
+                // Act
+                ChangeStreamContext reader = stream.forReader(2, 4);
+
+                // Assert
+                assertEquals("orders-2", reader.getName());
+                assertEquals("orders/reader-4-2", reader.getResumeTokenService().getNamespace());
+                assertEquals(1, reader.getPipeline().size());
+                BsonDocument match = reader.getPipeline().get(0).toBsonDocument(BsonDocument.class,
+                                MongoClientSettings.getDefaultCodecRegistry());
+                assertTrue(match.containsKey("$match"));
+                assertTrue(match.toJson().contains("$fullDocument.playerID"));
+        }
+
+        @Test
+        void testDefaultStreamHasNoPipeline() {
+                ChangeStreamContext stream = new ChangeStreamContext("default", mock(ChangeEventService.class),
+                                mock(ResumeTokenService.class));
+
+                assertTrue(stream.getPipeline().isEmpty());
+        }
+
+        @Test
+        void testWithHandlersFansOutAndKeepsOwnCheckpoint() {
+                // Arrange
+                MongoCollection<Document> tokens = mock(MongoCollection.class);
+                ChangeEventService daily = mock(ChangeEventService.class);
+                ChangeEventService summary = mock(ChangeEventService.class);
+                ChangeStreamContext stream = new ChangeStreamContext("default", daily,
+                                new ResumeTokenService(tokens, "orders"));
+                Map<String, ChangeEventServiceInterface> handlers = new LinkedHashMap<>();
+                handlers.put("daily", daily);
+                handlers.put("summary", summary);
+
+                // Act
+                ChangeStreamContext fanOut = stream.withHandlers(handlers);
+                ChangeStreamContext reader = fanOut.forReader(0, 2);
+
+                // Assert
+                assertFalse(stream.isFanOut());
+                assertTrue(fanOut.isFanOut());
+                assertSame(daily, fanOut.getHandler());
+                assertEquals("orders/fanout", fanOut.getResumeTokenService().getNamespace());
+                assertTrue(reader.isFanOut());
+                assertEquals(2, reader.getHandlers().size());
+        }
+
+        @Test
+        void testBackToOneReaderDropsTheSplitsCheckpoints() {
+                // Arrange: the stream ran with 4 readers before and has checkpointed on its own since
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                when(tokens.getNamespace()).thenReturn("orders");
+                when(tokens.hasOwnCheckpoint()).thenReturn(true);
+                when(tokens.getChildNamespaces(anyString())).thenReturn(List.of("orders/reader-4-0", "orders/reader-4-1"));
+                ChangeStreamContext stream = new ChangeStreamContext("orders", mock(ChangeEventService.class), tokens);
+
+                // Act
+                List<String> dropped = stream.dropStaleReaderCheckpoints(1);
+
+                // Assert
+                assertEquals(List.of("orders/reader-4-0", "orders/reader-4-1"), dropped);
+                verify(tokens).deleteNamespace("orders/reader-4-0");
+                verify(tokens).deleteNamespace("orders/reader-4-1");
+                verify(tokens, never()).deleteNamespace("orders");
+        }
+
+        @Test
+        void testOldCheckpointsStayUntilTheNewReadersHaveTheirOwn() {
+                // Arrange: two new readers, one without a checkpoint yet
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                ResumeTokenService split = mock(ResumeTokenService.class);
+                when(tokens.getNamespace()).thenReturn("orders");
+                when(tokens.forNamespace(anyString())).thenReturn(split);
+                when(split.hasOwnCheckpoint()).thenReturn(true, false);
+                ChangeStreamContext stream = new ChangeStreamContext("orders", mock(ChangeEventService.class), tokens);
+
+                // Act
+                List<String> dropped = stream.dropStaleReaderCheckpoints(2);
+
+                // Assert
+                assertTrue(dropped.isEmpty());
+                verify(tokens, never()).deleteNamespace(any());
+        }
+}
@@ -0,0 +1,109 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.CheckpointWatermark;
+import com.example.demo.service.ResumeTokenService;
+
+class CheckpointWatermarkTest {
+
+        private static BsonDocument token(String data) {
+                return new BsonDocument("_data", new BsonString(data));
+        }
+
+        @Test
+        void testCheckpointWaitsForEveryHandlerOfEarlierEvents() {
+                // Arrange: two events, two handlers each
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                CheckpointWatermark watermark = new CheckpointWatermark(tokens, "fanout");
+                CheckpointWatermark.Entry first = watermark.register(token("01"), new BsonTimestamp(1, 1), 2);
+                CheckpointWatermark.Entry second = watermark.register(token("02"), new BsonTimestamp(2, 1), 2);
+
+                // Act: the second event is fully handled before the first
+                assertFalse(watermark.complete(second));
+                assertTrue(watermark.complete(second));
+                assertFalse(watermark.complete(first));
+
+                // Assert: nothing saved while the first event is still pending
+                verify(tokens, never()).saveResumeToken(any(), any(), anyString());
+                assertEquals(2, watermark.pendingCount());
+
+                assertTrue(watermark.complete(first));
+                verify(tokens).saveResumeToken(new BsonTimestamp(2, 1), token("02"), "fanout");
+                verify(tokens, never()).saveResumeToken(any(), eq(token("01")), anyString());
+                assertEquals(0, watermark.pendingCount());
+        }
+
+        @Test
+        void testEventsWithoutTokenDoNotMoveCheckpoint() {
+                // Arrange
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                CheckpointWatermark watermark = new CheckpointWatermark(tokens, "fanout");
+                CheckpointWatermark.Entry synthetic = watermark.register(null, new BsonTimestamp(1, 1), 1);
+
+                // Act
+                watermark.complete(synthetic);
+
+                // Assert
+                verify(tokens, never()).saveResumeToken(any(), any(), anyString());
+        }
+
+        @Test
+        void testFailedEventHoldsTheCheckpointUntilReset() {
+                // Arrange: three events, one handler each
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                CheckpointWatermark watermark = new CheckpointWatermark(tokens, "fanout");
+                CheckpointWatermark.Entry first = watermark.register(token("01"), new BsonTimestamp(1, 1), 1);
+                CheckpointWatermark.Entry second = watermark.register(token("02"), new BsonTimestamp(2, 1), 1);
+                CheckpointWatermark.Entry third = watermark.register(token("03"), new BsonTimestamp(3, 1), 1);
+
+                // Act: the second event fails, the others are applied
+                assertTrue(watermark.fail(second));
+                watermark.complete(third);
+                watermark.complete(first);
+                watermark.complete(watermark.register(token("04"), new BsonTimestamp(4, 1), 1));
+
+                // Assert: the checkpoint moves up to the failed event, never past it
+                verify(tokens).saveResumeToken(new BsonTimestamp(1, 1), token("01"), "fanout");
+                verify(tokens, never()).saveResumeToken(any(), eq(token("03")), anyString());
+                verify(tokens, never()).saveResumeToken(any(), eq(token("04")), anyString());
+                assertTrue(watermark.isHeld());
+                assertEquals(0, watermark.pendingCount());
+
+                watermark.reset();
+                watermark.complete(watermark.register(token("05"), new BsonTimestamp(5, 1), 1));
+                verify(tokens).saveResumeToken(new BsonTimestamp(5, 1), token("05"), "fanout");
+        }
+
+        @Test
+        void testIdlePositionIsOnlySavedWithNothingPending() {
+                // Arrange
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                CheckpointWatermark watermark = new CheckpointWatermark(tokens, "lane-0");
+                CheckpointWatermark.Entry first = watermark.register(token("01"), new BsonTimestamp(1, 1), 1);
+
+                // Act
+                assertFalse(watermark.advanceIdle(token("02"), new BsonTimestamp(2, 1)));
+                watermark.complete(first);
+                assertTrue(watermark.advanceIdle(token("03"), new BsonTimestamp(3, 1)));
+                watermark.fail(watermark.register(token("04"), new BsonTimestamp(4, 1), 1));
+
+                // Assert
+                verify(tokens, never()).saveResumeToken(any(), eq(token("02")), anyString());
+                verify(tokens).saveResumeToken(new BsonTimestamp(3, 1), token("03"), "lane-0");
+                assertFalse(watermark.advanceIdle(token("05"), new BsonTimestamp(5, 1)));
+        }
+}
@@ -0,0 +1,139 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.CoalescingBuffer;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+class CoalescingBufferTest {
+
+        private ChangeEventServiceInterface handler;
+        private PrometheusMetricsConfig metricsConfig;
+        private Counter.Child dropped;
+        private Gauge.Child reduction;
+        private final List<List<ChangeStreamDocument<Document>>> flushed = new ArrayList<>();
+        private final List<Integer> received = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        private ChangeStreamDocument<Document> event(Object key) {
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(handler.coalesceKey(event)).thenReturn(key);
+                return event;
+        }
+
+        @BeforeEach
+        void setUp() {
+                handler = mock(ChangeEventServiceInterface.class);
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                Counter events = mock(Counter.class);
+                when(events.labels(anyString())).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.coalesceEvents()).thenReturn(events);
+                Counter droppedCounter = mock(Counter.class);
+                dropped = mock(Counter.Child.class);
+                when(droppedCounter.labels(anyString())).thenReturn(dropped);
+                when(metricsConfig.coalesceDropped()).thenReturn(droppedCounter);
+                Gauge gauge = mock(Gauge.class);
+                reduction = mock(Gauge.Child.class);
+                when(gauge.labels(anyString())).thenReturn(reduction);
+                when(metricsConfig.coalesceWriteReduction()).thenReturn(gauge);
+        }
+
+        private CoalescingBuffer buffer() {
+                // a long window, the tests flush by hand
+                return new CoalescingBuffer("test", 2, 60_000, handler, metricsConfig, (lane, survivors, count) -> {
+                        flushed.add(survivors);
+                        received.add(count);
+                });
+        }
+
+        @Test
+        void testLatestEventPerKeySurvivesInStreamOrder() {
+                // Arrange
+                CoalescingBuffer buffer = buffer();
+                ChangeStreamDocument<Document> a1 = event(List.of(1, 10));
+                ChangeStreamDocument<Document> b1 = event(List.of(1, 11));
+                ChangeStreamDocument<Document> a2 = event(List.of(1, 10));
+
+                // Act
+                buffer.offer(a1, 0);
+                buffer.offer(b1, 0);
+                buffer.offer(a2, 0);
+                buffer.flush(0);
+
+                // Assert: the newest event is last, so its checkpoint covers a1 too
+                assertEquals(List.of(List.of(b1, a2)), flushed);
+                assertEquals(List.of(3), received);
+                verify(dropped, times(1)).inc();
+                verify(reduction, times(3)).set(anyDouble());
+        }
+
+        @Test
+        void testEventsWithoutKeyAreNeverDropped() {
+                // Arrange
+                CoalescingBuffer buffer = buffer();
+                ChangeStreamDocument<Document> first = event(null);
+                ChangeStreamDocument<Document> second = event(null);
+
+                // Act
+                buffer.offer(first, 1);
+                buffer.offer(second, 1);
+                buffer.shutdown();
+
+                // Assert
+                assertEquals(List.of(List.of(first, second)), flushed);
+                verify(dropped, times(0)).inc();
+        }
+
+        @Test
+        void testOfferAfterShutdownIsHandedOnAtOnce() {
+                // Arrange
+                CoalescingBuffer buffer = buffer();
+                ChangeStreamDocument<Document> late = event(List.of(1, 10));
+                buffer.shutdown();
+
+                // Act
+                buffer.offer(late, 0);
+
+                // Assert
+                assertEquals(List.of(List.of(late)), flushed);
+                assertEquals(List.of(1), received);
+        }
+
+        @Test
+        void testLanesAreCoalescedSeparately() {
+                // Arrange
+                CoalescingBuffer buffer = buffer();
+                ChangeStreamDocument<Document> lane0 = event(List.of(1, 10));
+                ChangeStreamDocument<Document> lane1 = event(List.of(1, 10));
+
+                // Act
+                buffer.offer(lane0, 0);
+                buffer.offer(lane1, 1);
+                buffer.flush(0);
+                buffer.flush(1);
+                buffer.flush(1);
+
+                // Assert: an empty window hands on nothing
+                assertEquals(List.of(List.of(lane0), List.of(lane1)), flushed);
+                verify(handler, times(2)).coalesceKey(any());
+        }
+}
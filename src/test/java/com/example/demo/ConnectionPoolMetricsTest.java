@@ -0,0 +1,75 @@
+package com.example.demo;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.metrics.ConnectionPoolMetrics;
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+class ConnectionPoolMetricsTest {
+
+        private Histogram.Child waitDuration;
+        private Gauge.Child inUse;
+        private Counter.Child timeouts;
+        private ConnectionPoolMetrics metrics;
+        private final ServerId serverId = new ServerId(new ClusterId(), new ServerAddress("localhost", 27017));
+
+        @BeforeEach
+        void setUp() {
+                PrometheusMetricsConfig metricsConfig = mock(PrometheusMetricsConfig.class);
+                Histogram histogram = mock(Histogram.class);
+                waitDuration = mock(Histogram.Child.class);
+                when(histogram.labels("writes")).thenReturn(waitDuration);
+                when(metricsConfig.mongodbPoolWaitDuration()).thenReturn(histogram);
+                Gauge gauge = mock(Gauge.class);
+                inUse = mock(Gauge.Child.class);
+                when(gauge.labels("writes")).thenReturn(inUse);
+                when(metricsConfig.mongodbPoolConnectionsInUse()).thenReturn(gauge);
+                Counter failures = mock(Counter.class);
+                timeouts = mock(Counter.Child.class);
+                when(failures.labels("writes", "timeout")).thenReturn(timeouts);
+                when(metricsConfig.mongodbPoolCheckOutFailures()).thenReturn(failures);
+                metrics = new ConnectionPoolMetrics("writes", metricsConfig);
+        }
+
+        @Test
+        void testCheckOutRecordsTheWaitAndTheConnectionInUse() {
+                // Arrange
+                ConnectionId connectionId = new ConnectionId(serverId);
+
+                // Act
+                metrics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId, 1, 2_500_000));
+                metrics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId, 1));
+
+                // Assert
+                verify(waitDuration).observe(0.0025);
+                verify(inUse).inc();
+                verify(inUse).dec();
+        }
+
+        @Test
+        void testTimedOutCheckOutIsCountedWithItsWait() {
+                // Act
+                metrics.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(serverId, 1,
+                                ConnectionCheckOutFailedEvent.Reason.TIMEOUT, 5_000_000_000L));
+
+                // Assert
+                verify(waitDuration).observe(5.0);
+                verify(timeouts).inc();
+        }
+}
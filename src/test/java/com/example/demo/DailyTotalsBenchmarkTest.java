@@ -0,0 +1,90 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DocumentCodec;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader-side cost of a daily report per player: reading the whole txns array
+ * and summing it on the client, versus reading the maintained totals only.
+ * Only the transfer size and the client-side decoding are measured, on the
+ * documents the server would send; no database is needed. Run with
+ * mvn test -Pbenchmark.
+ */
+@Tag("benchmark")
+class DailyTotalsBenchmarkTest {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(DailyTotalsBenchmarkTest.class);
+        private static final int TXNS_PER_DAY = 200;
+        private static final int ITERATIONS = 20_000;
+
+        private static Document dailyDocument() {
+                List<Document> txns = new ArrayList<>();
+                double total = 0;
+                for (int i = 0; i < TXNS_PER_DAY; i++) {
+                        double value = 10.0 + i;
+                        total += value;
+                        txns.add(new Document("transactionID", i).append("value", value).append("date", new Date()));
+                }
+                return new Document("playerID", 123456789).append("gamingDate", new Date()).append("name", "ben")
+                                .append("txns", txns).append("lastModified", new Date())
+                                .append("totalValue", total).append("txnCount", TXNS_PER_DAY)
+                                .append("minValue", 10.0).append("maxValue", 10.0 + TXNS_PER_DAY - 1)
+                                .append("firstTxnDate", new Date()).append("lastTxnDate", new Date());
+        }
+
+        @Test
+        void benchmarkTotalsVersusTxnsArray() {
+                Document daily = dailyDocument();
+                // what the server sends for find() and for find().projection(totals only)
+                RawBsonDocument full = new RawBsonDocument(daily, new DocumentCodec());
+                Document totalsOnly = new Document("playerID", daily.get("playerID"))
+                                .append("totalValue", daily.get("totalValue")).append("txnCount", daily.get("txnCount"))
+                                .append("minValue", daily.get("minValue")).append("maxValue", daily.get("maxValue"));
+                RawBsonDocument projected = new RawBsonDocument(totalsOnly, new DocumentCodec());
+
+                double sum = 0;
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                        BsonDocument decoded = full.decode(new BsonDocumentCodec());
+                        sum = decoded.getArray("txns").stream()
+                                        .mapToDouble(txn -> txn.asDocument().getDouble("value").getValue()).sum();
+                }
+                long arrayNanos = System.nanoTime() - startNanos;
+
+                double total = 0;
+                startNanos = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                        BsonDocument decoded = projected.decode(new BsonDocumentCodec());
+                        total = decoded.getDouble("totalValue").getValue();
+                }
+                long totalsNanos = System.nanoTime() - startNanos;
+
+                int fullBytes = full.getByteBuffer().remaining();
+                int projectedBytes = projected.getByteBuffer().remaining();
+                LOGGER.info("bytes per document: txns array {}, totals {} ({}x less)", fullBytes, projectedBytes,
+                                String.format("%.1f", (double) fullBytes / projectedBytes));
+                LOGGER.info("decode + sum per document: txns array {} ns, totals {} ns ({}x faster)",
+                                arrayNanos / ITERATIONS, totalsNanos / ITERATIONS,
+                                String.format("%.1f", (double) arrayNanos / totalsNanos));
+
+                assertEquals(sum, total, 0.0001);
+                assertTrue(projectedBytes * 10 < fullBytes);
+                // 200 array elements against 5 fields: reading the totals must be clearly cheaper
+                assertTrue(totalsNanos * 5 < arrayNanos,
+                                "totals " + totalsNanos + " ns, txns array " + arrayNanos + " ns");
+        }
+}
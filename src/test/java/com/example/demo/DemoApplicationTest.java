@@ -8,7 +8,9 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import com.example.demo.service.DispatchIntrospection;
 import com.example.demo.service.EventProcessingMediator;
+import com.example.demo.service.ReadModelCache;
 
 import io.prometheus.client.exporter.HTTPServer;
 
@@ -23,6 +25,12 @@ public class DemoApplicationTest {
         @Mock
         private HTTPServer httpServer;
 
+        @Mock
+        private ReadModelCache readModelCache;
+
+        @Mock
+        private DispatchIntrospection dispatchIntrospection;
+
         @BeforeEach
         public void setUp() {
                 MockitoAnnotations.openMocks(this);
@@ -0,0 +1,121 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.service.EventRingBuffer;
+
+/**
+ * Head-to-head of the two dispatch engines with an empty handler: the
+ * executor dispatch (CompletableFuture.runAsync on one single-thread executor
+ * per lane) and the ring buffer. Reports throughput, average handoff latency
+ * (publish to handler start) and bytes allocated by the producer per event.
+ * Run with mvn test -Pbenchmark.
+ */
+@Tag("benchmark")
+class DispatchEngineBenchmarkTest {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(DispatchEngineBenchmarkTest.class);
+        private static final int LANES = 4;
+        private static final int EVENTS = 1_000_000;
+        private static final int WARMUP_EVENTS = 200_000;
+
+        private static long allocatedBytes() {
+                return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        private static void report(String engine, long elapsedNanos, long handoffNanos, long allocated) {
+                LOGGER.info("{}: {} events/s, handoff {} ns, producer alloc {} bytes/event", engine,
+                                String.format("%,.0f", EVENTS / (elapsedNanos / 1_000_000_000.0)), handoffNanos / EVENTS,
+                                allocated / EVENTS);
+        }
+
+        private long runExecutors(int events, boolean print) throws InterruptedException {
+                ExecutorService[] executors = new ExecutorService[LANES];
+                for (int i = 0; i < LANES; i++) {
+                        executors[i] = Executors.newSingleThreadExecutor();
+                }
+                AtomicLong handoff = new AtomicLong();
+                CountDownLatch done = new CountDownLatch(events);
+                long allocatedBefore = allocatedBytes();
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                        long published = System.nanoTime();
+                        CompletableFuture.runAsync(() -> {
+                                handoff.addAndGet(System.nanoTime() - published);
+                                done.countDown();
+                        }, executors[i % LANES]).whenComplete((result, ex) -> {
+                        });
+                }
+                long allocated = allocatedBytes() - allocatedBefore;
+                done.await(60, TimeUnit.SECONDS);
+                long elapsed = System.nanoTime() - startNanos;
+                for (ExecutorService executor : executors) {
+                        executor.shutdown();
+                }
+                if (print) {
+                        report("executor dispatch", elapsed, handoff.get(), allocated);
+                }
+                return events - done.getCount();
+        }
+
+        private long runRing(int events, EventRingBuffer.WaitStrategy waitStrategy, boolean print)
+                        throws InterruptedException {
+                // the event is an index into slotTimes, boxed up front so the producer loop does not
+                // allocate; twice the ring size, so an entry is only reused after its event was handled
+                Long[] indexes = new Long[2048];
+                long[] slotTimes = new long[2048];
+                for (int i = 0; i < indexes.length; i++) {
+                        indexes[i] = (long) i;
+                }
+                AtomicLong handoff = new AtomicLong();
+                AtomicLong handled = new AtomicLong();
+                EventRingBuffer<Long> ring = new EventRingBuffer<Long>("bench", 1024, LANES, waitStrategy,
+                                (event, lane) -> {
+                                        handoff.addAndGet(System.nanoTime() - slotTimes[event.intValue()]);
+                                        handled.incrementAndGet();
+                                }).start();
+                long allocatedBefore = allocatedBytes();
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < events; i++) {
+                        int slot = i & 2047;
+                        slotTimes[slot] = System.nanoTime();
+                        ring.publish(indexes[slot], i % LANES);
+                }
+                long allocated = allocatedBytes() - allocatedBefore;
+                ring.shutdown(60, TimeUnit.SECONDS);
+                long elapsed = System.nanoTime() - startNanos;
+                if (print) {
+                        report("ring buffer " + waitStrategy.name().toLowerCase(), elapsed, handoff.get(), allocated);
+                }
+                return handled.get();
+        }
+
+        @Test
+        void benchmarkExecutorVersusRingBuffer() throws InterruptedException {
+                boolean spareCores = Runtime.getRuntime().availableProcessors() > LANES;
+                runExecutors(WARMUP_EVENTS, false);
+                runRing(WARMUP_EVENTS, EventRingBuffer.WaitStrategy.PARK, false);
+
+                assertEquals(EVENTS, runExecutors(EVENTS, true));
+                assertEquals(EVENTS, runRing(EVENTS, EventRingBuffer.WaitStrategy.PARK, true));
+                assertEquals(EVENTS, runRing(EVENTS, EventRingBuffer.WaitStrategy.YIELD, true));
+                if (spareCores) {
+                        // spinning threads without a core of their own only slow each other down
+                        assertEquals(EVENTS, runRing(EVENTS, EventRingBuffer.WaitStrategy.BUSY_SPIN, true));
+                }
+        }
+}
@@ -0,0 +1,121 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.LagTracker;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ChangeStreamContext;
+import com.example.demo.service.DispatchIntrospection;
+import com.example.demo.service.ResumeTokenService;
+import com.example.demo.service.SyntheticChangeEvents;
+import com.example.demo.service.TransactionalLaneCommitter;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+class DispatchIntrospectionTest {
+
+        private LagTracker lagTracker;
+        private DispatchIntrospection introspection;
+
+        private static ChangeStreamDocument<Document> insert(int playerID, int seconds) {
+                return SyntheticChangeEvents.insert(new MongoNamespace("test_changestream", "changestream"),
+                                new Document("playerID", playerID), new BsonTimestamp(seconds, 1));
+        }
+
+        @BeforeEach
+        void setUp() {
+                lagTracker = mock(LagTracker.class);
+                introspection = new DispatchIntrospection(lagTracker);
+                ReflectionTestUtils.setField(introspection, "enabled", true);
+                ReflectionTestUtils.setField(introspection, "nums", 2);
+                ReflectionTestUtils.setField(introspection, "topKeys", 2);
+                ReflectionTestUtils.setField(introspection, "hotKeyWindowMillis", 60_000L);
+                introspection.init();
+        }
+
+        private static Document lane(Document snapshot, int lane) {
+                return snapshot.getList("lanes", Document.class).get(lane);
+        }
+
+        @Test
+        void testSnapshotShowsTheEventEachLaneIsHandling() {
+                // Arrange: lane 1 handles player 7 with two more events queued
+                when(lagTracker.backlog(1)).thenReturn(3L);
+                int seconds = (int) (System.currentTimeMillis() / 1000) - 30;
+                introspection.onStarted("default", 1, 7, insert(7, seconds));
+
+                // Act
+                Document busy = introspection.snapshot();
+                introspection.onFinished("default", 1);
+                Document idle = introspection.snapshot();
+
+                // Assert
+                Document handling = lane(busy, 1).getList("inFlight", Document.class).get(0);
+                assertEquals(7, handling.getInteger("key"));
+                assertEquals("default", handling.getString("group"));
+                assertEquals(2L, lane(busy, 1).get("queued"));
+                assertTrue(busy.getLong("oldestPendingAgeMillis") >= 30_000L);
+                assertTrue(lane(busy, 0).getList("inFlight", Document.class).isEmpty());
+                assertTrue(lane(idle, 1).getList("inFlight", Document.class).isEmpty());
+        }
+
+        @Test
+        void testHotKeysListTheMostFrequentKeys() {
+                // Arrange
+                for (int i = 0; i < 100; i++) {
+                        introspection.onDispatched("default", 42);
+                        introspection.onDispatched("default", i); // a long tail of single events
+                        if (i % 2 == 0) {
+                                introspection.onDispatched("default", 7);
+                        }
+                }
+
+                // Act
+                List<Document> top = introspection.snapshot().get("hotKeys", Document.class).getList("default",
+                                Document.class);
+
+                // Assert: counts are lower bounds, the order holds
+                assertEquals(2, top.size());
+                assertEquals(42, top.get(0).getInteger("key"));
+                assertEquals(7, top.get(1).getInteger("key"));
+                assertTrue(top.get(0).getLong("count") > top.get(1).getLong("count"));
+        }
+
+        @Test
+        void testRetryBacklogAndCheckpointsAreListed() {
+                // Arrange
+                TransactionalLaneCommitter committer = mock(TransactionalLaneCommitter.class);
+                when(committer.retrying(0)).thenReturn(25);
+                introspection.watchCommitter("default", committer);
+                ResumeTokenService tokens = mock(ResumeTokenService.class);
+                when(tokens.getTokenDocuments()).thenReturn(List.of(new Document("threadID", "txn-lane-0")
+                                .append("date", new BsonTimestamp(1000, 1))
+                                .append("resumeToken", new Document("_data", "8201"))));
+                introspection.watchStreams(
+                                List.of(new ChangeStreamContext("default", mock(ChangeEventServiceInterface.class), tokens)));
+                when(lagTracker.headSeconds()).thenReturn(1060L);
+
+                // Act
+                Document snapshot = introspection.snapshot();
+
+                // Assert
+                assertEquals(25L, snapshot.getLong("retryBacklog"));
+                assertEquals(25, lane(snapshot, 0).getInteger("retrying"));
+                Document position = snapshot.get("checkpoints", Document.class).getList("default", Document.class)
+                                .get(0);
+                assertEquals("txn-lane-0", position.getString("threadID"));
+                assertEquals(60L, position.getLong("behindHeadSeconds"));
+                assertEquals("8201", position.getString("resumeToken"));
+        }
+}
@@ -7,6 +7,7 @@ import java.util.concurrent.Executors;
 import org.bson.BsonDocument;
 import org.bson.BsonTimestamp;
 import org.bson.Document;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -18,16 +19,28 @@ import org.mockito.Mock;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.metrics.StartupTracker;
 import com.example.demo.metrics.TpsCalculator;
 import com.example.demo.service.ChangeEventService;
+import com.example.demo.service.ChangeStreamContext;
+import com.example.demo.service.ChangeStreamRegistry;
+import com.example.demo.service.DispatchIntrospection;
 import com.example.demo.service.EventProcessingMediator;
+import com.example.demo.service.ReadModelCache;
 import com.example.demo.service.ResumeTokenService;
+import com.example.demo.service.ShadowRunner;
+import com.example.demo.service.StandbyCoordinator;
+import com.example.demo.service.WindowedAggregation;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
 import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
@@ -50,6 +63,27 @@ public class EventProcessingMediatorTest {
         @Mock
         private TpsCalculator tpsCalculator;
 
+        @Mock
+        private StartupTracker startupTracker;
+
+        @Mock
+        private ReadModelCache readModelCache;
+
+        @Mock
+        private WindowedAggregation windowedAggregation;
+
+        @Mock
+        private ShadowRunner shadowRunner;
+
+        @Mock
+        private DispatchIntrospection introspection;
+
+        @Mock
+        private StandbyCoordinator standbyCoordinator;
+
+        @Mock
+        private ChangeStreamRegistry streamRegistry;
+
         @Mock
         private Gauge.Child gaugeChild;
 
@@ -60,6 +94,8 @@ public class EventProcessingMediatorTest {
         public void setUp() {
                 // Initialize the mocks
                 MockitoAnnotations.openMocks(this);
+                when(standbyCoordinator.holdsLease()).thenReturn(true);
+                ReflectionTestUtils.setField(mediator, "nums", 4);
 
                 // Mock the Gauge and its Child
                 Gauge mockGauge = mock(Gauge.class);
@@ -94,6 +130,14 @@ public class EventProcessingMediatorTest {
                 Counter totalEventsSuccessCounter = mock(Counter.class);
                 when(metricsConfig.totalEventsHandledSuccessfully()).thenReturn(totalEventsSuccessCounter);
                 doNothing().when(totalEventsSuccessCounter).inc();
+
+                // Mock the per-stream Counter and Histogram
+                Counter streamCounter = mock(Counter.class);
+                when(metricsConfig.streamEventsHandled()).thenReturn(streamCounter);
+                when(streamCounter.labels(any(String.class))).thenReturn(mock(Counter.Child.class));
+                Histogram streamHistogram = mock(Histogram.class);
+                when(metricsConfig.streamEventProcessDuration()).thenReturn(streamHistogram);
+                when(streamHistogram.labels(any(String.class))).thenReturn(mockHistogramChild);
         }
 
         @Test
@@ -120,6 +164,63 @@ public class EventProcessingMediatorTest {
                 verify(resumeTokenService, times(1)).saveResumeToken(any(), any(), anyString());
         }
 
+        @Test
+        public void testProcessEventUsesStreamHandlerAndTokens() {
+                // A declared stream brings its own handler and token namespace
+                ChangeEventService streamHandler = mock(ChangeEventService.class);
+                ResumeTokenService streamTokens = mock(ResumeTokenService.class);
+                ChangeStreamContext stream = new ChangeStreamContext("orders", streamHandler, streamTokens);
+
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getClusterTime()).thenReturn(new BsonTimestamp(1000, 1));
+                when(event.getResumeToken()).thenReturn(new BsonDocument());
+
+                mediator.processEvent(event, stream);
+
+                verify(streamHandler, times(1)).processChange(event);
+                verify(streamTokens, times(1)).saveResumeToken(any(), any(), anyString());
+                verify(changeEventService, never()).processChange(any());
+                verify(resumeTokenService, never()).saveResumeToken(any(), any(), anyString());
+        }
+
+        @Test
+        public void testProcessEventRefusesToWriteWithoutTheLease() {
+                // Arrange: the lease may already belong to another instance
+                when(standbyCoordinator.holdsLease()).thenReturn(false);
+                Counter fenced = mock(Counter.class);
+                when(metricsConfig.standbyFencedEvents()).thenReturn(fenced);
+                when(fenced.labels(anyString())).thenReturn(mock(Counter.Child.class));
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getClusterTime()).thenReturn(new BsonTimestamp(1000, 1));
+                when(event.getResumeToken()).thenReturn(new BsonDocument());
+
+                // Act
+                assertThrows(IllegalStateException.class, () -> mediator.processEvent(event));
+
+                // Assert: neither the write nor the checkpoint happen
+                verify(changeEventService, never()).processChange(any());
+                verify(resumeTokenService, never()).saveResumeToken(any(), any(), anyString());
+        }
+
+        @Test
+        public void testProcessEventRetriesNetworkErrors() {
+                // Arrange: the first write hits a socket error
+                ReflectionTestUtils.setField(mediator, "retryMaxAttempts", 3);
+                ReflectionTestUtils.setField(mediator, "retryDelayMillis", 0L);
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getClusterTime()).thenReturn(new BsonTimestamp(1000, 1));
+                when(event.getResumeToken()).thenReturn(new BsonDocument());
+                when(changeEventService.processChange(event))
+                                .thenThrow(new MongoSocketReadException("reset", new ServerAddress())).thenReturn(0);
+
+                // Act
+                mediator.processEvent(event);
+
+                // Assert: applied on the second attempt, checkpointed once
+                verify(changeEventService, times(2)).processChange(event);
+                verify(resumeTokenService, times(1)).saveResumeToken(any(), any(), anyString());
+        }
+
         @Test
         public void testProcessEventThrowsException() {
                 // Arrange
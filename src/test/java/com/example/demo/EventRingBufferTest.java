@@ -0,0 +1,74 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.EventRingBuffer;
+
+class EventRingBufferTest {
+
+        @Test
+        void testEveryLaneGetsItsEventsInOrderAcrossWraps() throws InterruptedException {
+                // Arrange: a ring much smaller than the number of events
+                int lanes = 4;
+                int events = 10_000;
+                long[] last = { -1, -1, -1, -1 };
+                AtomicInteger handled = new AtomicInteger();
+                AtomicInteger outOfOrder = new AtomicInteger();
+                EventRingBuffer<Long> ring = new EventRingBuffer<Long>("test-ring", 8, lanes,
+                                EventRingBuffer.WaitStrategy.PARK, (event, lane) -> {
+                                        if (event <= last[lane] || event % lanes != lane) {
+                                                outOfOrder.incrementAndGet();
+                                        }
+                                        last[lane] = event;
+                                        handled.incrementAndGet();
+                                }).start();
+
+                // Act
+                for (long i = 0; i < events; i++) {
+                        ring.publish(i, (int) (i % lanes));
+                }
+
+                // Assert: shutdown drains everything that was published
+                assertTrue(ring.shutdown(10, TimeUnit.SECONDS));
+                assertEquals(events, handled.get());
+                assertEquals(0, outOfOrder.get());
+                assertEquals(0, ring.backlog());
+        }
+
+        @Test
+        void testCapacityIsRoundedUpToPowerOfTwo() {
+                assertEquals(1024, new EventRingBuffer<Long>("test-ring", 1000, 1, EventRingBuffer.WaitStrategy.YIELD,
+                                (event, lane) -> {
+                                }).capacity());
+                assertEquals(8, new EventRingBuffer<Long>("test-ring", 8, 1, EventRingBuffer.WaitStrategy.YIELD,
+                                (event, lane) -> {
+                                }).capacity());
+        }
+
+        @Test
+        void testFailingHandlerDoesNotStopLane() throws InterruptedException {
+                // Arrange
+                AtomicInteger handled = new AtomicInteger();
+                EventRingBuffer<Long> ring = new EventRingBuffer<Long>("test-ring", 4, 1,
+                                EventRingBuffer.WaitStrategy.PARK, (event, lane) -> {
+                                        if (event == 0) {
+                                                throw new IllegalStateException("boom");
+                                        }
+                                        handled.incrementAndGet();
+                                }).start();
+
+                // Act
+                ring.publish(0L, 0);
+                ring.publish(1L, 0);
+
+                // Assert
+                assertTrue(ring.shutdown(10, TimeUnit.SECONDS));
+                assertEquals(1, handled.get());
+        }
+}
@@ -0,0 +1,226 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.IndexManager;
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+import io.prometheus.client.Gauge;
+
+public class IndexManagerTest {
+
+        @Mock
+        private MongoClient mongoClient;
+
+        @Mock
+        private MongoDatabase database;
+
+        @Mock
+        private MongoCollection<Document> resumeTokenCollection;
+
+        @Mock
+        private MongoCollection<Document> userDailyTxnCollection;
+
+        @Mock
+        private MongoCollection<Document> backfillCheckpointCollection;
+
+        @Mock
+        private MongoCollection<Document> archiveCollection;
+
+        @Mock
+        private FindIterable<Document> findIterable;
+
+        @Mock
+        private ListIndexesIterable<Document> dailyIndexes;
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private Gauge collectionScanGauge;
+
+        @Mock
+        private Gauge.Child gaugeChild;
+
+        private IndexManager indexManager;
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                when(resumeTokenCollection.getNamespace()).thenReturn(new MongoNamespace("test", "resumetokens"));
+                when(userDailyTxnCollection.getNamespace()).thenReturn(new MongoNamespace("test", "userdailytxn"));
+                when(backfillCheckpointCollection.getNamespace())
+                                .thenReturn(new MongoNamespace("test", "backfillcheckpoints"));
+                when(resumeTokenCollection.find()).thenReturn(findIterable);
+                when(resumeTokenCollection.find(any(Bson.class))).thenReturn(findIterable);
+                when(findIterable.sort(any())).thenReturn(findIterable);
+                when(findIterable.limit(anyInt())).thenReturn(findIterable);
+                when(mongoClient.getDatabase("test")).thenReturn(database);
+                when(userDailyTxnCollection.listIndexes()).thenReturn(dailyIndexes);
+                dailyIndexesAre(new Document("key", new Document("_id", 1)),
+                                new Document("key", new Document("playerID", 1).append("gamingDate", 1))
+                                                .append("unique", true));
+                when(metricsConfig.queryPlanCollectionScan()).thenReturn(collectionScanGauge);
+                when(collectionScanGauge.labels(anyString(), anyString())).thenReturn(gaugeChild);
+                indexManager = new IndexManager(mongoClient, resumeTokenCollection, userDailyTxnCollection,
+                                backfillCheckpointCollection, archiveCollection, metricsConfig);
+                ReflectionTestUtils.setField(indexManager, "createIndexes", true);
+                ReflectionTestUtils.setField(indexManager, "statsIntervalMillis", 0L);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void dailyIndexesAre(Document... indexes) {
+                when(dailyIndexes.into(any())).thenAnswer(invocation -> {
+                        Collection<Document> target = invocation.getArgument(0);
+                        target.addAll(List.of(indexes));
+                        return target;
+                });
+        }
+
+        private static Document plan(String stage) {
+                return new Document("queryPlanner", new Document("winningPlan",
+                                new Document("stage", "LIMIT").append("inputStage", new Document("stage", stage))));
+        }
+
+        @Test
+        public void testInitPassesWhenEveryQueryUsesAnIndex() {
+                // Arrange
+                ReflectionTestUtils.setField(indexManager, "guard", "fail");
+                when(findIterable.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(plan("IXSCAN"));
+                when(database.runCommand(any(Bson.class))).thenReturn(plan("IXSCAN"));
+
+                // Act & Assert
+                assertDoesNotThrow(() -> indexManager.init());
+                verify(userDailyTxnCollection).createIndex(any(Bson.class), any(IndexOptions.class));
+                verify(gaugeChild, times(5)).set(0);
+        }
+
+        @Test
+        public void testArchivalIndexesAreDeclaredWhenArchivalRuns() {
+                // Arrange
+                ReflectionTestUtils.setField(indexManager, "guard", "off");
+                ReflectionTestUtils.setField(indexManager, "archiveEnabled", true);
+                ReflectionTestUtils.setField(indexManager, "archiveMode", "rollup");
+                when(archiveCollection.getNamespace()).thenReturn(new MongoNamespace("test", "userdailytxnarchive"));
+
+                // Act
+                indexManager.init();
+
+                // Assert
+                verify(userDailyTxnCollection).createIndex(eq(Indexes.ascending("gamingDate")), any(IndexOptions.class));
+                verify(archiveCollection).createIndex(eq(Indexes.ascending("playerID", "month")),
+                                any(IndexOptions.class));
+        }
+
+        @Test
+        public void testUniqueDailyIndexIsConfirmedEvenWithoutGuard() {
+                // Arrange
+                ReflectionTestUtils.setField(indexManager, "guard", "off");
+                ReflectionTestUtils.setField(indexManager, "createIndexes", false);
+
+                // Act
+                indexManager.init();
+
+                // Assert
+                assertTrue(indexManager.hasUniqueDailyIndex());
+        }
+
+        @Test
+        public void testNonUniqueDailyIndexIsNotConfirmed() {
+                // Arrange: an index built by hand without the unique option
+                ReflectionTestUtils.setField(indexManager, "guard", "warn");
+                when(findIterable.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(plan("IXSCAN"));
+                when(database.runCommand(any(Bson.class))).thenReturn(plan("IXSCAN"));
+                dailyIndexesAre(new Document("key", new Document("playerID", 1).append("gamingDate", 1)));
+
+                // Act
+                indexManager.init();
+
+                // Assert
+                assertFalse(indexManager.hasUniqueDailyIndex());
+        }
+
+        @Test
+        public void testInitRefusesToStartOnCollectionScan() {
+                // Arrange
+                ReflectionTestUtils.setField(indexManager, "guard", "fail");
+                when(findIterable.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(plan("IXSCAN"));
+                when(database.runCommand(any(Bson.class))).thenReturn(plan("COLLSCAN"));
+
+                // Act & Assert
+                IllegalStateException e = assertThrows(IllegalStateException.class, () -> indexManager.init());
+                assertTrue(e.getMessage().contains("processChange"));
+                verify(gaugeChild, times(3)).set(1);
+        }
+
+        @Test
+        public void testInitOnlyLogsCollectionScanInWarnMode() {
+                // Arrange
+                ReflectionTestUtils.setField(indexManager, "guard", "warn");
+                when(findIterable.explain(ExplainVerbosity.QUERY_PLANNER)).thenReturn(plan("COLLSCAN"));
+                when(database.runCommand(any(Bson.class))).thenReturn(plan("COLLSCAN"));
+
+                // Act & Assert
+                assertDoesNotThrow(() -> indexManager.init());
+                verify(gaugeChild, times(5)).set(1);
+        }
+
+        @Test
+        public void testContainsStageSearchesNestedPlans() {
+                // Arrange
+                Document sharded = new Document("queryPlanner", new Document("winningPlan",
+                                new Document("stage", "SHARD_MERGE").append("shards", List.of(
+                                                new Document("winningPlan", new Document("stage", "IXSCAN")),
+                                                new Document("winningPlan", new Document("queryPlan",
+                                                                new Document("stage", "COLLSCAN")))))));
+
+                // Act & Assert
+                assertTrue(IndexManager.containsStage(sharded, "COLLSCAN"));
+                assertFalse(IndexManager.containsStage(plan("IXSCAN"), "COLLSCAN"));
+        }
+
+        @Test
+        public void testContainsStageIgnoresRejectedPlans() {
+                // Arrange: the planner considered a collection scan, on one shard too, and rejected it
+                Document explain = new Document("queryPlanner", new Document("winningPlan",
+                                new Document("stage", "SHARD_MERGE").append("shards", List.of(
+                                                new Document("winningPlan", new Document("stage", "IXSCAN"))
+                                                                .append("rejectedPlans",
+                                                                                List.of(new Document("stage", "COLLSCAN"))))))
+                                .append("rejectedPlans", List.of(new Document("stage", "COLLSCAN"))));
+
+                // Act & Assert
+                assertFalse(IndexManager.containsStage(explain, "COLLSCAN"));
+                assertTrue(IndexManager.containsStage(explain, "IXSCAN"));
+        }
+}
@@ -0,0 +1,110 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.KeyFairLanes;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+
+class KeyFairLanesTest {
+
+        private PrometheusMetricsConfig metricsConfig;
+        private final List<String> order = new CopyOnWriteArrayList<>();
+        private final AtomicLong clock = new AtomicLong(); // nanoseconds, advanced by the tasks
+
+        @BeforeEach
+        void setUp() {
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                Summary wait = mock(Summary.class);
+                when(wait.labels(anyString())).thenReturn(mock(Summary.Child.class));
+                when(metricsConfig.fairLaneQueueWait()).thenReturn(wait);
+                when(metricsConfig.fairLaneKeyBacklog()).thenReturn(mock(Histogram.class));
+                Gauge keys = mock(Gauge.class);
+                when(keys.labels(anyString())).thenReturn(mock(Gauge.Child.class));
+                when(metricsConfig.fairLaneActiveKeys()).thenReturn(keys);
+        }
+
+        private Runnable task(int key, int sequence, long costMillis) {
+                return () -> {
+                        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(costMillis));
+                        order.add(key + ":" + sequence);
+                };
+        }
+
+        @Test
+        void testRoundRobinServesOtherKeysBetweenAWhalesEvents() throws Exception {
+                // Arrange: the whale's backlog is queued before the other players' events
+                KeyFairLanes lanes = new KeyFairLanes("test-lane", 1, KeyFairLanes.Policy.ROUND_ROBIN, 1, 3,
+                                metricsConfig);
+                for (int i = 0; i < 5; i++) {
+                        lanes.submit(0, 1, task(1, i, 0));
+                }
+                lanes.submit(0, 2, task(2, 0, 0));
+                lanes.submit(0, 3, task(3, 0, 0));
+
+                // Act
+                lanes.start();
+                assertTrue(lanes.shutdown(5, TimeUnit.SECONDS));
+
+                // Assert: one whale event, then the others, and the whale's events stay in order
+                assertEquals(List.of("1:0", "2:0", "3:0", "1:1", "1:2", "1:3", "1:4"), order);
+        }
+
+        @Test
+        void testDeficitChargesSlowKeysTheirHandlerTime() throws Exception {
+                // Arrange: key 1's events take 20 ms, the turn is worth 2 ms
+                KeyFairLanes lanes = new KeyFairLanes("test-lane", 1, KeyFairLanes.Policy.DEFICIT,
+                                TimeUnit.MILLISECONDS.toNanos(2), 3, metricsConfig, clock::get);
+                for (int i = 0; i < 3; i++) {
+                        lanes.submit(0, 1, task(1, i, 20));
+                }
+                for (int i = 0; i < 3; i++) {
+                        lanes.submit(0, 2, task(2, i, 0));
+                }
+
+                // Act
+                lanes.start();
+                assertTrue(lanes.shutdown(5, TimeUnit.SECONDS));
+
+                // Assert: the cheap key runs its whole backlog in one turn
+                assertEquals(List.of("1:0", "2:0", "2:1", "2:2", "1:1", "1:2"), order);
+        }
+
+        @Test
+        void testLargestBacklogsListTheKeysWithTheMostQueuedEvents() {
+                // Arrange: not started, everything stays queued
+                KeyFairLanes lanes = new KeyFairLanes("test-lane", 2, KeyFairLanes.Policy.ROUND_ROBIN, 1, 3,
+                                metricsConfig);
+                for (int i = 0; i < 4; i++) {
+                        lanes.submit(1, 7, task(7, i, 0));
+                }
+                lanes.submit(1, 9, task(9, 0, 0));
+
+                // Act / Assert
+                assertEquals(7, lanes.largestBacklogs(1, 1).get(0).getInteger("key"));
+                assertEquals(4, lanes.largestBacklogs(1, 1).get(0).getInteger("queued"));
+                assertTrue(lanes.largestBacklogs(0, 5).isEmpty());
+        }
+
+        @Test
+        void testPolicyNames() {
+                assertEquals(KeyFairLanes.Policy.DEFICIT, KeyFairLanes.Policy.fromString("drr"));
+                assertEquals(KeyFairLanes.Policy.ROUND_ROBIN, KeyFairLanes.Policy.fromString("roundrobin"));
+                assertEquals(KeyFairLanes.Policy.ROUND_ROBIN, KeyFairLanes.Policy.fromString("round-robin"));
+        }
+}
@@ -0,0 +1,104 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.LagTracker;
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ResumeTokenService;
+import com.mongodb.client.MongoClient;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+public class LagTrackerTest {
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private MongoClient mongoClient;
+
+        @Mock
+        private ResumeTokenService resumeTokenService;
+
+        @InjectMocks
+        private LagTracker lagTracker;
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                when(metricsConfig.eventTimeBehindHead()).thenReturn(mock(Histogram.class));
+                when(metricsConfig.minutesUntilTokenLoss()).thenReturn(mock(Gauge.class));
+                ReflectionTestUtils.setField(lagTracker, "nums", 2);
+                ReflectionTestUtils.setField(lagTracker, "sampleIntervalMillis", 60_000L);
+                lagTracker.init();
+        }
+
+        @AfterEach
+        public void tearDown() {
+                lagTracker.shutdown();
+        }
+
+        private static BsonDocument tokenAt(long seconds) {
+                // KeyString timestamp type byte, 4 bytes seconds, 4 bytes increment, rest of the key
+                return new BsonDocument("_data", new BsonString(String.format("82%08X%08X2B0229296E04", seconds, 1)));
+        }
+
+        @Test
+        public void testClusterTimeFromResumeToken() {
+                assertEquals(1727325465L, ResumeTokenService.clusterTimeSeconds(tokenAt(1727325465L)));
+                assertEquals(-1L, ResumeTokenService.clusterTimeSeconds(new BsonDocument()));
+        }
+
+        @Test
+        public void testTimeBehindHeadFollowsSlowestBusyLane() {
+                lagTracker.onCursorPosition("default", tokenAt(1060));
+
+                // lane 0 finished one event at t=1000 and still has one queued
+                lagTracker.onDispatched(0, new BsonTimestamp(990, 1));
+                lagTracker.onDispatched(0, new BsonTimestamp(1000, 2));
+                lagTracker.onCompleted(0, new BsonTimestamp(1000, 1));
+                // lane 1 is drained
+                lagTracker.onDispatched(1, new BsonTimestamp(1050, 1));
+                lagTracker.onCompleted(1, new BsonTimestamp(1050, 1));
+
+                assertEquals(60.0, lagTracker.timeBehindHead(), 0.001);
+                assertEquals(1, lagTracker.backlog());
+        }
+
+        @Test
+        public void testNoLagWhenDrained() {
+                lagTracker.onCursorPosition("default", tokenAt(1060));
+                lagTracker.onDispatched(0, new BsonTimestamp(1000, 1));
+                lagTracker.onCompleted(0, new BsonTimestamp(1000, 1));
+
+                assertEquals(0.0, lagTracker.timeBehindHead(), 0.001);
+                assertEquals(0, lagTracker.backlog());
+        }
+
+        @Test
+        public void testLaneStuckOnItsFirstEventIsBehind() {
+                // Arrange: the lane never completed an event
+                lagTracker.onCursorPosition("default", tokenAt(1060));
+
+                // Act
+                lagTracker.onDispatched(1, new BsonTimestamp(1010, 1));
+                lagTracker.onDispatched(1, new BsonTimestamp(1020, 1));
+
+                // Assert
+                assertEquals(50.0, lagTracker.timeBehindHead(), 0.001);
+        }
+}
@@ -0,0 +1,144 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.LaneHighWaterMarks;
+import com.example.demo.service.ResumeTokenService;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+
+class LaneHighWaterMarksTest {
+
+        private ChangeEventServiceInterface handler;
+        private ResumeTokenService tokens;
+        private PrometheusMetricsConfig metricsConfig;
+        private Counter.Child skipped;
+
+        private static BsonDocument token(String data) {
+                return new BsonDocument("_data", new BsonString(data));
+        }
+
+        @SuppressWarnings("unchecked")
+        private ChangeStreamDocument<Document> event(String data, int partitionKey) {
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getResumeToken()).thenReturn(token(data));
+                when(handler.partitionKey(event)).thenReturn(partitionKey);
+                return event;
+        }
+
+        @BeforeEach
+        void setUp() {
+                handler = mock(ChangeEventServiceInterface.class);
+                tokens = mock(ResumeTokenService.class);
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                Counter counter = mock(Counter.class);
+                skipped = mock(Counter.Child.class);
+                when(counter.labels(anyString())).thenReturn(skipped);
+                when(metricsConfig.replaySkipped()).thenReturn(counter);
+        }
+
+        private LaneHighWaterMarks marks(int lanes) {
+                return new LaneHighWaterMarks("default", lanes, handler, tokens, metricsConfig);
+        }
+
+        @Test
+        void testEventsAtOrBeforeTheirLanesMarkAreSkipped() {
+                // Arrange: lane 0 applied up to 8205, lane 1 only up to 8202
+                when(tokens.getThreadIDs("lane-")).thenReturn(List.of("lane-0", "lane-1"));
+                when(tokens.getThreadResumeToken("lane-0")).thenReturn(token("8205"));
+                when(tokens.getThreadResumeToken("lane-1")).thenReturn(token("8202"));
+                LaneHighWaterMarks marks = marks(2).load();
+
+                // Act + Assert: replay from the earliest mark
+                assertTrue(marks.isApplied(event("8203", 0)));
+                assertFalse(marks.isApplied(event("8203", 1)));
+                assertTrue(marks.isApplied(event("8205", 2)));
+                assertTrue(marks.isReplaying());
+                assertFalse(marks.isApplied(event("8206", 0)));
+                assertFalse(marks.isReplaying());
+                verify(skipped, times(2)).inc();
+        }
+
+        @Test
+        void testChangedLaneCountSkipsNothing() {
+                // Arrange: marks were written by two lanes, now there are three
+                when(tokens.getThreadIDs("lane-")).thenReturn(List.of("lane-0", "lane-1", "lane-3"));
+                LaneHighWaterMarks marks = marks(3).load();
+
+                // Act
+                boolean applied = marks.isApplied(event("8201", 0));
+
+                // Assert: no lane skips, the removed lane's checkpoint is dropped
+                assertFalse(applied);
+                verify(tokens, never()).getThreadResumeToken(anyString());
+                verify(tokens).deleteThreadResumeToken("lane-3");
+        }
+
+        @Test
+        void testSeedPinsLanesAndReplacesThreadCheckpoints() {
+                // Arrange: checkpoints of a version that named them after executor threads
+                when(tokens.getThreadIDs("Thread-")).thenReturn(List.of("Thread-0", "Thread-1"));
+                BsonDocument start = token("8266C4B2A3000000012B0229296E04");
+
+                // Act
+                marks(2).seed(start);
+
+                // Assert
+                verify(tokens).seedResumeToken(new BsonTimestamp(0x66C4B2A3, 0), start, "lane-0");
+                verify(tokens).seedResumeToken(new BsonTimestamp(0x66C4B2A3, 0), start, "lane-1");
+                verify(tokens).deleteThreadResumeToken("Thread-0");
+                verify(tokens).deleteThreadResumeToken("Thread-1");
+        }
+
+        @Test
+        void testSwitchToEventModeDropsTransactionalCheckpoints() {
+                // Arrange: the stream was committed transactionally before
+                when(tokens.getThreadIDs("txn-lane-")).thenReturn(List.of("txn-lane-0", "txn-lane-1"));
+                BsonDocument start = token("8266C4B2A3000000012B0229296E04");
+
+                // Act
+                marks(2).seed(start);
+
+                // Assert
+                verify(tokens).seedResumeToken(new BsonTimestamp(0x66C4B2A3, 0), start, "lane-0");
+                verify(tokens).deleteThreadResumeToken("txn-lane-0");
+                verify(tokens).deleteThreadResumeToken("txn-lane-1");
+                verify(tokens, never()).deleteThreadResumeToken("lane-0");
+        }
+
+        @Test
+        void testIdleLaneMovesOnlyOnceTheReplayIsOver() {
+                // Arrange: lane 0 applied up to 8205, the stream replays from lane 1's 8202
+                when(tokens.getThreadIDs("lane-")).thenReturn(List.of("lane-0", "lane-1"));
+                when(tokens.getThreadResumeToken("lane-0")).thenReturn(token("8205"));
+                when(tokens.getThreadResumeToken("lane-1")).thenReturn(token("8202"));
+                LaneHighWaterMarks marks = marks(2).load();
+                marks.isApplied(event("8203", 1));
+
+                // Act + Assert: moving lane 0 to 8203 would replay its applied events again
+                assertFalse(marks.advanceIdle(0, new BsonTimestamp(3, 1), token("8203")));
+                marks.isApplied(event("8206", 1));
+                assertTrue(marks.advanceIdle(0, new BsonTimestamp(6, 1), token("8206")));
+                verify(tokens, never()).saveResumeToken(new BsonTimestamp(3, 1), token("8203"), "lane-0");
+                verify(tokens).saveResumeToken(new BsonTimestamp(6, 1), token("8206"), "lane-0");
+        }
+}
@@ -0,0 +1,88 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.when;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.example.demo.service.LeaseService;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+
+public class LeaseServiceTest {
+
+        @Mock
+        private MongoCollection<Document> leaseCollection;
+
+        @InjectMocks
+        private LeaseService leaseService;
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+        }
+
+        @Test
+        public void testTryAcquireCreatesLease() {
+                // No previous lease document, the upsert inserted it
+                when(leaseCollection.findOneAndUpdate(any(Bson.class), anyList(),
+                                any(FindOneAndUpdateOptions.class))).thenReturn(null);
+
+                Document previous = leaseService.tryAcquire("changestream", "pod-a", 3000);
+
+                assertNotNull(previous);
+                assertTrue(previous.isEmpty());
+        }
+
+        @Test
+        public void testTryAcquireWhileHeldByOther() {
+                // The upsert collides with the lease another owner still holds
+                MongoCommandException duplicateKey = new MongoCommandException(
+                                new BsonDocument("ok", new BsonInt32(0)).append("code", new BsonInt32(11000))
+                                                .append("errmsg", new BsonString("E11000 duplicate key error")),
+                                new ServerAddress());
+                when(leaseCollection.findOneAndUpdate(any(Bson.class), anyList(),
+                                any(FindOneAndUpdateOptions.class))).thenThrow(duplicateKey);
+
+                assertNull(leaseService.tryAcquire("changestream", "pod-b", 3000));
+        }
+
+        @Test
+        public void testTryAcquirePropagatesOtherErrors() {
+                MongoCommandException unauthorized = new MongoCommandException(
+                                new BsonDocument("ok", new BsonInt32(0)).append("code", new BsonInt32(13))
+                                                .append("errmsg", new BsonString("not authorized")),
+                                new ServerAddress());
+                when(leaseCollection.findOneAndUpdate(any(Bson.class), anyList(),
+                                any(FindOneAndUpdateOptions.class))).thenThrow(unauthorized);
+
+                assertThrows(MongoCommandException.class,
+                                () -> leaseService.tryAcquire("changestream", "pod-b", 3000));
+        }
+
+        @Test
+        public void testRenewFailsWhenLeaseLost() {
+                when(leaseCollection.updateOne(any(Bson.class), anyList()))
+                                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+
+                assertFalse(leaseService.renew("changestream", "pod-a", 3000));
+        }
+}
@@ -0,0 +1,81 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.LongAggregateMap;
+
+class LongAggregateMapTest {
+
+        @Test
+        void testAddAggregatesPerKeyAcrossResizes() {
+                // Arrange
+                LongAggregateMap map = new LongAggregateMap(4);
+
+                // Act: enough keys to grow the table several times
+                for (long key = 0; key < 10_000; key++) {
+                        map.add(key, key);
+                        map.add(key, 1);
+                }
+
+                // Assert
+                assertEquals(10_000, map.size());
+                assertEquals(2, map.count(4_242));
+                assertEquals(4_243.0, map.sum(4_242));
+                assertEquals(0, map.count(10_001));
+        }
+
+        @Test
+        void testRemoveIfKeepsTheOtherKeysReachable() {
+                // Arrange
+                LongAggregateMap map = new LongAggregateMap();
+                for (long key = 0; key < 1_000; key++) {
+                        map.add(key, 1);
+                }
+
+                // Act
+                int removed = map.removeIf(key -> key % 2 == 0);
+
+                // Assert: no probe chain is broken by the removed keys
+                assertEquals(500, removed);
+                assertEquals(500, map.size());
+                for (long key = 1; key < 1_000; key += 2) {
+                        assertEquals(1, map.count(key));
+                }
+                assertEquals(0, map.count(2));
+        }
+
+        @Test
+        void testSerializationRoundTrip() throws Exception {
+                // Arrange
+                LongAggregateMap map = new LongAggregateMap();
+                map.add(-7L << 32 | 3, 2.5);
+                map.add(-7L << 32 | 3, 4.0);
+                map.add(9L << 32 | 3, 1.0);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                // Act
+                map.writeTo(new DataOutputStream(bytes));
+                LongAggregateMap copy = LongAggregateMap
+                                .readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+                // Assert
+                Map<Long, double[]> entries = new HashMap<>();
+                copy.forEach((key, count, sum, max) -> entries.put(key, new double[] { count, sum, max }));
+                assertEquals(2, entries.size());
+                double[] player = entries.get(-7L << 32 | 3);
+                assertEquals(2, player[0]);
+                assertEquals(6.5, player[1]);
+                assertEquals(4.0, player[2]);
+                assertTrue(entries.containsKey(9L << 32 | 3));
+        }
+}
@@ -0,0 +1,170 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ReadModelCache;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+public class ReadModelCacheTest {
+
+        private static final Date DAY = new Date(1727308800000L); // 2024-09-26T00:00Z
+
+        @Mock
+        private MongoCollection<Document> userDailyTxnCollection;
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private FindIterable<Document> findIterable;
+
+        private ReadModelCache cache;
+
+        private static Document transaction(int transactionID, double value, long offsetMillis) {
+                return new Document("transactionID", transactionID).append("value", value)
+                                .append("date", new Date(DAY.getTime() + offsetMillis));
+        }
+
+        private static Document day(int playerID) {
+                return new Document("playerID", playerID).append("gamingDate", DAY).append("name", "p" + playerID)
+                                .append("txns", List.of(transaction(1, 5.0, 1000)));
+        }
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                Counter counter = mock(Counter.class);
+                when(counter.labels(anyString())).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.readModelRequests()).thenReturn(counter);
+                when(metricsConfig.readModelEvictions()).thenReturn(mock(Counter.class));
+                when(metricsConfig.readModelEntries()).thenReturn(mock(Gauge.class));
+                when(metricsConfig.readModelBytes()).thenReturn(mock(Gauge.class));
+                when(userDailyTxnCollection.find(any(Bson.class))).thenReturn(findIterable);
+                when(userDailyTxnCollection.withReadPreference(ReadPreference.primary()))
+                                .thenReturn(userDailyTxnCollection);
+
+                cache = new ReadModelCache(userDailyTxnCollection, metricsConfig);
+                ReflectionTestUtils.setField(cache, "enabled", true);
+                ReflectionTestUtils.setField(cache, "maxBytes", 1L << 20);
+                ReflectionTestUtils.setField(cache, "ttlMillis", 60_000L);
+        }
+
+        @Test
+        public void testMissLoadsOnceThenHits() {
+                // Arrange
+                when(findIterable.first()).thenReturn(day(7));
+
+                // Act
+                BsonDocument first = cache.get(7, DAY);
+                BsonDocument second = cache.get(7, DAY);
+
+                // Assert
+                assertEquals(first, second);
+                verify(userDailyTxnCollection, times(1)).find(any(Bson.class));
+        }
+
+        @Test
+        public void testUnknownPlayerDayIsNotCached() {
+                // Act & Assert
+                assertNull(cache.get(8, DAY));
+                assertNull(cache.get(8, DAY));
+                verify(userDailyTxnCollection, times(2)).find(any(Bson.class));
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void testWrittenTransactionUpdatesCachedDay() {
+                // Arrange
+                when(findIterable.first()).thenReturn(day(7));
+                cache.get(7, DAY);
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getFullDocument()).thenReturn(new Document("playerID", 7).append("name", "p7")
+                                .append("transactionID", 2).append("value", 3.0)
+                                .append("date", new Date(DAY.getTime() + 2000)));
+
+                // Act
+                cache.onWritten(event);
+                BsonDocument cached = cache.get(7, DAY);
+
+                // Assert: served from memory with the new totals
+                verify(userDailyTxnCollection, times(1)).find(any(Bson.class));
+                assertEquals(8.0, cached.getDouble("totalValue").getValue());
+                assertEquals(2, cached.getInt32("txnCount").getValue());
+        }
+
+        @Test
+        public void testApplyTransactionReplacesBySameTransactionID() {
+                // Arrange
+                Document day = day(7);
+
+                // Act
+                ReadModelCache.applyTransaction(day, transaction(1, 9.0, 3000).append("name", "p7"));
+
+                // Assert
+                assertEquals(1, day.getInteger("txnCount"));
+                assertEquals(9.0, day.getDouble("totalValue"));
+                assertEquals(9.0, day.getDouble("minValue"));
+        }
+
+        @Test
+        public void testApplyTransactionSkipsValuesThatAreNoNumbers() {
+                // Arrange
+                Document day = day(7);
+
+                // Act
+                ReadModelCache.applyTransaction(day, transaction(2, 0, 2000).append("value", "n/a"));
+                ReadModelCache.applyTransaction(day, transaction(3, 0, 3000).append("value", null));
+
+                // Assert: counted, but left out of the sum, min and max like the pipeline does
+                assertEquals(3, day.getInteger("txnCount"));
+                assertEquals(5.0, day.getDouble("totalValue"));
+                assertEquals(5.0, day.getDouble("minValue"));
+                assertEquals(5.0, day.getDouble("maxValue"));
+        }
+
+        @Test
+        public void testDaysBeyondTheStripesShareOfMaxBytesAreEvicted() {
+                // Arrange: no stripe has room for a day document
+                ReflectionTestUtils.setField(cache, "maxBytes", 256L);
+                when(findIterable.first()).thenReturn(day(1));
+
+                // Act
+                cache.get(1, DAY);
+                cache.get(1, DAY);
+
+                // Assert: evicted right after the load, so loaded again
+                verify(userDailyTxnCollection, times(2)).find(any(Bson.class));
+        }
+
+        @Test
+        public void testMissesAreReadFromThePrimary() {
+                // Assert: a secondary may not have the lanes' writes yet
+                verify(userDailyTxnCollection).withReadPreference(ReadPreference.primary());
+        }
+}
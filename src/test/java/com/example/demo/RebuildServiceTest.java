@@ -0,0 +1,121 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.RebuildService;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+public class RebuildServiceTest {
+
+        @Mock
+        private MongoCollection<Document> changestreamCollection;
+
+        @Mock
+        private MongoCollection<Document> userDailyTxnCollection;
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @Mock
+        private AggregateIterable<Document> aggregateIterable;
+
+        private RebuildService rebuildService;
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                Histogram histogram = mock(Histogram.class);
+                when(histogram.startTimer()).thenReturn(mock(Histogram.Timer.class));
+                when(metricsConfig.rebuildChunkDuration()).thenReturn(histogram);
+                when(metricsConfig.rebuildTransactions()).thenReturn(mock(Counter.class));
+                when(metricsConfig.rebuildTransactionsPerSecond()).thenReturn(mock(Gauge.class));
+                when(metricsConfig.rebuildProgress()).thenReturn(mock(Gauge.class));
+                when(userDailyTxnCollection.getNamespace())
+                                .thenReturn(new MongoNamespace("test_changestream", "userdailytxn"));
+                when(changestreamCollection.aggregate(anyList())).thenReturn(aggregateIterable);
+
+                rebuildService = new RebuildService(changestreamCollection, userDailyTxnCollection, metricsConfig);
+                ReflectionTestUtils.setField(rebuildService, "threads", 2);
+                ReflectionTestUtils.setField(rebuildService, "playerBuckets", 2);
+        }
+
+        @Test
+        public void testRebuildMergesEveryChunk() throws InterruptedException {
+                // Arrange: 3 days x 2 player buckets, 10 transactions in each merged chunk
+                AggregateIterable<Document> merged = mock(AggregateIterable.class);
+                when(merged.first()).thenReturn(new Document("transactions", 10L));
+                when(userDailyTxnCollection.aggregate(anyList())).thenReturn(merged);
+
+                // Act
+                long transactions = rebuildService.rebuild(LocalDate.of(2024, 9, 1), LocalDate.of(2024, 9, 3));
+
+                // Assert: counted on the merged days, the source is scanned once
+                assertEquals(60L, transactions);
+                verify(userDailyTxnCollection).createIndex(any(Bson.class), any(IndexOptions.class));
+                verify(changestreamCollection, times(6)).aggregate(anyList());
+                verify(aggregateIterable, times(6)).toCollection();
+                verify(changestreamCollection, never()).countDocuments(any(Bson.class));
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        public void testRebuildMergesStoredTransactionsById() throws InterruptedException {
+                // Arrange
+                when(userDailyTxnCollection.aggregate(anyList())).thenReturn(mock(AggregateIterable.class));
+                ArgumentCaptor<List<Document>> pipeline = ArgumentCaptor.forClass(List.class);
+
+                // Act
+                rebuildService.rebuild(LocalDate.of(2024, 9, 1), LocalDate.of(2024, 9, 1));
+                verify(changestreamCollection, times(2)).aggregate(pipeline.capture());
+                List<Document> stages = pipeline.getValue();
+                Document merge = stages.get(stages.size() - 1).get("$merge", Document.class);
+
+                // Assert: an existing day is merged, not replaced
+                List<?> whenMatched = merge.get("whenMatched", List.class);
+                assertEquals(2, whenMatched.size());
+                Document set = ((Document) whenMatched.get(0)).get("$set", Document.class);
+                assertTrue(set.containsKey("txns"));
+                assertEquals("insert", merge.getString("whenNotMatched"));
+        }
+
+        @Test
+        public void testEmptyChunkCountsNothing() throws InterruptedException {
+                // Arrange: no merged day documents
+                AggregateIterable<Document> merged = mock(AggregateIterable.class);
+                when(userDailyTxnCollection.aggregate(anyList())).thenReturn(merged);
+
+                // Act
+                long transactions = rebuildService.rebuild(LocalDate.of(2024, 9, 1), LocalDate.of(2024, 9, 1));
+
+                // Assert
+                assertEquals(0L, transactions);
+        }
+}
@@ -0,0 +1,159 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ShadowRunner;
+import com.example.demo.service.SyntheticChangeEvents;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+class ShadowRunnerTest {
+
+        private ChangeEventServiceInterface candidate;
+        private ApplicationContext applicationContext;
+        private PrometheusMetricsConfig metricsConfig;
+        private Counter events;
+        private Counter.Child sameCode;
+        private Counter.Child differentCode;
+        private Counter.Child error;
+        private Counter.Child dropped;
+
+        private static ChangeStreamDocument<Document> insert(int playerID) {
+                return SyntheticChangeEvents.insert(new MongoNamespace("test_changestream", "changestream"),
+                                new Document("playerID", playerID).append("transactionID", "t" + playerID),
+                                new BsonTimestamp(1000, 1));
+        }
+
+        @BeforeEach
+        void setUp() {
+                candidate = mock(ChangeEventServiceInterface.class);
+                applicationContext = mock(ApplicationContext.class);
+                when(applicationContext.getBean("shadowChangeEventService", ChangeEventServiceInterface.class))
+                                .thenReturn(candidate);
+
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                events = mock(Counter.class);
+                sameCode = mock(Counter.Child.class);
+                differentCode = mock(Counter.Child.class);
+                error = mock(Counter.Child.class);
+                dropped = mock(Counter.Child.class);
+                when(events.labels("same")).thenReturn(sameCode);
+                when(events.labels("different")).thenReturn(differentCode);
+                when(events.labels("error")).thenReturn(error);
+                when(events.labels("dropped")).thenReturn(dropped);
+                when(metricsConfig.shadowReturnCodes()).thenReturn(events);
+                Histogram duration = mock(Histogram.class);
+                when(duration.labels(any(String.class))).thenReturn(mock(Histogram.Child.class));
+                when(metricsConfig.shadowProcessDuration()).thenReturn(duration);
+        }
+
+        private ShadowRunner runner(int threads, int queueSize) {
+                ShadowRunner runner = new ShadowRunner(applicationContext, metricsConfig);
+                ReflectionTestUtils.setField(runner, "enabled", true);
+                ReflectionTestUtils.setField(runner, "handlerName", "shadowChangeEventService");
+                ReflectionTestUtils.setField(runner, "threadCount", threads);
+                ReflectionTestUtils.setField(runner, "queueSize", queueSize);
+                runner.init();
+                return runner;
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testCandidateReturnCodesAreComparedWithThePrimary() throws Exception {
+                // Arrange
+                ShadowRunner runner = runner(2, 100);
+                ChangeStreamDocument<Document> same = insert(1);
+                ChangeStreamDocument<Document> different = insert(2);
+                ChangeStreamDocument<Document> failing = insert(3);
+                when(candidate.processChange(any(ChangeStreamDocument.class))).thenAnswer(invocation -> {
+                        int playerID = invocation.<ChangeStreamDocument<Document>>getArgument(0).getFullDocument()
+                                        .getInteger("playerID");
+                        if (playerID == 3) {
+                                throw new IllegalStateException("candidate bug");
+                        }
+                        return playerID == 1 ? 0 : 1;
+                });
+
+                // Act
+                runner.offer(same, 0, 0, 1_000_000);
+                runner.offer(different, 1, 0, 1_000_000);
+                runner.offer(failing, 0, 0, 1_000_000);
+                assertTrue(runner.shutdown(5, TimeUnit.SECONDS));
+
+                // Assert
+                verify(sameCode, times(1)).inc();
+                verify(differentCode, times(1)).inc();
+                verify(error, times(1)).inc();
+                verify(dropped, never()).inc();
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testCandidateSeesACopyOfTheEvent() throws Exception {
+                // Arrange
+                ShadowRunner runner = runner(1, 100);
+                ChangeStreamDocument<Document> event = insert(7);
+
+                // Act
+                runner.offer(event, 0, 0, 1_000_000);
+                assertTrue(runner.shutdown(5, TimeUnit.SECONDS));
+
+                // Assert
+                ArgumentCaptor<ChangeStreamDocument<Document>> seen = ArgumentCaptor
+                                .forClass(ChangeStreamDocument.class);
+                verify(candidate).processChange(seen.capture());
+                assertNotSame(event.getFullDocument(), seen.getValue().getFullDocument());
+                assertEquals(event.getFullDocument(), seen.getValue().getFullDocument());
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testSlowCandidateDropsEventsWithoutBlocking() throws Exception {
+                // Arrange: the candidate blocks its only thread, the queue holds one event
+                ShadowRunner runner = runner(1, 1);
+                CountDownLatch started = new CountDownLatch(1);
+                CountDownLatch release = new CountDownLatch(1);
+                when(candidate.processChange(any(ChangeStreamDocument.class))).thenAnswer(invocation -> {
+                        started.countDown();
+                        release.await();
+                        return 0;
+                });
+                runner.offer(insert(1), 0, 0, 1_000_000);
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+
+                // Act: one event is queued, the next two are dropped
+                runner.offer(insert(2), 0, 0, 1_000_000);
+                runner.offer(insert(3), 0, 0, 1_000_000);
+                runner.offer(insert(4), 0, 0, 1_000_000);
+                release.countDown();
+                assertTrue(runner.shutdown(5, TimeUnit.SECONDS));
+
+                // Assert
+                verify(dropped, times(2)).inc();
+                verify(match, times(2)).inc();
+        }
+}
@@ -0,0 +1,74 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.metrics.StartupTracker;
+
+import io.prometheus.client.Gauge;
+
+public class StartupTrackerTest {
+
+        @Mock
+        private PrometheusMetricsConfig metricsConfig;
+
+        @InjectMocks
+        private StartupTracker startupTracker;
+
+        private Gauge firstEvent;
+        private Gauge steadyState;
+
+        @BeforeEach
+        public void setUp() {
+                MockitoAnnotations.openMocks(this);
+                firstEvent = mock(Gauge.class);
+                steadyState = mock(Gauge.class);
+                when(metricsConfig.startupTimeToFirstEvent()).thenReturn(firstEvent);
+                when(metricsConfig.startupTimeToSteadyState()).thenReturn(steadyState);
+                ReflectionTestUtils.setField(startupTracker, "windowSize", 4);
+                ReflectionTestUtils.setField(startupTracker, "tolerance", 0.1);
+        }
+
+        @Test
+        public void testFirstEventIsRecordedOnce() {
+                // Act
+                startupTracker.onEventProcessed(1_000_000);
+                startupTracker.onEventProcessed(1_000_000);
+
+                // Assert
+                verify(firstEvent, times(1)).set(anyDouble());
+        }
+
+        @Test
+        public void testSteadyStateAfterTwoSimilarWindows() {
+                // Arrange: a cold window, then the compiled code settles
+                long[] durations = { 9_000_000, 7_000_000, 8_000_000, 6_000_000, 1_000_000, 1_100_000, 900_000,
+                                1_000_000 };
+                for (long duration : durations) {
+                        startupTracker.onEventProcessed(duration);
+                }
+                assertFalse(startupTracker.isSteady());
+
+                // Act
+                for (int i = 0; i < 4; i++) {
+                        startupTracker.onEventProcessed(1_050_000);
+                }
+
+                // Assert
+                assertTrue(startupTracker.isSteady());
+                verify(steadyState, times(1)).set(anyDouble());
+        }
+}
@@ -0,0 +1,53 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import com.example.demo.service.SyntheticChangeEvents;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+class SyntheticChangeEventsTest {
+
+        @Test
+        void testInsertEventCarriesDocumentWithoutResumeToken() {
+                // Arrange
+                Document fullDocument = new Document("_id", 7).append("playerID", 42).append("transactionID", "t1");
+                BsonTimestamp clusterTime = new BsonTimestamp(1000, 1);
+
+                // Act
+                ChangeStreamDocument<Document> event = SyntheticChangeEvents
+                                .insert(new MongoNamespace("test_changestream", "changestream"), fullDocument, clusterTime);
+
+                // Assert
+                assertEquals(OperationType.INSERT, event.getOperationType());
+                assertEquals(42, event.getFullDocument().getInteger("playerID"));
+                assertEquals(clusterTime, event.getClusterTime());
+                assertEquals("changestream", event.getNamespace().getCollectionName());
+                assertNull(event.getResumeToken());
+        }
+
+        @Test
+        void testCopyIsIndependentOfTheOriginal() {
+                // Arrange
+                ChangeStreamDocument<Document> event = SyntheticChangeEvents.insert(
+                                new MongoNamespace("test_changestream", "changestream"),
+                                new Document("_id", 7).append("playerID", 42), new BsonTimestamp(1000, 1));
+
+                // Act
+                ChangeStreamDocument<Document> copy = SyntheticChangeEvents.copy(event);
+                copy.getFullDocument().put("playerID", 43);
+
+                // Assert
+                assertNotSame(event.getFullDocument(), copy.getFullDocument());
+                assertEquals(42, event.getFullDocument().getInteger("playerID"));
+                assertEquals(event.getClusterTime(), copy.getClusterTime());
+                assertEquals(OperationType.INSERT, copy.getOperationType());
+        }
+}
@@ -0,0 +1,156 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+import com.example.demo.service.ChangeEventService;
+import com.example.demo.service.TransactionFilter;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+class TransactionFilterTest {
+
+        private MongoCollection<Document> userDailyTxnCollection;
+        private TransactionFilter filter;
+        private ChangeEventService service;
+
+        @BeforeEach
+        @SuppressWarnings("unchecked")
+        void setUp() {
+                userDailyTxnCollection = mock(MongoCollection.class);
+                filter = new TransactionFilter(true, 1 << 16, 6, 0.02);
+                service = new ChangeEventService(mock(MongoCollection.class), userDailyTxnCollection,
+                                new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 50, 0.9), filter);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ChangeStreamDocument<Document> event(int transactionID) {
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getFullDocument()).thenReturn(new Document("playerID", 7)
+                                .append("transactionID", transactionID).append("value", 5.0).append("name", "p7")
+                                .append("date", new Date(1727325465000L)));
+                return event;
+        }
+
+        @Test
+        void testAddedTransactionsAreAlwaysFound() {
+                // Act: a few transactions per player day, spread over the blocks
+                for (int transactionID = 0; transactionID < 1000; transactionID++) {
+                        filter.add(transactionID % 200, 19992, transactionID);
+                }
+
+                // Assert: no false negatives
+                for (int transactionID = 0; transactionID < 1000; transactionID++) {
+                        assertTrue(filter.mightContain(transactionID % 200, 19992, transactionID));
+                }
+                assertFalse(filter.mightContain(7, 19992, 5000));
+                assertEquals(0, filter.getRebuilds());
+        }
+
+        @Test
+        void testFilterIsClearedAtItsFalsePositiveLimit() {
+                // Arrange: one block, so a few dozen transactions fill it
+                TransactionFilter small = new TransactionFilter(true, 512, 6, 0.02);
+
+                // Act
+                for (int transactionID = 0; transactionID < 200; transactionID++) {
+                        small.add(7, 19992, transactionID);
+                }
+
+                // Assert
+                assertTrue(small.getRebuilds() > 0);
+                assertTrue(small.estimatedFalsePositiveRate() <= 0.02);
+        }
+
+        @Test
+        void testNewTransactionTakesThePushPath() {
+                // Act
+                service.processChange(event(100));
+
+                // Assert: a plain update document, no pipeline
+                verify(userDailyTxnCollection, times(1)).updateOne(any(Bson.class), any(Document.class),
+                                any(UpdateOptions.class));
+                verify(userDailyTxnCollection, times(0)).updateOne(any(Bson.class), anyList(), any(UpdateOptions.class));
+                assertEquals(1, filter.getPathCount(TransactionFilter.Path.PUSH));
+        }
+
+        @Test
+        void testSeenTransactionTakesThePipelinePath() {
+                // Arrange
+                service.processChange(event(100));
+
+                // Act
+                service.processChange(event(100));
+
+                // Assert
+                verify(userDailyTxnCollection, times(1)).updateOne(any(Bson.class), anyList(), any(UpdateOptions.class));
+                assertEquals(1, filter.getPathCount(TransactionFilter.Path.PIPELINE));
+        }
+
+        @Test
+        void testDuplicateKeyFallsBackToThePipeline() {
+                // Arrange: the day already has the transaction, unknown to a fresh filter
+                when(userDailyTxnCollection.updateOne(any(Bson.class), any(Document.class), any(UpdateOptions.class)))
+                                .thenThrow(new MongoWriteException(new WriteError(11000, "E11000 duplicate key",
+                                                new BsonDocument()), new ServerAddress()));
+
+                // Act
+                int result = service.processChange(event(100));
+
+                // Assert
+                assertEquals(0, result);
+                verify(userDailyTxnCollection, times(1)).updateOne(any(Bson.class), anyList(), any(UpdateOptions.class));
+                assertEquals(1, filter.getPathCount(TransactionFilter.Path.FALLBACK));
+        }
+
+        @Test
+        void testDuplicateKeyIsNoWriteFailureForTheLimiter() {
+                // Arrange: an enabled limiter with a generous latency target
+                AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 1, 64, 16, 60_000, 0.5);
+                ChangeEventService limited = new ChangeEventService(mock(MongoCollection.class),
+                                userDailyTxnCollection, limiter, filter);
+                when(userDailyTxnCollection.updateOne(any(Bson.class), any(Document.class), any(UpdateOptions.class)))
+                                .thenThrow(new MongoWriteException(new WriteError(11000, "E11000 duplicate key",
+                                                new BsonDocument()), new ServerAddress()));
+
+                // Act
+                limited.processChange(event(100));
+
+                // Assert: the expected collision neither counts as a failure nor cuts the limit
+                assertEquals(0, limiter.getFailures());
+                assertTrue(limiter.getLimit() >= 16);
+                assertEquals(1, filter.getPathCount(TransactionFilter.Path.FALLBACK));
+        }
+
+        @Test
+        void testPushOnlyMatchesDaysWithStoredTotals() {
+                // Act
+                service.processChange(event(100));
+
+                // Assert: a day without txnCount collides with the unique index and takes the pipeline
+                ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+                verify(userDailyTxnCollection).updateOne(filter.capture(), any(Document.class), any(UpdateOptions.class));
+                assertEquals(new Document("$exists", true), ((Document) filter.getValue()).get("txnCount"));
+        }
+}
@@ -0,0 +1,118 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.demo.service.AdaptiveConcurrencyLimiter;
+import com.example.demo.service.ChangeEventService;
+import com.example.demo.service.ResumeTokenService;
+import com.example.demo.service.SyntheticChangeEvents;
+import com.example.demo.service.TransactionFilter;
+import com.mongodb.MongoNamespace;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * Throughput of one lane against a real replica set: per-event mode (one
+ * upsert and one checkpoint write, each acknowledged by the majority) versus
+ * transactional batches of growing size (one bulk write, one checkpoint and
+ * one commit per batch). Needs a replica set, e.g.
+ * mvn test -Pbenchmark -Dbenchmark.mongodb.uri=mongodb://localhost:27017/?replicaSet=rs0
+ */
+@Tag("benchmark")
+class TransactionalBatchBenchmarkTest {
+
+        private static final Logger LOGGER = LoggerFactory.getLogger(TransactionalBatchBenchmarkTest.class);
+        private static final int EVENTS = 5_000;
+        private static final int[] BATCH_SIZES = { 1, 10, 50, 100, 500 };
+
+        private static List<ChangeStreamDocument<Document>> events(int count) {
+                MongoNamespace source = new MongoNamespace("benchmark_changestream", "source");
+                List<ChangeStreamDocument<Document>> events = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                        Document transaction = new Document("playerID", i % 500).append("transactionID", i)
+                                        .append("value", 1.0 + i % 7).append("name", "player" + i % 500)
+                                        .append("date", new Date());
+                        events.add(SyntheticChangeEvents.insert(source, transaction, new BsonTimestamp(i + 1, 1)));
+                }
+                return events;
+        }
+
+        private static BsonDocument token(int i) {
+                return new BsonDocument("_data", new BsonString(String.format("82%016X", (long) i)));
+        }
+
+        @Test
+        void benchmarkThroughputAgainstBatchSize() {
+                String uri = System.getProperty("benchmark.mongodb.uri");
+                assumeTrue(uri != null, "set -Dbenchmark.mongodb.uri to a replica set");
+
+                try (MongoClient client = MongoClients.create(uri)) {
+                        MongoDatabase database = client.getDatabase("benchmark_changestream")
+                                        .withWriteConcern(WriteConcern.MAJORITY);
+                        MongoCollection<Document> daily = database.getCollection("userdailytxn");
+                        MongoCollection<Document> checkpoints = database.getCollection("resumetokens");
+                        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 50, 0.9);
+                        ChangeEventService service = new ChangeEventService(database.getCollection("source"), daily,
+                                        limiter, new TransactionFilter(false, 0, 1, 1.0));
+                        ResumeTokenService tokens = new ResumeTokenService(checkpoints);
+                        List<ChangeStreamDocument<Document>> events = events(EVENTS);
+
+                        daily.drop();
+                        checkpoints.drop();
+                        long startNanos = System.nanoTime();
+                        for (int i = 0; i < events.size(); i++) {
+                                service.processChange(events.get(i));
+                                tokens.saveResumeToken(events.get(i).getClusterTime(), token(i), "lane-0");
+                        }
+                        report("per event", System.nanoTime() - startNanos);
+                        long perEventCount = daily.countDocuments();
+
+                        for (int batchSize : BATCH_SIZES) {
+                                daily.drop();
+                                checkpoints.drop();
+                                startNanos = System.nanoTime();
+                                for (int from = 0; from < events.size(); from += batchSize) {
+                                        List<ChangeStreamDocument<Document>> batch = events.subList(from,
+                                                        Math.min(from + batchSize, events.size()));
+                                        int last = from + batch.size() - 1;
+                                        try (ClientSession session = client.startSession()) {
+                                                session.withTransaction(() -> {
+                                                        service.processChanges(session, batch);
+                                                        tokens.saveResumeToken(session, events.get(last).getClusterTime(),
+                                                                        token(last), "lane-0");
+                                                        return null;
+                                                }, TransactionOptions.builder().writeConcern(WriteConcern.MAJORITY)
+                                                                .build());
+                                        }
+                                }
+                                report("transactional, batch " + batchSize, System.nanoTime() - startNanos);
+                                assertEquals(perEventCount, daily.countDocuments());
+                        }
+                        database.drop();
+                }
+        }
+
+        private static void report(String mode, long elapsedNanos) {
+                LOGGER.info("{}: {} events/s", mode, String.format("%,.0f", EVENTS / (elapsedNanos / 1_000_000_000.0)));
+        }
+}
@@ -0,0 +1,260 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ResumeTokenService;
+import com.example.demo.service.TransactionalLaneCommitter;
+import com.mongodb.TransactionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.TransactionBody;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+class TransactionalLaneCommitterTest {
+
+        private ChangeEventServiceInterface handler;
+        private ResumeTokenService tokens;
+        private MongoClient mongoClient;
+        private ClientSession session;
+        private PrometheusMetricsConfig metricsConfig;
+        private Counter.Child skipped;
+
+        private static BsonDocument token(String data) {
+                return new BsonDocument("_data", new BsonString(data));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ChangeStreamDocument<Document> event(String data, int seconds) {
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getResumeToken()).thenReturn(token(data));
+                when(event.getClusterTime()).thenReturn(new BsonTimestamp(seconds, 1));
+                return event;
+        }
+
+        @BeforeEach
+        @SuppressWarnings("unchecked")
+        void setUp() {
+                handler = mock(ChangeEventServiceInterface.class);
+                tokens = mock(ResumeTokenService.class);
+                mongoClient = mock(MongoClient.class);
+                session = mock(ClientSession.class);
+                when(mongoClient.startSession()).thenReturn(session);
+                // run the transaction body once, like a commit without transient errors
+                when(session.withTransaction(any(TransactionBody.class), any(TransactionOptions.class)))
+                                .thenAnswer(invocation -> ((TransactionBody<?>) invocation.getArgument(0)).execute());
+
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                Histogram histogram = mock(Histogram.class);
+                Histogram.Child histogramChild = mock(Histogram.Child.class);
+                when(histogram.labels(anyString())).thenReturn(histogramChild);
+                when(histogramChild.startTimer()).thenReturn(mock(Histogram.Timer.class));
+                when(metricsConfig.txnCommitDuration()).thenReturn(histogram);
+                when(metricsConfig.txnBatchSize()).thenReturn(histogram);
+                Counter counter = mock(Counter.class);
+                skipped = mock(Counter.Child.class);
+                when(counter.labels(anyString())).thenReturn(skipped);
+                when(metricsConfig.txnReplaySkipped()).thenReturn(counter);
+                when(metricsConfig.txnBatchFailures()).thenReturn(counter);
+                when(metricsConfig.totalEventsHandledSuccessfully()).thenReturn(mock(Counter.class));
+        }
+
+        private TransactionalLaneCommitter committer(int batchSize, CountDownLatch done) {
+                return new TransactionalLaneCommitter("test", 1, handler, tokens, mongoClient, batchSize, 1000, 1, 0,
+                                () -> true, metricsConfig, (lane, batch) -> {
+                                        for (int i = 0; i < batch.size(); i++) {
+                                                done.countDown();
+                                        }
+                                });
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testBatchAndCheckpointCommitInOneTransaction() throws Exception {
+                // Arrange
+                CountDownLatch done = new CountDownLatch(3);
+                TransactionalLaneCommitter committer = committer(3, done).start();
+
+                // Act
+                committer.submit(event("8201", 1), 0);
+                committer.submit(event("8202", 2), 0);
+                committer.submit(event("8203", 3), 0);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                committer.shutdown(5, TimeUnit.SECONDS);
+
+                // Assert: one batch, checkpointed at its last event with the same session
+                ArgumentCaptor<List<ChangeStreamDocument<Document>>> batch = ArgumentCaptor.forClass(List.class);
+                verify(handler).processChanges(eq(session), batch.capture());
+                assertEquals(3, batch.getValue().size());
+                verify(tokens).saveResumeToken(session, new BsonTimestamp(3, 1), token("8203"), "txn-lane-0");
+        }
+
+        @Test
+        void testBatchStartIsReportedWithItsUnappliedEvents() throws Exception {
+                // Arrange: the lane committed up to 8201 before the restart
+                when(tokens.getThreadIDs("txn-lane-")).thenReturn(List.of("txn-lane-0"));
+                when(tokens.getThreadResumeToken("txn-lane-0")).thenReturn(token("8201"));
+                CountDownLatch done = new CountDownLatch(2);
+                List<BsonDocument> heads = new CopyOnWriteArrayList<>();
+                TransactionalLaneCommitter committer = new TransactionalLaneCommitter("test", 1, handler, tokens,
+                                mongoClient, 2, 1000, 1, 0, () -> true, metricsConfig,
+                                new TransactionalLaneCommitter.BatchListener() {
+                                        @Override
+                                        public void onBatchStarted(int lane, List<ChangeStreamDocument<Document>> pending) {
+                                                heads.add(pending.get(0).getResumeToken());
+                                        }
+
+                                        @Override
+                                        public void onBatchDone(int lane, List<ChangeStreamDocument<Document>> batch) {
+                                                batch.forEach(event -> done.countDown());
+                                        }
+                                }).start();
+
+                // Act
+                committer.submit(event("8201", 1), 0);
+                committer.submit(event("8202", 2), 0);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                committer.shutdown(5, TimeUnit.SECONDS);
+
+                // Assert: the head is the first event the transaction applies
+                assertEquals(List.of(token("8202")), heads);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testReplayedEventsOfCommittedBatchesAreSkipped() throws Exception {
+                // Arrange: the lane committed up to 8202 before the restart
+                when(tokens.getThreadIDs("txn-lane-")).thenReturn(List.of("txn-lane-0"));
+                when(tokens.getThreadResumeToken("txn-lane-0")).thenReturn(token("8202"));
+                CountDownLatch done = new CountDownLatch(3);
+                TransactionalLaneCommitter committer = committer(3, done).start();
+
+                // Act
+                committer.submit(event("8201", 1), 0);
+                committer.submit(event("8202", 2), 0);
+                committer.submit(event("8203", 3), 0);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                committer.shutdown(5, TimeUnit.SECONDS);
+
+                // Assert
+                ArgumentCaptor<List<ChangeStreamDocument<Document>>> batch = ArgumentCaptor.forClass(List.class);
+                verify(handler).processChanges(eq(session), batch.capture());
+                assertEquals(List.of(token("8203")),
+                                batch.getValue().stream().map(ChangeStreamDocument::getResumeToken).toList());
+                verify(skipped, times(2)).inc();
+        }
+
+        @Test
+        void testChangedLaneCountReplaysEverything() throws Exception {
+                // Arrange: checkpoints were written by two lanes, now there is one
+                when(tokens.getThreadIDs("txn-lane-")).thenReturn(List.of("txn-lane-0", "txn-lane-1"));
+                CountDownLatch done = new CountDownLatch(1);
+                TransactionalLaneCommitter committer = committer(1, done).start();
+
+                // Act
+                committer.submit(event("8201", 1), 0);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                committer.shutdown(5, TimeUnit.SECONDS);
+
+                // Assert: no lane skips, the removed lane's checkpoint is dropped
+                verify(tokens, never()).getThreadResumeToken(anyString());
+                verify(tokens).deleteThreadResumeToken("txn-lane-1");
+                verify(handler).processChanges(eq(session), anyList());
+        }
+
+        @Test
+        void testSeedPinsLanesToTheStartPosition() {
+                // Arrange
+                TransactionalLaneCommitter committer = committer(1, new CountDownLatch(0));
+                BsonDocument start = token("8266C4B2A3000000012B0229296E04");
+
+                // Act
+                committer.seed(start);
+
+                // Assert
+                verify(tokens).seedResumeToken(new BsonTimestamp(0x66C4B2A3, 0), start, "txn-lane-0");
+        }
+
+        @Test
+        void testSwitchToTransactionalModeDropsEventModeCheckpoints() {
+                // Arrange: the stream ran in event commit mode before, with and without high-water marks
+                when(tokens.getThreadIDs("lane-")).thenReturn(List.of("lane-0", "lane-1"));
+                when(tokens.getThreadIDs("Thread-")).thenReturn(List.of("Thread-3"));
+                TransactionalLaneCommitter committer = committer(1, new CountDownLatch(0));
+                BsonDocument start = token("8266C4B2A3000000012B0229296E04");
+
+                // Act
+                committer.seed(start);
+
+                // Assert: the lane is pinned before the checkpoints it replaces go
+                verify(tokens).seedResumeToken(new BsonTimestamp(0x66C4B2A3, 0), start, "txn-lane-0");
+                verify(tokens).deleteThreadResumeToken("lane-0");
+                verify(tokens).deleteThreadResumeToken("lane-1");
+                verify(tokens).deleteThreadResumeToken("Thread-3");
+                verify(tokens, never()).deleteThreadResumeToken("txn-lane-0");
+        }
+
+        @Test
+        void testGivenUpBatchHaltsTheLane() throws Exception {
+                // Arrange: the handler rejects the first batch
+                doThrow(new IllegalArgumentException("bad event")).doReturn(0).when(handler)
+                                .processChanges(eq(session), anyList());
+                CountDownLatch done = new CountDownLatch(2);
+                TransactionalLaneCommitter committer = committer(1, done).start();
+                assertFalse(committer.isHalted());
+
+                // Act
+                committer.submit(event("8201", 1), 0);
+                committer.submit(event("8202", 2), 0);
+                assertTrue(done.await(5, TimeUnit.SECONDS));
+                committer.advanceIdle(0, new BsonTimestamp(3, 1), token("8203"));
+                committer.shutdown(5, TimeUnit.SECONDS);
+
+                // Assert: nothing after the failed batch moves the lane's checkpoint
+                assertTrue(committer.isHalted());
+                verify(handler, times(1)).processChanges(eq(session), anyList());
+                verify(tokens, never()).saveResumeToken(any(BsonTimestamp.class), any(BsonDocument.class),
+                                anyString());
+        }
+
+        @Test
+        void testIdleLaneMovesItsCheckpoint() {
+                // Arrange
+                TransactionalLaneCommitter committer = committer(1, new CountDownLatch(0));
+
+                // Act
+                committer.advanceIdle(0, new BsonTimestamp(3, 1), token("8203"));
+
+                // Assert
+                verify(tokens).saveResumeToken(new BsonTimestamp(3, 1), token("8203"), "txn-lane-0");
+        }
+}
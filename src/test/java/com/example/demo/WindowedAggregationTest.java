@@ -0,0 +1,288 @@
+package com.example.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.demo.metrics.PrometheusMetricsConfig;
+import com.example.demo.service.ChangeEventServiceInterface;
+import com.example.demo.service.ChangeStreamContext;
+import com.example.demo.service.ResumeTokenService;
+import com.example.demo.service.WindowedAggregation;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+class WindowedAggregationTest {
+
+        private static final long T0 = 1_700_000_100_000L; // a multiple of five minutes
+        private static final long FIVE_MINUTES = 300_000L;
+
+        private MongoCollection<Document> windowCollection;
+        private MongoCollection<Document> snapshotCollection;
+        private ResumeTokenService tokens;
+        private PrometheusMetricsConfig metricsConfig;
+        private Counter.Child late;
+        private Counter.Child dropped;
+        private ChangeStreamContext stream;
+
+        private static BsonDocument token(String data) {
+                return new BsonDocument("_data", new BsonString(data));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ChangeStreamDocument<Document> insert(String token, int playerID, long millis, double value) {
+                ChangeStreamDocument<Document> event = mock(ChangeStreamDocument.class);
+                when(event.getOperationType()).thenReturn(OperationType.INSERT);
+                when(event.getResumeToken()).thenReturn(token(token));
+                when(event.getClusterTime()).thenReturn(new BsonTimestamp((int) (millis / 1000), 1));
+                when(event.getFullDocument()).thenReturn(new Document("playerID", playerID)
+                                .append("date", new Date(millis)).append("value", value));
+                return event;
+        }
+
+        @BeforeEach
+        @SuppressWarnings("unchecked")
+        void setUp() {
+                windowCollection = mock(MongoCollection.class);
+                snapshotCollection = mock(MongoCollection.class);
+                tokens = mock(ResumeTokenService.class);
+                stream = new ChangeStreamContext("default", mock(ChangeEventServiceInterface.class), tokens);
+
+                metricsConfig = mock(PrometheusMetricsConfig.class);
+                Counter emitted = mock(Counter.class);
+                when(emitted.labels(anyString(), anyString())).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.windowEmitted()).thenReturn(emitted);
+                Counter lateCounter = mock(Counter.class);
+                late = mock(Counter.Child.class);
+                when(lateCounter.labels(anyString())).thenReturn(late);
+                when(metricsConfig.windowLateEvents()).thenReturn(lateCounter);
+                Counter droppedCounter = mock(Counter.class);
+                dropped = mock(Counter.Child.class);
+                when(droppedCounter.labels(anyString())).thenReturn(dropped);
+                when(metricsConfig.windowDropped()).thenReturn(droppedCounter);
+                Counter failures = mock(Counter.class);
+                when(failures.labels(anyString())).thenReturn(mock(Counter.Child.class));
+                when(metricsConfig.windowEmitFailures()).thenReturn(failures);
+                Histogram histogram = mock(Histogram.class);
+                when(histogram.startTimer()).thenReturn(mock(Histogram.Timer.class));
+                when(metricsConfig.windowSnapshotDuration()).thenReturn(histogram);
+                Gauge gauge = mock(Gauge.class);
+                when(gauge.labels(anyString(), anyString())).thenReturn(mock(Gauge.Child.class));
+                when(metricsConfig.windowStateEntries()).thenReturn(gauge);
+        }
+
+        private WindowedAggregation windows(long snapshotMillis, String... specs) {
+                WindowedAggregation windows = new WindowedAggregation(windowCollection, snapshotCollection,
+                                metricsConfig);
+                ReflectionTestUtils.setField(windows, "enabled", true);
+                ReflectionTestUtils.setField(windows, "specs", specs);
+                ReflectionTestUtils.setField(windows, "latenessMillis", 0L);
+                ReflectionTestUtils.setField(windows, "batchSize", 500);
+                ReflectionTestUtils.setField(windows, "snapshotMillis", snapshotMillis);
+                ReflectionTestUtils.setField(windows, "maxPending", 100_000);
+                ReflectionTestUtils.setField(windows, "retryMillis", 60_000L);
+                windows.init();
+                return windows;
+        }
+
+        private static Document update(UpdateOneModel<Document> model) {
+                return ((Document) model.getUpdate()).get("$set", Document.class);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testWindowsAreEmittedOnceTheWatermarkPassesTheirEnd() {
+                // Arrange: a tumbling and a sliding window over five minute panes
+                WindowedAggregation windows = windows(Long.MAX_VALUE, "t5:300000", "s10:600000:300000");
+                windows.restore(stream, 1);
+
+                // Act
+                windows.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+                windows.onEvent(stream, 0, insert("8202", 7, T0 + 2_000, 7.0));
+                windows.onEvent(stream, 0, insert("8203", 8, T0 + 3_000, 1.0));
+                verify(windowCollection, never()).bulkWrite(anyList(), any(BulkWriteOptions.class));
+                windows.onEvent(stream, 0, insert("8204", 7, T0 + FIVE_MINUTES, 2.0));
+
+                // Assert: both windows ending at T0 + 5 min, one upsert per player each
+                ArgumentCaptor<List<UpdateOneModel<Document>>> batch = ArgumentCaptor.forClass(List.class);
+                verify(windowCollection).bulkWrite(batch.capture(), any(BulkWriteOptions.class));
+                List<UpdateOneModel<Document>> models = batch.getValue();
+                assertEquals(4, models.size());
+                UpdateOneModel<Document> player7 = models.stream()
+                                .filter(model -> ((Document) model.getFilter()).getInteger("playerID") == 7
+                                                && "t5".equals(((Document) model.getFilter()).getString("window")))
+                                .findFirst().orElseThrow();
+                assertEquals(new Date(T0 + FIVE_MINUTES), ((Document) player7.getFilter()).getDate("end"));
+                assertEquals(2L, update(player7).get("count"));
+                assertEquals(12.0, update(player7).get("sum"));
+                assertEquals(7.0, update(player7).get("max"));
+        }
+
+        @Test
+        void testEventsOfEmittedWindowsAreLate() {
+                // Arrange
+                WindowedAggregation windows = windows(Long.MAX_VALUE, "t5:300000", "s10:600000:300000");
+                windows.restore(stream, 1);
+                windows.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+                windows.onEvent(stream, 0, insert("8202", 7, T0 + FIVE_MINUTES, 2.0));
+
+                // Act: the tumbling window is emitted, the sliding window ending at T0 + 10 min is still open
+                windows.onEvent(stream, 0, insert("8203", 7, T0 + 2_000, 3.0));
+
+                // Assert
+                verify(late, times(1)).inc();
+        }
+
+        @Test
+        void testFailedWritesBackOffAndDropTheOldestWindows() {
+                // Arrange: room for one queued upsert, the window collection is down
+                WindowedAggregation windows = windows(Long.MAX_VALUE, "t5:300000");
+                ReflectionTestUtils.setField(windows, "maxPending", 1);
+                windows.restore(stream, 1);
+                when(windowCollection.bulkWrite(anyList(), any(BulkWriteOptions.class)))
+                                .thenThrow(new MongoException("down"));
+                windows.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+                windows.onEvent(stream, 0, insert("8202", 8, T0 + 2_000, 1.0));
+
+                // Act: each of the next events emits a window for both players
+                windows.onEvent(stream, 0, insert("8203", 7, T0 + FIVE_MINUTES, 2.0));
+                windows.onEvent(stream, 0, insert("8204", 8, T0 + 2 * FIVE_MINUTES, 3.0));
+
+                // Assert: one write attempt within the backoff, the queue stays at one upsert
+                verify(windowCollection, times(1)).bulkWrite(anyList(), any(BulkWriteOptions.class));
+                verify(dropped, times(2)).inc(1);
+        }
+
+        @Test
+        @SuppressWarnings("unchecked")
+        void testRestoredSnapshotSkipsTheEventsItContains() {
+                // Arrange: snapshot after every event
+                WindowedAggregation first = windows(0, "t5:300000");
+                first.restore(stream, 1);
+                first.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+                ArgumentCaptor<List<Document>> chunks = ArgumentCaptor.forClass(List.class);
+                verify(snapshotCollection).insertMany(chunks.capture());
+                verify(tokens).saveResumeToken(any(BsonTimestamp.class), eq(token("8201")), eq("window-lane-0"),
+                                eq(new Document("windowSeq", 1L).append("windowChunks", 1)));
+
+                when(tokens.getThreadIDs("window-lane-")).thenReturn(List.of("window-lane-0"));
+                when(tokens.getThreadTokenDocument("window-lane-0"))
+                                .thenReturn(new Document("resumeToken", new Document("_data", "8201"))
+                                                .append("windowSeq", 1L).append("windowChunks", 1));
+                FindIterable<Document> found = mock(FindIterable.class);
+                MongoCursor<Document> cursor = mock(MongoCursor.class);
+                when(snapshotCollection.find(any(Bson.class))).thenReturn(found);
+                when(found.sort(any(Bson.class))).thenReturn(found);
+                when(found.iterator()).thenReturn(cursor);
+                when(cursor.hasNext()).thenReturn(true, false);
+                when(cursor.next()).thenReturn(chunks.getValue().get(0));
+                WindowedAggregation second = windows(Long.MAX_VALUE, "t5:300000");
+
+                // Act: restart, the stream replays from the snapshot's event
+                BsonDocument[] restored = second.restore(stream, 1);
+                second.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+                second.onEvent(stream, 0, insert("8202", 7, T0 + FIVE_MINUTES, 2.0));
+
+                // Assert: the replayed event is counted once
+                assertEquals(token("8201"), restored[0]);
+                ArgumentCaptor<List<UpdateOneModel<Document>>> batch = ArgumentCaptor.forClass(List.class);
+                verify(windowCollection).bulkWrite(batch.capture(), any(BulkWriteOptions.class));
+                assertEquals(1L, update(batch.getValue().get(0)).get("count"));
+                assertEquals(5.0, update(batch.getValue().get(0)).get("sum"));
+        }
+
+        @Test
+        void testIdleLaneIsSnapshottedAtTheReadersPosition() {
+                // Arrange: one event in lane 0, none in lane 1
+                WindowedAggregation windows = windows(0, "t5:300000");
+                windows.restore(stream, 2);
+                windows.onEvent(stream, 0, insert("8201", 7, T0 + 1_000, 5.0));
+
+                // Act
+                windows.advanceIdle(stream, 0, new BsonTimestamp(1_700_000_200, 1), token("8205"));
+                windows.advanceIdle(stream, 0, new BsonTimestamp(1_700_000_200, 1), token("8203"));
+                windows.advanceIdle(stream, 1, new BsonTimestamp(1_700_000_200, 1), token("8205"));
+
+                // Assert: lane 0 moves forward only, lane 1 has no checkpoint to move
+                verify(tokens).saveResumeToken(any(BsonTimestamp.class), eq(token("8205")), eq("window-lane-0"),
+                                eq(new Document("windowSeq", 2L).append("windowChunks", 1)));
+                verify(tokens, never()).saveResumeToken(any(BsonTimestamp.class), eq(token("8203")), anyString(),
+                                any(Document.class));
+                verify(tokens, never()).saveResumeToken(any(BsonTimestamp.class), any(BsonDocument.class),
+                                eq("window-lane-1"), any(Document.class));
+        }
+
+        @Test
+        void testChangedLaneCountStartsOver() {
+                // Arrange: snapshots of two lanes, now there is one
+                when(tokens.getThreadIDs("window-lane-")).thenReturn(List.of("window-lane-0", "window-lane-1"));
+                WindowedAggregation windows = windows(Long.MAX_VALUE, "t5:300000");
+
+                // Act
+                BsonDocument[] restored = windows.restore(stream, 1);
+
+                // Assert
+                assertNull(restored[0]);
+                verify(tokens).deleteThreadResumeToken("window-lane-0");
+                verify(tokens).deleteThreadResumeToken("window-lane-1");
+                verify(tokens, never()).getThreadTokenDocument(anyString());
+        }
+
+        @Test
+        void testSpecNeedsASlideThatDividesTheSize() {
+                assertEquals(new WindowedAggregation.WindowSpec("t5", 300_000, 300_000),
+                                WindowedAggregation.WindowSpec.parse("t5:300000"));
+                assertThrows(IllegalArgumentException.class,
+                                () -> WindowedAggregation.WindowSpec.parse("s:600000:250000"));
+        }
+
+        @Test
+        void testDisabledWindowsDropTheirCheckpointsAndSnapshots() {
+                // Arrange: the stream ran with windows before
+                when(tokens.getNamespace()).thenReturn("default");
+                when(tokens.getThreadIDs("window-lane-")).thenReturn(List.of("window-lane-0", "window-lane-1"));
+                WindowedAggregation windows = windows(Long.MAX_VALUE, "t5:300000");
+                ReflectionTestUtils.setField(windows, "enabled", false);
+
+                // Act
+                List<String> dropped = windows.dropLanes(stream);
+
+                // Assert
+                assertEquals(List.of("window-lane-0", "window-lane-1"), dropped);
+                verify(tokens).deleteThreadResumeToken("window-lane-0");
+                verify(tokens).deleteThreadResumeToken("window-lane-1");
+                verify(snapshotCollection, times(2)).deleteMany(any(Bson.class));
+        }
+}